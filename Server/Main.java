@@ -9,12 +9,25 @@ public class Main {
     private static final int WS_PORT = 3001;
     private static final Map<String, String> documents = new ConcurrentHashMap<>(); // In-memory storage
     private static final String DEFAULT_VALUE = "";
+    // -Deditor.execution.mode=platform falls back to one platform thread per connection
+    private static final boolean VIRTUAL_THREADS =
+            !"platform".equalsIgnoreCase(System.getProperty("editor.execution.mode", "virtual"));
 
     public static void main(String[] args) {
+        // Platform threads: the accept loops are what keeps the JVM alive
         new Thread(Main::startHttpServer).start();
         new Thread(Main::startWebSocketServer).start();
     }
 
+    // Runs a connection handler on a virtual thread, or on a platform thread in platform mode
+    private static void startThread(Runnable task) {
+        if (VIRTUAL_THREADS) {
+            Thread.ofVirtual().start(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
     // Basic HTTP Server
     public static void startHttpServer() {
         try (ServerSocket serverSocket = new ServerSocket(HTTP_PORT)) {
@@ -54,7 +67,7 @@ public class Main {
             System.out.println("WebSocket Server running on ws://localhost:" + WS_PORT);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleWebSocket(clientSocket)).start();
+                startThread(() -> handleWebSocket(clientSocket));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,133 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.cluster.ClusterRouter;
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.network.FrameBroadcaster;
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import com.example.collaborativeeditor.network.tcp.CountingClientHandler;
+import com.example.collaborativeeditor.network.tcp.TcpServer;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTracer;
+import com.example.collaborativeeditor.service.DocumentService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcasts per second through {@link TcpServer#broadcastToDocument} to a
+ * document with the given number of subscribers. Each broadcast is a fresh
+ * keystroke-sized edit, so the score includes encoding the frame once and
+ * handing every subscriber its view of it; the subscribers are
+ * {@link CountingClientHandler}s, so no socket is written. With "mixed"
+ * versions every tenth subscriber speaks the legacy payload and the frame
+ * is encoded twice. Run with {@code -prof gc} to see bytes allocated per
+ * broadcast; the frame is shared, so that should stay roughly flat as
+ * subscribers are added. The frames and bytes handed to subscribers in each
+ * iteration are reported as the secondary "frames" and "bytes" results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String DOCUMENT_ID = "3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9";
+
+    @Param({ "1", "10", "100", "1000" })
+    public int subscribers;
+
+    @Param({ "v2", "mixed" })
+    public String versions;
+
+    private ExecutorService executor;
+    private TcpServer server;
+    private final List<CountingClientHandler> clients = new ArrayList<>();
+    private long revision;
+
+    @Setup
+    public void setUp() {
+        EditorProperties properties = new EditorProperties();
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        DocumentService documentService = new DocumentService();
+        TcpServer[] self = new TcpServer[1];
+        server = new TcpServer(documentService, new DocumentMailboxes(executor), properties, executor,
+                new FrameBroadcaster(() -> List.of(self[0])), new SimpleMeterRegistry(), EditTracer.NONE,
+                ClusterRouter.STANDALONE);
+        self[0] = server;
+        for (int i = 0; i < subscribers; i++) {
+            byte version = "mixed".equals(versions) && i % 10 == 9 ? MessageCodec.VERSION_LEGACY
+                    : MessageCodec.VERSION_2;
+            CountingClientHandler client = new CountingClientHandler(server, version, 0);
+            server.registerClient(DOCUMENT_ID, client);
+            clients.add(client);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void broadcast(Handed handed) {
+        NetworkMessage message = NetworkMessage.createEditMessage(DOCUMENT_ID,
+                "{\"ops\":[{\"retain\":5120},{\"insert\":\"a\"}]}", "alice");
+        message.setRevision(++revision);
+        server.broadcastToDocument(DOCUMENT_ID, message, null);
+    }
+
+    private long handedFrames() {
+        return clients.stream().mapToLong(CountingClientHandler::getFrames).sum();
+    }
+
+    private long handedBytes() {
+        return clients.stream().mapToLong(CountingClientHandler::getBytes).sum();
+    }
+
+    /**
+     * Frames and bytes handed to all subscribers during one iteration; read
+     * once the iteration is over, so counting costs nothing per broadcast
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Handed {
+        private BroadcastBenchmark benchmark;
+        private long framesBefore;
+        private long bytesBefore;
+
+        @Setup(Level.Iteration)
+        public void start(BroadcastBenchmark benchmark) {
+            this.benchmark = benchmark;
+            framesBefore = benchmark.handedFrames();
+            bytesBefore = benchmark.handedBytes();
+        }
+
+        public long frames() {
+            return benchmark.handedFrames() - framesBefore;
+        }
+
+        public long bytes() {
+            return benchmark.handedBytes() - bytesBefore;
+        }
+    }
+}
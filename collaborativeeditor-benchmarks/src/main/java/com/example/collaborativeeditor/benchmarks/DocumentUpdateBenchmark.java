@@ -0,0 +1,65 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.service.DocumentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Edits per second that {@link DocumentService} applies to one document,
+ * without a log, so only the in-memory cost counts. "update" replaces the
+ * whole body with one that differs by a character, as a coalesced
+ * full-content edit from the page does; "insertAndDelete" types and
+ * removes a character with the keystroke-sized edits of the TCP protocol.
+ * Run with {@code -prof gc} to see bytes allocated per edit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentUpdateBenchmark {
+
+    // Document length in chars: a note, an article, a long report
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    private DocumentService service;
+    private String documentId;
+    private String[] bodies;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        service = new DocumentService();
+        documentId = service.createDocument().getId();
+        String body = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. ".repeat(size / 57 + 1)
+                .substring(0, size);
+        // Two bodies one keystroke apart, so every update changes the document
+        bodies = new String[] { body, body.substring(0, size / 2) + "x" + body.substring(size / 2 + 1) };
+        service.updateDocument(documentId, body, "alice");
+    }
+
+    @Benchmark
+    public long update() {
+        next ^= 1;
+        return service.updateDocument(documentId, bodies[next], "alice");
+    }
+
+    @Benchmark
+    public void insertAndDelete() {
+        service.insertText(documentId, size / 2, "a", "alice");
+        service.deleteText(documentId, size / 2, 1, "alice");
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.persistence.EditRecord;
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Durable edits per second through the edit log, per fsync policy, for one
+ * editor and for many concurrent ones. With ALWAYS, group commit should make
+ * the many-editor throughput grow with the editor count instead of staying
+ * at one fsync per edit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EditLogBenchmark {
+
+    @Param({ "ALWAYS", "INTERVAL", "NONE" })
+    public FileEditLog.FsyncPolicy fsync;
+
+    @Param({ "2" })
+    public int windowMillis;
+
+    private Path directory;
+    private FileEditLog log;
+    // A typical keystroke
+    private final EditRecord record = new EditRecord.Insert("3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9", 2048, "a",
+            "alice", 1739876543210L);
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("edit-log-benchmark");
+        log = new FileEditLog(directory, fsync, Duration.ofMillis(windowMillis));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long oneEditor() {
+        return appendDurably();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long manyEditors() {
+        return appendDurably();
+    }
+
+    private long appendDurably() {
+        long lsn = log.append(record);
+        log.awaitDurable(lsn);
+        return lsn;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU against bytes on the wire for TCP frames, with and without the
+ * deflated payloads of {@link MessageCodec#compress}. The scores are the
+ * time to produce a frame (encode) and to read one back (decode); encode
+ * also reports the frames it produced and their bytes on the wire, whose
+ * ratio is the frame size of each combination.
+ *
+ * "edit" is a keystroke-sized Quill delta, below the default threshold;
+ * "load" is the full body of a 1 MB rich-text document, as sent on join.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCompressionBenchmark {
+    private static final String[] WORDS = { "the", "document", "editor", "revision", "collaborative", "a",
+            "of", "text", "and", "server", "client", "operation", "to", "in", "change", "paragraph" };
+
+    @Param({ "edit", "load" })
+    public String payload;
+
+    // Smallest payload that is compressed; 0 sends everything as it is
+    @Param({ "0", "1024" })
+    public int threshold;
+
+    private NetworkMessage message;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        String content = switch (payload) {
+            case "edit" -> "{\"ops\":[{\"retain\":5120},{\"insert\":\"a\",\"attributes\":{\"bold\":true}}]}";
+            default -> quillDocument(1 << 20);
+        };
+        message = NetworkMessage.createEditMessage("3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9", content, "alice");
+        message.setRevision(1842);
+        frame = MessageCodec.compress(message.serialize(), threshold);
+    }
+
+    @Benchmark
+    public byte[] encode(Wire wire) {
+        byte[] encoded = MessageCodec.compress(message.serialize(), threshold);
+        wire.frames++;
+        wire.bytes += encoded.length;
+        return encoded;
+    }
+
+    @Benchmark
+    public NetworkMessage decode() {
+        return NetworkMessage.deserialize(frame);
+    }
+
+    /**
+     * A Quill delta of roughly the given size: paragraphs of words with some bold runs
+     */
+    private static String quillDocument(int size) {
+        Random random = new Random(7);
+        StringBuilder json = new StringBuilder(size + 256).append("{\"ops\":[");
+        while (json.length() < size) {
+            StringBuilder text = new StringBuilder();
+            for (int words = 20 + random.nextInt(60); words > 0; words--) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            json.append("{\"insert\":\"").append(text).append("\\n\"");
+            if (random.nextInt(4) == 0) {
+                json.append(",\"attributes\":{\"bold\":true}");
+            }
+            json.append("},");
+        }
+        json.setLength(json.length() - 1);
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Frames encoded during one iteration and the bytes they take on the wire
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long frames;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.network.websocket.InboundMessage;
+import com.example.collaborativeeditor.network.websocket.InboundMessageDecoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding one incoming WebSocket message: binding to a Map, as the
+ * handler used to, against the typed streaming decoder. Run with
+ * {@code -prof gc} to see gc.alloc.rate.norm, the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecodingBenchmark {
+
+    @Param({ "operation", "edit", "user_update" })
+    public String shape;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final InboundMessageDecoder decoder = new InboundMessageDecoder(objectMapper);
+    private String payload;
+
+    @Setup
+    public void setUp() {
+        payload = switch (shape) {
+            // One keystroke in the middle of a 4 KB document
+            case "operation" -> "{\"type\":\"operation\",\"documentId\":\"3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9\","
+                    + "\"revision\":1842,\"ops\":[2048,\"a\",2047],\"editor\":\"alice\"}";
+            case "edit" -> "{\"documentId\":\"3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9\",\"content\":\""
+                    + "x".repeat(4096) + "\",\"editor\":\"alice\",\"timestamp\":1739876543210}";
+            default -> "{\"type\":\"user_update\",\"documentId\":\"3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9\","
+                    + "\"username\":\"alice\",\"action\":\"join\"}";
+        };
+    }
+
+    @Benchmark
+    public Map<?, ?> mapBinding() throws IOException {
+        return objectMapper.readValue(payload, Map.class);
+    }
+
+    @Benchmark
+    public InboundMessage typedStreaming() throws IOException {
+        return decoder.decode(payload);
+    }
+}
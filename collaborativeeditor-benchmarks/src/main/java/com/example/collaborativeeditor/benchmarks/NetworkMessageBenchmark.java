@@ -0,0 +1,64 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per millisecond through {@link NetworkMessage#serialize(byte)} and
+ * {@link NetworkMessage#deserialize}, for both payload versions. The content
+ * sizes stand for a keystroke, a typical document and a large one sent on
+ * join. Run with {@code -prof gc} to see bytes allocated per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkMessageBenchmark {
+
+    // Content length in chars
+    @Param({ "64", "4096", "65536" })
+    public int size;
+
+    // 1 is the legacy pipe-separated payload, 2 the length-prefixed one
+    @Param({ "1", "2" })
+    public byte version;
+
+    private NetworkMessage message;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        // Non-ASCII text makes the UTF-8 encoder do real work
+        String content = "Grüße, editor — ".repeat(size / 16 + 1).substring(0, size);
+        message = NetworkMessage.createEditMessage("3f2b8c1e-7a4d-4e52-9a51-0c6de2f1b7a9", content, "alice");
+        if (version == MessageCodec.VERSION_2) {
+            message.setRevision(1842);
+        }
+        frame = message.serialize(version);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return message.serialize(version);
+    }
+
+    @Benchmark
+    public NetworkMessage deserialize() {
+        return NetworkMessage.deserialize(frame);
+    }
+}
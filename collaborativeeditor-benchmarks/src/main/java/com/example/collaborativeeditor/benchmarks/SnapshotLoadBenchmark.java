@@ -0,0 +1,97 @@
+package com.example.collaborativeeditor.benchmarks;
+
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import com.example.collaborativeeditor.persistence.FileSnapshotStore;
+import com.example.collaborativeeditor.persistence.MappedSnapshotStore;
+import com.example.collaborativeeditor.persistence.SnapshotStore;
+import com.example.collaborativeeditor.service.DocumentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time until a document set is ready to serve after a restart. MAPPED and
+ * FILES recover from the snapshot stores, which only index the snapshots
+ * and leave documents on disk until opened; LOG replays every edit of every
+ * document, as startup did before snapshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class SnapshotLoadBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int documents;
+
+    @Param({ "MAPPED", "FILES", "LOG" })
+    public String source;
+
+    // Edits made to each document before the restart
+    @Param({ "20" })
+    public int editsPerDocument;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void populate() throws IOException {
+        directory = Files.createTempDirectory("snapshot-load-benchmark");
+        try (FileEditLog log = openLog(); SnapshotStore store = snapshotStore()) {
+            DocumentService service = new DocumentService(log, store);
+            for (int i = 0; i < documents; i++) {
+                String id = service.createDocument().getId();
+                for (int e = 0; e < editsPerDocument; e++) {
+                    service.insertText(id, e * 50, "Lorem ipsum dolor sit amet, consectetur adipiscing", "alice");
+                }
+            }
+            service.writeAllSnapshots();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public DocumentService recover() {
+        try (FileEditLog log = openLog(); SnapshotStore store = snapshotStore()) {
+            return new DocumentService(log, store);
+        }
+    }
+
+    private FileEditLog openLog() {
+        return new FileEditLog(directory.resolve("wal"), FileEditLog.FsyncPolicy.NONE, Duration.ZERO);
+    }
+
+    private SnapshotStore snapshotStore() {
+        Path snapshots = directory.resolve("snapshots");
+        return switch (source) {
+            case "MAPPED" -> new MappedSnapshotStore(snapshots, MappedSnapshotStore.DEFAULT_SEGMENT_BYTES);
+            case "FILES" -> new FileSnapshotStore(snapshots);
+            default -> SnapshotStore.NONE;
+        };
+    }
+}
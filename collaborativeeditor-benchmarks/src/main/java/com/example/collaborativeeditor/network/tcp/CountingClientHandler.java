@@ -0,0 +1,47 @@
+package com.example.collaborativeeditor.network.tcp;
+
+import com.example.collaborativeeditor.pipeline.EditTrace;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A TCP client without a socket, for measuring fan-out: it counts the
+ * frames and bytes it is handed instead of queueing them for a reactor.
+ * Lives in this package because the send path it replaces is package-private.
+ */
+public class CountingClientHandler extends TcpClientHandler {
+    private final byte codecVersion;
+    private final int compressionThreshold;
+    private long frames;
+    private long bytes;
+
+    public CountingClientHandler(TcpServer server, byte codecVersion, int compressionThreshold) {
+        super(null, server, null);
+        this.codecVersion = codecVersion;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    void send(ByteBuffer frame, EditTrace trace) {
+        frames++;
+        bytes += frame.remaining();
+    }
+
+    @Override
+    byte getCodecVersion() {
+        return codecVersion;
+    }
+
+    @Override
+    int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.collaborativeeditor.loadtest;
+
+/**
+ * One simulated editor on one document. It types by sending the whole body
+ * with one more character, the way the editor page sends full-content
+ * edits, and adopts every body it receives, so all editors of a document
+ * type into the same text.
+ * <p>
+ * Every body sent ends with a mark holding the {@link System#nanoTime()} it
+ * was sent at. The clients run in one process, so a receiver subtracts the
+ * mark from its own clock to get the latency from sender to receiver
+ * through the server.
+ */
+abstract class Editor implements AutoCloseable {
+    private static final String MARK = "\n@";
+    private static final String ALPHABET = "the quick brown fox jumps over the lazy dog ";
+
+    protected final String documentId;
+    protected final String name;
+    private final Metrics metrics;
+    private final int documentChars;
+    // Body as last typed or received, without the mark
+    private String text = "";
+    private int keystrokes;
+
+    protected Editor(String documentId, String name, Metrics metrics, int documentChars) {
+        this.documentId = documentId;
+        this.name = name;
+        this.metrics = metrics;
+        this.documentChars = documentChars;
+    }
+
+    /**
+     * Connects and joins the document
+     */
+    abstract void connect() throws Exception;
+
+    /**
+     * Sends a full-content edit
+     */
+    abstract void send(String content) throws Exception;
+
+    @Override
+    public abstract void close();
+
+    /**
+     * Types one character at the end of the body; once the body reaches the
+     * configured length its first character is dropped, so it stays there
+     */
+    void type() {
+        String typed;
+        synchronized (this) {
+            String grown = text + ALPHABET.charAt(keystrokes++ % ALPHABET.length());
+            text = grown.length() > documentChars ? grown.substring(grown.length() - documentChars) : grown;
+            typed = text;
+        }
+        try {
+            send(typed + MARK + System.nanoTime());
+            metrics.sent();
+        } catch (Exception e) {
+            metrics.error();
+        }
+    }
+
+    /**
+     * Takes a body another editor sent and records how long it took to
+     * arrive; bodies without a mark only replace the text
+     */
+    void received(String content) {
+        int mark = content.lastIndexOf(MARK);
+        if (mark >= 0) {
+            try {
+                long sentAt = Long.parseLong(content, mark + MARK.length(), content.length(), 10);
+                metrics.delivered(System.nanoTime() - sentAt);
+            } catch (NumberFormatException e) {
+                mark = -1;
+            }
+        }
+        replaceText(content, mark);
+    }
+
+    /**
+     * Takes the body a join brings; it may carry the mark of an edit sent
+     * long before, so no latency is recorded
+     */
+    void joined(String content) {
+        replaceText(content, content.lastIndexOf(MARK));
+    }
+
+    private synchronized void replaceText(String content, int mark) {
+        text = mark >= 0 ? content.substring(0, mark) : content;
+    }
+
+    protected Metrics metrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.collaborativeeditor.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What to run, from {@code --name=value} arguments; every option has a
+ * default, so an empty command line runs a small test against localhost.
+ *
+ * @param host           server to load
+ * @param httpPort       port of the web server, for creating documents and the WebSocket endpoint
+ * @param tcpPort        port of the binary TCP protocol
+ * @param wsClients      WebSocket sessions to open
+ * @param tcpClients     binary TCP connections to open
+ * @param documents      documents the clients are spread over
+ * @param zipfExponent   skew of that spread: 0 is uniform, around 1 puts most clients on a few hot documents
+ * @param rate           keystrokes per second per client
+ * @param documentChars  length documents are kept at once typing has grown them
+ * @param warmupSeconds  seconds of typing before latencies are recorded
+ * @param durationSeconds seconds of recorded typing
+ * @param reportSeconds  seconds between interim reports
+ * @param seed           seed for document choice and typing jitter, so runs are repeatable
+ */
+public record LoadSettings(String host, int httpPort, int tcpPort, int wsClients, int tcpClients, int documents,
+        double zipfExponent, double rate, int documentChars, int warmupSeconds, int durationSeconds,
+        int reportSeconds, long seed) {
+
+    public LoadSettings {
+        if (wsClients < 0 || tcpClients < 0 || wsClients + tcpClients == 0) {
+            throw new IllegalArgumentException("At least one client is needed");
+        }
+        if (documents < 1) {
+            throw new IllegalArgumentException("At least one document is needed");
+        }
+        if (zipfExponent < 0 || rate <= 0 || documentChars < 1 || warmupSeconds < 0 || durationSeconds < 1
+                || reportSeconds < 1) {
+            throw new IllegalArgumentException("Exponent, rate, lengths and times must be positive");
+        }
+    }
+
+    /**
+     * Parses {@code --name=value} arguments, e.g. {@code --ws-clients=1000}
+     *
+     * @throws IllegalArgumentException on an unknown option or a malformed value
+     */
+    public static LoadSettings parse(String... args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        try {
+            LoadSettings settings = new LoadSettings(
+                    take(options, "host", "localhost"),
+                    Integer.parseInt(take(options, "http-port", "8081")),
+                    Integer.parseInt(take(options, "tcp-port", "8090")),
+                    Integer.parseInt(take(options, "ws-clients", "50")),
+                    Integer.parseInt(take(options, "tcp-clients", "50")),
+                    Integer.parseInt(take(options, "documents", "20")),
+                    Double.parseDouble(take(options, "zipf", "1.0")),
+                    Double.parseDouble(take(options, "rate", "5")),
+                    Integer.parseInt(take(options, "document-chars", "2000")),
+                    Integer.parseInt(take(options, "warmup", "10")),
+                    Integer.parseInt(take(options, "duration", "60")),
+                    Integer.parseInt(take(options, "report", "5")),
+                    Long.parseLong(take(options, "seed", "42")));
+            if (!options.isEmpty()) {
+                throw new IllegalArgumentException("Unknown options " + options.keySet());
+            }
+            return settings;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed number: " + e.getMessage(), e);
+        }
+    }
+
+    private static String take(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+}
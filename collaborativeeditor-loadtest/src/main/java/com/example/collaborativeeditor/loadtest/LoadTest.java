@@ -0,0 +1,241 @@
+package com.example.collaborativeeditor.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Drives a running editor server with simulated editors and reports how
+ * long edits take to reach the other editors of their document.
+ * <p>
+ * It creates the documents, spreads WebSocket and TCP editors over them by
+ * a Zipf distribution, and has each editor type at a fixed rate. After the
+ * warm-up it records, for every edit each other editor receives, the time
+ * from send to receipt. Interim reports are printed along the way and
+ * percentiles over the whole run at the end. Everything runs in one
+ * process, which is why sender and receiver clocks agree.
+ */
+public final class LoadTest {
+    // Connections opened at once; more only queue up in the server's accept backlog
+    private static final int CONCURRENT_CONNECTS = 64;
+
+    private final LoadSettings settings;
+    private final Metrics metrics = new Metrics();
+    private final HttpClient http;
+    private volatile boolean typing;
+
+    LoadTest(LoadSettings settings) {
+        this.settings = settings;
+        this.http = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadSettings settings;
+        try {
+            settings = LoadSettings.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        new LoadTest(settings).run();
+    }
+
+    void run() throws Exception {
+        List<String> documentIds = createDocuments();
+        List<Editor> editors = createEditors(documentIds);
+        System.out.printf("%d documents, %d editors; the hottest document has %d%n", documentIds.size(),
+                editors.size(), hottest(editors));
+
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Editor> connected = connect(editors, threads);
+            System.out.printf("Connected %d of %d editors%n", connected.size(), editors.size());
+            if (connected.isEmpty()) {
+                return;
+            }
+
+            typing = true;
+            SplittableRandom random = new SplittableRandom(settings.seed());
+            for (Editor editor : connected) {
+                long phase = random.nextLong((long) (1_000_000_000L / settings.rate()));
+                threads.execute(() -> type(editor, phase));
+            }
+            try {
+                measure();
+            } finally {
+                typing = false;
+                connected.forEach(Editor::close);
+            }
+        }
+    }
+
+    /**
+     * Creates the documents through the editor's web endpoint, which answers
+     * with a redirect to the new document
+     */
+    private List<String> createDocuments() throws IOException, InterruptedException {
+        URI uri = URI.create("http://" + settings.host() + ":" + settings.httpPort() + "/documents/new");
+        List<String> ids = new ArrayList<>(settings.documents());
+        for (int i = 0; i < settings.documents(); i++) {
+            HttpResponse<Void> response = http.send(HttpRequest.newBuilder(uri).GET().build(),
+                    HttpResponse.BodyHandlers.discarding());
+            String location = response.headers().firstValue("Location")
+                    .orElseThrow(() -> new IOException("No redirect from " + uri + ": " + response.statusCode()));
+            ids.add(location.substring(location.lastIndexOf('/') + 1));
+        }
+        return ids;
+    }
+
+    private List<Editor> createEditors(List<String> documentIds) {
+        ZipfSampler documents = new ZipfSampler(documentIds.size(), settings.zipfExponent());
+        SplittableRandom random = new SplittableRandom(settings.seed());
+        URI webSocket = URI.create("ws://" + settings.host() + ":" + settings.httpPort() + "/document-ws");
+        InetSocketAddress tcp = new InetSocketAddress(settings.host(), settings.tcpPort());
+        List<Editor> editors = new ArrayList<>();
+        for (int i = 0; i < settings.wsClients(); i++) {
+            editors.add(new WebSocketEditor(http, webSocket, documentIds.get(documents.sample(random)), "ws-" + i,
+                    metrics, settings.documentChars()));
+        }
+        for (int i = 0; i < settings.tcpClients(); i++) {
+            editors.add(new TcpEditor(tcp, documentIds.get(documents.sample(random)), "tcp-" + i, metrics,
+                    settings.documentChars()));
+        }
+        return editors;
+    }
+
+    private static int hottest(List<Editor> editors) {
+        return editors.stream()
+                .collect(Collectors.groupingBy(editor -> editor.documentId, Collectors.counting()))
+                .values().stream().mapToInt(Long::intValue).max().orElse(0);
+    }
+
+    /**
+     * Connects the editors, a bounded number at a time
+     *
+     * @return those that connected; failures are counted as errors
+     */
+    private List<Editor> connect(List<Editor> editors, ExecutorService threads) throws InterruptedException {
+        Semaphore slots = new Semaphore(CONCURRENT_CONNECTS);
+        List<Future<Editor>> attempts = new ArrayList<>(editors.size());
+        for (Editor editor : editors) {
+            attempts.add(threads.submit(() -> {
+                slots.acquire();
+                try {
+                    editor.connect();
+                    return editor;
+                } catch (Exception e) {
+                    metrics.error();
+                    editor.close();
+                    return null;
+                } finally {
+                    slots.release();
+                }
+            }));
+        }
+        List<Editor> connected = new ArrayList<>(editors.size());
+        for (Future<Editor> attempt : attempts) {
+            try {
+                Editor editor = attempt.get();
+                if (editor != null) {
+                    connected.add(editor);
+                }
+            } catch (ExecutionException e) {
+                metrics.error();
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Types at the configured rate until the run ends. Keystrokes that fall
+     * due while a send is still blocked are skipped rather than sent in a
+     * burst afterwards, as a person would not type faster to catch up.
+     */
+    private void type(Editor editor, long phaseNanos) {
+        long interval = (long) (1_000_000_000L / settings.rate());
+        long next = System.nanoTime() + phaseNanos;
+        while (typing) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            editor.type();
+            next += interval;
+            long now = System.nanoTime();
+            if (next < now) {
+                next = now + interval;
+            }
+        }
+    }
+
+    private void measure() throws InterruptedException {
+        TimeUnit.SECONDS.sleep(settings.warmupSeconds());
+        metrics.startRecording();
+        Histogram total = new Histogram(3);
+        long startNanos = System.nanoTime();
+        long startSent = metrics.getSent();
+        long startDelivered = metrics.getDelivered();
+        long lastSent = startSent;
+        long lastDelivered = startDelivered;
+        long lastNanos = startNanos;
+
+        System.out.printf("%8s %10s %12s %9s %9s %9s %7s%n", "time(s)", "sent/s", "delivered/s", "p50(ms)",
+                "p99(ms)", "max(ms)", "errors");
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(settings.durationSeconds());
+        while (System.nanoTime() < endNanos) {
+            long sleep = Math.min(TimeUnit.SECONDS.toNanos(settings.reportSeconds()), endNanos - System.nanoTime());
+            TimeUnit.NANOSECONDS.sleep(sleep);
+            Histogram interval = metrics.interval();
+            total.add(interval);
+            long sent = metrics.getSent();
+            long delivered = metrics.getDelivered();
+            // An overloaded machine may wake the reporter late; rates use the time that actually passed
+            long now = System.nanoTime();
+            double seconds = (now - lastNanos) / 1e9;
+            System.out.printf("%8.0f %10.0f %12.0f %9.2f %9.2f %9.2f %7d%n",
+                    (now - startNanos) / 1e9, (sent - lastSent) / seconds,
+                    (delivered - lastDelivered) / seconds, millis(interval, 50), millis(interval, 99),
+                    interval.getMaxValue() / 1000.0, metrics.getErrors());
+            lastSent = sent;
+            lastDelivered = delivered;
+            lastNanos = now;
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%nOver %.0f s: %.0f edits sent/s, %.0f deliveries/s, %d errors%n", seconds,
+                (metrics.getSent() - startSent) / seconds, (metrics.getDelivered() - startDelivered) / seconds,
+                metrics.getErrors());
+        System.out.println("Edit propagation latency, sender to each other editor (ms):");
+        for (double percentile : new double[] { 50, 90, 99, 99.9, 99.99 }) {
+            System.out.printf("  p%-6s %9.2f%n", BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString(),
+                    millis(total, percentile));
+        }
+        System.out.printf("  %-7s %9.2f%n", "max", total.getMaxValue() / 1000.0);
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
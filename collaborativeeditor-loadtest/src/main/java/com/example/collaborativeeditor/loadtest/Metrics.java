@@ -0,0 +1,61 @@
+package com.example.collaborativeeditor.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of one run, shared by every client. Latencies are kept in
+ * microseconds; the histogram grows as needed, so no maximum is assumed.
+ */
+final class Metrics {
+    private final Recorder latencies = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // Measured latencies are kept only while recording; warm-up is counted but not kept
+    private volatile boolean recording;
+
+    void sent() {
+        sent.increment();
+    }
+
+    void delivered(long latencyNanos) {
+        delivered.increment();
+        if (recording) {
+            latencies.recordValue(Math.max(0, latencyNanos / 1000));
+        }
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    /**
+     * Starts keeping latencies, dropping whatever was recorded before
+     */
+    void startRecording() {
+        latencies.reset();
+        recording = true;
+    }
+
+    /**
+     * Latencies recorded since the last call; the caller may keep the histogram
+     */
+    Histogram interval() {
+        return latencies.getIntervalHistogram();
+    }
+
+    long getSent() {
+        return sent.sum();
+    }
+
+    long getDelivered() {
+        return delivered.sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.collaborativeeditor.loadtest;
+
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.NetworkMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * An editor on the binary TCP protocol, framed with {@link NetworkMessage}.
+ * It joins without a revision, so the server sends no body on join, and
+ * does not flag that it reads compressed frames. Frames are read on a
+ * virtual thread of its own.
+ */
+final class TcpEditor extends Editor {
+    // Larger frames mean the stream is out of step
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final InetSocketAddress address;
+    private Socket socket;
+    private OutputStream out;
+    private volatile boolean closed;
+
+    TcpEditor(InetSocketAddress address, String documentId, String name, Metrics metrics, int documentChars) {
+        super(documentId, name, metrics, documentChars);
+        this.address = address;
+    }
+
+    @Override
+    void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address, 10_000);
+        out = socket.getOutputStream();
+        write(NetworkMessage.createJoinMessage(documentId, name));
+        Thread.ofVirtual().name("tcp-editor-" + name).start(this::readFrames);
+    }
+
+    @Override
+    void send(String content) throws IOException {
+        write(NetworkMessage.createEditMessage(documentId, content, name));
+    }
+
+    private synchronized void write(NetworkMessage message) throws IOException {
+        out.write(message.serialize());
+    }
+
+    private void readFrames() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!closed) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte[] frame = new byte[MessageCodec.HEADER_LENGTH + length];
+                ByteBuffer.wrap(frame).put(type).putInt(length);
+                in.readFully(frame, MessageCodec.HEADER_LENGTH, length);
+                NetworkMessage message = NetworkMessage.deserialize(frame);
+                if (message.getType() == NetworkMessage.MESSAGE_TYPE_EDIT) {
+                    received(message.getContent());
+                }
+            }
+        } catch (EOFException e) {
+            // Server closed the connection
+        } catch (IOException | IllegalArgumentException e) {
+            if (!closed) {
+                metrics().error();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.collaborativeeditor.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An editor on {@code /document-ws}, speaking the JSON messages of the
+ * editor page: a "user_update" join, then full-content edits. Bodies
+ * streamed as "snapshot_chunk" messages are not reassembled; keep
+ * {@code --document-chars} below {@code editor.load.chunk-chars}.
+ */
+final class WebSocketEditor extends Editor implements WebSocket.Listener {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpClient client;
+    private final URI uri;
+    private WebSocket socket;
+    // Text of a message that arrives in several parts; listener calls never overlap
+    private final StringBuilder partial = new StringBuilder();
+
+    WebSocketEditor(HttpClient client, URI uri, String documentId, String name, Metrics metrics,
+            int documentChars) {
+        super(documentId, name, metrics, documentChars);
+        this.client = client;
+        this.uri = uri;
+    }
+
+    @Override
+    void connect() throws Exception {
+        socket = client.newWebSocketBuilder().buildAsync(uri, this).get(10, TimeUnit.SECONDS);
+        Map<String, Object> join = new LinkedHashMap<>();
+        join.put("type", "user_update");
+        join.put("documentId", documentId);
+        join.put("username", name);
+        join.put("action", "join");
+        sendJson(join);
+    }
+
+    @Override
+    void send(String content) throws Exception {
+        Map<String, Object> edit = new LinkedHashMap<>();
+        edit.put("documentId", documentId);
+        edit.put("content", content);
+        edit.put("editor", name);
+        edit.put("timestamp", System.currentTimeMillis());
+        sendJson(edit);
+    }
+
+    /**
+     * Sends one message; a WebSocket takes one send at a time, and waiting
+     * for it also keeps a slow server from piling up this client's edits
+     */
+    private synchronized void sendJson(Map<String, Object> message) throws Exception {
+        socket.sendText(objectMapper.writeValueAsString(message), true).get(10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        partial.append(data);
+        if (last) {
+            handle(partial.toString());
+            partial.setLength(0);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    private void handle(String text) {
+        try {
+            JsonNode message = objectMapper.readTree(text);
+            JsonNode content = message.get("content");
+            if (content == null) {
+                return; // Acks and user lists
+            }
+            if (!message.has("type")) {
+                received(content.asText());
+            } else if ("snapshot".equals(message.get("type").asText())) {
+                joined(content.asText());
+            }
+        } catch (Exception e) {
+            metrics().error();
+        }
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        metrics().error();
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "").whenComplete((ws, error) -> socket.abort());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.collaborativeeditor.loadtest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipfSamplerTest {
+
+	@Test
+	void hotRanksGetMostSamples() {
+		ZipfSampler sampler = new ZipfSampler(100, 1.0);
+		SplittableRandom random = new SplittableRandom(1);
+		int[] counts = new int[100];
+		for (int i = 0; i < 100_000; i++) {
+			counts[sampler.sample(random)]++;
+		}
+		// With s = 1 the first rank gets 1 / H(100), about 19%, and twice the second
+		assertEquals(0.193, counts[0] / 100_000.0, 0.01);
+		assertEquals(2.0, counts[0] / (double) counts[1], 0.1);
+		assertTrue(counts[99] > 0);
+	}
+
+	@Test
+	void exponentZeroIsUniform() {
+		ZipfSampler sampler = new ZipfSampler(4, 0);
+		SplittableRandom random = new SplittableRandom(1);
+		int[] counts = new int[4];
+		for (int i = 0; i < 40_000; i++) {
+			counts[sampler.sample(random)]++;
+		}
+		for (int count : counts) {
+			assertEquals(10_000, count, 500);
+		}
+	}
+
+	@Test
+	void settingsRejectUnknownOptions() {
+		assertEquals(1000, LoadSettings.parse("--ws-clients=1000").wsClients());
+		assertThrows(IllegalArgumentException.class, () -> LoadSettings.parse("--ws-client=1000"));
+		assertThrows(IllegalArgumentException.class, () -> LoadSettings.parse("--rate=0"));
+	}
+}
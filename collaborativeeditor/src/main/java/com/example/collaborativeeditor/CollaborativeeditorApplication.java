@@ -2,6 +2,7 @@ package com.example.collaborativeeditor;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 
 /**
  * Main Spring Boot Application class for the Collaborative Editor
@@ -9,6 +10,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
  */
 @SpringBootApplication // Indicates that this is a Spring Boot application and enables
 						// auto-configuration
+@ConfigurationPropertiesScan // Binds the editor.* tuning properties
 public class CollaborativeeditorApplication {
 
 	/**
@@ -0,0 +1,844 @@
+package com.example.collaborativeeditor.cluster;
+
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.config.ExecutionConfig;
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.network.EncodedFrame;
+import com.example.collaborativeeditor.network.FrameBroadcaster;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import com.example.collaborativeeditor.network.OperationContent;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.service.DocumentService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Shards documents across the nodes of a cluster. Every document is owned
+ * by one node, picked by a {@link HashRing} over the configured nodes that
+ * are up; a node counts as up while this node's {@link PeerLink} to it is
+ * connected and it has a link of its own open to this node, and links to
+ * nodes that are down are retried periodically. Requiring links both ways
+ * keeps a one-way partition from leaving each side owning the other's
+ * documents. Rings can still differ for as long as nodes take to notice a
+ * link coming or going, or when a node sees a third one that another does
+ * not; a document then has two owners until the views agree again, and
+ * edits either applies may be overwritten by the other's copy.
+ * <p>
+ * The owner applies a document's edits. Any other node forwards the edits
+ * its clients make to the owner, and follows the document while its
+ * clients have it open: it joins the owner over its link, and keeps a copy
+ * that changes only with the frames the owner sends back, its own
+ * forwarded edits included. Every node therefore sees the same edits in
+ * the owner's order, under the owner's revisions, so a client can rejoin
+ * at any node with the revision it knows. Clients here get each change once it comes back from
+ * the owner, except the client that made it. Forwarded full-content edits
+ * and CRDT operations are matched to their echo by author and content;
+ * versioned operations, which the owner transforms, by a number this node
+ * gives them. The owner tells the forwarding node alone about a versioned
+ * operation it rejects.
+ * <p>
+ * When members come or go, documents that are open here and whose owner
+ * changed are moved: this node stops following the old owner and follows
+ * the new one. If this node owned the document before, or the old owner is
+ * gone, it first sends the new owner its copy, so the new owner starts from
+ * the latest state. Edits forwarded to the old owner that it never echoed
+ * are then sent again, to the new owner; if that is this node, they wait
+ * for the old owner's copy, or until the old owner is gone, and are applied
+ * here. A node drops edits forwarded to it for a document it no longer
+ * owns, since the node that sent them sends them again. Versioned
+ * operations are not sent again, as the revision they were made against
+ * may be one the new owner reached differently; their clients get a resync.
+ */
+@Slf4j
+@Component
+public class ClusterRouter implements SmartLifecycle {
+    // Forwarded edits remembered per document until the owner echoes them
+    private static final int MAX_UNECHOED = 1024;
+    // Shared by all links; ObjectMapper is thread-safe
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * A router for a node on its own, which owns every document
+     */
+    public static final ClusterRouter STANDALONE = new ClusterRouter();
+
+    private final boolean enabled;
+    private final String nodeId;
+    private final EditorProperties.Cluster settings;
+    private final DocumentService documentService;
+    private final DocumentMailboxes mailboxes;
+    private final FrameBroadcaster broadcaster;
+    // The other configured nodes
+    private final Set<String> peers;
+    // Links to every other configured node, by node id; opened on start
+    private final Map<String, PeerLink> links;
+    // Runs the links' reader and writer tasks
+    private final ExecutorService linkExecutor;
+    // Largest frame a link accepts from the other node
+    private final int maxFrameBytes;
+    private final Counter forwardedEdits;
+    // Members up in the current ring, for the gauge; 0 unless running in a cluster
+    private final AtomicInteger memberCount = new AtomicInteger();
+    // Sessions here, and links of nodes following from elsewhere, per open document
+    private final ConcurrentHashMap<String, Integer> openDocuments = new ConcurrentHashMap<>();
+    // Edits forwarded to the owner that it has not echoed back yet, oldest first
+    private final ConcurrentHashMap<String, Deque<Forwarded>> unechoed = new ConcurrentHashMap<>();
+    // Edits this node took over from a previous owner that is still up, until its copy arrives
+    private final ConcurrentHashMap<String, Handover> awaitedHandovers = new ConcurrentHashMap<>();
+    // Nodes that handed an open document over before this node saw it move here
+    private final ConcurrentHashMap<String, String> earlyHandovers = new ConcurrentHashMap<>();
+    // Numbers forwarded versioned operations; starts at random, so nodes are unlikely to share numbers
+    private final AtomicLong operationNumbers = new AtomicLong(ThreadLocalRandom.current().nextLong(1, 1L << 62));
+    // Serializes membership changes
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    // Links other nodes have open to this one, by node id
+    private final ConcurrentHashMap<String, Integer> inboundLinks = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService membershipTimer;
+    // Owners of documents among the members that are up; null unless running in a cluster
+    private volatile HashRing ring;
+
+    /**
+     * @param properties      editor settings; supplies the cluster members, this node's id and the link limits
+     * @param documentService holds the documents this node owns and its copies of the others
+     * @param mailboxes       per-document mailboxes; frames from owners are applied in them
+     * @param broadcaster     hands changes from owners to the clients here
+     * @param editorExecutor  shared executor, runs the links in VIRTUAL execution mode
+     * @param meterRegistry   registry for the member and forwarding metrics
+     */
+    @Autowired
+    public ClusterRouter(EditorProperties properties, DocumentService documentService, DocumentMailboxes mailboxes,
+            FrameBroadcaster broadcaster, @Qualifier(ExecutionConfig.EDITOR_EXECUTOR) ExecutorService editorExecutor,
+            MeterRegistry meterRegistry) {
+        this.settings = properties.getCluster();
+        this.enabled = settings.isEnabled();
+        this.documentService = documentService;
+        this.mailboxes = mailboxes;
+        this.broadcaster = broadcaster;
+        this.nodeId = properties.resolveNodeId();
+        this.links = new ConcurrentHashMap<>();
+        this.maxFrameBytes = properties.getTcp().getCompression().getMaxInflatedBytes();
+        if (enabled) {
+            if (!settings.getNodes().contains(nodeId)) {
+                throw new IllegalStateException("Cluster node id " + nodeId + " is not one of the configured nodes "
+                        + settings.getNodes());
+            }
+            this.peers = settings.getNodes().stream().filter(node -> !node.equals(nodeId))
+                    .collect(Collectors.toUnmodifiableSet());
+            this.linkExecutor = ExecutionConfig.select(properties, editorExecutor,
+                    () -> Executors.newCachedThreadPool(ExecutionConfig.namedDaemonThreads("cluster-link-")));
+        } else {
+            this.peers = Set.of();
+            this.linkExecutor = null;
+        }
+        this.forwardedEdits = Counter.builder("editor.cluster.forwarded")
+                .description("Edits forwarded to the node that owns their document")
+                .register(meterRegistry);
+        Gauge.builder("editor.cluster.members", memberCount, AtomicInteger::get)
+                .description("Cluster nodes this node sees as up, itself included; 0 outside a cluster")
+                .register(meterRegistry);
+    }
+
+    private ClusterRouter() {
+        this.enabled = false;
+        this.nodeId = null;
+        this.settings = null;
+        this.documentService = null;
+        this.mailboxes = null;
+        this.broadcaster = null;
+        this.peers = Set.of();
+        this.links = Map.of();
+        this.linkExecutor = null;
+        this.maxFrameBytes = 0;
+        this.forwardedEdits = null;
+    }
+
+    /**
+     * Starts out owning every document, and connects to the other nodes
+     * in the background; ownership moves as they come up
+     */
+    @Override
+    public synchronized void start() {
+        if (!enabled || ring != null) {
+            return;
+        }
+        // Links are created here rather than in the constructor, since they call back into this router
+        for (String node : peers) {
+            links.computeIfAbsent(node, id -> new PeerLink(id, nodeId, this, linkExecutor,
+                    (int) settings.getConnectTimeout().toMillis(), settings.getMaxPendingBytes(), maxFrameBytes));
+        }
+        ring = new HashRing(List.of(nodeId), settings.getVirtualNodes());
+        memberCount.set(1);
+        membershipTimer = Executors.newSingleThreadScheduledExecutor(
+                ExecutionConfig.namedDaemonThreads("cluster-membership-"));
+        membershipTimer.scheduleWithFixedDelay(this::connectLinks, 0,
+                settings.getReconnectInterval().toMillis(), TimeUnit.MILLISECONDS);
+        log.info("Cluster node {} started; configured nodes {}", nodeId, settings.getNodes());
+    }
+
+    /**
+     * Closes the links; from then on this node applies every edit itself
+     */
+    @Override
+    public synchronized void stop() {
+        if (ring == null) {
+            return;
+        }
+        membershipTimer.shutdownNow();
+        ring = null;
+        memberCount.set(0);
+        links.values().forEach(PeerLink::close);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return ring != null;
+    }
+
+    /**
+     * This node's id, the host:port of its binary TCP listener
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * True if this node applies the document's edits itself
+     */
+    public boolean owns(String documentId) {
+        HashRing current = ring;
+        return current == null || current.owner(documentId).equals(nodeId);
+    }
+
+    /**
+     * Returns the id of the node that owns a document, this node's outside a cluster
+     */
+    public String ownerOf(String documentId) {
+        HashRing current = ring;
+        return current == null ? nodeId : current.owner(documentId);
+    }
+
+    /**
+     * True if the id is one of the other configured nodes, which may open links to this one
+     */
+    public boolean isMember(String node) {
+        return peers.contains(node);
+    }
+
+    /**
+     * Notes that a session here, or a node following from elsewhere, has
+     * opened a document; the first one makes this node follow the owner.
+     * Call from the document's mailbox, once per session.
+     */
+    public void opened(String documentId) {
+        if (!enabled) {
+            return;
+        }
+        if (openDocuments.merge(documentId, 1, Integer::sum) == 1 && !owns(documentId)) {
+            PeerLink owner = links.get(ownerOf(documentId));
+            owner.join(documentId, typeOf(documentId));
+        }
+    }
+
+    /**
+     * Notes that a session has closed a document; after the last one this
+     * node stops following it. Call from the document's mailbox.
+     */
+    public void closed(String documentId) {
+        if (!enabled) {
+            return;
+        }
+        if (openDocuments.computeIfPresent(documentId, (id, count) -> count > 1 ? count - 1 : null) == null) {
+            // Forwards still waiting for their echo are kept, to be sent again if the document moves
+            earlyHandovers.remove(documentId);
+            if (!owns(documentId)) {
+                links.get(ownerOf(documentId)).leave(documentId);
+            }
+        }
+    }
+
+    /**
+     * Sends a full-content edit to the node that owns its document, unless
+     * that is this node
+     *
+     * @param sender the connection the edit came from, which does not get it back; null if it gets no broadcasts
+     * @return false if this node owns the document and applies the edit itself
+     */
+    public boolean forwardEdit(String documentId, String content, String editor, long timestamp, Object sender) {
+        return forwardEdit(documentId, content, editor, timestamp, sender, null);
+    }
+
+    /**
+     * Like {@link #forwardEdit(String, String, String, long, Object)}, and
+     * tells the listener the revision the owner applied the edit at
+     *
+     * @param listener hears back once the owner has applied the edit; may be null
+     */
+    public boolean forwardEdit(String documentId, String content, String editor, long timestamp, Object sender,
+            ForwardListener listener) {
+        return forward(new Forwarded(message(NetworkMessage.MESSAGE_TYPE_EDIT, documentId, content, editor,
+                timestamp), 0, sender, listener));
+    }
+
+    /**
+     * Sends a versioned operation to the node that owns its document, unless
+     * that is this node. The owner transforms and applies it like one of its
+     * own clients' operations.
+     *
+     * @param baseRevision  the revision the operation was made against, which all nodes count alike
+     * @param operationJson the operation as a JSON array
+     * @param sender        the connection the operation came from, which does not get it back
+     * @param listener      hears back whether the owner applied the operation
+     * @return false if this node owns the document and applies the operation itself
+     */
+    public boolean forwardOperation(String documentId, long baseRevision, String operationJson, String editor,
+            Object sender, ForwardListener listener) {
+        long number = operationNumbers.incrementAndGet();
+        NetworkMessage message = message(NetworkMessage.MESSAGE_TYPE_OPERATION, documentId,
+                OperationContent.encode(number, operationJson), editor, System.currentTimeMillis());
+        message.setRevision(baseRevision);
+        return forward(new Forwarded(message, number, sender, listener));
+    }
+
+    /**
+     * Sends a CRDT operation to the node that owns its document, unless that is this node
+     *
+     * @param operationJson the operation as JSON text
+     * @param sender        the connection the operation came from, which does not get it back
+     * @return false if this node owns the document and applies the operation itself
+     */
+    public boolean forwardCrdt(String documentId, String operationJson, String editor, Object sender) {
+        return forward(new Forwarded(message(NetworkMessage.MESSAGE_TYPE_CRDT, documentId, operationJson, editor,
+                System.currentTimeMillis()), 0, sender, null));
+    }
+
+    private static NetworkMessage message(byte type, String documentId, String content, String editor,
+            long timestamp) {
+        NetworkMessage message = new NetworkMessage();
+        message.setType(type);
+        message.setDocumentId(documentId);
+        message.setContent(content);
+        message.setUserId(editor);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private boolean forward(Forwarded forwarded) {
+        NetworkMessage message = forwarded.message();
+        String documentId = message.getDocumentId();
+        HashRing current = ring;
+        if (current == null) {
+            return false;
+        }
+        String owner = current.owner(documentId);
+        if (owner.equals(nodeId)) {
+            return false;
+        }
+        PeerLink link = links.get(owner);
+        // Only a node that follows the document gets the echo
+        boolean joined = link.isJoined(documentId);
+        if (joined) {
+            keepUntilEchoed(documentId, forwarded);
+        }
+        if (link.send(message)) {
+            forwardedEdits.increment();
+            return true;
+        }
+        // The link going down changes the ring, and the move sends the edit again
+        log.warn("Could not forward edit to document {}: the link to its owner {} is down", documentId, owner);
+        if (!joined) {
+            keepUntilEchoed(documentId, forwarded);
+        }
+        if (ring != current) {
+            // The move may already have passed over it
+            mailboxes.execute(documentId, () -> retry(documentId, forwarded));
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a forwarded edit until the owner echoes it, whole, so it can be
+     * sent again if the document moves first
+     */
+    private void keepUntilEchoed(String documentId, Forwarded forwarded) {
+        Forwarded evicted = null;
+        Deque<Forwarded> queue = unechoed.computeIfAbsent(documentId, id -> new ArrayDeque<>());
+        synchronized (queue) {
+            if (queue.size() == MAX_UNECHOED) {
+                evicted = queue.removeFirst(); // Lost on the way, or rejected by the owner
+            }
+            queue.addLast(forwarded);
+        }
+        if (evicted != null && evicted.listener() != null) {
+            mailboxes.execute(documentId, evicted.listener()::rejected);
+        }
+    }
+
+    /**
+     * Sends a forwarded edit again if it is still waiting for its echo, to
+     * the document's current owner; runs in the document's mailbox
+     */
+    private void retry(String documentId, Forwarded forwarded) {
+        Deque<Forwarded> queue = unechoed.get(documentId);
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            if (!queue.removeIf(waiting -> waiting == forwarded)) {
+                return; // Echoed, or taken by a move
+            }
+        }
+        resend(documentId, List.of(forwarded));
+    }
+
+    /**
+     * Handles a frame from the node at the other end of a link; frames
+     * about a document are applied in its mailbox, in the order they came
+     */
+    void received(PeerLink link, NetworkMessage message) {
+        String documentId = message.getDocumentId();
+        mailboxes.execute(documentId, () -> {
+            // Sent before ownership moved away from that node; the new owner's frames replace it
+            if (!ownerOf(documentId).equals(link.nodeId())) {
+                return;
+            }
+            try {
+                follow(documentId, message);
+            } catch (JsonProcessingException | RuntimeException e) {
+                log.error("Cannot apply change to document {} from its owner {}", documentId, link.nodeId(), e);
+            }
+        });
+    }
+
+    /**
+     * Applies a change from the owner to this node's copy and passes it to
+     * the clients here, except the one that made it
+     */
+    private void follow(String documentId, NetworkMessage message) throws JsonProcessingException {
+        switch (message.getType()) {
+            case NetworkMessage.MESSAGE_TYPE_EDIT -> {
+                if (message.getRevision() <= 0) {
+                    log.debug("Ignoring edit without a revision from the owner of document {}", documentId);
+                    return;
+                }
+                documentService.openDocument(documentId, null);
+                long revision = documentService.followDocument(documentId, message.getContent(),
+                        message.getUserId(), message.getRevision());
+                Forwarded forwarded = echoed(documentId, message, 0);
+                broadcaster.broadcast(EncodedFrame.edit(documentId, message.getContent(), message.getUserId(),
+                        message.getTimestamp(), revision), Forwarded.senderOf(forwarded));
+                if (forwarded != null && forwarded.listener() != null) {
+                    forwarded.listener().applied(revision);
+                }
+            }
+            case NetworkMessage.MESSAGE_TYPE_OPERATION -> {
+                OperationContent content = OperationContent.parse(message.getContent());
+                Forwarded forwarded = echoed(documentId, message, content.number());
+                ForwardListener listener = forwarded != null ? forwarded.listener() : null;
+                if (message.getRevision() <= 0) {
+                    // The owner rejected an operation this node forwarded
+                    if (listener != null) {
+                        listener.rejected();
+                    }
+                    return;
+                }
+                if (content.ops() == null) {
+                    throw new IllegalArgumentException("Operation without ops from the owner");
+                }
+                documentService.openDocument(documentId, null);
+                if (followOperation(documentId, TextOperation.fromJson(content.ops()), message)) {
+                    broadcaster.broadcast(EncodedFrame.operation(documentId, content.ops(), message.getContent(),
+                            message.getUserId(), message.getRevision(), content.number()),
+                            Forwarded.senderOf(forwarded));
+                }
+                if (listener != null) {
+                    listener.applied(message.getRevision());
+                }
+            }
+            case NetworkMessage.MESSAGE_TYPE_CRDT -> {
+                documentService.openDocument(documentId, Document.TYPE_CRDT);
+                Map<?, ?> op = objectMapper.readValue(message.getContent(), Map.class);
+                documentService.applyCrdtOperation(documentId, CrdtOperation.fromJson(op), message.getUserId());
+                broadcaster.broadcast(EncodedFrame.crdt(documentId, op, message.getContent(), message.getUserId(),
+                        null), Forwarded.senderOf(echoed(documentId, message, 0)));
+            }
+            case NetworkMessage.MESSAGE_TYPE_CRDT_STATE -> {
+                documentService.openDocument(documentId, Document.TYPE_CRDT);
+                List<?> items = objectMapper.readValue(message.getContent(), List.class);
+                documentService.resetCrdt(documentId, items);
+                broadcaster.broadcast(EncodedFrame.crdtState(documentId, items, message.getContent(),
+                        message.getUserId()), null);
+            }
+            default -> log.debug("Ignoring frame of type {} from the owner of document {}", message.getType(),
+                    documentId);
+        }
+    }
+
+    /**
+     * Applies a versioned operation from the owner to this node's copy
+     *
+     * @return false if the copy already has it, or has missed an operation
+     *         before it and is fetched from the owner again
+     */
+    private boolean followOperation(String documentId, TextOperation operation, NetworkMessage message) {
+        long revision = message.getRevision();
+        long current = documentService.getDocument(documentId).getRevision();
+        if (revision <= current) {
+            return false; // Part of the body sent on join
+        }
+        if (revision > current + 1) {
+            log.warn("Copy of document {} is at revision {}, before operation {}; fetching it again", documentId,
+                    current, revision);
+            links.get(ownerOf(documentId)).join(documentId, typeOf(documentId));
+            return false;
+        }
+        documentService.applyOperation(documentId, current, operation, message.getUserId());
+        return true;
+    }
+
+    /**
+     * Returns the forwarded edit a change from the owner is the echo of, if
+     * any. The owner echoes edits in the order they were forwarded; older
+     * ones still waiting were lost or rejected, and are dropped.
+     *
+     * @param number the number an operation from the owner carries, 0 for other changes
+     */
+    private Forwarded echoed(String documentId, NetworkMessage message, long number) {
+        Deque<Forwarded> queue = unechoed.get(documentId);
+        if (queue == null) {
+            return null;
+        }
+        List<Forwarded> lost = new ArrayList<>();
+        Forwarded echoed = null;
+        synchronized (queue) {
+            for (Forwarded forwarded : queue) {
+                if (forwarded.isEchoedBy(message, number)) {
+                    echoed = forwarded;
+                    break;
+                }
+            }
+            if (echoed != null) {
+                while (queue.peekFirst() != echoed) {
+                    lost.add(queue.removeFirst());
+                }
+                queue.removeFirst();
+            }
+        }
+        // Outside the queue's lock, since listeners send to clients
+        for (Forwarded forwarded : lost) {
+            if (forwarded.listener() != null) {
+                forwarded.listener().rejected();
+            }
+        }
+        return echoed;
+    }
+
+    private void connectLinks() {
+        try {
+            boolean connected = false;
+            for (PeerLink link : links.values()) {
+                connected |= link.connect();
+            }
+            if (connected) {
+                membershipChanged();
+            }
+        } catch (RuntimeException e) {
+            // Keeps the timer running
+            log.error("Error connecting to cluster nodes", e);
+        }
+    }
+
+    /**
+     * Called by a link whose connection has dropped
+     */
+    void linkDown(PeerLink link) {
+        membershipChanged();
+    }
+
+    /**
+     * Notes that another node has opened a link to this one, which it needs
+     * before this node counts it as up
+     */
+    public void peerConnected(String node) {
+        if (!enabled) {
+            return;
+        }
+        inboundLinks.merge(node, 1, Integer::sum);
+        scheduleMembershipChange();
+    }
+
+    /**
+     * Notes that a link another node opened to this one has closed
+     */
+    public void peerDisconnected(String node) {
+        if (!enabled) {
+            return;
+        }
+        inboundLinks.computeIfPresent(node, (id, count) -> count > 1 ? count - 1 : null);
+        scheduleMembershipChange();
+    }
+
+    // Off the caller's thread, which may be a TCP reactor
+    private void scheduleMembershipChange() {
+        ScheduledExecutorService timer = membershipTimer;
+        if (timer == null) {
+            return; // Not started yet; the ring is built from the links once it is
+        }
+        try {
+            timer.execute(this::membershipChanged);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Rebuilds the ring from the members that are up and moves the open
+     * documents whose owner changed
+     */
+    private void membershipChanged() {
+        membershipLock.lock();
+        try {
+            HashRing previous = ring;
+            if (previous == null) {
+                return; // Stopped
+            }
+            List<String> members = new ArrayList<>();
+            members.add(nodeId);
+            for (PeerLink link : links.values()) {
+                if (link.isConnected() && inboundLinks.containsKey(link.nodeId())) {
+                    members.add(link.nodeId());
+                }
+            }
+            HashRing current = new HashRing(members, settings.getVirtualNodes());
+            if (current.nodes().equals(previous.nodes())) {
+                return;
+            }
+            ring = current;
+            memberCount.set(current.nodes().size());
+            log.info("Cluster members are now {}", current.nodes());
+            // Documents with forwards waiting for their echo move even if no client has them open
+            Set<String> documents = new HashSet<>(openDocuments.keySet());
+            documents.addAll(unechoed.keySet());
+            for (String documentId : documents) {
+                String from = previous.owner(documentId);
+                String to = current.owner(documentId);
+                if (!from.equals(to)) {
+                    mailboxes.execute(documentId, () -> moved(documentId, from, to, current));
+                }
+            }
+            awaitedHandovers.forEach((documentId, handover) -> {
+                if (!current.contains(handover.from())) {
+                    mailboxes.execute(documentId, () -> handedOver(documentId, handover.from()));
+                }
+            });
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Moves a document from one owner to another; runs in the document's mailbox
+     *
+     * @param current the ring the new owner was picked from
+     */
+    private void moved(String documentId, String from, String to, HashRing current) {
+        boolean handedOver = from.equals(earlyHandovers.remove(documentId));
+        List<Forwarded> pending = new ArrayList<>();
+        Handover awaited = awaitedHandovers.remove(documentId);
+        if (awaited != null) {
+            pending.addAll(awaited.forwarded());
+        }
+        Deque<Forwarded> queue = unechoed.remove(documentId);
+        if (queue != null) {
+            synchronized (queue) {
+                pending.addAll(queue);
+            }
+        }
+        if (!from.equals(nodeId)) {
+            links.get(from).leave(documentId);
+        }
+        if (to.equals(nodeId)) {
+            log.debug("Document {} moved here from cluster node {}", documentId, from);
+            if (current.contains(from) && !handedOver && !pending.isEmpty()) {
+                // The previous owner, still up, hands its copy over; the edits go on top of it
+                awaitedHandovers.put(documentId, new Handover(from, pending));
+            } else {
+                resend(documentId, pending);
+            }
+            return;
+        }
+        PeerLink owner = links.get(to);
+        // A copy this node did not follow is stale, and is not handed over
+        if (from.equals(nodeId) || !current.contains(from) && openDocuments.containsKey(documentId)) {
+            // Before joining, so the copy sent back on join is already the handed-over one
+            handOver(documentId, owner);
+        }
+        if (openDocuments.containsKey(documentId)) {
+            owner.join(documentId, typeOf(documentId));
+        }
+        resend(documentId, pending);
+    }
+
+    /**
+     * Applies the edits that waited for another node's copy of a document
+     * this node took over, once the copy has come or that node is gone; a
+     * copy that comes before this node sees the move is remembered until
+     * then. Call from the document's mailbox.
+     *
+     * @param from the node the copy was expected from
+     */
+    public void handedOver(String documentId, String from) {
+        if (!enabled) {
+            return;
+        }
+        Handover awaited = awaitedHandovers.get(documentId);
+        if (awaited != null && awaited.from().equals(from)) {
+            awaitedHandovers.remove(documentId);
+            resend(documentId, awaited.forwarded());
+        } else if (!owns(documentId) && openDocuments.containsKey(documentId)) {
+            // This node has yet to see the document move here
+            earlyHandovers.put(documentId, from);
+        }
+    }
+
+    /**
+     * Sends forwarded edits the old owner of a document never echoed to its
+     * current owner, or applies them if that is this node; runs in the
+     * document's mailbox
+     */
+    private void resend(String documentId, List<Forwarded> pending) {
+        for (Forwarded forwarded : pending) {
+            if (forwarded.message().getType() == NetworkMessage.MESSAGE_TYPE_OPERATION) {
+                if (forwarded.listener() != null) {
+                    forwarded.listener().rejected();
+                }
+            } else if (!forward(forwarded)) {
+                applyHere(documentId, forwarded);
+            }
+        }
+    }
+
+    /**
+     * Applies a forwarded edit to a document this node now owns, as if its
+     * client had just made it
+     */
+    private void applyHere(String documentId, Forwarded forwarded) {
+        NetworkMessage message = forwarded.message();
+        try {
+            if (message.getType() == NetworkMessage.MESSAGE_TYPE_CRDT) {
+                Map<?, ?> op = objectMapper.readValue(message.getContent(), Map.class);
+                documentService.applyCrdtOperation(documentId, CrdtOperation.fromJson(op), message.getUserId());
+                broadcaster.broadcast(EncodedFrame.crdt(documentId, op, message.getContent(), message.getUserId(),
+                        null), forwarded.sender());
+                return;
+            }
+            long revision = documentService.updateDocument(documentId, message.getContent(), message.getUserId());
+            broadcaster.broadcast(EncodedFrame.edit(documentId, message.getContent(), message.getUserId(),
+                    message.getTimestamp(), revision), forwarded.sender());
+            if (forwarded.listener() != null) {
+                forwarded.listener().applied(revision);
+            }
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            log.warn("Rejected edit on document {} after it moved here: {}", documentId, e.getMessage());
+        }
+    }
+
+    /**
+     * Sends this node's copy of a document to its new owner
+     */
+    private void handOver(String documentId, PeerLink owner) {
+        Document document = documentService.getDocument(documentId);
+        if (document == null) {
+            return;
+        }
+        NetworkMessage message = new NetworkMessage();
+        message.setDocumentId(documentId);
+        message.setTimestamp(System.currentTimeMillis());
+        try {
+            synchronized (document) {
+                message.setUserId(document.getLastEditor());
+                if (document.usesCrdt()) {
+                    message.setType(NetworkMessage.MESSAGE_TYPE_CRDT_STATE);
+                    message.setContent(objectMapper.writeValueAsString(document.getCrdt().encodeState()));
+                } else {
+                    message.setType(NetworkMessage.MESSAGE_TYPE_EDIT);
+                    message.setContent(document.getContent());
+                    // Tells it apart from a forwarded edit, and the new owner carries on from it
+                    message.setRevision(document.getRevision());
+                }
+            }
+        } catch (JsonProcessingException e) {
+            log.error("Error encoding document {} for cluster node {}", documentId, owner.nodeId(), e);
+            return;
+        }
+        if (owner.send(message)) {
+            log.debug("Handed document {} over to cluster node {}", documentId, owner.nodeId());
+        }
+    }
+
+    private String typeOf(String documentId) {
+        Document document = documentService.getDocument(documentId);
+        return document != null ? document.getDocumentType() : null;
+    }
+
+    /**
+     * Forwarded edits that wait for the copy of a document that a previous owner hands over
+     */
+    private record Handover(String from, List<Forwarded> forwarded) {
+    }
+
+    /**
+     * An edit forwarded to the owner, the number this node gave it if it is
+     * a versioned operation, the connection it came from, and who hears back
+     * about it
+     */
+    private record Forwarded(NetworkMessage message, long number, Object sender, ForwardListener listener) {
+
+        static Object senderOf(Forwarded forwarded) {
+            return forwarded != null ? forwarded.sender() : null;
+        }
+
+        boolean isEchoedBy(NetworkMessage echo, long echoNumber) {
+            if (echo.getType() != message.getType() || !same(message.getUserId(), echo.getUserId())) {
+                return false;
+            }
+            if (message.getType() == NetworkMessage.MESSAGE_TYPE_OPERATION) {
+                return echoNumber == number;
+            }
+            return same(message.getContent(), echo.getContent());
+        }
+
+        // Null and empty are the same, as the frame codec decodes them
+        private static boolean same(String sent, String echoed) {
+            return (sent != null ? sent : "").equals(echoed != null ? echoed : "");
+        }
+    }
+}
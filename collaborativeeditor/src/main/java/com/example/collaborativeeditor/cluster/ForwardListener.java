@@ -0,0 +1,24 @@
+package com.example.collaborativeeditor.cluster;
+
+/**
+ * Hears what became of an edit this node forwarded to the owner of its
+ * document. Called in the document's mailbox, once this node's copy has
+ * the owner's answer.
+ */
+public interface ForwardListener {
+
+    /**
+     * The owner applied the edit
+     *
+     * @param revision the revision the edit brought the document to
+     */
+    void applied(long revision);
+
+    /**
+     * The owner could not apply the edit, e.g. because the revision it was
+     * made against is no longer in its history, or the edit was lost on the
+     * way; by default nothing happens
+     */
+    default void rejected() {
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.collaborativeeditor.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring that assigns every document to one node. Each node
+ * is placed on the ring at many points (virtual nodes), and a document
+ * belongs to the node at the first point at or after its own hash. When a
+ * node joins, it takes over only the documents that now hash to its points,
+ * and when one leaves, only its documents move; everything else stays put.
+ * Every node computes the same ring from the same member list. Immutable.
+ */
+public final class HashRing {
+    private final List<String> nodes;
+    // Ring points in ascending order, and the node each one belongs to
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param nodes        ids of the member nodes; duplicates are ignored
+     * @param virtualNodes points each node gets on the ring
+     * @throws IllegalArgumentException if there are no nodes or virtualNodes is not positive
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive, got " + virtualNodes);
+        }
+        this.nodes = List.copyOf(new TreeSet<>(nodes));
+        List<Point> ring = new ArrayList<>(this.nodes.size() * virtualNodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.add(new Point(hash(node + "#" + i), node));
+            }
+        }
+        // Ties are broken by node id, so every member builds the same ring
+        ring.sort(Comparator.comparingLong(Point::hash).thenComparing(Point::node));
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            points[i] = ring.get(i).hash();
+            owners[i] = ring.get(i).node();
+        }
+    }
+
+    /**
+     * Returns the node a document belongs to
+     */
+    public String owner(String documentId) {
+        int index = Arrays.binarySearch(points, hash(documentId));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0; // Past the last point; wraps around to the first
+            }
+        }
+        return owners[index];
+    }
+
+    /**
+     * Member node ids, sorted
+     */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3
+     * mixer so that similar ids such as "doc-1" and "doc-2" land far apart
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing" + nodes;
+    }
+
+    private record Point(long hash, String node) {
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.collaborativeeditor.cluster;
+
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection from this node to another cluster node's binary TCP port. It
+ * opens with a {@link NetworkMessage#MESSAGE_TYPE_PEER} frame, after which
+ * this node acts as a client of the other: it joins the documents the other
+ * node owns that are open here, forwards their edits, and receives every
+ * change the owner makes to them, forwarded ones included.
+ * <p>
+ * Frames are written by a writer task from a queue, so forwarding never
+ * blocks a reactor or mailbox thread. A link that falls too far behind is
+ * closed as if the other node had gone down. Streamed bodies are put back
+ * together before they are handed on, as a single edit frame.
+ */
+@Slf4j
+class PeerLink {
+    // Queued after the last frame to stop the writer
+    private static final byte[] CLOSE = new byte[0];
+
+    private final String nodeId;
+    private final String localNodeId;
+    private final ClusterRouter router;
+    private final ExecutorService executor;
+    private final int connectTimeoutMillis;
+    private final long maxPendingBytes;
+    // Largest payload a frame may carry, inflated or not
+    private final int maxFrameBytes;
+    // Documents joined over the current connection
+    private final Set<String> joined = ConcurrentHashMap.newKeySet();
+    // Null while the other node is down
+    private volatile Connection connection;
+
+    PeerLink(String nodeId, String localNodeId, ClusterRouter router, ExecutorService executor,
+            int connectTimeoutMillis, long maxPendingBytes, int maxFrameBytes) {
+        this.nodeId = nodeId;
+        this.localNodeId = localNodeId;
+        this.router = router;
+        this.executor = executor;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Id of the node at the other end, its host:port
+     */
+    String nodeId() {
+        return nodeId;
+    }
+
+    boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Connects if the link is down; called by one thread at a time
+     *
+     * @return true if this call connected the link
+     */
+    boolean connect() {
+        if (connection != null) {
+            return false;
+        }
+        int colon = nodeId.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(nodeId.substring(0, colon),
+                    Integer.parseInt(nodeId.substring(colon + 1))), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+        } catch (IOException | IllegalArgumentException e) {
+            log.debug("Cluster node {} is not reachable: {}", nodeId, e.getMessage());
+            closeQuietly(socket);
+            return false;
+        }
+        joined.clear();
+        Connection opened = new Connection(socket);
+        NetworkMessage hello = new NetworkMessage();
+        hello.setType(NetworkMessage.MESSAGE_TYPE_PEER);
+        hello.setUserId(localNodeId);
+        hello.setTimestamp(System.currentTimeMillis());
+        opened.send(hello.serialize());
+        connection = opened;
+        executor.execute(opened::writeLoop);
+        executor.execute(opened::readLoop);
+        log.info("Connected to cluster node {}", nodeId);
+        return true;
+    }
+
+    /**
+     * Queues a frame for the other node
+     *
+     * @return false if the link is down
+     */
+    boolean send(NetworkMessage message) {
+        Connection current = connection;
+        return current != null && current.send(message.serialize());
+    }
+
+    /**
+     * Starts following a document the other node owns
+     *
+     * @param type the document's type, so the owner can create it if it has never seen it; null if unknown
+     */
+    void join(String documentId, String type) {
+        NetworkMessage join = NetworkMessage.createJoinMessage(documentId, localNodeId);
+        join.setContent(type);
+        if (send(join)) {
+            joined.add(documentId);
+        }
+    }
+
+    void leave(String documentId) {
+        if (joined.remove(documentId)) {
+            send(NetworkMessage.createLeaveMessage(documentId, localNodeId));
+        }
+    }
+
+    /**
+     * True if the owner sends this node the document's changes over the current connection
+     */
+    boolean isJoined(String documentId) {
+        return joined.contains(documentId);
+    }
+
+    void close() {
+        Connection current = connection;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * One connection to the other node; the link opens a new one after it drops
+     */
+    private final class Connection {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // Bodies being streamed by the owner; reader thread only
+        private final Map<String, StringBuilder> loading = new HashMap<>();
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        boolean send(byte[] frame) {
+            if (closed.get()) {
+                return false;
+            }
+            if (pendingBytes.addAndGet(frame.length) > maxPendingBytes) {
+                log.warn("Link to cluster node {} has more than {} unsent bytes; dropping it", nodeId,
+                        maxPendingBytes);
+                close();
+                return false;
+            }
+            queue.add(frame);
+            return true;
+        }
+
+        void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (true) {
+                    byte[] frame = queue.take();
+                    if (frame == CLOSE) {
+                        return;
+                    }
+                    out.write(frame);
+                    pendingBytes.addAndGet(-frame.length);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Error writing to cluster node {}: {}", nodeId, e.getMessage());
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+
+        void readLoop() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    byte type = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > maxFrameBytes) {
+                        throw new IOException("Frame of " + length + " bytes from cluster node " + nodeId);
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    NetworkMessage message;
+                    try {
+                        message = MessageCodec.decode(type, ByteBuffer.wrap(payload), maxFrameBytes);
+                    } catch (IllegalArgumentException e) {
+                        log.error("Invalid frame from cluster node {}: {}", nodeId, e.getMessage());
+                        continue;
+                    }
+                    received(message);
+                }
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    log.debug("Error reading from cluster node {}: {}", nodeId, e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void received(NetworkMessage message) {
+            switch (message.getType()) {
+                case NetworkMessage.MESSAGE_TYPE_CONTENT_CHUNK ->
+                        loading.computeIfAbsent(message.getDocumentId(), id -> new StringBuilder())
+                                .append(message.getContent());
+                case NetworkMessage.MESSAGE_TYPE_CONTENT_END -> {
+                    StringBuilder body = loading.remove(message.getDocumentId());
+                    if (body != null) {
+                        message.setContent(body.append(message.getContent()).toString());
+                    }
+                    message.setType(NetworkMessage.MESSAGE_TYPE_EDIT);
+                    router.received(PeerLink.this, message);
+                }
+                default -> router.received(PeerLink.this, message);
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            queue.add(CLOSE);
+            closeQuietly(socket);
+            if (connection == this) {
+                connection = null;
+                joined.clear();
+                log.info("Lost connection to cluster node {}", nodeId);
+                router.linkDown(PeerLink.this);
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.collaborativeeditor.config;
+
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.websocket.SessionOutbox;
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import com.example.collaborativeeditor.persistence.MappedSnapshotStore;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tuning knobs for the editing pipeline, bound from the "editor.*" properties
+ */
+@Data
+@ConfigurationProperties(prefix = "editor")
+public class EditorProperties {
+    private Coalescing coalescing = new Coalescing();
+    private Tcp tcp = new Tcp();
+    private Execution execution = new Execution();
+    private Websocket websocket = new Websocket();
+    private Persistence persistence = new Persistence();
+    private Cache cache = new Cache();
+    private Load load = new Load();
+    private Tracing tracing = new Tracing();
+    private Cluster cluster = new Cluster();
+
+    /**
+     * This node's id: the configured cluster node id, or localhost and the
+     * binary TCP port, the same across restarts
+     */
+    public String resolveNodeId() {
+        String configured = cluster.getNodeId();
+        return configured != null && !configured.isBlank() ? configured : "localhost:" + tcp.getPort();
+    }
+
+    /**
+     * Merging of full-content edits that arrive close together
+     */
+    @Data
+    public static class Coalescing {
+        // How long edits to one document are collected before being applied
+        private Duration window = Duration.ofMillis(50);
+        // A batch is applied early once it holds this many edits
+        private int maxBatchSize = 64;
+    }
+
+    /**
+     * Listeners and threading of the TCP transports
+     */
+    @Data
+    public static class Tcp {
+        // Port of the binary [type][len][payload] protocol; 0 picks a free port
+        private int port = 8090;
+        // Port of the line-delimited JSON edit protocol
+        private int jsonPort = 8091;
+        // Selector threads shared by all binary connections
+        private int reactorThreads = Runtime.getRuntime().availableProcessors();
+        // A client whose unsent frames exceed this is disconnected as too slow
+        private int maxPendingWriteBytes = 4 * 1024 * 1024;
+        // Largest accepted frame payload; a client announcing a bigger one is disconnected
+        private int maxFrameBytes = 4 * 1024 * 1024;
+        private Compression compression = new Compression();
+
+        /**
+         * Deflated payloads, flagged in the frame type byte. Frames are only
+         * compressed for clients that flagged they can read them.
+         */
+        @Data
+        public static class Compression {
+            private boolean enabled = true;
+            // Payloads smaller than this are sent as they are; deflating them saves too little
+            private int threshold = 1024;
+            // Largest payload a compressed incoming frame may inflate to
+            private int maxInflatedBytes = MessageCodec.DEFAULT_MAX_INFLATED_BYTES;
+        }
+    }
+
+    /**
+     * Thread model for connection handlers and message processing
+     */
+    @Data
+    public static class Execution {
+        // VIRTUAL runs blocking work on virtual threads, PLATFORM keeps the classic pools
+        private Mode mode = Mode.VIRTUAL;
+
+        public enum Mode {
+            VIRTUAL,
+            PLATFORM
+        }
+    }
+
+    /**
+     * WebSocket transport settings
+     */
+    @Data
+    public static class Websocket {
+        private Outbound outbound = new Outbound();
+        // Offer permessage-deflate to clients that ask for it
+        private boolean compression = true;
+        // Largest incoming text message, measured after decompression
+        private int maxTextMessageBytes = 64 * 1024;
+
+        /**
+         * Per-session queues between broadcasting and the socket
+         */
+        @Data
+        public static class Outbound {
+            // Messages queued per session before the overflow policy applies
+            private int capacity = 1024;
+            private SessionOutbox.OverflowPolicy overflowPolicy = SessionOutbox.OverflowPolicy.COALESCE_EDITS;
+        }
+    }
+
+    /**
+     * Durability of document edits
+     */
+    @Data
+    public static class Persistence {
+        // Without persistence documents live in memory only
+        private boolean enabled = true;
+        // Root directory of the edit log and other persisted state
+        private String dataDir = "data";
+        // When edit log writes are forced to disk
+        private FileEditLog.FsyncPolicy fsync = FileEditLog.FsyncPolicy.ALWAYS;
+        // How long a batch stays open for concurrent edits to share one fsync,
+        // or the time between fsyncs with the INTERVAL policy
+        private Duration groupCommitWindow = Duration.ofMillis(2);
+        // Size at which the edit log starts a new segment file
+        private long segmentBytes = FileEditLog.DEFAULT_SEGMENT_BYTES;
+        private Snapshot snapshot = new Snapshot();
+
+        /**
+         * Periodic snapshots of changed documents, after which the edit log
+         * segments they cover are deleted
+         */
+        @Data
+        public static class Snapshot {
+            // A document is snapshotted once this many edits are logged since its last snapshot
+            private int editThreshold = 1000;
+            // ... or once its logged edits since then exceed this many bytes
+            private long byteThreshold = 1024 * 1024;
+            // ... or once its oldest unsnapshotted edit is this old
+            private Duration interval = Duration.ofMinutes(5);
+            // How often documents are checked against the thresholds
+            private Duration checkInterval = Duration.ofSeconds(1);
+            private Store store = Store.MAPPED;
+            // Size at which the mapped store starts a new segment file
+            private long segmentBytes = MappedSnapshotStore.DEFAULT_SEGMENT_BYTES;
+            // A document without open sessions unused for this long is written back and dropped from memory
+            private Duration idleEviction = Duration.ofMinutes(10);
+
+            public enum Store {
+                // Snapshots appended to memory-mapped segments with an in-memory offset index
+                MAPPED,
+                // One file per document
+                FILES
+            }
+        }
+    }
+
+    /**
+     * Sending a whole document body to a joining client. Bodies longer than
+     * one chunk are streamed chunk by chunk, each sent once the previous one
+     * has been written, so a join holds about one chunk in memory.
+     */
+    @Data
+    public static class Load {
+        // Largest piece of a body sent in one message, in chars
+        private int chunkChars = 16 * 1024;
+    }
+
+    /**
+     * Documents held in memory. Beyond either limit, documents without an
+     * open session are written back to the snapshot store and dropped,
+     * least recently used first; without persistence nothing is dropped.
+     */
+    @Data
+    public static class Cache {
+        private int maxDocuments = 100_000;
+        // Characters of resident bodies plus a fixed overhead per document
+        private long maxWeight = 256L * 1024 * 1024;
+    }
+
+    /**
+     * Per-edit stage timings, from receipt to the recipients' sockets
+     */
+    @Data
+    public static class Tracing {
+        private boolean enabled = true;
+        // Edits slower than this in total are logged with their stages
+        private Duration slowThreshold = Duration.ofMillis(500);
+        // At most one slow edit is logged per interval
+        private Duration slowLogInterval = Duration.ofSeconds(1);
+    }
+
+    /**
+     * Several nodes sharing the documents. Each document is owned by one
+     * node, picked by consistent hashing over the nodes that are up; the
+     * others forward its edits to the owner over the binary TCP protocol.
+     */
+    @Data
+    public static class Cluster {
+        private boolean enabled = false;
+        // This node's entry in nodes; defaults to localhost and the binary TCP port
+        private String nodeId;
+        // Binary TCP address, host:port, of every node including this one
+        private List<String> nodes = new ArrayList<>();
+        // Points each node gets on the hash ring; more spread documents more evenly
+        private int virtualNodes = 128;
+        // How often links to nodes that are down are retried
+        private Duration reconnectInterval = Duration.ofSeconds(1);
+        private Duration connectTimeout = Duration.ofSeconds(2);
+        // A node whose link has more unsent bytes than this is treated as down
+        private int maxPendingBytes = 16 * 1024 * 1024;
+    }
+}
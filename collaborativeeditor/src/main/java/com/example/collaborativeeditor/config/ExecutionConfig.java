@@ -0,0 +1,80 @@
+package com.example.collaborativeeditor.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Provides the shared executor that connection handlers and message
+ * processing run on. In VIRTUAL mode every task gets its own virtual thread,
+ * so blocking handlers cost a few hundred bytes per idle editor instead of a
+ * platform thread. In PLATFORM mode each component keeps its original pool,
+ * which makes the two models easy to compare.
+ */
+@Slf4j
+@Configuration
+public class ExecutionConfig {
+    // Name of the shared executor bean, for @Qualifier
+    public static final String EDITOR_EXECUTOR = "editorExecutor";
+
+    @Bean(name = EDITOR_EXECUTOR, destroyMethod = "shutdownNow")
+    public ExecutorService editorExecutor(EditorProperties properties, MeterRegistry meterRegistry) {
+        EditorProperties.Execution.Mode mode = properties.getExecution().getMode();
+        log.info("Editor execution mode: {}", mode);
+        if (mode == EditorProperties.Execution.Mode.VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("editor-virtual-", 0).factory());
+        }
+        return monitor(Executors.newCachedThreadPool(namedDaemonThreads("editor-")), "editor", meterRegistry);
+    }
+
+    /**
+     * Picks the executor a component should use
+     *
+     * @param properties     editor settings holding the execution mode
+     * @param editorExecutor the shared executor, used in VIRTUAL mode
+     * @param platformPool   creates the component's own pool for PLATFORM mode
+     * @return the executor to run the component's tasks on
+     */
+    public static ExecutorService select(EditorProperties properties, ExecutorService editorExecutor,
+            Supplier<ExecutorService> platformPool) {
+        if (properties.getExecution().getMode() == EditorProperties.Execution.Mode.VIRTUAL) {
+            return editorExecutor;
+        }
+        return platformPool.get();
+    }
+
+    /**
+     * Registers queue size, active and pool size gauges, and completed task
+     * counts, for a platform pool as editor.executor.* tagged with the name.
+     * Only reads the pool's own counters; tasks are not wrapped or timed,
+     * so submitting costs nothing extra. Virtual thread executors have no
+     * queue and are not monitored.
+     *
+     * @return the executor, for chaining
+     */
+    public static <E extends ExecutorService> E monitor(E executor, String name, MeterRegistry meterRegistry) {
+        new ExecutorServiceMetrics(executor, name, "editor", Tags.empty()).bindTo(meterRegistry);
+        return executor;
+    }
+
+    /**
+     * Thread factory for daemon platform threads named prefix-1, prefix-2, ...
+     */
+    public static ThreadFactory namedDaemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
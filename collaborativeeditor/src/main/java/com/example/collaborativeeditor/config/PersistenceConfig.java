@@ -0,0 +1,49 @@
+package com.example.collaborativeeditor.config;
+
+import com.example.collaborativeeditor.persistence.EditLog;
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import com.example.collaborativeeditor.persistence.FileSnapshotStore;
+import com.example.collaborativeeditor.persistence.MappedSnapshotStore;
+import com.example.collaborativeeditor.persistence.SnapshotStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+/**
+ * Provides the edit log that {@link com.example.collaborativeeditor.service.DocumentService}
+ * writes every change to, and the snapshot store it loads from on startup
+ * before replaying the log tail
+ */
+@Slf4j
+@Configuration
+public class PersistenceConfig {
+
+    @Bean(destroyMethod = "close")
+    public EditLog editLog(EditorProperties properties) {
+        EditorProperties.Persistence settings = properties.getPersistence();
+        if (!settings.isEnabled()) {
+            log.info("Persistence disabled; documents are kept in memory only");
+            return EditLog.NONE;
+        }
+        Path directory = Path.of(settings.getDataDir()).resolve("wal");
+        log.info("Edit log in {} with fsync policy {}", directory.toAbsolutePath(), settings.getFsync());
+        return new FileEditLog(directory, settings.getFsync(), settings.getGroupCommitWindow(),
+                settings.getSegmentBytes());
+    }
+
+    @Bean(destroyMethod = "close")
+    public SnapshotStore snapshotStore(EditorProperties properties) {
+        EditorProperties.Persistence settings = properties.getPersistence();
+        if (!settings.isEnabled()) {
+            return SnapshotStore.NONE;
+        }
+        EditorProperties.Persistence.Snapshot snapshot = settings.getSnapshot();
+        Path directory = Path.of(settings.getDataDir()).resolve("snapshots");
+        return switch (snapshot.getStore()) {
+            case MAPPED -> new MappedSnapshotStore(directory, snapshot.getSegmentBytes());
+            case FILES -> new FileSnapshotStore(directory);
+        };
+    }
+}
@@ -27,13 +27,14 @@ public class DocumentController {
 
     /**
      * Handles GET requests to create a new document
-     * Endpoint: /documents/new
+     * Endpoint: /documents/new?type=crdt
      * 
+     * @param type Optional document type; "crdt" merges edits with a sequence CRDT
      * @return Redirects to the newly created document's edit page
      */
     @GetMapping("/new")
-    public String createDocument() {
-        Document document = documentService.createDocument();
+    public String createDocument(@RequestParam(required = false) String type) {
+        Document document = documentService.createDocument(type);
         return "redirect:/documents/" + document.getId();
     }
 
@@ -0,0 +1,86 @@
+package com.example.collaborativeeditor.crdt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An operation on a CRDT sequence. Operations commute: replicas that apply the
+ * same set of operations in any order end up with the same text, so they can
+ * be relayed to other replicas without a central ordering step.
+ *
+ * Wire form:
+ * <pre>
+ * {"kind":"insert","id":{"client","clock"},"originLeft":{..}|null,"originRight":{..}|null,"text":"..."}
+ * {"kind":"delete","id":{"client","clock"},"length":3}
+ * </pre>
+ */
+public sealed interface CrdtOperation permits CrdtOperation.Insert, CrdtOperation.Delete {
+
+    ItemId id();
+
+    Map<String, Object> toJson();
+
+    /**
+     * Inserts a run of characters with ids id.clock .. id.clock + text.length - 1
+     * between the characters originLeft and originRight as they were seen by
+     * the creating replica
+     */
+    record Insert(ItemId id, ItemId originLeft, ItemId originRight, String text) implements CrdtOperation {
+        public Insert {
+            if (text == null || text.isEmpty()) {
+                throw new IllegalArgumentException("Insert text must not be empty");
+            }
+        }
+
+        @Override
+        public Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("kind", "insert");
+            json.put("id", id.toJson());
+            json.put("originLeft", originLeft == null ? null : originLeft.toJson());
+            json.put("originRight", originRight == null ? null : originRight.toJson());
+            json.put("text", text);
+            return json;
+        }
+    }
+
+    /**
+     * Deletes the characters id.clock .. id.clock + length - 1 of id.client
+     */
+    record Delete(ItemId id, int length) implements CrdtOperation {
+        public Delete {
+            if (length <= 0) {
+                throw new IllegalArgumentException("Delete length must be positive");
+            }
+        }
+
+        @Override
+        public Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("kind", "delete");
+            json.put("id", id.toJson());
+            json.put("length", length);
+            return json;
+        }
+    }
+
+    /**
+     * Parses the wire form as produced by Jackson
+     *
+     * @throws IllegalArgumentException if the operation is malformed
+     */
+    static CrdtOperation fromJson(Map<?, ?> json) {
+        ItemId id = ItemId.fromJson(json.get("id"));
+        if (id == null) {
+            throw new IllegalArgumentException("Operation without id");
+        }
+        Object kind = json.get("kind");
+        if ("insert".equals(kind) && json.get("text") instanceof String text) {
+            return new Insert(id, ItemId.fromJson(json.get("originLeft")), ItemId.fromJson(json.get("originRight")), text);
+        }
+        if ("delete".equals(kind) && json.get("length") instanceof Number length) {
+            return new Delete(id, length.intValue());
+        }
+        throw new IllegalArgumentException("Invalid CRDT operation: " + json);
+    }
+}
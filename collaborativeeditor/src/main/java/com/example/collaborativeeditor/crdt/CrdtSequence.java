@@ -0,0 +1,688 @@
+package com.example.collaborativeeditor.crdt;
+
+import com.example.collaborativeeditor.crdt.CrdtOperation.Delete;
+import com.example.collaborativeeditor.crdt.CrdtOperation.Insert;
+import com.example.collaborativeeditor.text.TextBuffer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Server replica of a YATA-style sequence CRDT.
+ *
+ * Characters live in a doubly linked list of items. An item is a run of
+ * characters created by one client with consecutive clocks, so typing a
+ * sentence costs one item rather than one per character. Concurrent inserts at
+ * the same place are ordered by the YATA rules on their origins and client
+ * ids, which every replica evaluates identically.
+ *
+ * Deleted items keep their ids (other operations may still refer to them) but
+ * drop their text, and {@link #compact()} merges neighbouring runs, so
+ * tombstones shrink to one small item per deleted run.
+ *
+ * The items are also kept in a treap in document order whose nodes count the
+ * visible characters below them, so the offset of an item and the item at an
+ * offset are found in O(log n) rather than by walking the list from the head.
+ * The visible text is mirrored into a {@link TextBuffer} on every change, so
+ * readers get O(1) snapshots without walking the item list.
+ *
+ * All methods are synchronized on the replica. The document service calls
+ * them while holding the document's monitor as well, which also orders the
+ * edit log records of the replica's changes.
+ */
+public class CrdtSequence {
+    // Client id used for the items of a document converted from plain text
+    public static final String INITIAL_CLIENT = "initial";
+    // Applied operations between automatic compactions
+    private static final int COMPACTION_INTERVAL = 1000;
+    // Upper bound on operations waiting for a missing dependency
+    private static final int MAX_PENDING = 10_000;
+
+    private enum Result { APPLIED, DUPLICATE, MISSING_DEPENDENCY }
+
+    /**
+     * What {@link #merge(CrdtOperation)} did with an operation
+     */
+    public enum Outcome {
+        // Changed the replica
+        APPLIED,
+        // Kept until an item it refers to arrives
+        PENDING,
+        // Already integrated or already waiting, or dropped because too many are waiting
+        IGNORED
+    }
+
+    // Client id of operations generated by this replica itself
+    private final String localClient;
+    private long localClock;
+    private Item head;
+    // Root of the treap over the same items, for offset lookups
+    private Item root;
+    // Items per client keyed by their first clock, for id lookups
+    private final Map<String, TreeMap<Long, Item>> index = new HashMap<>();
+    // Operations received before the items they refer to, each once
+    private final Set<CrdtOperation> pending = new LinkedHashSet<>();
+    private volatile TextBuffer text = TextBuffer.empty();
+    private int appliedSinceCompaction;
+
+    private CrdtSequence(String localClient) {
+        this.localClient = localClient;
+    }
+
+    /**
+     * Creates a replica whose initial text is a single run with well-known ids
+     */
+    public static CrdtSequence fromText(String initialText) {
+        return fromText(initialText, "server-" + UUID.randomUUID());
+    }
+
+    /**
+     * Creates a replica whose initial text is a single run with well-known ids
+     * and whose own operations carry the given client id. With a stable id,
+     * replaying the same operations in the same order reproduces the same
+     * item ids, which is what lets an edit log rebuild the replica.
+     *
+     * @param localClient client id for operations generated by this replica
+     */
+    public static CrdtSequence fromText(String initialText, String localClient) {
+        CrdtSequence sequence = new CrdtSequence(localClient);
+        if (initialText != null && !initialText.isEmpty()) {
+            sequence.apply(new Insert(new ItemId(INITIAL_CLIENT, 0), null, null, initialText));
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the visible text; the buffer is immutable and never copied
+     */
+    public TextBuffer text() {
+        return text;
+    }
+
+    /**
+     * Integrates an operation from any replica. Operations that were already
+     * applied are ignored; operations referring to unknown items are kept
+     * until those items arrive.
+     *
+     * @return true if the operation changed this replica now
+     */
+    public boolean apply(CrdtOperation operation) {
+        return merge(operation) == Outcome.APPLIED;
+    }
+
+    /**
+     * Integrates an operation from any replica like {@link #apply(CrdtOperation)},
+     * telling a duplicate apart from an operation that is kept for later
+     */
+    public synchronized Outcome merge(CrdtOperation operation) {
+        Result result = integrate(operation);
+        if (result == Result.MISSING_DEPENDENCY) {
+            if (pending.size() < MAX_PENDING && pending.add(operation)) {
+                return Outcome.PENDING;
+            }
+            return Outcome.IGNORED;
+        }
+        if (result == Result.DUPLICATE) {
+            return Outcome.IGNORED;
+        }
+        applyPending();
+        if (++appliedSinceCompaction >= COMPACTION_INTERVAL) {
+            compact();
+        }
+        return Outcome.APPLIED;
+    }
+
+    /**
+     * Inserts text at a visible position on behalf of this replica
+     *
+     * @return the operation to relay to other replicas
+     * @throws IndexOutOfBoundsException if position is outside the text
+     */
+    public synchronized Insert insertLocal(int position, String inserted) {
+        if (position < 0 || position > text.length()) {
+            throw new IndexOutOfBoundsException("position " + position + ", length " + text.length());
+        }
+        ItemId originLeft = null;
+        ItemId originRight;
+        if (position == 0) {
+            originRight = head == null ? null : head.id(0);
+        } else {
+            Item item = itemAt(position - 1);
+            int remaining = position - 1 - visibleOffset(item);
+            originLeft = item.id(remaining);
+            if (remaining + 1 < item.length) {
+                originRight = item.id(remaining + 1);
+            } else {
+                originRight = item.right == null ? null : item.right.id(0);
+            }
+        }
+        Insert operation = new Insert(new ItemId(localClient, localClock), originLeft, originRight, inserted);
+        localClock += inserted.length();
+        apply(operation);
+        return operation;
+    }
+
+    /**
+     * Deletes a visible range on behalf of this replica
+     *
+     * @return the operations to relay to other replicas, one per affected run
+     * @throws IndexOutOfBoundsException if the range is outside the text
+     */
+    public synchronized List<Delete> deleteLocal(int position, int length) {
+        if (position < 0 || length < 0 || position + length > text.length()) {
+            throw new IndexOutOfBoundsException(
+                    "range [" + position + ", " + (position + length) + "), length " + text.length());
+        }
+        List<Delete> operations = new ArrayList<>();
+        if (length == 0) {
+            return operations;
+        }
+        Item first = itemAt(position);
+        int skip = position - visibleOffset(first);
+        int remaining = length;
+        for (Item item = first; item != null && remaining > 0; item = item.right) {
+            if (item.deleted) {
+                continue;
+            }
+            if (skip >= item.length) {
+                skip -= item.length;
+                continue;
+            }
+            int count = Math.min(item.length - skip, remaining);
+            operations.add(new Delete(item.id(skip), count));
+            remaining -= count;
+            skip = 0;
+        }
+        for (Delete operation : operations) {
+            apply(operation);
+        }
+        return operations;
+    }
+
+    /**
+     * Merges neighbouring runs created by the same client into single items.
+     * Runs of tombstones collapse into one text-less item each.
+     */
+    public synchronized void compact() {
+        appliedSinceCompaction = 0;
+        Item item = head;
+        while (item != null) {
+            Item next = item.right;
+            if (next == null || !item.canMergeAsRun(next)) {
+                item = next;
+                continue;
+            }
+            StringBuilder merged = item.deleted ? null : new StringBuilder(item.content);
+            while (next != null && item.canMergeAsRun(next)) {
+                if (merged != null) {
+                    merged.append(next.content);
+                }
+                index.get(next.client).remove(next.clock);
+                treeRemove(next);
+                item.length += next.length;
+                item.right = next.right;
+                if (next.right != null) {
+                    next.right.left = item;
+                }
+                next = next.right;
+            }
+            if (merged != null) {
+                item.content = merged.toString();
+            }
+            updateUpwards(item);
+            item = next;
+        }
+    }
+
+    /**
+     * Number of items in the list, including tombstones
+     */
+    public synchronized int itemCount() {
+        int count = 0;
+        for (Item item = head; item != null; item = item.right) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Number of received operations still waiting for an item they refer to
+     */
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Encodes the full replica state, tombstones included, in document order.
+     * A client loads it with {@link #fromState(List)} and can then exchange
+     * operations with every other replica.
+     */
+    public synchronized List<Map<String, Object>> encodeState() {
+        List<Map<String, Object>> state = new ArrayList<>();
+        for (Item item = head; item != null; item = item.right) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("id", item.id(0).toJson());
+            json.put("length", item.length);
+            json.put("originLeft", item.originLeft == null ? null : item.originLeft.toJson());
+            json.put("originRight", item.originRight == null ? null : item.originRight.toJson());
+            json.put("text", item.content);
+            state.add(json);
+        }
+        return state;
+    }
+
+    /**
+     * Rebuilds a replica from {@link #encodeState()}
+     *
+     * @throws IllegalArgumentException if the state is malformed
+     */
+    public static CrdtSequence fromState(List<?> state) {
+        return fromState(state, "server-" + UUID.randomUUID());
+    }
+
+    /**
+     * Rebuilds a replica from {@link #encodeState()} that generates its own
+     * operations as the given client, continuing after the highest clock the
+     * state holds for that client
+     *
+     * @throws IllegalArgumentException if the state is malformed
+     */
+    public static CrdtSequence fromState(List<?> state, String localClient) {
+        CrdtSequence sequence = new CrdtSequence(localClient);
+        Item last = null;
+        StringBuilder visible = new StringBuilder();
+        for (Object element : state) {
+            if (!(element instanceof Map<?, ?> json) || !(json.get("length") instanceof Number length)) {
+                throw new IllegalArgumentException("Invalid item: " + element);
+            }
+            ItemId id = ItemId.fromJson(json.get("id"));
+            String content = (String) json.get("text");
+            Item item = new Item(id.client(), id.clock(), length.intValue(), content,
+                    ItemId.fromJson(json.get("originLeft")), ItemId.fromJson(json.get("originRight")));
+            sequence.link(item, last);
+            last = item;
+            if (id.client().equals(localClient)) {
+                sequence.localClock = Math.max(sequence.localClock, id.clock() + item.length);
+            }
+            if (content != null) {
+                visible.append(content);
+            }
+        }
+        sequence.text = TextBuffer.of(visible);
+        return sequence;
+    }
+
+    private Result integrate(CrdtOperation operation) {
+        if (operation instanceof Insert insert) {
+            return integrateInsert(insert);
+        }
+        return integrateDelete((Delete) operation);
+    }
+
+    private Result integrateInsert(Insert operation) {
+        // Clocks are never reused, so an insert overlapping known ids anywhere is a replay or a forgery
+        if (overlapsKnown(operation.id(), operation.text().length())) {
+            return Result.DUPLICATE;
+        }
+        if ((operation.originLeft() != null && find(operation.originLeft()) == null)
+                || (operation.originRight() != null && find(operation.originRight()) == null)) {
+            return Result.MISSING_DEPENDENCY;
+        }
+
+        Item left = operation.originLeft() == null ? null : splitAfter(operation.originLeft());
+        Item right = operation.originRight() == null ? null : splitBefore(operation.originRight());
+
+        // YATA: walk the items between the origins and skip those that must
+        // be ordered before the new item
+        Set<Item> conflicting = new HashSet<>();
+        Set<Item> beforeOrigin = new HashSet<>();
+        Item current = left == null ? head : left.right;
+        while (current != null && current != right) {
+            beforeOrigin.add(current);
+            conflicting.add(current);
+            if (Objects.equals(operation.originLeft(), current.originLeft)) {
+                if (current.client.compareTo(operation.id().client()) < 0) {
+                    left = current;
+                    conflicting.clear();
+                } else if (Objects.equals(operation.originRight(), current.originRight)) {
+                    break;
+                }
+            } else if (current.originLeft != null && beforeOrigin.contains(find(current.originLeft))) {
+                if (!conflicting.contains(find(current.originLeft))) {
+                    left = current;
+                    conflicting.clear();
+                }
+            } else {
+                break;
+            }
+            current = current.right;
+        }
+
+        Item item = new Item(operation.id().client(), operation.id().clock(), operation.text().length(),
+                operation.text(), operation.originLeft(), operation.originRight());
+        link(item, left);
+        text = text.insert(visibleOffset(item), operation.text());
+        return Result.APPLIED;
+    }
+
+    private Result integrateDelete(Delete operation) {
+        String client = operation.id().client();
+        long start = operation.id().clock();
+        long end = start + operation.length();
+        for (long clock = start; clock < end; ) {
+            Item item = find(new ItemId(client, clock));
+            if (item == null) {
+                return Result.MISSING_DEPENDENCY;
+            }
+            clock = item.clock + item.length;
+        }
+
+        boolean changed = false;
+        splitBefore(operation.id());
+        splitAfter(new ItemId(client, end - 1));
+        for (long clock = start; clock < end; ) {
+            Item item = find(new ItemId(client, clock));
+            if (!item.deleted) {
+                text = text.delete(visibleOffset(item), item.length);
+                item.deleted = true;
+                item.content = null;
+                updateUpwards(item);
+                changed = true;
+            }
+            clock = item.clock + item.length;
+        }
+        return changed ? Result.APPLIED : Result.DUPLICATE;
+    }
+
+    private void applyPending() {
+        boolean progress = true;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            for (Iterator<CrdtOperation> iterator = pending.iterator(); iterator.hasNext(); ) {
+                if (integrate(iterator.next()) != Result.MISSING_DEPENDENCY) {
+                    iterator.remove();
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether any of the length ids from start on belongs to an item
+     */
+    private boolean overlapsKnown(ItemId start, int length) {
+        TreeMap<Long, Item> items = index.get(start.client());
+        if (items == null) {
+            return false;
+        }
+        // Items do not overlap, so the last one starting in range is the only one that can reach back into it
+        Map.Entry<Long, Item> entry = items.floorEntry(start.clock() + length - 1);
+        return entry != null && entry.getKey() + entry.getValue().length > start.clock();
+    }
+
+    private Item find(ItemId id) {
+        TreeMap<Long, Item> items = index.get(id.client());
+        if (items == null) {
+            return null;
+        }
+        Map.Entry<Long, Item> entry = items.floorEntry(id.clock());
+        if (entry == null || id.clock() >= entry.getKey() + entry.getValue().length) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Splits the item containing id so that id is the last character of an item
+     */
+    private Item splitAfter(ItemId id) {
+        Item item = find(id);
+        int offset = (int) (id.clock() - item.clock) + 1;
+        if (offset < item.length) {
+            split(item, offset);
+        }
+        return item;
+    }
+
+    /**
+     * Splits the item containing id so that id is the first character of an item
+     */
+    private Item splitBefore(ItemId id) {
+        Item item = find(id);
+        int offset = (int) (id.clock() - item.clock);
+        return offset == 0 ? item : split(item, offset);
+    }
+
+    private Item split(Item item, int offset) {
+        Item tail = new Item(item.client, item.clock + offset, item.length - offset,
+                item.deleted ? null : item.content.substring(offset), item.id(offset - 1), item.originRight);
+        tail.deleted = item.deleted;
+        if (!item.deleted) {
+            item.content = item.content.substring(0, offset);
+        }
+        item.length = offset;
+        updateUpwards(item);
+        link(tail, item);
+        return tail;
+    }
+
+    /**
+     * Links an item into the list and the treap after the given item (or at
+     * the head) and indexes it
+     */
+    private void link(Item item, Item after) {
+        Item next = after == null ? head : after.right;
+        item.left = after;
+        item.right = next;
+        if (next != null) {
+            next.left = item;
+        }
+        if (after == null) {
+            head = item;
+        } else {
+            after.right = item;
+        }
+        index.computeIfAbsent(item.client, k -> new TreeMap<>()).put(item.clock, item);
+        treeInsertAfter(item, after);
+    }
+
+    /**
+     * Returns the number of visible characters before an item
+     */
+    private int visibleOffset(Item target) {
+        int offset = weight(target.low);
+        for (Item node = target; node.parent != null; node = node.parent) {
+            if (node == node.parent.high) {
+                offset += weight(node.parent.low) + node.parent.visibleLength();
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the live item holding the visible character at a position
+     */
+    private Item itemAt(int position) {
+        Item node = root;
+        while (true) {
+            int before = weight(node.low);
+            if (position < before) {
+                node = node.low;
+                continue;
+            }
+            position -= before;
+            if (position < node.visibleLength()) {
+                return node;
+            }
+            position -= node.visibleLength();
+            node = node.high;
+        }
+    }
+
+    /**
+     * Places an item in the treap right after another one in document order,
+     * or first, then restores the heap order of the priorities
+     */
+    private void treeInsertAfter(Item item, Item after) {
+        Item parent;
+        if (after == null) {
+            parent = root;
+            while (parent != null && parent.low != null) {
+                parent = parent.low;
+            }
+        } else if (after.high == null) {
+            parent = after;
+        } else {
+            parent = after.high;
+            while (parent.low != null) {
+                parent = parent.low;
+            }
+        }
+        item.parent = parent;
+        if (parent == null) {
+            root = item;
+        } else if (parent == after) {
+            parent.high = item;
+        } else {
+            parent.low = item;
+        }
+        item.weight = item.visibleLength();
+        updateUpwards(parent);
+        while (item.parent != null && item.parent.priority < item.priority) {
+            rotateUp(item);
+        }
+    }
+
+    /**
+     * Takes an item out of the treap by rotating it down to a leaf
+     */
+    private void treeRemove(Item item) {
+        while (item.low != null || item.high != null) {
+            if (item.high == null || (item.low != null && item.low.priority > item.high.priority)) {
+                rotateUp(item.low);
+            } else {
+                rotateUp(item.high);
+            }
+        }
+        Item parent = item.parent;
+        if (parent == null) {
+            root = null;
+        } else if (parent.low == item) {
+            parent.low = null;
+        } else {
+            parent.high = null;
+        }
+        item.parent = null;
+        updateUpwards(parent);
+    }
+
+    /**
+     * Moves a node above its parent, keeping the document order
+     */
+    private void rotateUp(Item node) {
+        Item parent = node.parent;
+        Item grandparent = parent.parent;
+        if (parent.low == node) {
+            parent.low = node.high;
+            if (node.high != null) {
+                node.high.parent = parent;
+            }
+            node.high = parent;
+        } else {
+            parent.high = node.low;
+            if (node.low != null) {
+                node.low.parent = parent;
+            }
+            node.low = parent;
+        }
+        parent.parent = node;
+        node.parent = grandparent;
+        if (grandparent == null) {
+            root = node;
+        } else if (grandparent.low == parent) {
+            grandparent.low = node;
+        } else {
+            grandparent.high = node;
+        }
+        parent.updateWeight();
+        node.updateWeight();
+    }
+
+    /**
+     * Recounts the visible characters of a node and its ancestors after the node changed
+     */
+    private static void updateUpwards(Item node) {
+        for (; node != null; node = node.parent) {
+            node.updateWeight();
+        }
+    }
+
+    private static int weight(Item node) {
+        return node == null ? 0 : node.weight;
+    }
+
+    private static final class Item {
+        private final String client;
+        private final long clock;
+        private int length;
+        // Text of the run; null once the run is deleted
+        private String content;
+        private boolean deleted;
+        private final ItemId originLeft;
+        private final ItemId originRight;
+        private Item left;
+        private Item right;
+        // Treap links; the priority is random, so the tree stays balanced in expectation
+        private Item parent;
+        private Item low;
+        private Item high;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        // Visible characters of this item and everything below it in the treap
+        private int weight;
+
+        Item(String client, long clock, int length, String content, ItemId originLeft, ItemId originRight) {
+            this.client = client;
+            this.clock = clock;
+            this.length = length;
+            this.content = content;
+            this.deleted = content == null;
+            this.originLeft = originLeft;
+            this.originRight = originRight;
+        }
+
+        int visibleLength() {
+            return deleted ? 0 : length;
+        }
+
+        void updateWeight() {
+            weight = weight(low) + visibleLength() + weight(high);
+        }
+
+        ItemId id(int offset) {
+            return new ItemId(client, clock + offset);
+        }
+
+        /**
+         * True if next continues this run exactly as if both had been inserted
+         * by one operation
+         */
+        boolean canMergeAsRun(Item next) {
+            return next.client.equals(client)
+                    && next.clock == clock + length
+                    && next.deleted == deleted
+                    && new ItemId(client, clock + length - 1).equals(next.originLeft)
+                    && Objects.equals(originRight, next.originRight);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.collaborativeeditor.crdt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Globally unique identifier of a single character in a CRDT sequence:
+ * the replica that created it and that replica's clock at creation time.
+ * A run of characters typed together shares a client and has consecutive clocks.
+ */
+public record ItemId(String client, long clock) {
+
+    Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("client", client);
+        json.put("clock", clock);
+        return json;
+    }
+
+    static ItemId fromJson(Object json) {
+        if (json == null) {
+            return null;
+        }
+        if (!(json instanceof Map<?, ?> map) || !(map.get("client") instanceof String client)
+                || !(map.get("clock") instanceof Number clock)) {
+            throw new IllegalArgumentException("Invalid item id: " + json);
+        }
+        return new ItemId(client, clock.longValue());
+    }
+}
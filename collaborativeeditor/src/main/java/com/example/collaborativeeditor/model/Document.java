@@ -1,20 +1,183 @@
 package com.example.collaborativeeditor.model;
 
+import com.example.collaborativeeditor.crdt.CrdtSequence;
+import com.example.collaborativeeditor.ot.OperationHistory;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.example.collaborativeeditor.text.TextBuffer;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
+import java.util.List;
 import java.util.UUID;
 
 @Data
 public class Document {
+    // Document type whose edits are merged by a sequence CRDT instead of OT
+    public static final String TYPE_CRDT = "crdt";
+
     private String id;
-    private String content;
+    // Body of the document; immutable, so every read is a consistent snapshot
+    private volatile TextBuffer content;
     private String lastEditor;
     private long lastEditTime;
     private String documentType; // Add this field to distinguish between plain text and rich text
+    // Revision counter and recent operations used to transform concurrent edits
+    @JsonIgnore
+    private final OperationHistory history = new OperationHistory();
+    // Replica holding the body instead of content when documentType is "crdt"
+    @JsonIgnore
+    private volatile CrdtSequence crdt;
+    // Client id of the operations the replica generates itself; set before the
+    // document becomes a CRDT document, and distinct for every cluster node
+    @JsonIgnore
+    private String crdtClient = "server";
 
     public Document() {
         this.id = UUID.randomUUID().toString();
-        this.content = "";
+        this.content = TextBuffer.empty();
         this.lastEditTime = System.currentTimeMillis();
         this.documentType = "rich-text"; // Default to rich text for Quill editor
     }
-}
\ No newline at end of file
+
+    /**
+     * Recreates a document from a persisted snapshot. A CRDT document gets its
+     * replica back from the state; any other document gets its body and
+     * continues counting revisions from the snapshot's, with no history to
+     * transform older operations against.
+     *
+     * @param crdtState  replica state from {@link CrdtSequence#encodeState()}, or null for a plain document
+     * @param crdtClient client id of the operations the replica generates itself
+     */
+    public static Document restore(String id, String documentType, String content, List<?> crdtState,
+            long revision, String crdtClient) {
+        Document document = new Document();
+        document.id = id;
+        document.documentType = documentType;
+        document.crdtClient = crdtClient;
+        if (crdtState != null) {
+            document.crdt = CrdtSequence.fromState(crdtState, crdtClient);
+        } else {
+            document.content = TextBuffer.of(content);
+        }
+        document.history.reset(revision);
+        return document;
+    }
+
+    /**
+     * Returns the full text of the document.
+     * This materialises the whole body; prefer {@link #snapshot()} on hot paths.
+     */
+    public String getContent() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Replaces the whole body of the document
+     *
+     * @throws IllegalArgumentException if the document takes CRDT operations
+     */
+    public synchronized void setContent(String content) {
+        apply(TextOperation.replaceAll(this.content.length(), content));
+    }
+
+    /**
+     * Replaces the whole body and continues counting revisions from the
+     * given one, with no history to transform older operations against,
+     * e.g. to take on another cluster node's copy
+     *
+     * @throws IllegalArgumentException if the document takes CRDT operations
+     */
+    public synchronized void rebase(String content, long revision) {
+        checkCrdt();
+        this.content = TextBuffer.of(content);
+        history.reset(revision);
+    }
+
+    /**
+     * Returns the current body without copying it
+     */
+    public TextBuffer snapshot() {
+        CrdtSequence replica = crdt;
+        return replica != null ? replica.text() : content;
+    }
+
+    /**
+     * Changes the document type. Switching to {@link #TYPE_CRDT} moves the
+     * current body into a CRDT replica; edits then go through {@link #getCrdt()}.
+     */
+    public synchronized void setDocumentType(String documentType) {
+        if (TYPE_CRDT.equals(documentType) && crdt == null) {
+            crdt = CrdtSequence.fromText(content.toString(), crdtClient);
+        }
+        this.documentType = documentType;
+    }
+
+    /**
+     * Returns true if edits to this document are merged by a CRDT
+     */
+    public boolean usesCrdt() {
+        return crdt != null;
+    }
+
+    /**
+     * Returns the revision of the current body; every applied edit advances it by one
+     */
+    public long getRevision() {
+        return history.getRevision();
+    }
+
+    /**
+     * Applies an operation that is based on the current revision
+     *
+     * @return the new revision
+     * @throws IllegalArgumentException if the operation does not fit the document
+     */
+    public synchronized long apply(TextOperation operation) {
+        checkCrdt();
+        content = operation.apply(content);
+        return history.append(operation);
+    }
+
+    /**
+     * Inserts text at the given position
+     *
+     * @throws IllegalArgumentException if the document takes CRDT operations
+     */
+    public synchronized void insert(int position, String text) {
+        checkCrdt();
+        checkRange(position, 0);
+        apply(new TextOperation().retain(position).insert(text).retain(content.length() - position));
+    }
+
+    /**
+     * Removes a range of text starting at the given position
+     *
+     * @throws IllegalArgumentException if the document takes CRDT operations
+     */
+    public synchronized void delete(int position, int length) {
+        checkCrdt();
+        checkRange(position, length);
+        apply(new TextOperation().retain(position).delete(length).retain(content.length() - position - length));
+    }
+
+    /**
+     * Returns the number of characters in the document
+     */
+    public int length() {
+        return snapshot().length();
+    }
+
+    // Edits by position or body would change the server replica without an
+    // operation any client receives, so CRDT clients would diverge
+    private void checkCrdt() {
+        if (crdt != null) {
+            throw new IllegalArgumentException("Document " + id + " takes CRDT operations only");
+        }
+    }
+
+    private void checkRange(int position, int length) {
+        if (position < 0 || length < 0 || position + length > content.length()) {
+            throw new IndexOutOfBoundsException(
+                    "range [" + position + ", " + (position + length) + "), length " + content.length());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.collaborativeeditor.network;
+
+import com.example.collaborativeeditor.text.TextBuffer;
+
+/**
+ * Reads a document body as a sequence of chunks of at most a given number of
+ * characters, straight from its {@link TextBuffer}. Only the current chunk is
+ * ever materialised, and since the buffer is immutable the chunks add up to
+ * the body exactly as it was when the reader was created, whatever edits
+ * follow. A chunk never ends between the two halves of a surrogate pair.
+ * Not thread-safe; each load owns its reader.
+ */
+public final class ContentChunks {
+    private final TextBuffer content;
+    private final int chunkChars;
+    private int offset;
+
+    /**
+     * @param content    the body to read
+     * @param chunkChars largest chunk, in chars; at least 2
+     */
+    public ContentChunks(TextBuffer content, int chunkChars) {
+        if (chunkChars < 2) {
+            throw new IllegalArgumentException("Chunks must hold at least 2 chars, got " + chunkChars);
+        }
+        this.content = content;
+        this.chunkChars = chunkChars;
+    }
+
+    /**
+     * Total length of the body in chars
+     */
+    public int length() {
+        return content.length();
+    }
+
+    /**
+     * Offset of the next chunk
+     */
+    public int offset() {
+        return offset;
+    }
+
+    public boolean hasNext() {
+        return offset < content.length();
+    }
+
+    /**
+     * Returns the next chunk
+     *
+     * @throws IllegalStateException if the body has been read to the end
+     */
+    public String next() {
+        if (!hasNext()) {
+            throw new IllegalStateException("No chunks left");
+        }
+        int end = Math.min(content.length(), offset + chunkChars);
+        if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--;
+        }
+        String chunk = content.subSequence(offset, end).toString();
+        offset = end;
+        return chunk;
+    }
+}
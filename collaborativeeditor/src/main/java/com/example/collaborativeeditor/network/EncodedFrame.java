@@ -0,0 +1,306 @@
+package com.example.collaborativeeditor.network;
+
+import com.example.collaborativeeditor.pipeline.EditTrace;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.socket.TextMessage;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One broadcast, encoded at most once per protocol and shared by every
+ * recipient. The WebSocket text frame and the binary TCP frame are built
+ * lazily on first use and memoized; TCP recipients get read-only views of
+ * the same bytes, so fan-out costs no serialization and no copying.
+ *
+ * A frame that has no TCP form (TCP type 0) or no WebSocket form is simply
+ * skipped by the transport that cannot carry it.
+ */
+public final class EncodedFrame {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * How a frame may be treated when a recipient's outbound queue overflows
+     */
+    public enum Kind {
+        // User list snapshot, superseded by any later one for the same document
+        PRESENCE,
+        // Full-content edit, superseded by any later one for the same document
+        EDIT,
+        // Everything else: operations, acks, resyncs; never dropped or reordered
+        OTHER
+    }
+
+    private final String documentId;
+    private final Kind kind;
+    // Binary protocol fields; tcpType 0 means the frame is not sent over TCP
+    private final byte tcpType;
+    private final String tcpContent;
+    private final String userId;
+    private final long timestamp;
+    // Revision the frame brings its document to, 0 if none
+    private final long revision;
+    // Number the node that forwarded an operation gave it, 0 if none
+    private final long operationNumber;
+    // WebSocket form before encoding; null means the frame is not sent over WebSocket
+    private final Map<String, Object> json;
+    // Memoized encodings; racing threads produce equal values, so plain volatile is enough
+    private volatile TextMessage textMessage;
+    // UTF-8 size of the text frame, -1 until first asked for
+    private volatile int webSocketBytes = -1;
+    private volatile byte[] tcpBytes;
+    private volatile byte[] legacyTcpBytes;
+    // v2 frame after MessageCodec.compress; the same array as tcpBytes when not worth compressing
+    private volatile byte[] compressedTcpBytes;
+    // The edit this frame carries; set before the frame is broadcast
+    private EditTrace trace = EditTrace.NONE;
+
+    private EncodedFrame(String documentId, Kind kind, byte tcpType, String tcpContent, String userId,
+            long timestamp, long revision, Map<String, Object> json, TextMessage textMessage) {
+        this(documentId, kind, tcpType, tcpContent, userId, timestamp, revision, 0, json, textMessage);
+    }
+
+    private EncodedFrame(String documentId, Kind kind, byte tcpType, String tcpContent, String userId,
+            long timestamp, long revision, long operationNumber, Map<String, Object> json, TextMessage textMessage) {
+        this.documentId = documentId;
+        this.kind = kind;
+        this.tcpType = tcpType;
+        this.tcpContent = tcpContent;
+        this.userId = userId;
+        this.timestamp = timestamp;
+        this.revision = revision;
+        this.operationNumber = operationNumber;
+        this.json = json;
+        this.textMessage = textMessage;
+    }
+
+    /**
+     * A full-content edit, understood by both protocols
+     *
+     * @param revision the revision the edit produced, which clients present when they rejoin
+     */
+    public static EncodedFrame edit(String documentId, String content, String editor, long timestamp,
+            long revision) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("documentId", documentId);
+        json.put("content", content);
+        json.put("editor", editor);
+        json.put("timestamp", timestamp);
+        json.put("revision", revision);
+        return new EncodedFrame(documentId, Kind.EDIT, NetworkMessage.MESSAGE_TYPE_EDIT, content, editor, timestamp,
+                revision, json, null);
+    }
+
+    /**
+     * A CRDT operation, understood by both protocols
+     *
+     * @param op       the operation in its JSON object form
+     * @param opJson   the same operation as JSON text, carried in the TCP frame; null to encode it
+     *                 from op once a TCP client first needs it
+     * @param original the WebSocket frame it arrived in, reused as is; may be null
+     */
+    public static EncodedFrame crdt(String documentId, Map<?, ?> op, String opJson, String editor,
+            TextMessage original) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("type", "crdt");
+        json.put("documentId", documentId);
+        json.put("op", op);
+        json.put("editor", editor);
+        return new EncodedFrame(documentId, Kind.OTHER, NetworkMessage.MESSAGE_TYPE_CRDT, opJson, editor,
+                System.currentTimeMillis(), 0, json, original);
+    }
+
+    /**
+     * A versioned operation as applied by the document's owner. WebSocket
+     * clients get it as an "operation" message; over TCP only cluster
+     * nodes get it, so their copies keep the owner's revisions.
+     *
+     * @param ops      the transformed operation in its JSON array form
+     * @param content  the TCP frame content as the owner sent it; null to encode it from ops and
+     *                 number once a cluster node first needs it
+     * @param revision the revision the operation produced
+     * @param number   the number the node that forwarded the operation gave it, 0 if none
+     * @see OperationContent
+     */
+    public static EncodedFrame operation(String documentId, List<?> ops, String content, String editor,
+            long revision, long number) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("type", "operation");
+        json.put("documentId", documentId);
+        json.put("revision", revision);
+        json.put("ops", ops);
+        json.put("editor", editor);
+        return new EncodedFrame(documentId, Kind.OTHER, NetworkMessage.MESSAGE_TYPE_OPERATION, content, editor,
+                System.currentTimeMillis(), revision, number, json, null);
+    }
+
+    /**
+     * The whole state of a CRDT replica, understood by both protocols;
+     * clients replace their replica with it
+     *
+     * @param items      the state from {@code CrdtSequence.encodeState()}
+     * @param itemsJson  the same state as JSON text, carried in the TCP frame
+     */
+    public static EncodedFrame crdtState(String documentId, List<?> items, String itemsJson, String editor) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("type", "crdt_state");
+        json.put("documentId", documentId);
+        json.put("items", items);
+        return new EncodedFrame(documentId, Kind.OTHER, NetworkMessage.MESSAGE_TYPE_CRDT_STATE, itemsJson, editor,
+                System.currentTimeMillis(), 0, json, null);
+    }
+
+    /**
+     * A message only WebSocket clients understand, e.g. a versioned operation or a user list
+     */
+    public static EncodedFrame webSocket(String documentId, Kind kind, Map<String, Object> json) {
+        return new EncodedFrame(documentId, kind, (byte) 0, null, null, 0, 0, json, null);
+    }
+
+    /**
+     * A binary protocol message, which WebSocket clients do not receive
+     */
+    public static EncodedFrame of(NetworkMessage message) {
+        return new EncodedFrame(message.getDocumentId(), Kind.OTHER, message.getType(), message.getContent(),
+                message.getUserId(), message.getTimestamp(), message.getRevision(), null, null);
+    }
+
+    /**
+     * Attaches the trace of the edit this frame carries, so every recipient reports its write
+     *
+     * @return this frame
+     */
+    public EncodedFrame traced(EditTrace trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    public EditTrace getTrace() {
+        return trace;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean hasTcpForm() {
+        return tcpType != 0;
+    }
+
+    /**
+     * True if, of the TCP connections, only those of other cluster nodes get the frame
+     */
+    public boolean isForPeersOnly() {
+        return tcpType == NetworkMessage.MESSAGE_TYPE_OPERATION;
+    }
+
+    public boolean hasWebSocketForm() {
+        return json != null || textMessage != null;
+    }
+
+    /**
+     * The WebSocket text frame, encoded on first use
+     */
+    public TextMessage textMessage() {
+        TextMessage message = textMessage;
+        if (message == null) {
+            message = new TextMessage(encodeJson(json));
+            textMessage = message;
+        }
+        return message;
+    }
+
+    private String encodeJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot encode frame for document " + documentId, e);
+        }
+    }
+
+    /**
+     * Size of the text frame's payload in UTF-8, worked out once for all recipients
+     */
+    public int webSocketBytes() {
+        int bytes = webSocketBytes;
+        if (bytes < 0) {
+            bytes = MessageCodec.utf8Length(textMessage().getPayload());
+            webSocketBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * A read-only view of the binary TCP frame in the current payload
+     * version, encoded on first use. Every call returns an independent
+     * position over the same bytes.
+     */
+    public ByteBuffer tcpBuffer() {
+        return tcpBuffer(MessageCodec.VERSION_2);
+    }
+
+    /**
+     * A read-only view of the binary TCP frame in the given payload version,
+     * encoded on first use for that version
+     *
+     * @param version {@link MessageCodec#VERSION_2} or {@link MessageCodec#VERSION_LEGACY}
+     */
+    public ByteBuffer tcpBuffer(byte version) {
+        return ByteBuffer.wrap(tcpBytes(version)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Like {@link #tcpBuffer(byte)}, but a v2 payload of at least the given
+     * size is sent deflated, compressed once for all recipients. The
+     * threshold is expected to be the same for every caller, as it is for
+     * the clients of one server.
+     *
+     * @param compressionThreshold smallest payload to compress; 0 or less for none,
+     *                             e.g. for a client that cannot read compressed frames
+     */
+    public ByteBuffer tcpBuffer(byte version, int compressionThreshold) {
+        if (compressionThreshold <= 0 || version == MessageCodec.VERSION_LEGACY) {
+            return tcpBuffer(version);
+        }
+        byte[] bytes = compressedTcpBytes;
+        if (bytes == null) {
+            bytes = MessageCodec.compress(tcpBytes(version), compressionThreshold);
+            compressedTcpBytes = bytes;
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    private byte[] tcpBytes(byte version) {
+        boolean legacy = version == MessageCodec.VERSION_LEGACY;
+        byte[] bytes = legacy ? legacyTcpBytes : tcpBytes;
+        if (bytes == null) {
+            String content = tcpContent;
+            if (content == null && tcpType == NetworkMessage.MESSAGE_TYPE_CRDT) {
+                content = encodeJson(json.get("op"));
+            } else if (content == null && tcpType == NetworkMessage.MESSAGE_TYPE_OPERATION) {
+                content = OperationContent.encode(operationNumber, encodeJson(json.get("ops")));
+            }
+            NetworkMessage message = new NetworkMessage();
+            message.setType(tcpType);
+            message.setDocumentId(documentId);
+            message.setContent(content);
+            message.setUserId(userId);
+            message.setTimestamp(timestamp);
+            message.setRevision(revision);
+            bytes = message.serialize(version);
+            if (legacy) {
+                legacyTcpBytes = bytes;
+            } else {
+                tcpBytes = bytes;
+            }
+        }
+        return bytes;
+    }
+}
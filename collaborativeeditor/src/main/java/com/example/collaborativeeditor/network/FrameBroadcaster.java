@@ -0,0 +1,45 @@
+package com.example.collaborativeeditor.network;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Fans a frame out to the clients of every transport, so a TCP client sees
+ * edits made over WebSocket and the other way round.
+ */
+@Component
+public class FrameBroadcaster {
+    // Transports are looked up lazily: they depend on this broadcaster themselves
+    private final Supplier<List<FrameSink>> sinkLookup;
+    private volatile List<FrameSink> sinks;
+
+    @Autowired
+    public FrameBroadcaster(ObjectProvider<FrameSink> sinks) {
+        this(() -> sinks.orderedStream().toList());
+    }
+
+    public FrameBroadcaster(Supplier<List<FrameSink>> sinkLookup) {
+        this.sinkLookup = sinkLookup;
+    }
+
+    /**
+     * Delivers a frame to every client on its document, except the sender
+     *
+     * @param frame  the frame; encoded at most once per protocol however many clients receive it
+     * @param sender the connection that caused the broadcast, or null
+     */
+    public void broadcast(EncodedFrame frame, Object sender) {
+        List<FrameSink> targets = sinks;
+        if (targets == null) {
+            targets = sinkLookup.get();
+            sinks = targets;
+        }
+        for (FrameSink sink : targets) {
+            sink.deliver(frame, sender);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.collaborativeeditor.network;
+
+/**
+ * A transport that can deliver broadcast frames to its clients
+ */
+public interface FrameSink {
+
+    /**
+     * Delivers a frame to every client of this transport on the frame's
+     * document, except the sender. Must not block on slow clients.
+     *
+     * @param frame  the frame to deliver
+     * @param sender the connection that caused the broadcast, or null; compared by identity
+     */
+    void deliver(EncodedFrame frame, Object sender);
+}
@@ -0,0 +1,252 @@
+package com.example.collaborativeeditor.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format of {@link NetworkMessage}. Every frame is
+ * {@code [type(1)][payload length(4, big-endian)][payload]}; the payload
+ * comes in two versions:
+ * <ul>
+ * <li>v2: {@code [0x02][documentId][userId][content][timestamp][revision]}
+ * where strings are a varint byte length followed by UTF-8 bytes and
+ * numbers are unsigned varints. Any content is safe, and routing fields can
+ * be read in place (see {@link MessageView}).</li>
+ * <li>v1 (legacy): {@code documentId|content|userId|timestamp} as UTF-8
+ * text. Kept for old clients; a {@code |} inside the content is tolerated
+ * on decode but not in the user id.</li>
+ * </ul>
+ * A v1 payload never starts with byte 0x02, which is what tells them apart.
+ *
+ * The low six bits of the type byte are the message type; the top two are
+ * flags. {@link #FLAG_COMPRESSED} marks a payload stored as
+ * {@code [inflated length(varint)][raw deflate stream]}, which only v2
+ * payloads use. {@link #FLAG_ACCEPTS_COMPRESSED} tells the receiver that the
+ * sender can read compressed frames; a server compresses nothing for a
+ * client that never set it.
+ */
+public final class MessageCodec {
+    public static final byte VERSION_LEGACY = 1;
+    public static final byte VERSION_2 = 2;
+    public static final int HEADER_LENGTH = 5;
+    public static final byte TYPE_MASK = 0x3F;
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+    public static final byte FLAG_ACCEPTS_COMPRESSED = 0x40;
+    // Largest payload a compressed frame may inflate to unless configured otherwise
+    public static final int DEFAULT_MAX_INFLATED_BYTES = 16 * 1024 * 1024;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes a complete frame, header included
+     *
+     * @param message the message to encode
+     * @param version {@link #VERSION_2} or {@link #VERSION_LEGACY}
+     * @return the frame bytes
+     */
+    public static byte[] encode(NetworkMessage message, byte version) {
+        if (version == VERSION_LEGACY) {
+            return encodeLegacy(message);
+        }
+        byte[] documentId = utf8(message.getDocumentId());
+        byte[] userId = utf8(message.getUserId());
+        byte[] content = utf8(message.getContent());
+        int payloadLength = 1
+                + varIntSize(documentId.length) + documentId.length
+                + varIntSize(userId.length) + userId.length
+                + varIntSize(content.length) + content.length
+                + varLongSize(message.getTimestamp())
+                + varLongSize(message.getRevision());
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        frame.put(message.getType()).putInt(payloadLength).put(VERSION_2);
+        putBytes(frame, documentId);
+        putBytes(frame, userId);
+        putBytes(frame, content);
+        putVarLong(frame, message.getTimestamp());
+        putVarLong(frame, message.getRevision());
+        return frame.array();
+    }
+
+    /**
+     * Decodes a payload of either version into a message, inflating it first
+     * if the type carries {@link #FLAG_COMPRESSED}
+     *
+     * @param type             the frame type from the header, flags included
+     * @param payload          the payload bytes, from position to limit; the position is not moved
+     * @param maxInflatedBytes largest size a compressed payload may inflate to
+     * @throws IllegalArgumentException if the payload is malformed or inflates beyond maxInflatedBytes
+     */
+    public static NetworkMessage decode(byte type, ByteBuffer payload, int maxInflatedBytes) {
+        if ((type & FLAG_COMPRESSED) != 0) {
+            payload = inflate(payload, maxInflatedBytes);
+        }
+        MessageView view = new MessageView();
+        view.wrap((byte) (type & TYPE_MASK), payload, payload.position(), payload.remaining());
+        NetworkMessage message = new NetworkMessage();
+        message.setType(view.type());
+        message.setDocumentId(view.documentId());
+        message.setUserId(view.userId());
+        message.setContent(view.content());
+        message.setTimestamp(view.timestamp());
+        message.setRevision(view.revision());
+        return message;
+    }
+
+    /**
+     * Compresses the payload of an encoded v2 frame with raw deflate at
+     * {@link Deflater#BEST_SPEED} and sets {@link #FLAG_COMPRESSED}.
+     * Payloads below the threshold, and payloads deflate does not shrink,
+     * are left as they are.
+     *
+     * @param frame     a complete frame from {@link #encode}
+     * @param threshold smallest payload worth compressing; 0 or less compresses nothing
+     * @return the compressed frame, or the given one
+     */
+    public static byte[] compress(byte[] frame, int threshold) {
+        int payloadLength = frame.length - HEADER_LENGTH;
+        if (threshold <= 0 || payloadLength < threshold || (frame[0] & FLAG_COMPRESSED) != 0) {
+            return frame;
+        }
+        // Anything that does not fit in the original size is not worth sending
+        byte[] compressed = new byte[frame.length];
+        ByteBuffer target = ByteBuffer.wrap(compressed, HEADER_LENGTH, compressed.length - HEADER_LENGTH);
+        putVarLong(target, payloadLength);
+        int offset = target.position();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(frame, HEADER_LENGTH, payloadLength);
+            deflater.finish();
+            while (!deflater.finished() && offset < compressed.length) {
+                offset += deflater.deflate(compressed, offset, compressed.length - offset);
+            }
+            if (!deflater.finished()) {
+                return frame;
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer.wrap(compressed).put((byte) (frame[0] | FLAG_COMPRESSED)).putInt(offset - HEADER_LENGTH);
+        return Arrays.copyOf(compressed, offset);
+    }
+
+    /**
+     * Inflates a compressed payload
+     *
+     * @param payload  the payload bytes, from position to limit; the position is not moved
+     * @param maxBytes largest inflated size accepted
+     * @return a buffer holding exactly the inflated payload
+     * @throws IllegalArgumentException if the payload is malformed or inflates beyond maxBytes
+     */
+    public static ByteBuffer inflate(ByteBuffer payload, int maxBytes) {
+        ByteBuffer source = payload.duplicate();
+        long length = readVarLong(source);
+        if (length > maxBytes) {
+            throw new IllegalArgumentException("Compressed payload inflates to " + length
+                    + " bytes, over the limit of " + maxBytes);
+        }
+        byte[] inflated = new byte[(int) length];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(source);
+            int offset = 0;
+            while (offset < inflated.length && !inflater.finished() && !inflater.needsInput()) {
+                offset += inflater.inflate(inflated, offset, inflated.length - offset);
+            }
+            if (offset != inflated.length || inflater.inflate(new byte[1]) != 0 || !inflater.finished()) {
+                throw new IllegalArgumentException("Compressed payload does not inflate to its stated length");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(inflated);
+    }
+
+    private static long readVarLong(ByteBuffer source) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!source.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            byte b = source.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static byte[] encodeLegacy(NetworkMessage message) {
+        String payload = message.getDocumentId() + "|" + message.getContent() + "|" + message.getUserId() + "|"
+                + message.getTimestamp();
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER_LENGTH + payloadBytes.length)
+                .put(message.getType())
+                .putInt(payloadBytes.length)
+                .put(payloadBytes)
+                .array();
+    }
+
+    /**
+     * Number of bytes the text takes in UTF-8, counted without encoding it;
+     * an unpaired surrogate counts as the '?' it is encoded as
+     */
+    public static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    bytes += 2; // The pair's two chars take four bytes
+                    i++;
+                }
+            } else if (c >= 0x800) {
+                bytes += 2;
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer target, byte[] bytes) {
+        putVarLong(target, bytes.length);
+        target.put(bytes);
+    }
+
+    static void putVarLong(ByteBuffer target, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint " + value);
+        }
+        while ((value & ~0x7FL) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+
+    static int varIntSize(int value) {
+        return varLongSize(value);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
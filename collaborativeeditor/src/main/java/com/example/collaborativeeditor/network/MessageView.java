@@ -0,0 +1,222 @@
+package com.example.collaborativeeditor.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable, allocation-free view of one frame payload in a {@link ByteBuffer}.
+ * {@link #wrap} only records where the fields of a v2 payload lie; strings
+ * are decoded on request, and {@link #documentIdEquals} compares the
+ * routing field against a known id without decoding it at all.
+ *
+ * The view reads the buffer in place, so it is valid only until the buffer
+ * is reused. Legacy v1 payloads are decoded eagerly and carry no such
+ * restriction. Not thread-safe; meant to be owned by one connection.
+ */
+public final class MessageView {
+    private static final int DOCUMENT_ID = 0;
+    private static final int USER_ID = 1;
+    private static final int CONTENT = 2;
+
+    private ByteBuffer buffer;
+    private byte type;
+    private byte version;
+    // Absolute offsets and byte lengths of the string fields of a v2 payload
+    private final int[] offsets = new int[3];
+    private final int[] lengths = new int[3];
+    // Fields of a legacy payload, decoded by wrap
+    private final String[] legacyFields = new String[3];
+    private long timestamp;
+    private long revision;
+    // Read position while parsing
+    private int cursor;
+    private int end;
+
+    /**
+     * Points the view at a payload and validates its layout
+     *
+     * @param type   the frame type from the header
+     * @param buffer the buffer holding the payload; its position and limit are not touched
+     * @param offset absolute index of the first payload byte
+     * @param length payload length in bytes
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public void wrap(byte type, ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IllegalArgumentException("Payload outside the buffer");
+        }
+        this.buffer = buffer;
+        this.type = type;
+        this.cursor = offset;
+        this.end = offset + length;
+        if (length > 0 && buffer.get(offset) == MessageCodec.VERSION_2) {
+            version = MessageCodec.VERSION_2;
+            cursor++;
+            readField(DOCUMENT_ID);
+            readField(USER_ID);
+            readField(CONTENT);
+            timestamp = readVarLong();
+            revision = readVarLong();
+            if (cursor != end) {
+                throw new IllegalArgumentException("Trailing bytes in payload");
+            }
+        } else {
+            version = MessageCodec.VERSION_LEGACY;
+            parseLegacy(string(offset, length));
+        }
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    /**
+     * Payload version: {@link MessageCodec#VERSION_2} or {@link MessageCodec#VERSION_LEGACY}
+     */
+    public byte version() {
+        return version;
+    }
+
+    public String documentId() {
+        return field(DOCUMENT_ID);
+    }
+
+    public String userId() {
+        return field(USER_ID);
+    }
+
+    public String content() {
+        return field(CONTENT);
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public long revision() {
+        return revision;
+    }
+
+    /**
+     * Whether the document id equals the given one, without decoding it
+     */
+    public boolean documentIdEquals(String candidate) {
+        if (candidate == null) {
+            return false;
+        }
+        if (version != MessageCodec.VERSION_2) {
+            return candidate.equals(legacyFields[DOCUMENT_ID]);
+        }
+        int offset = offsets[DOCUMENT_ID];
+        int length = lengths[DOCUMENT_ID];
+        // Byte-for-char comparison holds as long as both sides are ASCII
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(offset + i);
+            if (b < 0) {
+                return candidate.equals(documentId());
+            }
+            if (i >= candidate.length() || candidate.charAt(i) != b) {
+                return false;
+            }
+        }
+        return candidate.length() == length;
+    }
+
+    /**
+     * The document id, reusing the given instance when it is equal
+     *
+     * @param known an id the caller already holds, e.g. the document joined last; may be null
+     */
+    public String documentId(String known) {
+        return documentIdEquals(known) ? known : documentId();
+    }
+
+    private String field(int index) {
+        if (version != MessageCodec.VERSION_2) {
+            return legacyFields[index];
+        }
+        return string(offsets[index], lengths[index]);
+    }
+
+    private void readField(int index) {
+        long length = readVarLong();
+        if (length > end - cursor) {
+            throw new IllegalArgumentException("Field length " + length + " exceeds payload");
+        }
+        offsets[index] = cursor;
+        lengths[index] = (int) length;
+        cursor += (int) length;
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (cursor >= end) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            byte b = buffer.get(cursor++);
+            if (shift == 63 && (b & 0x7E) != 0) {
+                throw new IllegalArgumentException("Varint out of range");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("Varint out of range");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private String string(int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses {@code documentId|content|userId[|timestamp]}. The document id
+     * ends at the first separator and the user id and timestamp are taken
+     * from the end, so the content may itself contain separators.
+     */
+    private void parseLegacy(String payload) {
+        int first = payload.indexOf('|');
+        int last = payload.lastIndexOf('|');
+        if (first < 0 || last == first) {
+            throw new IllegalArgumentException("Invalid message format");
+        }
+        legacyFields[DOCUMENT_ID] = payload.substring(0, first);
+        int previous = payload.lastIndexOf('|', last - 1);
+        Long parsedTimestamp = previous > first ? parseTimestamp(payload.substring(last + 1)) : null;
+        if (parsedTimestamp != null) {
+            legacyFields[CONTENT] = payload.substring(first + 1, previous);
+            legacyFields[USER_ID] = payload.substring(previous + 1, last);
+            timestamp = parsedTimestamp;
+        } else {
+            legacyFields[CONTENT] = payload.substring(first + 1, last);
+            legacyFields[USER_ID] = payload.substring(last + 1);
+            timestamp = 0;
+        }
+        revision = 0;
+    }
+
+    private static Long parseTimestamp(String text) {
+        if (text.isEmpty() || text.length() > 19) {
+            return null;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return null;
+            }
+        }
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.example.collaborativeeditor.network;
 
 import lombok.Data;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a network message in the collaborative editing system.
@@ -15,6 +14,13 @@ public class NetworkMessage {
     public static final byte MESSAGE_TYPE_EDIT = 1; // Document edit message
     public static final byte MESSAGE_TYPE_JOIN = 2; // Client joining document
     public static final byte MESSAGE_TYPE_LEAVE = 3; // Client leaving document
+    public static final byte MESSAGE_TYPE_CRDT = 4; // CRDT operation, content is the operation JSON
+    public static final byte MESSAGE_TYPE_CRDT_STATE = 5; // CRDT replica state sent on join, content is JSON
+    public static final byte MESSAGE_TYPE_CATCH_UP = 6; // Operations missed since the join revision, content is a JSON array
+    public static final byte MESSAGE_TYPE_CONTENT_CHUNK = 7; // Piece of a streamed body at the message revision; more follow
+    public static final byte MESSAGE_TYPE_CONTENT_END = 8; // Last piece of a streamed body
+    public static final byte MESSAGE_TYPE_PEER = 9; // Opens a link from another cluster node, userId is its node id
+    public static final byte MESSAGE_TYPE_OPERATION = 10; // Versioned operation between cluster nodes, content is an OperationContent
 
     // Message fields
     private byte type; // Type of message (EDIT, JOIN, LEAVE)
@@ -22,69 +28,49 @@ public class NetworkMessage {
     private String content; // Content/changes in the message
     private String userId; // ID of the user sending the message
     private long timestamp; // Message timestamp for ordering
+    private long revision; // Document revision the message refers to, 0 if none
 
     /**
-     * Serializes the message into a byte array for network transmission.
-     * Message format:
-     * - Header: [type(1 byte)][payload length(4 bytes)]
-     * - Payload: documentId|content|userId|timestamp
-     * 
+     * Serializes the message into a v2 frame for network transmission.
+     * See {@link MessageCodec} for the format.
+     *
      * @return byte array containing the serialized message
      */
     public byte[] serialize() {
-        // Create payload string with fields separated by '|'
-        String payload = String.format("%s|%s|%s|%d", documentId, content, userId, timestamp);
-        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
-        byte[] message = new byte[5 + payloadBytes.length];
-
-        // Add message type to header
-        message[0] = type;
-
-        // Add payload length to header (big-endian)
-        message[1] = (byte) ((payloadBytes.length >> 24) & 0xFF);
-        message[2] = (byte) ((payloadBytes.length >> 16) & 0xFF);
-        message[3] = (byte) ((payloadBytes.length >> 8) & 0xFF);
-        message[4] = (byte) (payloadBytes.length & 0xFF);
+        return MessageCodec.encode(this, MessageCodec.VERSION_2);
+    }
 
-        // Copy payload after header
-        System.arraycopy(payloadBytes, 0, message, 5, payloadBytes.length);
-        return message;
+    /**
+     * Serializes the message in the given payload version, e.g. for a client
+     * that still speaks the legacy pipe-separated format.
+     *
+     * @param version {@link MessageCodec#VERSION_2} or {@link MessageCodec#VERSION_LEGACY}
+     * @return byte array containing the serialized message
+     */
+    public byte[] serialize(byte version) {
+        return MessageCodec.encode(this, version);
     }
 
     /**
      * Deserializes a byte array back into a NetworkMessage object.
-     * 
+     * Both payload versions are accepted; a compressed payload may inflate
+     * to at most {@link MessageCodec#DEFAULT_MAX_INFLATED_BYTES}.
+     *
      * @param data The byte array containing the serialized message
      * @return A new NetworkMessage instance
      * @throws IllegalArgumentException if the message format is invalid
      */
     public static NetworkMessage deserialize(byte[] data) {
-        try {
-            NetworkMessage message = new NetworkMessage();
-
-            // Extract message type from header
-            message.setType(data[0]);
-
-            // Extract payload length from header
-            int length = ByteBuffer.wrap(data, 1, 4).getInt();
-
-            // Extract and parse payload
-            String payload = new String(data, 5, length, StandardCharsets.UTF_8);
-            String[] parts = payload.split("\\|");
-
-            if (parts.length != 4) {
-                throw new IllegalArgumentException("Invalid message format");
-            }
-
-            message.setDocumentId(parts[0]);
-            message.setContent(parts[1]);
-            message.setUserId(parts[2]);
-            message.setTimestamp(Long.parseLong(parts[3]));
-
-            return message;
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Failed to deserialize message", e);
+        if (data.length < MessageCodec.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Message shorter than its header");
         }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int length = buffer.getInt(1);
+        if (length < 0 || length > data.length - MessageCodec.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid payload length " + length);
+        }
+        return MessageCodec.decode(data[0], ByteBuffer.wrap(data, MessageCodec.HEADER_LENGTH, length),
+                MessageCodec.DEFAULT_MAX_INFLATED_BYTES);
     }
 
     /**
@@ -112,6 +98,16 @@ public class NetworkMessage {
         return message;
     }
 
+    /**
+     * Creates a join message for a client that already holds the document
+     * at the given revision; the server answers with what it missed
+     */
+    public static NetworkMessage createRejoinMessage(String documentId, String userId, long revision) {
+        NetworkMessage message = createJoinMessage(documentId, userId);
+        message.setRevision(revision);
+        return message;
+    }
+
     /**
      * Creates a new leave message
      */
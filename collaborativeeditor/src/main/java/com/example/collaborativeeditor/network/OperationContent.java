@@ -0,0 +1,51 @@
+package com.example.collaborativeeditor.network;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content of a {@link NetworkMessage#MESSAGE_TYPE_OPERATION} frame, e.g.
+ * {@code {"number":7,"ops":[5,"x"]}}. The number is the one the node that
+ * forwarded the operation gave it, which tells that node the owner's echo or
+ * rejection apart from other operations; it is 0 for operations no node
+ * forwarded. A rejection carries no ops.
+ *
+ * @param number the forwarding node's number for the operation, 0 if none
+ * @param ops    the operation in its JSON array form; null in a rejection
+ */
+public record OperationContent(long number, List<?> ops) {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Builds the content around an operation already encoded as JSON, without decoding it
+     *
+     * @param opsJson the operation as a JSON array; null for a rejection
+     */
+    public static String encode(long number, String opsJson) {
+        if (opsJson == null) {
+            return "{\"number\":" + number + "}";
+        }
+        return "{\"number\":" + number + ",\"ops\":" + opsJson + "}";
+    }
+
+    /**
+     * Reads the content of a frame
+     *
+     * @throws JsonProcessingException  if the content is not JSON
+     * @throws IllegalArgumentException if it lacks a number or its ops are not an array
+     */
+    public static OperationContent parse(String content) throws JsonProcessingException {
+        if (!(objectMapper.readValue(content, Object.class) instanceof Map<?, ?> json)
+                || !(json.get("number") instanceof Number number)) {
+            throw new IllegalArgumentException("Operation frame without a number");
+        }
+        Object ops = json.get("ops");
+        if (ops != null && !(ops instanceof List<?>)) {
+            throw new IllegalArgumentException("Operation frame whose ops are not an array");
+        }
+        return new OperationContent(number.longValue(), (List<?>) ops);
+    }
+}
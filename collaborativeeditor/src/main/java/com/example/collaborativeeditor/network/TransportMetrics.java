@@ -0,0 +1,123 @@
+package com.example.collaborativeeditor.network;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of one transport, looked up once so that the per-message path
+ * only reads the clock and adds to them. Stages are timed from a
+ * {@link System#nanoTime()} taken by the caller:
+ * <ul>
+ * <li>decode: turning a received frame into a message</li>
+ * <li>apply: changing the document, edit log append included</li>
+ * <li>broadcast: handing the resulting frame to every recipient on every transport</li>
+ * </ul>
+ * WebSocket bytes are UTF-8 payload bytes before permessage-deflate; TCP
+ * bytes are what went through the socket.
+ */
+public final class TransportMetrics {
+
+    /**
+     * Meters registered nowhere, for components built without a registry
+     */
+    public static final TransportMetrics NONE = new TransportMetrics(new CompositeMeterRegistry(), "none");
+
+    private final Timer decode;
+    private final Timer apply;
+    private final Timer broadcast;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final DistributionSummary recipients;
+    private final Counter droppedPresence;
+    private final Counter droppedSuperseded;
+    private final Counter slowDisconnects;
+
+    public TransportMetrics(MeterRegistry registry, String transport) {
+        this.decode = stage(registry, transport, "decode");
+        this.apply = stage(registry, transport, "apply");
+        this.broadcast = stage(registry, transport, "broadcast");
+        this.bytesIn = Counter.builder("editor.transport.bytes.in")
+                .description("Message bytes received")
+                .baseUnit("bytes")
+                .tag("transport", transport)
+                .register(registry);
+        this.bytesOut = Counter.builder("editor.transport.bytes.out")
+                .description("Message bytes sent")
+                .baseUnit("bytes")
+                .tag("transport", transport)
+                .register(registry);
+        this.recipients = DistributionSummary.builder("editor.broadcast.recipients")
+                .description("Clients of this transport a broadcast frame was queued for")
+                .tag("transport", transport)
+                .register(registry);
+        this.droppedPresence = dropped(registry, transport, "presence");
+        this.droppedSuperseded = dropped(registry, transport, "superseded");
+        this.slowDisconnects = Counter.builder("editor.transport.disconnects")
+                .description("Clients disconnected because they did not keep up with their outbound frames")
+                .tag("transport", transport)
+                .tag("reason", "slow")
+                .register(registry);
+    }
+
+    private static Timer stage(MeterRegistry registry, String transport, String stage) {
+        return Timer.builder("editor.message.stage")
+                .description("Time spent in one stage of handling an incoming message")
+                .tag("transport", transport)
+                .tag("stage", stage)
+                .register(registry);
+    }
+
+    private static Counter dropped(MeterRegistry registry, String transport, String reason) {
+        return Counter.builder("editor.transport.outbound.dropped")
+                .description("Queued outbound messages dropped to make room for a newer one")
+                .tag("transport", transport)
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    public void decoded(long startNanos) {
+        decode.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void applied(long startNanos) {
+        apply.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void broadcast(long startNanos) {
+        broadcast.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void received(long bytes) {
+        bytesIn.increment(bytes);
+    }
+
+    public void sent(long bytes) {
+        bytesOut.increment(bytes);
+    }
+
+    /**
+     * Records how many clients of this transport a broadcast frame was queued for
+     */
+    public void fannedOut(int count) {
+        recipients.record(count);
+    }
+
+    /**
+     * Records a queued message dropped for a newer one
+     *
+     * @param superseded true if the newer message replaces it, e.g. an edit of the same document;
+     *                   false if it was an older user list dropped to make room
+     */
+    public void dropped(boolean superseded) {
+        (superseded ? droppedSuperseded : droppedPresence).increment();
+    }
+
+    public void disconnectedSlowClient() {
+        slowDisconnects.increment();
+    }
+}
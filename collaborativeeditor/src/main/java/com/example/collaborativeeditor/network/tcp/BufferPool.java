@@ -0,0 +1,118 @@
+package com.example.collaborativeeditor.network.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in power-of-two size classes, for frames that
+ * arrive over several reads. A request is served from the smallest class
+ * that fits it; released buffers are kept up to a fixed number of bytes per
+ * class, so the memory the pool retains is bounded however many connections
+ * come and go.
+ */
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 12; // 4 KiB
+    // Bytes kept per size class; the largest classes keep a single buffer
+    private static final int RETAINED_BYTES_PER_CLASS = 1024 * 1024;
+
+    private final int maxBufferSize;
+    // Free buffers of each size class
+    private final List<Queue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCounts;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    /**
+     * @param maxBufferSize largest buffer that may be requested; rounded up to a power of two
+     */
+    public BufferPool(int maxBufferSize) {
+        int classes = classIndex(Math.max(1, maxBufferSize)) + 1;
+        this.maxBufferSize = classSize(classes - 1);
+        this.free = new ArrayList<>(classes);
+        this.freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity
+     *
+     * @throws IllegalArgumentException if the capacity exceeds the pool's largest class
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > maxBufferSize) {
+            throw new IllegalArgumentException("Buffer of " + minCapacity + " bytes exceeds pool limit " + maxBufferSize);
+        }
+        int index = classIndex(minCapacity);
+        ByteBuffer buffer = free.get(index).poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(classSize(index));
+        }
+        freeCounts[index].decrementAndGet();
+        retainedBytes.addAndGet(-buffer.capacity());
+        hits.incrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Hands a buffer back; it must not be used by the caller afterwards.
+     * Buffers the pool did not create, or that would exceed the per-class
+     * budget, are left to the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() > maxBufferSize) {
+            return;
+        }
+        int index = classIndex(buffer.capacity());
+        if (classSize(index) != buffer.capacity()) {
+            return;
+        }
+        int budget = Math.max(1, RETAINED_BYTES_PER_CLASS / buffer.capacity());
+        if (freeCounts[index].incrementAndGet() > budget) {
+            freeCounts[index].decrementAndGet();
+            return;
+        }
+        retainedBytes.addAndGet(buffer.capacity());
+        free.get(index).offer(buffer.clear());
+    }
+
+    /**
+     * Largest capacity {@link #acquire} can serve
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Bytes held by free buffers waiting for reuse
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    private static int classIndex(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(0, shift - MIN_CLASS_SHIFT);
+    }
+
+    private static int classSize(int index) {
+        return 1 << (index + MIN_CLASS_SHIFT);
+    }
+}
@@ -1,6 +1,12 @@
 package com.example.collaborativeeditor.network.tcp;
 
+import com.example.collaborativeeditor.cluster.ClusterRouter;
 import com.example.collaborativeeditor.model.DocumentEdit;
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTrace;
+import com.example.collaborativeeditor.pipeline.EditTracer;
 import com.example.collaborativeeditor.service.DocumentService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
@@ -23,20 +29,37 @@ public class ClientHandler implements Runnable {
     private final Socket clientSocket;
     // Service for managing document operations
     private final DocumentService documentService;
+    // Per-document mailboxes the edits are applied in
+    private final DocumentMailboxes mailboxes;
     // JSON mapper for serialization/deserialization
     private final ObjectMapper objectMapper;
+    // Stage timings and bytes of the JSON transport
+    private final TransportMetrics metrics;
+    // Times each edit from receipt until it is applied; edits here are not broadcast
+    private final EditTracer tracer;
+    // Forwards edits to documents owned by another cluster node
+    private final ClusterRouter router;
 
     /**
      * Creates a new handler for a client connection
      * 
      * @param socket          The client's socket connection
      * @param documentService Service to handle document operations
+     * @param mailboxes       Per-document mailboxes for ordered edit application
      * @param objectMapper    JSON mapper for parsing messages
+     * @param metrics         Meters of the JSON transport
+     * @param tracer          Edit tracer
+     * @param router          Cluster router
      */
-    public ClientHandler(Socket socket, DocumentService documentService, ObjectMapper objectMapper) {
+    public ClientHandler(Socket socket, DocumentService documentService, DocumentMailboxes mailboxes,
+            ObjectMapper objectMapper, TransportMetrics metrics, EditTracer tracer, ClusterRouter router) {
         this.clientSocket = socket;
         this.documentService = documentService;
+        this.mailboxes = mailboxes;
         this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        this.router = router;
     }
 
     @Override
@@ -48,18 +71,37 @@ public class ClientHandler implements Runnable {
             String inputLine;
             // Continuously read messages from the client
             while ((inputLine = in.readLine()) != null) {
+                // Line plus its newline
+                metrics.received(MessageCodec.utf8Length(inputLine) + 1);
                 try {
                     // Parse the incoming JSON message into a DocumentEdit object
+                    long start = System.nanoTime();
                     DocumentEdit edit = objectMapper.readValue(inputLine, DocumentEdit.class);
-                    // Apply the edit to the document
-                    documentService.updateDocument(edit.getDocumentId(), edit.getContent(), edit.getEditor());
+                    metrics.decoded(start);
+                    // Owned by another node; it is confirmed once sent there, as this client gets no broadcasts
+                    if (router.forwardEdit(edit.getDocumentId(), edit.getContent(), edit.getEditor(),
+                            edit.getTimestamp(), null)) {
+                        reply(out, "Update successful");
+                        continue;
+                    }
+                    EditTrace trace = tracer.start("json", start, edit.getDocumentId(), edit.getEditor(),
+                            edit.getTimestamp());
+                    // Apply the edit in the document's mailbox and wait, so the reply follows the update
+                    mailboxes.submit(edit.getDocumentId(), () -> {
+                        trace.dequeued();
+                        long applyStart = System.nanoTime();
+                        documentService.updateDocument(edit.getDocumentId(), edit.getContent(), edit.getEditor());
+                        metrics.applied(applyStart);
+                        trace.applied();
+                        trace.fannedOut();
+                    }).join();
                     // Confirm successful update to the client
-                    out.println("Update successful");
+                    reply(out, "Update successful");
                 } catch (Exception e) {
                     // Log any errors during message processing
                     log.error("Error processing edit", e);
                     // Inform client of the error
-                    out.println("Error processing edit");
+                    reply(out, "Error processing edit");
                 }
             }
         } catch (IOException e) {
@@ -67,4 +109,9 @@ public class ClientHandler implements Runnable {
             log.error("Error handling client connection", e);
         }
     }
+
+    private void reply(PrintWriter out, String line) {
+        out.println(line);
+        metrics.sent(line.length() + 1);
+    }
 }
\ No newline at end of file
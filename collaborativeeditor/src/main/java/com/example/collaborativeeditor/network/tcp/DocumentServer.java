@@ -1,8 +1,16 @@
 package com.example.collaborativeeditor.network.tcp;
 
+import com.example.collaborativeeditor.cluster.ClusterRouter;
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.config.ExecutionConfig;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTracer;
 import com.example.collaborativeeditor.service.DocumentService;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -19,23 +27,44 @@ import java.util.concurrent.Executors;
 public class DocumentServer {
     // Service for managing document operations and state
     private final DocumentService documentService;
+    // Per-document mailboxes edits are applied in
+    private final DocumentMailboxes mailboxes;
     // Thread pool for handling multiple client connections concurrently
     private final ExecutorService executorService;
     // JSON mapper for serializing/deserializing messages
     private final ObjectMapper objectMapper;
     // Port number the server listens on
-    private static final int PORT = 8090;
+    private final int port;
+    // Stage timings and bytes of this transport
+    private final TransportMetrics metrics;
+    // Times each edit from receipt until it is applied
+    private final EditTracer tracer;
+    // Owner of each document in a cluster; edits to documents owned elsewhere are forwarded
+    private final ClusterRouter router;
 
     /**
      * Initializes the document server and starts listening for connections
      * 
      * @param documentService injected service for document operations
+     * @param mailboxes       injected per-document mailboxes
+     * @param properties      injected editor settings; supplies the port and execution mode
+     * @param editorExecutor  shared executor, runs connections in VIRTUAL execution mode
+     * @param meterRegistry   injected registry for the transport metrics
+     * @param tracer          injected edit tracer
+     * @param router          injected cluster router
      */
-    public DocumentServer(DocumentService documentService) {
+    public DocumentServer(DocumentService documentService, DocumentMailboxes mailboxes,
+            EditorProperties properties, @Qualifier(ExecutionConfig.EDITOR_EXECUTOR) ExecutorService editorExecutor,
+            MeterRegistry meterRegistry, EditTracer tracer, ClusterRouter router) {
         this.documentService = documentService;
-        // Creates a thread pool that creates new threads as needed
-        this.executorService = Executors.newCachedThreadPool();
+        this.mailboxes = mailboxes;
+        this.port = properties.getTcp().getJsonPort();
+        // One virtual thread per connection, or a pool that creates new threads as needed
+        this.executorService = ExecutionConfig.select(properties, editorExecutor, Executors::newCachedThreadPool);
         this.objectMapper = new ObjectMapper();
+        this.metrics = new TransportMetrics(meterRegistry, "json");
+        this.tracer = tracer;
+        this.router = router;
         startServer();
     }
 
@@ -46,14 +75,15 @@ public class DocumentServer {
      */
     private void startServer() {
         executorService.submit(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-                log.info("Document server started on port {}", PORT);
+            try (ServerSocket serverSocket = new ServerSocket(port)) {
+                log.info("Document server started on port {}", port);
                 // Keep accepting new connections until the thread is interrupted
                 while (!Thread.currentThread().isInterrupted()) {
                     // Wait for and accept a new client connection
                     Socket clientSocket = serverSocket.accept();
                     // Create and submit a new handler for this client
-                    executorService.submit(new ClientHandler(clientSocket, documentService, objectMapper));
+                    executorService.submit(new ClientHandler(clientSocket, documentService, mailboxes, objectMapper,
+                            metrics, tracer, router));
                 }
             } catch (IOException e) {
                 log.error("Error in document server", e);
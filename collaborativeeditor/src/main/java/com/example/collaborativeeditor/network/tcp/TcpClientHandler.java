@@ -1,125 +1,700 @@
 package com.example.collaborativeeditor.network.tcp;
 
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.network.ContentChunks;
+import com.example.collaborativeeditor.network.EncodedFrame;
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.MessageView;
 import com.example.collaborativeeditor.network.NetworkMessage;
+import com.example.collaborativeeditor.network.OperationContent;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.ot.AppliedOperation;
+import com.example.collaborativeeditor.ot.CatchUp;
+import com.example.collaborativeeditor.ot.StaleRevisionException;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.example.collaborativeeditor.pipeline.EditTrace;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+/**
+ * One non-blocking binary TCP connection, driven by the {@link TcpReactor}
+ * it is registered with. Frames are {@code [type(1)][length(4)][payload]}
+ * (see {@link MessageCodec}); complete frames are decoded in place from the
+ * reactor's direct buffer and only an incomplete trailing frame is copied
+ * into a buffer borrowed from the server's {@link BufferPool}. Frames larger
+ * than the configured maximum close the connection before anything is
+ * allocated for them. Compressed frames are inflated into a buffer of their
+ * own, up to a separate inflated-size limit. Replies use the payload version
+ * the client sent last, so legacy clients keep working, and are compressed
+ * once the client flags that it reads compressed frames.
+ * <p>
+ * Another cluster node may open a connection as a peer. A peer follows any
+ * number of documents at once, always receives the whole body on join, and
+ * its edits are applied here rather than forwarded, since it sent them to
+ * this node as their owner. Those that arrive once the document has moved
+ * elsewhere are dropped, since the peer sends them to the new owner. Only a
+ * peer sends and receives versioned operations, which its WebSocket clients
+ * made.
+ */
 @Slf4j
-public class TcpClientHandler implements Runnable {
-    private final Socket clientSocket;
+public class TcpClientHandler {
+    private static final int HEADER_LENGTH = MessageCodec.HEADER_LENGTH;
+    // Shared by all connections; ObjectMapper is thread-safe
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final SocketChannel channel;
     private final TcpServer server;
-    private final InputStream in;
-    private final OutputStream out;
-    private final ObjectMapper objectMapper;
+    private final TcpReactor reactor;
+    private SelectionKey key;
+    // Bytes of a frame that has not fully arrived yet, borrowed from the pool; null when there are none
+    private ByteBuffer partial;
+    // Frames waiting to be written, filled by any thread and drained by the reactor
+    private final Queue<Outgoing> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingWriteBytes = new AtomicLong();
+    // True while a flush is queued on the reactor or OP_WRITE is armed
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
     private volatile boolean running;
-    private String currentDocumentId;
+    // Document joined last; written by the reactor thread, read on cleanup
+    private volatile String currentDocumentId;
+    // Reused for every incoming frame; reactor thread only
+    private final MessageView view = new MessageView();
+    // Payload version used for frames sent to this client
+    private volatile byte codecVersion = MessageCodec.VERSION_2;
+    // Set once the client flags that it reads compressed frames
+    private volatile boolean acceptsCompressed;
+    // Bodies being streamed to this client, oldest first; the reactor queues
+    // their chunks one at a time, whenever the write queue has drained
+    private final Queue<PendingLoad> loads = new ConcurrentLinkedQueue<>();
+    // Node id of the cluster node at the other end; null for ordinary clients
+    private volatile String peerNodeId;
+    // Documents a peer follows; written by the reactor thread, read on cleanup
+    private final Set<String> peerDocuments = ConcurrentHashMap.newKeySet();
 
-    public TcpClientHandler(Socket socket, TcpServer server) throws IOException {
-        this.clientSocket = socket;
+    public TcpClientHandler(SocketChannel channel, TcpServer server, TcpReactor reactor) {
+        this.channel = channel;
         this.server = server;
-        this.in = socket.getInputStream();
-        this.out = socket.getOutputStream();
-        this.objectMapper = new ObjectMapper();
+        this.reactor = reactor;
         this.running = true;
     }
 
-    @Override
-    public void run() {
-        try {
-            while (running) {
-                // Read message header
-                byte[] header = new byte[5];
-                if (readFully(header) < 5) break;
-
-                byte type = header[0];
-                int length = ByteBuffer.wrap(header, 1, 4).getInt();
+    /**
+     * Registers the channel for reads; must run on the reactor thread
+     */
+    void register() throws IOException {
+        key = channel.register(reactor.selector(), SelectionKey.OP_READ, this);
+    }
 
-                // Read payload
-                byte[] payload = new byte[length];
-                if (readFully(payload) < length) break;
+    /**
+     * Reads what the socket has and processes every complete frame
+     *
+     * @param readBuffer the reactor's shared direct buffer
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            server.getMetrics().received(read);
+            readBuffer.flip();
+            if (partial == null) {
+                processFrames(readBuffer);
+                if (!running) {
+                    return; // Closed by a frame
+                }
+                if (readBuffer.hasRemaining()) {
+                    partial = server.getBufferPool().acquire(
+                            Math.max(readBuffer.remaining(), frameLength(readBuffer)));
+                    partial.put(readBuffer);
+                }
+            } else {
+                partial = ensureCapacity(partial, readBuffer.remaining());
+                partial.put(readBuffer);
+                partial.flip();
+                processFrames(partial);
+                if (!running) {
+                    return; // Closed by a frame, which released the partial buffer
+                }
+                if (partial.hasRemaining()) {
+                    int needed = frameLength(partial);
+                    partial.compact();
+                    partial = ensureCapacity(partial, needed - partial.position());
+                } else {
+                    server.getBufferPool().release(partial);
+                    partial = null;
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Closing TCP connection: {}", e.getMessage());
+            close();
+        }
+    }
 
-                processMessage(type, payload);
+    private void processFrames(ByteBuffer buffer) {
+        while (running && buffer.remaining() >= HEADER_LENGTH) {
+            int length = buffer.getInt(buffer.position() + 1);
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative frame length " + length);
+            }
+            if (length > server.getMaxFrameBytes()) {
+                throw new IllegalArgumentException("Frame of " + length + " bytes exceeds limit of "
+                        + server.getMaxFrameBytes());
+            }
+            if (buffer.remaining() < HEADER_LENGTH + length) {
+                return;
+            }
+            int payloadStart = buffer.position() + HEADER_LENGTH;
+            byte header = buffer.get(buffer.position());
+            byte type = (byte) (header & MessageCodec.TYPE_MASK);
+            buffer.position(payloadStart + length);
+            if ((header & MessageCodec.FLAG_ACCEPTS_COMPRESSED) != 0) {
+                acceptsCompressed = true;
+            }
+            long start = System.nanoTime();
+            try {
+                if ((header & MessageCodec.FLAG_COMPRESSED) != 0) {
+                    // Inflated into a fresh buffer, which the view may keep pointing at
+                    ByteBuffer inflated = MessageCodec.inflate(
+                            buffer.duplicate().position(payloadStart).limit(payloadStart + length),
+                            server.getMaxInflatedBytes());
+                    view.wrap(type, inflated, 0, inflated.remaining());
+                } else {
+                    view.wrap(type, buffer, payloadStart, length);
+                }
+            } catch (IllegalArgumentException e) {
+                // The frame boundary is intact, so only this frame is lost
+                log.error("Invalid message format: {}", e.getMessage());
+                continue;
+            }
+            try {
+                processMessage(view, start);
+            } catch (RuntimeException e) {
+                // Only this connection is lost; the reactor thread goes on serving the others
+                log.error("Closing TCP connection after an error handling its frame", e);
+                close();
+                return;
             }
-        } catch (IOException e) {
-            log.error("Error handling client connection", e);
-        } finally {
-            cleanup();
         }
     }
 
-    private void processMessage(byte type, byte[] payload) throws IOException {
-        String payloadStr = new String(payload);
-        String[] parts = payloadStr.split("\\|");
+    /**
+     * Size of the frame starting at the buffer's position, or the header size if unknown yet
+     */
+    private static int frameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return HEADER_LENGTH;
+        }
+        return HEADER_LENGTH + buffer.getInt(buffer.position() + 1);
+    }
 
-        if (parts.length < 3) {
-            log.error("Invalid message format");
-            return;
+    /**
+     * Returns a buffer in write mode with room for at least the given number
+     * of further bytes, moving the contents to a larger pooled buffer if needed
+     */
+    private ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
         }
+        BufferPool pool = server.getBufferPool();
+        int capacity = Math.min(pool.getMaxBufferSize(), Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        ByteBuffer larger = pool.acquire(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        return larger;
+    }
 
-        String documentId = parts[0];
-        String content = parts[1];
-        String userId = parts[2];
+    /**
+     * Parses a frame on the reactor thread and hands it to the mailbox of
+     * its document, so frames from one connection keep their order and
+     * frames for one document are applied one at a time. Nothing that may
+     * block, such as waiting for the edit log, runs on the reactor thread.
+     * Fields are copied out of the view here because the buffer behind it is
+     * reused once this returns.
+     *
+     * @param decodeStart when decoding the frame began, inflating included
+     */
+    private void processMessage(MessageView message, long decodeStart) {
+        codecVersion = message.version();
+        byte type = message.type();
+        if (type == NetworkMessage.MESSAGE_TYPE_PEER) {
+            String node = message.userId();
+            if (!server.getRouter().isMember(node)) {
+                log.warn("Closing link from {}, which is not a configured cluster node", node);
+                close();
+                return;
+            }
+            if (peerNodeId != null) {
+                return; // Counted once per link
+            }
+            peerNodeId = node;
+            server.getRouter().peerConnected(node);
+            log.info("Cluster node {} connected", node);
+            return;
+        }
+        if (type == NetworkMessage.MESSAGE_TYPE_LEAVE) {
+            // A peer names the document, a client leaves the one it joined
+            String leftDocumentId = isPeer() ? message.documentId() : currentDocumentId;
+            if (leftDocumentId != null && (!isPeer() || peerDocuments.remove(leftDocumentId))) {
+                server.getMailboxes().execute(leftDocumentId, () -> server.removeClient(leftDocumentId, this));
+            }
+            return;
+        }
+        // Frames for the joined document reuse its id instead of decoding a new one
+        String documentId = message.documentId(currentDocumentId);
+        String content = message.content();
+        String userId = message.userId();
+        long revision = message.revision();
+        long timestamp = message.timestamp();
+        TransportMetrics metrics = server.getMetrics();
+        metrics.decoded(decodeStart);
 
         switch (type) {
             case NetworkMessage.MESSAGE_TYPE_JOIN:
+                if (isPeer()) {
+                    // The peer may have the document from a client there, before it was ever created here
+                    String documentType = content == null || content.isEmpty() ? null : content;
+                    peerDocuments.add(documentId);
+                    server.getMailboxes().execute(documentId, () -> {
+                        server.getDocumentService().openDocument(documentId, documentType);
+                        join(documentId, userId, revision);
+                    });
+                    break;
+                }
+                String previousDocumentId = currentDocumentId;
+                if (previousDocumentId != null && !previousDocumentId.equals(documentId)) {
+                    // A client is on one document at a time, so joining another leaves the last
+                    server.getMailboxes().execute(previousDocumentId,
+                            () -> server.removeClient(previousDocumentId, this));
+                }
                 currentDocumentId = documentId;
-                server.registerClient(documentId, this);
+                server.getMailboxes().execute(documentId, () -> join(documentId, userId, revision));
+                break;
+            case NetworkMessage.MESSAGE_TYPE_CRDT: {
+                if (!isPeer() && server.getRouter().forwardCrdt(documentId, content, userId, this)) {
+                    break; // Traced by the owner
+                }
+                // Operations commute, so they skip the mailbox; integrated off the reactor, since logging may block
+                EditTrace trace = server.getTracer().start("tcp", decodeStart, documentId, userId, timestamp);
+                server.getMessageProcessorPool().execute(() -> {
+                    trace.dequeued();
+                    if (forwardedTooLate(documentId, 0)) {
+                        return;
+                    }
+                    Map<?, ?> op;
+                    long start = System.nanoTime();
+                    try {
+                        op = objectMapper.readValue(content, Map.class);
+                        server.getDocumentService().applyCrdtOperation(documentId, CrdtOperation.fromJson(op),
+                                userId);
+                        metrics.applied(start);
+                        trace.applied();
+                    } catch (JsonProcessingException | IllegalArgumentException e) {
+                        log.warn("Rejected CRDT operation on document {}: {}", documentId, e.getMessage());
+                        return;
+                    }
+                    start = System.nanoTime();
+                    server.getBroadcaster().broadcast(
+                            EncodedFrame.crdt(documentId, op, content, userId, null).traced(trace), this);
+                    metrics.broadcast(start);
+                    trace.fannedOut();
+                });
+                break;
+            }
+            case NetworkMessage.MESSAGE_TYPE_EDIT: {
+                if (!isPeer() && server.getRouter().forwardEdit(documentId, content, userId, timestamp, this)) {
+                    break; // Traced by the owner
+                }
+                EditTrace trace = server.getTracer().start("tcp", decodeStart, documentId, userId, timestamp);
+                boolean peer = isPeer();
+                server.getMailboxes().execute(documentId, () -> {
+                    trace.dequeued();
+                    if (forwardedTooLate(documentId, revision)) {
+                        return;
+                    }
+                    if (peer) {
+                        // A node handing over a document this one has never seen
+                        server.getDocumentService().openDocument(documentId, null);
+                    }
+                    long applyStart = System.nanoTime();
+                    long edited;
+                    try {
+                        // A handover carries the old owner's revision; a forwarded edit carries none
+                        edited = peer && revision > 0
+                                ? server.getDocumentService().followDocument(documentId, content, userId, revision)
+                                : server.getDocumentService().updateDocument(documentId, content, userId);
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Rejected edit on document {}: {}", documentId, e.getMessage());
+                        return;
+                    }
+                    metrics.applied(applyStart);
+                    trace.applied();
+                    long broadcastStart = System.nanoTime();
+                    server.getBroadcaster().broadcast(EncodedFrame.edit(documentId, content, userId,
+                            System.currentTimeMillis(), edited).traced(trace), this);
+                    metrics.broadcast(broadcastStart);
+                    trace.fannedOut();
+                    if (peer && revision > 0) {
+                        server.getRouter().handedOver(documentId, peerNodeId);
+                    }
+                });
                 break;
-            case NetworkMessage.MESSAGE_TYPE_EDIT:
-                server.getDocumentService().updateDocument(documentId, content, userId);
-                NetworkMessage editMessage = new NetworkMessage();
-                editMessage.setType(type);
-                editMessage.setDocumentId(documentId);
-                editMessage.setContent(content);
-                editMessage.setUserId(userId);
-                server.broadcastToDocument(documentId, editMessage, this);
+            }
+            case NetworkMessage.MESSAGE_TYPE_OPERATION: {
+                if (!isPeer()) {
+                    break;
+                }
+                EditTrace trace = server.getTracer().start("tcp", decodeStart, documentId, userId, timestamp);
+                server.getMailboxes().execute(documentId, () -> {
+                    trace.dequeued();
+                    long applyStart = System.nanoTime();
+                    AppliedOperation applied = null;
+                    long number = 0;
+                    try {
+                        OperationContent forwarded = OperationContent.parse(content);
+                        number = forwarded.number();
+                        if (forwarded.ops() == null) {
+                            throw new IllegalArgumentException("Operation without ops");
+                        }
+                        if (!forwardedTooLate(documentId, 0)) {
+                            applied = server.getDocumentService().applyOperation(documentId, revision,
+                                    TextOperation.fromJson(forwarded.ops()), userId);
+                        }
+                    } catch (JsonProcessingException | StaleRevisionException | IllegalArgumentException e) {
+                        log.warn("Rejected operation on document {}: {}", documentId, e.getMessage());
+                    }
+                    if (applied == null) {
+                        // Only the node that forwarded it hears, and resyncs its client
+                        NetworkMessage rejected = new NetworkMessage();
+                        rejected.setType(NetworkMessage.MESSAGE_TYPE_OPERATION);
+                        rejected.setDocumentId(documentId);
+                        rejected.setUserId(userId);
+                        rejected.setContent(OperationContent.encode(number, null));
+                        rejected.setTimestamp(System.currentTimeMillis());
+                        sendMessage(rejected);
+                        return;
+                    }
+                    metrics.applied(applyStart);
+                    trace.applied();
+                    long broadcastStart = System.nanoTime();
+                    // Carries the forwarding node's number for the operation, so it knows its echo
+                    server.getBroadcaster().broadcast(EncodedFrame.operation(documentId, applied.operation().toJson(),
+                            null, userId, applied.revision(), number).traced(trace), this);
+                    metrics.broadcast(broadcastStart);
+                    trace.fannedOut();
+                });
                 break;
-            case NetworkMessage.MESSAGE_TYPE_LEAVE:
-                if (currentDocumentId != null) {
-                    server.removeClient(currentDocumentId, this);
+            }
+            case NetworkMessage.MESSAGE_TYPE_CRDT_STATE:
+                // Only sent by a node handing a CRDT document over to this one
+                if (isPeer()) {
+                    server.getMailboxes().execute(documentId, () -> takeOver(documentId, content, userId));
                 }
                 break;
         }
     }
 
-    private int readFully(byte[] buffer) throws IOException {
-        int totalRead = 0;
-        while (totalRead < buffer.length) {
-            int read = in.read(buffer, totalRead, buffer.length - totalRead);
-            if (read == -1) return totalRead;
-            totalRead += read;
+    /**
+     * Replaces the replica of a CRDT document with the state a peer handed
+     * over, and sends it to every client on the document; runs in the
+     * document's mailbox
+     */
+    private void takeOver(String documentId, String state, String userId) {
+        try {
+            List<?> items = objectMapper.readValue(state, List.class);
+            server.getDocumentService().openDocument(documentId, Document.TYPE_CRDT);
+            server.getDocumentService().resetCrdt(documentId, items);
+            server.getBroadcaster().broadcast(EncodedFrame.crdtState(documentId, items, state, userId), this);
+            server.getRouter().handedOver(documentId, peerNodeId);
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            log.warn("Rejected CRDT state of document {} from cluster node {}: {}", documentId, peerNodeId,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * True if a peer forwarded an edit here after the document moved to
+     * another node; the peer sends it to the new owner once it sees the move.
+     * Runs in the document's mailbox, where moves are applied.
+     *
+     * @param revision the frame's revision; a full-content edit with one is a handover, not a forward
+     */
+    private boolean forwardedTooLate(String documentId, long revision) {
+        if (!isPeer() || revision > 0 || server.getRouter().owns(documentId)) {
+            return false;
+        }
+        log.debug("Dropping edit to document {} from cluster node {}; the document has moved", documentId,
+                peerNodeId);
+        return true;
+    }
+
+    /**
+     * Registers this client with a document; runs in the document's mailbox.
+     * A client joining with a revision already holds the document at that
+     * revision and is sent only what it missed, as a catch-up frame or, if
+     * the operations are gone, a full-content edit frame. A peer always gets
+     * the whole body, and takes on its revision.
+     */
+    private void join(String documentId, String userId, long knownRevision) {
+        if (!running) {
+            return; // Disconnected before the join was processed
         }
-        return totalRead;
+        server.registerClient(documentId, this);
+        Document document = server.getDocumentService().getDocument(documentId);
+        if (document != null && !document.usesCrdt() && (knownRevision > 0 || isPeer())) {
+            CatchUp catchUp = server.getDocumentService().catchUp(documentId, isPeer() ? -1 : knownRevision);
+            if (catchUp != null) {
+                sendCatchUp(documentId, userId, catchUp);
+            }
+        } else if (document != null && document.usesCrdt()) {
+            try {
+                NetworkMessage stateMessage = new NetworkMessage();
+                stateMessage.setType(NetworkMessage.MESSAGE_TYPE_CRDT_STATE);
+                stateMessage.setDocumentId(documentId);
+                stateMessage.setContent(objectMapper.writeValueAsString(document.getCrdt().encodeState()));
+                stateMessage.setUserId(userId);
+                stateMessage.setTimestamp(System.currentTimeMillis());
+                sendMessage(stateMessage);
+            } catch (JsonProcessingException e) {
+                log.error("Error encoding CRDT state for document {}", documentId, e);
+            }
+        }
+    }
+
+    private void sendCatchUp(String documentId, String userId, CatchUp catchUp) {
+        NetworkMessage message = new NetworkMessage();
+        message.setDocumentId(documentId);
+        message.setUserId(userId);
+        message.setTimestamp(System.currentTimeMillis());
+        message.setRevision(catchUp.revision());
+        if (catchUp.isSnapshot() && catchUp.content().length() > server.getLoadChunkChars()) {
+            loads.add(new PendingLoad(documentId, userId, catchUp.revision(),
+                    new ContentChunks(catchUp.content(), server.getLoadChunkChars())));
+            flush();
+            return;
+        }
+        if (catchUp.isSnapshot()) {
+            message.setType(NetworkMessage.MESSAGE_TYPE_EDIT);
+            message.setContent(catchUp.content().toString());
+        } else {
+            try {
+                message.setType(NetworkMessage.MESSAGE_TYPE_CATCH_UP);
+                message.setContent(objectMapper.writeValueAsString(catchUp.operationsJson()));
+            } catch (JsonProcessingException e) {
+                log.error("Error encoding catch-up for document {}", documentId, e);
+                return;
+            }
+        }
+        sendMessage(message);
     }
 
+    /**
+     * Queues a frame for this client; may be called from any thread
+     */
     public void sendMessage(NetworkMessage message) {
+        send(ByteBuffer.wrap(MessageCodec.compress(message.serialize(codecVersion), getCompressionThreshold())));
+    }
+
+    /**
+     * Smallest payload sent compressed to this client; 0 if it gets none,
+     * because it never flagged that it reads them, speaks the legacy
+     * payload, or compression is off
+     */
+    int getCompressionThreshold() {
+        return acceptsCompressed && codecVersion == MessageCodec.VERSION_2 ? server.getCompressionThreshold() : 0;
+    }
+
+    /**
+     * True if the other end is a cluster node rather than a client
+     */
+    boolean isPeer() {
+        return peerNodeId != null;
+    }
+
+    /**
+     * Payload version this client spoke last: {@link MessageCodec#VERSION_2}
+     * or {@link MessageCodec#VERSION_LEGACY}
+     */
+    byte getCodecVersion() {
+        return codecVersion;
+    }
+
+    /**
+     * Queues an encoded frame; the buffer must not be shared with another
+     * connection's queue, but may share its bytes
+     */
+    void send(ByteBuffer frame) {
+        send(frame, EditTrace.NONE);
+    }
+
+    /**
+     * Queues an encoded frame carrying a traced edit, which is told when
+     * the frame has been written or will not be
+     */
+    void send(ByteBuffer frame, EditTrace trace) {
+        if (!running) {
+            return;
+        }
+        long pending = pendingWriteBytes.addAndGet(frame.remaining());
+        if (pending > server.getMaxPendingWriteBytes()) {
+            // Frames queued before close runs land here too; only the one that crossed the limit counts
+            if (pending - frame.remaining() <= server.getMaxPendingWriteBytes()) {
+                log.warn("Disconnecting TCP client that is not reading its frames");
+                server.getMetrics().disconnectedSlowClient();
+            }
+            reactor.execute(this::close);
+            return;
+        }
+        trace.queued();
+        writeQueue.add(new Outgoing(frame, trace));
+        flush();
+    }
+
+    /**
+     * Makes sure the reactor writes whatever is queued
+     */
+    private void flush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (reactor.inReactorThread()) {
+                onWritable();
+            } else {
+                reactor.execute(this::onWritable);
+            }
+        }
+    }
+
+    /**
+     * Writes queued frames until the socket buffer is full, then the chunks
+     * of streamed bodies, each only once everything before it is written;
+     * reactor thread only
+     */
+    void onWritable() {
         try {
-            byte[] data = message.serialize();
-            synchronized (out) {
-                out.write(data);
-                out.flush();
+            while (true) {
+                Outgoing head = writeQueue.peek();
+                if (head == null) {
+                    if (queueNextLoadChunk()) {
+                        continue;
+                    }
+                    break;
+                }
+                int written = channel.write(head.frame());
+                pendingWriteBytes.addAndGet(-written);
+                server.getMetrics().sent(written);
+                if (head.frame().hasRemaining()) {
+                    // Socket buffer is full; resume when the selector reports it writable
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                head.trace().sent();
             }
-        } catch (IOException e) {
-            log.error("Error sending message", e);
-            cleanup();
+            key.interestOps(SelectionKey.OP_READ);
+            flushScheduled.set(false);
+            if ((!writeQueue.isEmpty() || !loads.isEmpty()) && flushScheduled.compareAndSet(false, true)) {
+                onWritable(); // A frame was queued after the last peek
+            }
+        } catch (IOException | CancelledKeyException e) {
+            log.debug("Error writing to TCP client: {}", e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Queues the next chunk of the oldest streamed body; reactor thread only
+     *
+     * @return false if no body is being streamed
+     */
+    private boolean queueNextLoadChunk() {
+        PendingLoad load = loads.peek();
+        if (load == null) {
+            return false;
+        }
+        NetworkMessage message = new NetworkMessage();
+        message.setDocumentId(load.documentId());
+        message.setUserId(load.userId());
+        message.setTimestamp(System.currentTimeMillis());
+        message.setRevision(load.revision());
+        message.setContent(load.chunks().next());
+        if (load.chunks().hasNext()) {
+            message.setType(NetworkMessage.MESSAGE_TYPE_CONTENT_CHUNK);
+        } else {
+            message.setType(NetworkMessage.MESSAGE_TYPE_CONTENT_END);
+            loads.poll();
         }
+        ByteBuffer frame = ByteBuffer.wrap(
+                MessageCodec.compress(message.serialize(codecVersion), getCompressionThreshold()));
+        pendingWriteBytes.addAndGet(frame.remaining());
+        writeQueue.add(new Outgoing(frame, EditTrace.NONE));
+        return true;
     }
 
-    private void cleanup() {
+    /**
+     * Closes the connection and unregisters it from its document
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         running = false;
-        if (currentDocumentId != null) {
-            server.removeClient(currentDocumentId, this);
+        server.connectionClosed();
+        String documentId = currentDocumentId;
+        if (documentId != null) {
+            // Queued behind a pending join for the same document, so it always runs last
+            server.getMailboxes().execute(documentId, () -> server.removeClient(documentId, this));
+        }
+        for (String followed : peerDocuments) {
+            server.getMailboxes().execute(followed, () -> server.removeClient(followed, this));
+        }
+        if (isPeer()) {
+            server.getRouter().peerDisconnected(peerNodeId);
+        }
+        // A frame queued by a send racing with this stays unreported; its trace records no total
+        for (Outgoing outgoing; (outgoing = writeQueue.poll()) != null;) {
+            outgoing.trace().abandoned();
+        }
+        loads.clear();
+        // Only the reactor thread touches the partial buffer, and close runs there
+        server.getBufferPool().release(partial);
+        partial = null;
+        if (key != null) {
+            key.cancel();
         }
         try {
-            clientSocket.close();
+            channel.close();
         } catch (IOException e) {
-            log.error("Error closing client socket", e);
+            log.error("Error closing client channel", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A frame waiting to be written, with the edit it carries
+     */
+    private record Outgoing(ByteBuffer frame, EditTrace trace) {
+    }
+
+    /**
+     * A body being streamed to this client, at the given revision
+     */
+    private record PendingLoad(String documentId, String userId, long revision, ContentChunks chunks) {
+    }
+}
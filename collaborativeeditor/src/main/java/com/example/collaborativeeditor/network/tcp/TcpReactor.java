@@ -0,0 +1,119 @@
+package com.example.collaborativeeditor.network.tcp;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many binary TCP connections. All socket reads,
+ * writes and interest changes for its connections happen on this thread;
+ * other threads hand work over through {@link #execute(Runnable)}.
+ */
+@Slf4j
+class TcpReactor implements Runnable {
+    // Size of the direct buffer every read on this reactor lands in
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    // Tasks from other threads: new connections, flush requests, closes
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by all connections of this reactor; partial frames are copied out
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    TcpReactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the reactor thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    TcpClientHandler handler = (TcpClientHandler) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            handler.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.onWritable();
+                        }
+                    } catch (RuntimeException e) {
+                        // Only this connection is lost; the others on the reactor stay up
+                        log.error("Closing TCP connection after an unexpected error", e);
+                        handler.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                log.error("TCP reactor {} stopped", thread.getName(), e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("Error running TCP reactor task", e);
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+            for (SelectionKey key : selector.keys()) {
+                ((TcpClientHandler) key.attachment()).close();
+            }
+            selector.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Error closing TCP reactor", e);
+        }
+    }
+}
@@ -1,29 +1,73 @@
 package com.example.collaborativeeditor.network.tcp;
 
+import com.example.collaborativeeditor.cluster.ClusterRouter;
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.config.ExecutionConfig;
+import com.example.collaborativeeditor.network.EncodedFrame;
+import com.example.collaborativeeditor.network.FrameBroadcaster;
+import com.example.collaborativeeditor.network.FrameSink;
+import com.example.collaborativeeditor.network.MessageCodec;
 import com.example.collaborativeeditor.network.NetworkMessage;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTracer;
 import com.example.collaborativeeditor.service.DocumentService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Component;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TCP server that manages collaborative document editing sessions.
  * Handles multiple client connections and document broadcasting.
+ * Connections are non-blocking and multiplexed over a few selector threads,
+ * so the number of clients is not bounded by the number of threads.
  */
 @Slf4j
 @Component
-public class TcpServer {
-    // Single thread for accepting new client connections
+public class TcpServer implements SmartLifecycle, FrameSink {
+    // Runs the blocking accept loop
     private final ExecutorService acceptorThread;
-    // Thread pool for handling client communication
-    private final ExecutorService workerThreadPool;
+    // Applies and relays CRDT operations, which commute and need no mailbox
+    private final ExecutorService messageProcessorPool;
+    // Selector threads that connections are spread over; always platform threads,
+    // since they never block outside select()
+    private final List<TcpReactor> reactors;
     // Maps document IDs to sets of connected clients
     private final ConcurrentHashMap<String, Set<TcpClientHandler>> documentClients;
     // Service for document operations
     private final DocumentService documentService;
+    // Per-document mailboxes that edits and membership changes are applied in
+    private final DocumentMailboxes mailboxes;
+    private final EditorProperties.Tcp settings;
+    // Bodies longer than this are streamed to joining clients in chunks of this many chars
+    private final int loadChunkChars;
+    // Delivers frames to the clients of every transport
+    private final FrameBroadcaster broadcaster;
+    // Buffers for frames that arrive over several reads, shared by all connections
+    private final BufferPool bufferPool;
+    // Stage timings, bytes, fan-out and slow-client disconnects of this transport
+    private final TransportMetrics metrics;
+    // Connections accepted and not closed yet
+    private final AtomicInteger connections = new AtomicInteger();
+    // Times each edit from receipt to the recipients' sockets
+    private final EditTracer tracer;
+    // Owner of each document in a cluster; edits to documents owned elsewhere are forwarded
+    private final ClusterRouter router;
+    private ServerSocketChannel serverChannel;
     // Server running status flag
     private volatile boolean running;
 
@@ -31,29 +75,55 @@ public class TcpServer {
      * Initializes the TCP server with necessary components
      * 
      * @param documentService Service for handling document operations
+     * @param mailboxes       Per-document mailboxes for ordered edit application
+     * @param properties      Editor settings; supplies port, reactor count and execution mode
+     * @param editorExecutor  Shared executor, runs the accept loop and CRDT operations in VIRTUAL execution mode
+     * @param broadcaster     Fans edits out to the clients of every transport
+     * @param meterRegistry   Registry for the transport, connection and buffer pool metrics
+     * @param tracer          Times edits from receipt to the recipients' sockets
+     * @param router          Owner of each document; also accepts links from the other cluster nodes
      */
-    public TcpServer(DocumentService documentService) {
+    public TcpServer(DocumentService documentService, DocumentMailboxes mailboxes, EditorProperties properties,
+            @Qualifier(ExecutionConfig.EDITOR_EXECUTOR) ExecutorService editorExecutor,
+            FrameBroadcaster broadcaster, MeterRegistry meterRegistry, EditTracer tracer, ClusterRouter router) {
         this.documentService = documentService;
+        this.tracer = tracer;
+        this.router = router;
+        this.broadcaster = broadcaster;
+        this.mailboxes = mailboxes;
+        this.settings = properties.getTcp();
+        this.loadChunkChars = properties.getLoad().getChunkChars();
         // Create single thread executor for accepting connections
-        this.acceptorThread = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "tcp-acceptor");
-            t.setDaemon(true);
-            return t;
-        });
-        // Create thread pool for handling client communication
-        this.workerThreadPool = new ThreadPoolExecutor(
-                2, // Core pool size
-                10, // Maximum pool size
-                60L, // Thread keep-alive time
-                TimeUnit.SECONDS, // Time unit for keep-alive
-                new LinkedBlockingQueue<>(), // Work queue
-                r -> { // Thread factory
-                    Thread t = new Thread(r, "tcp-worker-" + r.hashCode());
+        this.acceptorThread = ExecutionConfig.select(properties, editorExecutor,
+                () -> Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "tcp-acceptor");
                     t.setDaemon(true);
                     return t;
-                });
+                }));
+        this.messageProcessorPool = ExecutionConfig.select(properties, editorExecutor,
+                () -> ExecutionConfig.monitor(
+                        Executors.newFixedThreadPool(8, ExecutionConfig.namedDaemonThreads("tcp-processor-")),
+                        "tcp-processor", meterRegistry));
+        this.metrics = new TransportMetrics(meterRegistry, "tcp");
+        Gauge.builder("editor.tcp.connections", connections, AtomicInteger::get)
+                .description("Open TCP connections")
+                .register(meterRegistry);
+        this.reactors = new ArrayList<>();
         // Initialize concurrent map for tracking clients per document
         this.documentClients = new ConcurrentHashMap<>();
+        // A partial frame plus one more read must fit the largest pooled buffer
+        this.bufferPool = new BufferPool(
+                settings.getMaxFrameBytes() + MessageCodec.HEADER_LENGTH + TcpReactor.READ_BUFFER_SIZE);
+        FunctionCounter.builder("editor.tcp.buffer.pool.hits", bufferPool, BufferPool::getHits)
+                .description("Partial-frame buffers served from the pool")
+                .register(meterRegistry);
+        FunctionCounter.builder("editor.tcp.buffer.pool.misses", bufferPool, BufferPool::getMisses)
+                .description("Partial-frame buffers that had to be allocated")
+                .register(meterRegistry);
+        Gauge.builder("editor.tcp.buffer.pool.retained", bufferPool, BufferPool::getRetainedBytes)
+                .description("Bytes held by free pooled buffers")
+                .baseUnit("bytes")
+                .register(meterRegistry);
     }
 
     /**
@@ -63,7 +133,14 @@ public class TcpServer {
      * @param handler    The client's handler
      */
     public void registerClient(String documentId, TcpClientHandler handler) {
-        documentClients.computeIfAbsent(documentId, k -> ConcurrentHashMap.newKeySet()).add(handler);
+        documentClients.compute(documentId, (id, clients) -> {
+            Set<TcpClientHandler> joined = clients != null ? clients : ConcurrentHashMap.newKeySet();
+            if (joined.add(handler)) {
+                documentService.pin(documentId);
+                router.opened(documentId);
+            }
+            return joined;
+        });
     }
 
     /**
@@ -73,38 +150,147 @@ public class TcpServer {
      * @param handler    The client's handler to remove
      */
     public void removeClient(String documentId, TcpClientHandler handler) {
-        Set<TcpClientHandler> clients = documentClients.get(documentId);
-        if (clients != null) {
-            clients.remove(handler);
-            // Remove document entry if no clients remain
-            if (clients.isEmpty()) {
-                documentClients.remove(documentId);
+        // Atomic with registerClient, so a set being joined is never dropped
+        documentClients.computeIfPresent(documentId, (id, clients) -> {
+            if (clients.remove(handler)) {
+                documentService.unpin(documentId);
+                router.closed(documentId);
             }
-        }
+            // Remove document entry if no clients remain
+            return clients.isEmpty() ? null : clients;
+        });
     }
 
     /**
-     * Starts the TCP server and begins accepting client connections
+     * Starts the reactors and begins accepting client connections
      */
-    public void start() {
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(settings.getPort()), 1024);
+            for (int i = 0; i < Math.max(1, settings.getReactorThreads()); i++) {
+                TcpReactor reactor = new TcpReactor("tcp-reactor-" + i);
+                reactor.start();
+                reactors.add(reactor);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start TCP server on port " + settings.getPort(), e);
+        }
         running = true;
+        log.info("TCP Server started on port {} with {} reactor threads", getPort(), reactors.size());
         acceptorThread.submit(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(8090)) {
-                log.info("TCP Server started on port 8090");
-                while (running) {
+            int next = 0;
+            while (running) {
+                try {
                     // Accept new client connection
-                    Socket clientSocket = serverSocket.accept();
-                    log.info("New client connected from: {}", clientSocket.getInetAddress());
-                    // Create and submit new client handler
-                    TcpClientHandler clientHandler = new TcpClientHandler(clientSocket, this);
-                    workerThreadPool.submit(clientHandler);
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    log.debug("New client connected from: {}", channel.getRemoteAddress());
+                    // Hand the connection to the next reactor, round robin
+                    TcpReactor reactor = reactors.get(next++ % reactors.size());
+                    TcpClientHandler clientHandler = new TcpClientHandler(channel, this, reactor);
+                    connections.incrementAndGet();
+                    reactor.execute(() -> {
+                        try {
+                            clientHandler.register();
+                        } catch (IOException e) {
+                            log.error("Error registering client connection", e);
+                            clientHandler.close();
+                        }
+                    });
+                } catch (AsynchronousCloseException e) {
+                    break; // Server channel closed by stop()
+                } catch (IOException e) {
+                    log.error("Error in TCP server", e);
                 }
-            } catch (Exception e) {
-                log.error("Error in TCP server", e);
             }
         });
     }
 
+    /**
+     * Stops accepting, closes every connection and stops the reactors
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.error("Error closing TCP server channel", e);
+        }
+        reactors.forEach(TcpReactor::stop);
+        reactors.clear();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the port the server listens on, useful when configured with port 0
+     * 
+     * @return bound port, or -1 when not started
+     */
+    public int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    int getMaxPendingWriteBytes() {
+        return settings.getMaxPendingWriteBytes();
+    }
+
+    int getMaxFrameBytes() {
+        return settings.getMaxFrameBytes();
+    }
+
+    /**
+     * Smallest payload compressed for clients that accept compressed frames; 0 if compression is off
+     */
+    int getCompressionThreshold() {
+        EditorProperties.Tcp.Compression compression = settings.getCompression();
+        return compression.isEnabled() ? Math.max(1, compression.getThreshold()) : 0;
+    }
+
+    int getLoadChunkChars() {
+        return loadChunkChars;
+    }
+
+    int getMaxInflatedBytes() {
+        return settings.getCompression().getMaxInflatedBytes();
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    EditTracer getTracer() {
+        return tracer;
+    }
+
+    ClusterRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Called once by each connection as it closes
+     */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
     /**
      * Broadcasts a message to all clients editing a specific document
      * 
@@ -113,13 +299,39 @@ public class TcpServer {
      * @param sender     The client that sent the message (excluded from broadcast)
      */
     public void broadcastToDocument(String documentId, NetworkMessage message, TcpClientHandler sender) {
-        Set<TcpClientHandler> clients = documentClients.get(documentId);
+        deliver(EncodedFrame.of(message), sender);
+    }
+
+    /**
+     * Queues a frame for every client on its document except the sender.
+     * The frame is serialized at most once per payload version, and
+     * compressed at most once; each client gets a read-only view of the
+     * bytes in the version it speaks, compressed if it accepts that.
+     * Cluster nodes following the document get it even if they sent it,
+     * since their copies and clients change only with what comes back.
+     * Frames only cluster nodes understand skip the other clients.
+     * 
+     * @param frame  The frame to deliver
+     * @param sender The connection that caused the broadcast, or null
+     */
+    @Override
+    public void deliver(EncodedFrame frame, Object sender) {
+        if (!frame.hasTcpForm()) {
+            return;
+        }
+        Set<TcpClientHandler> clients = documentClients.get(frame.getDocumentId());
         if (clients != null) {
-            clients.forEach(client -> {
-                if (client != sender) {
-                    client.sendMessage(message);
+            int recipients = 0;
+            for (TcpClientHandler client : clients) {
+                if (client.isPeer() || client != sender && !frame.isForPeersOnly()) {
+                    client.send(frame.tcpBuffer(client.getCodecVersion(), client.getCompressionThreshold()),
+                            frame.getTrace());
+                    recipients++;
                 }
-            });
+            }
+            if (recipients > 0) {
+                metrics.fannedOut(recipients);
+            }
         }
     }
 
@@ -131,4 +343,29 @@ public class TcpServer {
     public DocumentService getDocumentService() {
         return documentService;
     }
+
+    /**
+     * Returns the per-document mailboxes
+     * 
+     * @return DocumentMailboxes instance
+     */
+    public DocumentMailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * Executor CRDT operations are applied and relayed on, outside any mailbox
+     */
+    ExecutorService getMessageProcessorPool() {
+        return messageProcessorPool;
+    }
+
+    /**
+     * Returns the broadcaster that reaches the clients of every transport
+     * 
+     * @return FrameBroadcaster instance
+     */
+    public FrameBroadcaster getBroadcaster() {
+        return broadcaster;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+import java.util.List;
+
+/**
+ * Handshake handler that decides whether permessage-deflate is negotiated.
+ * The servlet container implements the extension; when compression is on,
+ * a client that offers it gets it, and when off it is dropped from the
+ * handshake so every message travels uncompressed.
+ */
+class CompressionHandshakeHandler extends DefaultHandshakeHandler {
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    private final boolean compression;
+
+    CompressionHandshakeHandler(boolean compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request,
+            List<WebSocketExtension> requestedExtensions, List<WebSocketExtension> supportedExtensions) {
+        List<WebSocketExtension> accepted = super.filterRequestedExtensions(request, requestedExtensions,
+                supportedExtensions);
+        if (compression) {
+            return accepted;
+        }
+        return accepted.stream()
+                .filter(extension -> !PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName()))
+                .toList();
+    }
+}
@@ -1,173 +1,548 @@
 package com.example.collaborativeeditor.network.websocket;
 
+import com.example.collaborativeeditor.cluster.ClusterRouter;
+import com.example.collaborativeeditor.cluster.ForwardListener;
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.config.ExecutionConfig;
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.model.Document;
 import com.example.collaborativeeditor.model.DocumentEdit;
+import com.example.collaborativeeditor.network.ContentChunks;
+import com.example.collaborativeeditor.network.EncodedFrame;
+import com.example.collaborativeeditor.network.FrameBroadcaster;
+import com.example.collaborativeeditor.network.FrameSink;
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.ot.AppliedOperation;
+import com.example.collaborativeeditor.ot.CatchUp;
+import com.example.collaborativeeditor.ot.StaleRevisionException;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTrace;
+import com.example.collaborativeeditor.pipeline.EditTracer;
+import com.example.collaborativeeditor.pipeline.EditCoalescer;
 import com.example.collaborativeeditor.service.DocumentService;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.*;
 
 @Slf4j
 @Component
-public class DocumentWebSocketHandler extends TextWebSocketHandler {
+public class DocumentWebSocketHandler extends TextWebSocketHandler implements FrameSink {
     private final ExecutorService messageProcessorPool;
-    private final ConcurrentHashMap<String, Set<WebSocketSession>> documentSessions;
-    private final ConcurrentHashMap<String, String> sessionUsernames; // Maps session IDs to usernames
-    private final ConcurrentHashMap<String, Set<String>> documentUsers; // Maps document IDs to active usernames
+    // Sessions and usernames of every open document, and documents of every session
+    private final PresenceIndex presence;
     private final DocumentService documentService;
     private final ObjectMapper objectMapper;
-    private final ConcurrentHashMap<String, Long> lastUpdateTimes;
+    // Typed streaming decoder for incoming messages
+    private final InboundMessageDecoder decoder;
+    // Outbound queue of every open session, keyed by session id
+    private final ConcurrentHashMap<String, SessionOutbox> outboxes;
+    // Runs the outbox writers
+    private final ExecutorService outboundWriters;
+    private final EditorProperties.Websocket.Outbound outboundSettings;
+    // Largest incoming text message, after permessage-deflate has been undone
+    private final int maxTextMessageBytes;
+    // Bodies longer than this are streamed to joining clients in chunks of this many chars
+    private final int loadChunkChars;
+    // Delivers frames to the clients of every transport
+    private final FrameBroadcaster broadcaster;
+    // Applies each document's messages one at a time, in arrival order
+    private final DocumentMailboxes mailboxes;
+    // Merges full-content edits that arrive within one window into a single update
+    private final EditCoalescer<PendingEdit> editCoalescer;
+    // Stage timings, bytes, fan-out and outbound drops of this transport
+    private final TransportMetrics metrics;
+    // Times each edit from receipt to the recipients' sockets
+    private final EditTracer tracer;
+    // Owner of each document in a cluster; edits to documents owned elsewhere are forwarded
+    private final ClusterRouter router;
 
-    public DocumentWebSocketHandler(DocumentService documentService) {
+    public DocumentWebSocketHandler(DocumentService documentService, DocumentMailboxes mailboxes,
+            EditorProperties properties, MeterRegistry meterRegistry,
+            @Qualifier(ExecutionConfig.EDITOR_EXECUTOR) ExecutorService editorExecutor,
+            FrameBroadcaster broadcaster, EditTracer tracer, ClusterRouter router) {
         this.documentService = documentService;
+        this.tracer = tracer;
+        this.router = router;
+        this.broadcaster = broadcaster;
+        this.mailboxes = mailboxes;
         this.objectMapper = new ObjectMapper();
-        this.messageProcessorPool = Executors.newFixedThreadPool(8);
-        this.documentSessions = new ConcurrentHashMap<>();
-        this.sessionUsernames = new ConcurrentHashMap<>();
-        this.documentUsers = new ConcurrentHashMap<>();
-        this.lastUpdateTimes = new ConcurrentHashMap<>();
+        this.decoder = new InboundMessageDecoder(objectMapper);
+        this.metrics = new TransportMetrics(meterRegistry, "websocket");
+        this.messageProcessorPool = ExecutionConfig.select(properties, editorExecutor,
+                () -> ExecutionConfig.monitor(Executors.newFixedThreadPool(8), "websocket-processor", meterRegistry));
+        this.presence = new PresenceIndex();
+        this.outboxes = new ConcurrentHashMap<>();
+        this.outboundWriters = ExecutionConfig.select(properties, editorExecutor,
+                () -> ExecutionConfig.monitor(
+                        Executors.newCachedThreadPool(ExecutionConfig.namedDaemonThreads("ws-writer-")),
+                        "websocket-writer", meterRegistry));
+        this.outboundSettings = properties.getWebsocket().getOutbound();
+        this.maxTextMessageBytes = properties.getWebsocket().getMaxTextMessageBytes();
+        this.loadChunkChars = properties.getLoad().getChunkChars();
+        ScheduledExecutorService coalescingTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "edit-coalescer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.editCoalescer = new EditCoalescer<>(
+                properties.getCoalescing().getWindow(),
+                properties.getCoalescing().getMaxBatchSize(),
+                coalescingTimer,
+                Runnable::run,
+                (documentId, batch) -> mailboxes.execute(documentId, () -> applyEditBatch(documentId, batch)));
+
+        Gauge.builder("editor.coalescing.ratio", editCoalescer, EditCoalescer::getCoalescingRatio)
+                .description("Average number of full-content edits merged into one update")
+                .register(meterRegistry);
+        FunctionCounter.builder("editor.coalescing.edits", editCoalescer, EditCoalescer::getSubmittedCount)
+                .description("Full-content edits received")
+                .register(meterRegistry);
+        FunctionCounter.builder("editor.coalescing.batches", editCoalescer, EditCoalescer::getBatchCount)
+                .description("Updates applied after coalescing")
+                .register(meterRegistry);
+        Gauge.builder("editor.presence.documents", presence, PresenceIndex::documentCount)
+                .description("Documents with at least one open WebSocket session")
+                .register(meterRegistry);
+        Gauge.builder("editor.websocket.sessions", outboxes, Map::size)
+                .description("Open WebSocket sessions")
+                .register(meterRegistry);
+        // Registered on the outbox map rather than on this, which is not fully constructed yet
+        Gauge.builder("editor.websocket.outbound.queued", outboxes, DocumentWebSocketHandler::queuedMessages)
+                .description("Messages waiting in the outboxes of all sessions")
+                .register(meterRegistry);
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
         log.info("WebSocket connection established: {}", session.getId());
-        session.setTextMessageSizeLimit(65536);
+        session.setTextMessageSizeLimit(maxTextMessageBytes);
+        outboxes.put(session.getId(), new SessionOutbox(session, outboundWriters,
+                outboundSettings.getCapacity(), outboundSettings.getOverflowPolicy(), metrics));
+        presence.open(session);
     }
 
+    /**
+     * Decodes the message on the session's transport thread, which keeps each
+     * session's messages in the order they arrived, and hands it to the
+     * mailbox of its document so edits, presence changes and broadcasts for
+     * one document happen strictly in that order. CRDT operations commute
+     * and are relayed from the processor pool instead.
+     */
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) {
-        messageProcessorPool.submit(() -> {
-            try {
-                Map<String, Object> messageData = objectMapper.readValue(message.getPayload(), Map.class);
-                String type = (String) messageData.get("type");
-                String documentId = (String) messageData.get("documentId");
-                String username = (String) messageData.get("username");
-
-                if ("user_update".equals(type)) {
-                    handleUserUpdate(session, documentId, username, (String) messageData.get("action"));
-                } else {
-                    handleDocumentEdit(session, messageData);
+        try {
+            long start = System.nanoTime();
+            InboundMessage inbound = decoder.decode(message.getPayload());
+            metrics.decoded(start);
+            metrics.received(MessageCodec.utf8Length(message.getPayload()));
+            String documentId = inbound.documentId();
+
+            if (documentId == null) {
+                log.warn("Ignoring WebSocket message without documentId from session {}", session.getId());
+                return;
+            }
+            switch (inbound) {
+                case InboundMessage.Crdt crdt -> {
+                    // Only a forwarded operation needs its JSON text; a relay here reuses the frame
+                    if (!router.owns(documentId) && router.forwardCrdt(documentId,
+                            objectMapper.writeValueAsString(crdt.op()), crdt.editor(), session)) {
+                        return; // Traced by the owner
+                    }
+                    EditTrace trace = tracer.start("websocket", start, documentId, crdt.editor(), 0);
+                    messageProcessorPool.submit(() ->
+                            handleSafely(() -> handleCrdtOperation(session, message, crdt, trace)));
                 }
-            } catch (Exception e) {
-                log.error("Error processing WebSocket message", e);
+                case InboundMessage.UserUpdate update -> mailboxes.execute(documentId, () -> handleSafely(() ->
+                        handleUserUpdate(session, documentId, update)));
+                case InboundMessage.Operation operation -> {
+                    EditTrace trace = tracer.start("websocket", start, documentId, operation.editor(), 0);
+                    mailboxes.execute(documentId,
+                            () -> handleSafely(() -> handleOperation(session, operation, trace)));
+                }
+                case InboundMessage.Edit edit -> editCoalescer.submit(documentId, new PendingEdit(session, edit,
+                        tracer.start("websocket", start, documentId, edit.editor(), edit.timestamp())));
             }
-        });
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected WebSocket message from session {}: {}", session.getId(), e.getMessage());
+        } catch (Exception e) {
+            log.error("Error processing WebSocket message", e);
+        }
+    }
+
+    private void handleSafely(MessageTask task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("Error processing WebSocket message", e);
+        }
     }
 
-    private void handleUserUpdate(WebSocketSession session, String documentId, String username, String action)
+    /**
+     * Handles a join or leave. A joining client is brought up to date: CRDT
+     * clients get the replica state, other clients get a "catch_up" with the
+     * operations made since the revision they present, or a "snapshot" of
+     * the whole body when those are no longer retained or the client
+     * presents none. Long bodies are streamed as "snapshot_chunk" messages.
+     */
+    private void handleUserUpdate(WebSocketSession session, String documentId, InboundMessage.UserUpdate update)
             throws IOException {
+        String username = update.username();
+        String action = update.action();
         if ("join".equals(action)) {
-            // Store username for this session
-            sessionUsernames.put(session.getId(), username);
-
-            // Add session to document's session set
-            documentSessions.computeIfAbsent(documentId, k -> ConcurrentHashMap.newKeySet()).add(session);
+            if (username == null) {
+                log.warn("Ignoring join without username from session {}", session.getId());
+                return;
+            }
+            // An open session keeps the document in memory
+            if (presence.join(documentId, session, username)) {
+                documentService.pin(documentId);
+                router.opened(documentId);
+            }
 
-            // Add username to document's active users set
-            documentUsers.computeIfAbsent(documentId, k -> ConcurrentHashMap.newKeySet()).add(username);
+            // CRDT clients need the replica state, ids included, before exchanging operations
+            Document document = documentService.getDocument(documentId);
+            if (document != null && document.usesCrdt()) {
+                Map<String, Object> state = new LinkedHashMap<>();
+                state.put("type", "crdt_state");
+                state.put("documentId", documentId);
+                state.put("items", document.getCrdt().encodeState());
+                sendToSession(session, state);
+            } else if (document != null) {
+                sendCatchUp(session, documentId, update.revision());
+            }
 
             // Broadcast updated user list to all sessions for this document
             broadcastUserList(documentId);
         } else if ("leave".equals(action)) {
-            removeUserFromDocument(session, documentId);
+            if (presence.leave(documentId, session)) {
+                documentService.unpin(documentId);
+                router.closed(documentId);
+                broadcastUserList(documentId);
+            }
+        }
+    }
+
+    /**
+     * Applies a batch of full-content edits to one document; runs in the
+     * document's mailbox.
+     * Each edit carries the whole document, so applying them one after another
+     * leaves exactly the newest one in place; applying only that one gives the
+     * same result with one update and one broadcast frame. Everyone except the
+     * author of the newest edit receives it, including the authors of the
+     * superseded edits; that author gets an "ack" naming the edit by its
+     * timestamp, so it learns the revision its content is at. Only the
+     * newest edit is traced further; the superseded ones end here. In a
+     * cluster, an edit to a document owned elsewhere is forwarded to the
+     * owner instead, and the author gets its ack once the edit comes back.
+     */
+    private void applyEditBatch(String documentId, List<PendingEdit> batch) {
+        PendingEdit latest = batch.get(batch.size() - 1);
+        EditTrace trace = latest.trace();
+        trace.dequeued();
+        try {
+            String content = latest.edit().content();
+            String editor = latest.edit().editor();
+            long sent = latest.edit().timestamp();
+            if (router.forwardEdit(documentId, content, editor, sent, latest.session(),
+                    revision -> handleSafely(() -> sendEditAck(latest.session(), documentId, revision, sent)))) {
+                return;
+            }
+            long start = System.nanoTime();
+            long revision = documentService.updateDocument(documentId, content, editor);
+            metrics.applied(start);
+            trace.applied();
+            long timestamp = sent > 0 ? sent : System.currentTimeMillis();
+            start = System.nanoTime();
+            broadcaster.broadcast(EncodedFrame.edit(documentId, content, editor, timestamp, revision).traced(trace),
+                    latest.session());
+            metrics.broadcast(start);
+            trace.fannedOut();
+
+            if (revision >= 0) {
+                sendEditAck(latest.session(), documentId, revision, sent);
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected edits to document {}: {}", documentId, e.getMessage());
+        } catch (Exception e) {
+            log.error("Error applying edits to document {}", documentId, e);
         }
     }
 
-    private void handleDocumentEdit(WebSocketSession session, Map<String, Object> edit) throws IOException {
-        String documentId = (String) edit.get("documentId");
+    /**
+     * Applies a versioned operation: {"type":"operation","documentId","revision","ops","editor"}.
+     * The sender receives an "ack" with the new revision, every other session
+     * receives the transformed operation. A sender whose revision can no longer
+     * be transformed, or whose operation does not fit, receives a "resync".
+     * In a cluster, an operation on a document owned elsewhere is forwarded
+     * to the owner instead, and the sender gets its "ack" or "resync" once
+     * the owner has answered.
+     */
+    private void handleOperation(WebSocketSession session, InboundMessage.Operation message, EditTrace trace)
+            throws IOException {
+        trace.dequeued();
+        String documentId = message.documentId();
+        String editor = message.editor();
+        // Only a forwarded operation needs its JSON text
+        if (!router.owns(documentId) && router.forwardOperation(documentId, message.revision(),
+                objectMapper.writeValueAsString(message.operation().toJson()), editor, session,
+                operationListener(session, documentId))) {
+            return; // Traced by the owner
+        }
+        Document document = documentService.getDocument(documentId);
+        if (document == null) {
+            return;
+        }
 
-        // Rate limiting check
-        Long lastUpdate = lastUpdateTimes.get(documentId);
-        long now = System.currentTimeMillis();
-        if (lastUpdate != null && now - lastUpdate < 50) {
+        // Runs in the document's mailbox, so operations are applied and
+        // broadcast in revision order without holding a lock across the sends
+        AppliedOperation applied;
+        long start = System.nanoTime();
+        try {
+            applied = documentService.applyOperation(documentId, message.revision(), message.operation(), editor);
+            metrics.applied(start);
+            trace.applied();
+        } catch (StaleRevisionException | IllegalArgumentException e) {
+            log.warn("Rejected operation on document {}: {}", documentId, e.getMessage());
+            sendResync(session, document);
             return;
         }
-        lastUpdateTimes.put(documentId, now);
 
-        // Update document
-        documentService.updateDocument(documentId,
-                (String) edit.get("content"),
-                (String) edit.get("editor"));
+        sendToSession(session, ack(documentId, applied.revision()));
 
-        // Broadcast update to other users
-        broadcastUpdate(session, edit);
+        start = System.nanoTime();
+        // Cluster nodes following the document get it too, so their copies keep the same revisions
+        broadcaster.broadcast(EncodedFrame.operation(documentId, applied.operation().toJson(), null, editor,
+                applied.revision(), 0).traced(trace), session);
+        metrics.broadcast(start);
+        trace.fannedOut();
     }
 
-    @Override
-    public void afterConnectionClosed(WebSocketSession session, org.springframework.web.socket.CloseStatus status) {
-        String username = sessionUsernames.remove(session.getId());
-        documentSessions.forEach((documentId, sessions) -> {
-            if (sessions.remove(session)) {
-                Set<String> users = documentUsers.get(documentId);
-                if (users != null && username != null) {
-                    users.remove(username);
-                    try {
-                        broadcastUserList(documentId);
-                    } catch (IOException e) {
-                        log.error("Error broadcasting user list after connection closed", e);
-                    }
+    /**
+     * Answers the sender of an operation forwarded to the owner: with an
+     * "ack" if the owner applied it, with a "resync" if it did not
+     */
+    private ForwardListener operationListener(WebSocketSession session, String documentId) {
+        return new ForwardListener() {
+            @Override
+            public void applied(long revision) {
+                handleSafely(() -> sendToSession(session, ack(documentId, revision)));
+            }
+
+            @Override
+            public void rejected() {
+                Document document = documentService.getDocument(documentId);
+                if (document != null) {
+                    handleSafely(() -> sendResync(session, document));
                 }
             }
-        });
+        };
+    }
+
+    /**
+     * Tells the author of a full-content edit, named by its timestamp, the revision its content is at
+     */
+    private void sendEditAck(WebSocketSession session, String documentId, long revision, long timestamp)
+            throws IOException {
+        Map<String, Object> ack = ack(documentId, revision);
+        ack.put("timestamp", timestamp);
+        sendToSession(session, ack);
+    }
+
+    private static Map<String, Object> ack(String documentId, long revision) {
+        Map<String, Object> ack = new LinkedHashMap<>();
+        ack.put("type", "ack");
+        ack.put("documentId", documentId);
+        ack.put("revision", revision);
+        return ack;
+    }
+
+    /**
+     * Merges a CRDT operation: {"type":"crdt","documentId","op":{...},"editor"}.
+     * The operation is integrated and logged under the document's lock,
+     * and relayed verbatim once its log record is durable. Relays need no
+     * ordering because CRDT operations commute, so they run on the processing
+     * threads rather than in the document's mailbox.
+     */
+    private void handleCrdtOperation(WebSocketSession session, TextMessage raw, InboundMessage.Crdt message,
+            EditTrace trace) throws IOException {
+        trace.dequeued();
+        String documentId = message.documentId();
+        String editor = message.editor();
+        Map<?, ?> op = message.op();
+        long start = System.nanoTime();
+        try {
+            documentService.applyCrdtOperation(documentId, CrdtOperation.fromJson(op), editor);
+            metrics.applied(start);
+            trace.applied();
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected CRDT operation on document {}: {}", documentId, e.getMessage());
+            return;
+        }
+        start = System.nanoTime();
+        broadcaster.broadcast(EncodedFrame.crdt(documentId, op, null, editor, raw).traced(trace), session);
+        metrics.broadcast(start);
+        trace.fannedOut();
+    }
+
+    private void sendCatchUp(WebSocketSession session, String documentId, long knownRevision) throws IOException {
+        CatchUp catchUp = documentService.catchUp(documentId, knownRevision);
+        if (catchUp == null) {
+            return;
+        }
+        if (catchUp.isSnapshot() && catchUp.content().length() > loadChunkChars) {
+            streamSnapshot(session, documentId, catchUp.revision(),
+                    new ContentChunks(catchUp.content(), loadChunkChars));
+            return;
+        }
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("type", catchUp.isSnapshot() ? "snapshot" : "catch_up");
+        message.put("documentId", documentId);
+        message.put("revision", catchUp.revision());
+        if (catchUp.isSnapshot()) {
+            message.put("content", catchUp.content().toString());
+        } else {
+            message.put("operations", catchUp.operationsJson());
+        }
+        sendToSession(session, message);
+    }
+
+    /**
+     * Sends a body longer than one chunk as a sequence of
+     * {"type":"snapshot_chunk","documentId","revision","offset","length","content"}
+     * messages, where length is that of the whole body. Each chunk is queued
+     * only once the one before it has been written, so the session holds one
+     * chunk at a time however large the document is. Messages that arrive
+     * between chunks are about edits made after the snapshot's revision.
+     */
+    private void streamSnapshot(WebSocketSession session, String documentId, long revision, ContentChunks chunks) {
+        SessionOutbox outbox = outboxes.get(session.getId());
+        if (outbox == null) {
+            return;
+        }
+        Map<String, Object> chunk = new LinkedHashMap<>();
+        chunk.put("type", "snapshot_chunk");
+        chunk.put("documentId", documentId);
+        chunk.put("revision", revision);
+        chunk.put("offset", chunks.offset());
+        chunk.put("length", chunks.length());
+        chunk.put("content", chunks.next());
+        TextMessage message;
+        try {
+            message = new TextMessage(objectMapper.writeValueAsString(chunk));
+        } catch (IOException e) {
+            log.error("Error encoding snapshot chunk of document {}", documentId, e);
+            return;
+        }
+        outbox.offer(message, EncodedFrame.Kind.OTHER, documentId,
+                chunks.hasNext() ? () -> streamSnapshot(session, documentId, revision, chunks) : null);
+    }
+
+    private void sendResync(WebSocketSession session, Document document) throws IOException {
+        Map<String, Object> resync = new LinkedHashMap<>();
+        synchronized (document) {
+            resync.put("type", "resync");
+            resync.put("documentId", document.getId());
+            resync.put("revision", document.getRevision());
+            resync.put("content", document.getContent());
+        }
+        sendToSession(session, resync);
+    }
+
+    private void sendToSession(WebSocketSession session, Map<String, Object> message) throws IOException {
+        TextMessage textMessage = new TextMessage(objectMapper.writeValueAsString(message));
+        SessionOutbox outbox = outboxes.get(session.getId());
+        if (outbox != null) {
+            outbox.offer(textMessage, EncodedFrame.Kind.OTHER, (String) message.get("documentId"));
+        }
     }
 
-    private void removeUserFromDocument(WebSocketSession session, String documentId) throws IOException {
-        String username = sessionUsernames.get(session.getId());
-        if (username != null) {
-            Set<String> users = documentUsers.get(documentId);
-            if (users != null) {
-                users.remove(username);
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, org.springframework.web.socket.CloseStatus status) {
+        SessionOutbox outbox = outboxes.remove(session.getId());
+        if (outbox != null) {
+            outbox.close();
+        }
+        // Only the documents this session was on are visited; in their mailboxes, so
+        // the new user list is ordered with the joins and leaves handled there
+        for (String documentId : presence.close(session)) {
+            mailboxes.execute(documentId, () -> {
+                documentService.unpin(documentId);
+                router.closed(documentId);
                 broadcastUserList(documentId);
-            }
+            });
         }
     }
 
-    private void broadcastUserList(String documentId) throws IOException {
-        Set<WebSocketSession> sessions = documentSessions.get(documentId);
-        Set<String> users = documentUsers.get(documentId);
+    private void broadcastUserList(String documentId) {
+        List<String> users = presence.users(documentId);
 
-        if (sessions != null && users != null) {
+        if (!users.isEmpty()) {
             Map<String, Object> message = Map.of(
                     "type", "user_update",
                     "documentId", documentId,
                     "users", users);
 
-            String messageStr = objectMapper.writeValueAsString(message);
-            TextMessage textMessage = new TextMessage(messageStr);
+            deliver(EncodedFrame.webSocket(documentId, EncodedFrame.Kind.PRESENCE, message), null);
+        }
+    }
 
-            for (WebSocketSession session : sessions) {
-                if (session.isOpen()) {
-                    synchronized (session) {
-                        session.sendMessage(textMessage);
-                    }
+    /**
+     * Queues a frame for every session on its document except the sender.
+     * The text frame is encoded once, on the first recipient, and never
+     * blocks on a slow client.
+     */
+    @Override
+    public void deliver(EncodedFrame frame, Object sender) {
+        if (!frame.hasWebSocketForm()) {
+            return;
+        }
+        int recipients = 0;
+        for (WebSocketSession session : presence.sessions(frame.getDocumentId())) {
+            if (session != sender) {
+                SessionOutbox outbox = outboxes.get(session.getId());
+                if (outbox != null && outbox.offer(frame)) {
+                    recipients++;
                 }
             }
         }
+        if (recipients > 0) {
+            metrics.fannedOut(recipients);
+        }
     }
 
+    private static int queuedMessages(Map<String, SessionOutbox> outboxes) {
+        int queued = 0;
+        for (SessionOutbox outbox : outboxes.values()) {
+            queued += outbox.size();
+        }
+        return queued;
+    }
 
-    private void broadcastUpdate(WebSocketSession sender, Map<String, Object> edit) throws IOException {
-        String documentId = (String) edit.get("documentId");
-        Set<WebSocketSession> sessions = documentSessions.get(documentId);
-
-        if (sessions != null) {
-            String message = objectMapper.writeValueAsString(edit);
-            TextMessage textMessage = new TextMessage(message);
+    /**
+     * A full-content edit waiting in the coalescer, with the session that sent it
+     */
+    private record PendingEdit(WebSocketSession session, InboundMessage.Edit edit, EditTrace trace) {
+    }
 
-            for (WebSocketSession session : sessions) {
-                if (session.isOpen() && session != sender) {
-                    synchronized (session) {
-                        session.sendMessage(textMessage);
-                    }
-                }
-            }
-        }
+    /**
+     * Message handling step that may fail with an I/O error
+     */
+    @FunctionalInterface
+    private interface MessageTask {
+        void run() throws IOException;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import com.example.collaborativeeditor.ot.TextOperation;
+
+import java.util.Map;
+
+/**
+ * A decoded WebSocket message from an editor client
+ */
+public sealed interface InboundMessage {
+
+    /**
+     * Document the message is about; null if the client did not send one
+     */
+    String documentId();
+
+    /**
+     * {"type":"user_update","documentId","username","action":"join"|"leave","revision"}; the
+     * revision is the last one a rejoining client holds, -1 if it sent none
+     */
+    record UserUpdate(String documentId, String username, String action, long revision) implements InboundMessage {
+    }
+
+    /**
+     * {"type":"operation","documentId","revision","ops","editor"}
+     */
+    record Operation(String documentId, long revision, TextOperation operation, String editor)
+            implements InboundMessage {
+    }
+
+    /**
+     * {"type":"crdt","documentId","op":{...},"editor"}
+     */
+    record Crdt(String documentId, Map<?, ?> op, String editor) implements InboundMessage {
+    }
+
+    /**
+     * {"documentId","content","editor","timestamp"}: the whole document as the client sees it
+     */
+    record Edit(String documentId, String content, String editor, long timestamp) implements InboundMessage {
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Decodes editor messages with Jackson's streaming parser straight into
+ * {@link InboundMessage} records. Unlike binding to a Map this creates no
+ * intermediate map, no boxed numbers and no lists for operation components;
+ * only CRDT operations, whose shape varies, are bound as a tree.
+ *
+ * Thread-safe; one instance is shared by all sessions.
+ */
+public class InboundMessageDecoder {
+    private final ObjectMapper objectMapper;
+
+    public InboundMessageDecoder(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * @param payload the JSON text of one WebSocket message
+     * @return the typed message; messages without a known type are full-content edits
+     * @throws IOException              if the payload is not valid JSON
+     * @throws IllegalArgumentException if a typed message lacks required fields
+     */
+    public InboundMessage decode(String payload) throws IOException {
+        try (JsonParser parser = objectMapper.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            String type = null;
+            String documentId = null;
+            String username = null;
+            String action = null;
+            String content = null;
+            String editor = null;
+            long timestamp = 0;
+            long revision = -1;
+            TextOperation operation = null;
+            Map<?, ?> op = null;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "type" -> type = text(parser, value);
+                    case "documentId" -> documentId = text(parser, value);
+                    case "username" -> username = text(parser, value);
+                    case "action" -> action = text(parser, value);
+                    case "content" -> content = text(parser, value);
+                    case "editor" -> editor = text(parser, value);
+                    case "timestamp" -> timestamp = number(parser, value, 0);
+                    case "revision" -> revision = number(parser, value, -1);
+                    case "ops" -> operation = readOperation(parser, value);
+                    case "op" -> op = readObject(parser, value);
+                    default -> parser.skipChildren();
+                }
+            }
+
+            if (type == null) {
+                return new InboundMessage.Edit(documentId, content, editor, timestamp);
+            }
+            return switch (type) {
+                case "user_update" -> new InboundMessage.UserUpdate(documentId, username, action, revision);
+                case "operation" -> {
+                    if (revision < 0 || operation == null) {
+                        throw new IllegalArgumentException("Malformed operation for document " + documentId);
+                    }
+                    yield new InboundMessage.Operation(documentId, revision, operation, editor);
+                }
+                case "crdt" -> {
+                    if (op == null) {
+                        throw new IllegalArgumentException("Malformed CRDT operation for document " + documentId);
+                    }
+                    yield new InboundMessage.Crdt(documentId, op, editor);
+                }
+                default -> new InboundMessage.Edit(documentId, content, editor, timestamp);
+            };
+        }
+    }
+
+    /**
+     * Reads an ot.js component array: positive ints retain, negative ints delete, strings insert
+     */
+    private static TextOperation readOperation(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            return skip(parser, null);
+        }
+        TextOperation operation = new TextOperation();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.VALUE_STRING) {
+                operation.insert(parser.getText());
+            } else if (token == JsonToken.VALUE_NUMBER_INT) {
+                int count = parser.getIntValue();
+                if (count > 0) {
+                    operation.retain(count);
+                } else {
+                    operation.delete(-count);
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid operation component: " + parser.getText());
+            }
+        }
+        return operation;
+    }
+
+    private static Map<?, ?> readObject(JsonParser parser, JsonToken value) throws IOException {
+        return value == JsonToken.START_OBJECT ? parser.readValueAs(Map.class) : skip(parser, null);
+    }
+
+    private static String text(JsonParser parser, JsonToken value) throws IOException {
+        return value == JsonToken.VALUE_STRING ? parser.getText() : skip(parser, null);
+    }
+
+    private static long number(JsonParser parser, JsonToken value, long fallback) throws IOException {
+        return value.isNumeric() ? parser.getLongValue() : skip(parser, fallback);
+    }
+
+    /**
+     * Skips a value of an unexpected type and returns the fallback instead
+     */
+    private static <T> T skip(JsonParser parser, T fallback) throws IOException {
+        parser.skipChildren();
+        return fallback;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which sessions are on which documents, and under which usernames, kept in
+ * both directions so a join, leave or close touches only the documents of
+ * that session. A username is listed on a document while any of its
+ * sessions is there, so two tabs of one user each count once. A document's
+ * entry is dropped with its last session.
+ * <p>
+ * Each session's changes are made under its own lock, so a join that races
+ * the session's close cannot leave the session behind on a document.
+ */
+final class PresenceIndex {
+    // Sessions and listed users of every document that has at least one session
+    private final ConcurrentHashMap<String, DocumentPresence> documents = new ConcurrentHashMap<>();
+    // Documents of every open session, keyed by session id
+    private final ConcurrentHashMap<String, SessionPresence> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Starts tracking a session; it can join documents until it is closed
+     */
+    void open(WebSocketSession session) {
+        sessions.putIfAbsent(session.getId(), new SessionPresence());
+    }
+
+    /**
+     * Puts the session on the document under the given username. Joining
+     * again, e.g. after a change of username, only updates the username.
+     *
+     * @return true if the session was not on the document before; false also
+     * when the session is not open
+     */
+    boolean join(String documentId, WebSocketSession session, String username) {
+        Objects.requireNonNull(username, "username");
+        SessionPresence presence = sessions.get(session.getId());
+        if (presence == null) {
+            return false;
+        }
+        synchronized (presence) {
+            if (presence.closed) {
+                return false;
+            }
+            boolean[] joined = new boolean[1];
+            documents.compute(documentId, (id, document) -> {
+                DocumentPresence present = document != null ? document : new DocumentPresence();
+                String previous = present.sessions.put(session, username);
+                if (previous == null) {
+                    joined[0] = true;
+                    present.addUser(username);
+                } else if (!previous.equals(username)) {
+                    present.removeUser(previous);
+                    present.addUser(username);
+                }
+                return present;
+            });
+            presence.documents.add(documentId);
+            return joined[0];
+        }
+    }
+
+    /**
+     * Takes the session off the document
+     *
+     * @return true if it was on it
+     */
+    boolean leave(String documentId, WebSocketSession session) {
+        SessionPresence presence = sessions.get(session.getId());
+        if (presence == null) {
+            return false;
+        }
+        synchronized (presence) {
+            if (!presence.documents.remove(documentId)) {
+                return false;
+            }
+            remove(documentId, session);
+            return true;
+        }
+    }
+
+    /**
+     * Takes the session off every document it is on and stops tracking it
+     *
+     * @return the documents it was on
+     */
+    List<String> close(WebSocketSession session) {
+        SessionPresence presence = sessions.remove(session.getId());
+        if (presence == null) {
+            return List.of();
+        }
+        synchronized (presence) {
+            presence.closed = true;
+            List<String> left = new ArrayList<>(presence.documents);
+            presence.documents.clear();
+            for (String documentId : left) {
+                remove(documentId, session);
+            }
+            return left;
+        }
+    }
+
+    /**
+     * Sessions on the document, as a live view: joins and leaves made while
+     * it is iterated may or may not be seen
+     */
+    Collection<WebSocketSession> sessions(String documentId) {
+        DocumentPresence document = documents.get(documentId);
+        return document != null ? document.sessions.keySet() : List.of();
+    }
+
+    /**
+     * Usernames listed on the document, each once
+     */
+    List<String> users(String documentId) {
+        DocumentPresence document = documents.get(documentId);
+        return document != null ? List.copyOf(document.users.keySet()) : List.of();
+    }
+
+    /**
+     * Number of documents with at least one session
+     */
+    int documentCount() {
+        return documents.size();
+    }
+
+    private void remove(String documentId, WebSocketSession session) {
+        documents.computeIfPresent(documentId, (id, document) -> {
+            String username = document.sessions.remove(session);
+            if (username != null) {
+                document.removeUser(username);
+            }
+            return document.sessions.isEmpty() ? null : document;
+        });
+    }
+
+    /**
+     * Presence on one document; changed only inside {@code documents.compute},
+     * read concurrently by broadcasts
+     */
+    private static final class DocumentPresence {
+        // Username each session joined under
+        final ConcurrentHashMap<WebSocketSession, String> sessions = new ConcurrentHashMap<>();
+        // Number of sessions per listed username
+        final ConcurrentHashMap<String, Integer> users = new ConcurrentHashMap<>();
+
+        void addUser(String username) {
+            users.merge(username, 1, Integer::sum);
+        }
+
+        void removeUser(String username) {
+            users.computeIfPresent(username, (name, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Documents of one session; guarded by the object's own lock
+     */
+    private static final class SessionPresence {
+        final Set<String> documents = new HashSet<>();
+        boolean closed;
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import com.example.collaborativeeditor.network.EncodedFrame;
+import com.example.collaborativeeditor.network.EncodedFrame.Kind;
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.pipeline.EditTrace;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * Bounded queue of outgoing messages for one WebSocket session, drained by
+ * a single asynchronous writer. Broadcasting only enqueues, so a client on a
+ * slow link delays nobody but itself; once its queue is full the overflow
+ * policy decides what gives.
+ */
+@Slf4j
+public class SessionOutbox {
+
+    /**
+     * What to do when a message arrives and the queue is full
+     */
+    public enum OverflowPolicy {
+        // Drop the oldest queued user list; a newer one supersedes it anyway
+        DROP_OLDEST_PRESENCE,
+        // Replace a queued full-content edit or user list of the same document with the new one
+        COALESCE_EDITS,
+        // Close the session straight away
+        DISCONNECT
+    }
+
+    private final WebSocketSession session;
+    private final Executor writerExecutor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // Counts bytes written, dropped messages and overflow disconnects
+    private final TransportMetrics metrics;
+    // Guarded by this; never held while writing to the socket
+    private final Deque<Outbound> queue = new ArrayDeque<>();
+    // Guarded by this; true while a writer task is queued or running
+    private boolean writing;
+    private boolean closed;
+
+    /**
+     * @param session        the session to write to
+     * @param writerExecutor runs the writer task
+     * @param capacity       maximum number of queued messages
+     * @param policy         what to do when the queue is full
+     */
+    public SessionOutbox(WebSocketSession session, Executor writerExecutor, int capacity, OverflowPolicy policy) {
+        this(session, writerExecutor, capacity, policy, TransportMetrics.NONE);
+    }
+
+    /**
+     * @param metrics meters of the WebSocket transport
+     */
+    public SessionOutbox(WebSocketSession session, Executor writerExecutor, int capacity, OverflowPolicy policy,
+            TransportMetrics metrics) {
+        this.session = session;
+        this.writerExecutor = writerExecutor;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.metrics = metrics;
+    }
+
+    public WebSocketSession getSession() {
+        return session;
+    }
+
+    /**
+     * Queues the WebSocket form of a broadcast frame
+     *
+     * @return false if the frame was not queued
+     */
+    public boolean offer(EncodedFrame frame) {
+        return enqueue(frame.textMessage(), frame.getKind(), frame.getDocumentId(), null, frame.webSocketBytes(),
+                frame.getTrace());
+    }
+
+    /**
+     * Queues a message and makes sure a writer is on its way
+     *
+     * @param message    the frame to send
+     * @param kind       how the message may be treated under overflow
+     * @param documentId document the message belongs to, used for coalescing
+     * @return false if the message was not queued because the session is closed or was disconnected
+     */
+    public boolean offer(TextMessage message, Kind kind, String documentId) {
+        return offer(message, kind, documentId, null);
+    }
+
+    /**
+     * Queues a message whose writing should trigger more work, e.g. queueing
+     * the next chunk of a stream, so a producer never runs ahead of the socket
+     *
+     * @param onSent runs on the writer thread once the message has been
+     *               written; not run if the session closes first. May be null.
+     * @return false if the message was not queued because the session is closed or was disconnected
+     */
+    public boolean offer(TextMessage message, Kind kind, String documentId, Runnable onSent) {
+        return enqueue(message, kind, documentId, onSent, MessageCodec.utf8Length(message.getPayload()),
+                EditTrace.NONE);
+    }
+
+    private boolean enqueue(TextMessage message, Kind kind, String documentId, Runnable onSent, int bytes,
+            EditTrace trace) {
+        boolean startWriter;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= capacity && !makeRoom(kind, documentId)) {
+                closed = true;
+                abandonQueued();
+                metrics.disconnectedSlowClient();
+                writerExecutor.execute(this::disconnect);
+                return false;
+            }
+            trace.queued();
+            queue.add(new Outbound(message, kind, documentId, onSent, bytes, trace));
+            startWriter = !writing;
+            writing = true;
+        }
+        if (startWriter) {
+            writerExecutor.execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * Number of messages waiting to be written
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Drops everything still queued; called once the session has closed
+     */
+    public synchronized void close() {
+        closed = true;
+        abandonQueued();
+    }
+
+    private void abandonQueued() {
+        for (Outbound entry : queue) {
+            entry.trace().abandoned();
+        }
+        queue.clear();
+    }
+
+    /**
+     * Frees one slot according to the policy
+     *
+     * @return false if nothing could be dropped and the session must be disconnected
+     */
+    private boolean makeRoom(Kind kind, String documentId) {
+        switch (policy) {
+            case DROP_OLDEST_PRESENCE:
+                if (removeFirst(entry -> entry.kind() == Kind.PRESENCE)) {
+                    metrics.dropped(false);
+                    return true;
+                }
+                return false;
+            case COALESCE_EDITS:
+                // Only a message superseded by the incoming one may go
+                if (kind != Kind.OTHER && removeFirst(entry -> entry.kind() == kind
+                        && Objects.equals(entry.documentId(), documentId))) {
+                    metrics.dropped(true);
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private boolean removeFirst(Predicate<Outbound> match) {
+        for (Iterator<Outbound> it = queue.iterator(); it.hasNext();) {
+            Outbound entry = it.next();
+            if (match.test(entry)) {
+                it.remove();
+                entry.trace().abandoned();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (true) {
+            Outbound next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    writing = false;
+                    return;
+                }
+            }
+            try {
+                if (session.isOpen()) {
+                    session.sendMessage(next.message());
+                    metrics.sent(next.bytes());
+                    next.trace().sent();
+                    if (next.onSent() != null) {
+                        sent(next.onSent());
+                    }
+                } else {
+                    next.trace().abandoned();
+                }
+            } catch (IOException | IllegalStateException e) {
+                next.trace().abandoned();
+                log.warn("Error sending to WebSocket session {}: {}", session.getId(), e.getMessage());
+                close();
+                synchronized (this) {
+                    writing = false;
+                }
+                return;
+            }
+        }
+    }
+
+    private void sent(Runnable onSent) {
+        try {
+            onSent.run();
+        } catch (RuntimeException e) {
+            // Must not stop the writer, which still owns the queue
+            log.error("Error after sending to WebSocket session {}", session.getId(), e);
+        }
+    }
+
+    private void disconnect() {
+        log.warn("Disconnecting WebSocket session {}: outbound queue full ({} messages)", session.getId(), capacity);
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException e) {
+            log.error("Error closing WebSocket session {}", session.getId(), e);
+        }
+    }
+
+    private record Outbound(TextMessage message, Kind kind, String documentId, Runnable onSent, int bytes,
+            EditTrace trace) {
+    }
+}
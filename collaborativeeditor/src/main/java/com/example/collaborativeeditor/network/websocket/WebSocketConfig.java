@@ -1,5 +1,6 @@
 package com.example.collaborativeeditor.network.websocket;
 
+import com.example.collaborativeeditor.config.EditorProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.*;
 
@@ -7,14 +8,18 @@ import org.springframework.web.socket.config.annotation.*;
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
     private final DocumentWebSocketHandler documentHandler;
+    // Whether permessage-deflate is negotiated with clients that offer it
+    private final boolean compression;
 
-    public WebSocketConfig(DocumentWebSocketHandler documentHandler) {
+    public WebSocketConfig(DocumentWebSocketHandler documentHandler, EditorProperties properties) {
         this.documentHandler = documentHandler;
+        this.compression = properties.getWebsocket().isCompression();
     }
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         registry.addHandler(documentHandler, "/document-ws")
+                .setHandshakeHandler(new CompressionHandshakeHandler(compression))
                 .setAllowedOrigins("*");
     }
 }
@@ -0,0 +1,11 @@
+package com.example.collaborativeeditor.ot;
+
+/**
+ * Result of applying a client operation on the server
+ *
+ * @param operation the operation after transformation against concurrent edits,
+ *                  as it should be sent to the other clients
+ * @param revision  the document revision produced by this operation
+ */
+public record AppliedOperation(TextOperation operation, long revision) {
+}
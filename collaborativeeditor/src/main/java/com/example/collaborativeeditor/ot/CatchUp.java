@@ -0,0 +1,43 @@
+package com.example.collaborativeeditor.ot;
+
+import com.example.collaborativeeditor.text.TextBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a reconnecting client needs to reach the current revision: either
+ * the operations it missed, or the whole body when they are no longer
+ * retained or would cost more to send than the body itself
+ *
+ * @param revision   the revision the client is at once it has applied this
+ * @param operations operations after the client's revision, oldest first;
+ *                   null for a snapshot
+ * @param content    the whole body at that revision, which later edits leave
+ *                   untouched; null for a delta
+ */
+public record CatchUp(long revision, List<TextOperation> operations, TextBuffer content) {
+
+    public static CatchUp delta(long revision, List<TextOperation> operations) {
+        return new CatchUp(revision, operations, null);
+    }
+
+    public static CatchUp snapshot(long revision, TextBuffer content) {
+        return new CatchUp(revision, null, content);
+    }
+
+    public boolean isSnapshot() {
+        return operations == null;
+    }
+
+    /**
+     * The operations in their ot.js wire form, one component array each
+     */
+    public List<List<Object>> operationsJson() {
+        List<List<Object>> json = new ArrayList<>(operations.size());
+        for (TextOperation operation : operations) {
+            json.add(operation.toJson());
+        }
+        return json;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.collaborativeeditor.ot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Revision counter and bounded log of the most recent operations applied to a
+ * document. Operations older than the bounds are dropped; clients based on a
+ * revision that is no longer covered have to resynchronise from a snapshot.
+ * Not thread-safe; callers guard it with the owning document.
+ */
+public class OperationHistory {
+    // Default number of operations kept per document
+    public static final int DEFAULT_MAX_OPERATIONS = 1000;
+    // Default total weight (roughly characters) kept per document
+    public static final int DEFAULT_MAX_WEIGHT = 1 << 20;
+
+    private final ArrayDeque<TextOperation> operations = new ArrayDeque<>();
+    private final int maxOperations;
+    private final long maxWeight;
+    private long weight;
+    // Revision produced by the newest operation; read without the document lock
+    private volatile long revision;
+
+    public OperationHistory() {
+        this(DEFAULT_MAX_OPERATIONS, DEFAULT_MAX_WEIGHT);
+    }
+
+    public OperationHistory(int maxOperations, long maxWeight) {
+        this.maxOperations = maxOperations;
+        this.maxWeight = maxWeight;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Oldest revision that operations can still be transformed from
+     */
+    public long getOldestRevision() {
+        return revision - operations.size();
+    }
+
+    /**
+     * Forgets every operation and continues counting from the given revision,
+     * e.g. for a document loaded from a snapshot
+     */
+    public void reset(long revision) {
+        operations.clear();
+        weight = 0;
+        this.revision = revision;
+    }
+
+    /**
+     * Records an applied operation and advances the revision
+     *
+     * @return the new revision
+     */
+    public long append(TextOperation operation) {
+        operations.addLast(operation);
+        weight += operation.getWeight();
+        while (!operations.isEmpty() && (operations.size() > maxOperations || weight > maxWeight)) {
+            weight -= operations.removeFirst().getWeight();
+        }
+        return ++revision;
+    }
+
+    /**
+     * Returns the operations applied after the given revision, oldest first
+     *
+     * @param baseRevision revision the caller has already seen
+     * @return operations, or null if some of them are no longer retained
+     * @throws IllegalArgumentException if the revision is in the future
+     */
+    public List<TextOperation> since(long baseRevision) {
+        if (baseRevision > revision) {
+            throw new IllegalArgumentException("Unknown revision " + baseRevision + ", current is " + revision);
+        }
+        if (baseRevision < getOldestRevision()) {
+            return null;
+        }
+        int count = (int) (revision - baseRevision);
+        List<TextOperation> result = new ArrayList<>(count);
+        Iterator<TextOperation> newestFirst = operations.descendingIterator();
+        for (int i = 0; i < count; i++) {
+            result.add(newestFirst.next());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.collaborativeeditor.ot;
+
+/**
+ * Thrown when an operation is based on a revision that has already fallen out
+ * of the document's operation history, so it can no longer be transformed
+ */
+public class StaleRevisionException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    private final long currentRevision;
+
+    public StaleRevisionException(String documentId, long baseRevision, long currentRevision) {
+        super("Revision " + baseRevision + " of document " + documentId + " is no longer available");
+        this.currentRevision = currentRevision;
+    }
+
+    public long getCurrentRevision() {
+        return currentRevision;
+    }
+}
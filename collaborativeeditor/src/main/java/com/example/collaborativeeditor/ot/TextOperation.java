@@ -0,0 +1,309 @@
+package com.example.collaborativeeditor.ot;
+
+import com.example.collaborativeeditor.text.TextBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A versioned edit expressed as a sequence of retain / insert / delete
+ * components that walks the whole document from start to end.
+ * Components are kept in canonical form (adjacent components of the same kind
+ * are merged and inserts come before deletes) so that operations can be
+ * compared and transformed deterministically.
+ *
+ * The wire form matches the common ot.js encoding: a JSON array in which a
+ * positive number retains, a string inserts and a negative number deletes,
+ * e.g. {@code [5, "abc", -2, 10]}.
+ */
+public final class TextOperation {
+    private final List<Component> components = new ArrayList<>();
+    // Length of the document this operation applies to
+    private int baseLength;
+    // Length of the document after applying this operation
+    private int targetLength;
+
+    public sealed interface Component permits Retain, Insert, Delete {
+    }
+
+    public record Retain(int count) implements Component {
+    }
+
+    public record Insert(String text) implements Component {
+    }
+
+    public record Delete(int count) implements Component {
+    }
+
+    /**
+     * Skips over characters of the base document
+     */
+    public TextOperation retain(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("retain count must be positive");
+        }
+        if (count == 0) {
+            return this;
+        }
+        baseLength += count;
+        targetLength += count;
+        int last = components.size() - 1;
+        if (last >= 0 && components.get(last) instanceof Retain retain) {
+            components.set(last, new Retain(retain.count() + count));
+        } else {
+            components.add(new Retain(count));
+        }
+        return this;
+    }
+
+    /**
+     * Inserts text at the current position
+     */
+    public TextOperation insert(String text) {
+        if (text == null || text.isEmpty()) {
+            return this;
+        }
+        targetLength += text.length();
+        int last = components.size() - 1;
+        if (last >= 0 && components.get(last) instanceof Insert insert) {
+            components.set(last, new Insert(insert.text() + text));
+        } else if (last >= 0 && components.get(last) instanceof Delete) {
+            // Keep inserts ahead of deletes so equal edits have one representation
+            if (last >= 1 && components.get(last - 1) instanceof Insert insert) {
+                components.set(last - 1, new Insert(insert.text() + text));
+            } else {
+                components.add(last, new Insert(text));
+            }
+        } else {
+            components.add(new Insert(text));
+        }
+        return this;
+    }
+
+    /**
+     * Deletes characters of the base document at the current position
+     */
+    public TextOperation delete(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("delete count must be positive");
+        }
+        if (count == 0) {
+            return this;
+        }
+        baseLength += count;
+        int last = components.size() - 1;
+        if (last >= 0 && components.get(last) instanceof Delete delete) {
+            components.set(last, new Delete(delete.count() + count));
+        } else {
+            components.add(new Delete(count));
+        }
+        return this;
+    }
+
+    public List<Component> getComponents() {
+        return Collections.unmodifiableList(components);
+    }
+
+    public int getBaseLength() {
+        return baseLength;
+    }
+
+    public int getTargetLength() {
+        return targetLength;
+    }
+
+    /**
+     * Returns true if applying this operation leaves any document unchanged
+     */
+    public boolean isNoop() {
+        return components.isEmpty() || (components.size() == 1 && components.get(0) instanceof Retain);
+    }
+
+    /**
+     * Rough memory footprint: inserted characters plus one per component.
+     * Used to bound how much history is kept in memory.
+     */
+    public int getWeight() {
+        int weight = components.size();
+        for (Component component : components) {
+            if (component instanceof Insert insert) {
+                weight += insert.text().length();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Applies this operation to a buffer
+     *
+     * @param buffer document body; its length must equal the base length
+     * @return the edited buffer
+     * @throws IllegalArgumentException if the buffer length does not match
+     */
+    public TextBuffer apply(TextBuffer buffer) {
+        if (buffer.length() != baseLength) {
+            throw new IllegalArgumentException(
+                    "Operation base length " + baseLength + " does not match document length " + buffer.length());
+        }
+        int position = 0;
+        for (Component component : components) {
+            if (component instanceof Retain retain) {
+                position += retain.count();
+            } else if (component instanceof Insert insert) {
+                buffer = buffer.insert(position, insert.text());
+                position += insert.text().length();
+            } else {
+                buffer = buffer.delete(position, ((Delete) component).count());
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Transforms two operations made concurrently against the same document
+     * so that {@code apply(apply(doc, a), result[1]) == apply(apply(doc, b), result[0])}.
+     * When both insert at the same position, {@code a}'s text is placed first.
+     *
+     * @return {@code [a', b']}
+     * @throws IllegalArgumentException if the operations have different base lengths
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("Both operations must have the same base length");
+        }
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        Cursor left = new Cursor(a.components);
+        Cursor right = new Cursor(b.components);
+
+        while (left.current != null || right.current != null) {
+            if (left.current instanceof Insert insert) {
+                aPrime.insert(insert.text());
+                bPrime.retain(insert.text().length());
+                left.advance();
+                continue;
+            }
+            if (right.current instanceof Insert insert) {
+                aPrime.retain(insert.text().length());
+                bPrime.insert(insert.text());
+                right.advance();
+                continue;
+            }
+            if (left.current == null || right.current == null) {
+                throw new IllegalArgumentException("Operations do not cover the same document");
+            }
+
+            int count = Math.min(left.remaining(), right.remaining());
+            if (left.current instanceof Retain && right.current instanceof Retain) {
+                aPrime.retain(count);
+                bPrime.retain(count);
+            } else if (left.current instanceof Delete && right.current instanceof Retain) {
+                aPrime.delete(count);
+            } else if (left.current instanceof Retain && right.current instanceof Delete) {
+                bPrime.delete(count);
+            }
+            // Both deleting the same range: it is already gone on either side
+            left.consume(count);
+            right.consume(count);
+        }
+        return new TextOperation[] { aPrime, bPrime };
+    }
+
+    /**
+     * Creates an operation that replaces a whole document
+     */
+    public static TextOperation replaceAll(int currentLength, String content) {
+        return new TextOperation().delete(currentLength).insert(content);
+    }
+
+    /**
+     * Parses the ot.js wire form
+     *
+     * @param json list of numbers and strings as produced by Jackson
+     * @throws IllegalArgumentException on unknown elements
+     */
+    public static TextOperation fromJson(List<?> json) {
+        TextOperation operation = new TextOperation();
+        for (Object element : json) {
+            if (element instanceof String text) {
+                operation.insert(text);
+            } else if (element instanceof Number number) {
+                int count = number.intValue();
+                if (count > 0) {
+                    operation.retain(count);
+                } else {
+                    operation.delete(-count);
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid operation component: " + element);
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Returns the ot.js wire form of this operation
+     */
+    public List<Object> toJson() {
+        List<Object> json = new ArrayList<>(components.size());
+        for (Component component : components) {
+            if (component instanceof Retain retain) {
+                json.add(retain.count());
+            } else if (component instanceof Insert insert) {
+                json.add(insert.text());
+            } else {
+                json.add(-((Delete) component).count());
+            }
+        }
+        return json;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TextOperation other && components.equals(other.components);
+    }
+
+    @Override
+    public int hashCode() {
+        return components.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    /**
+     * Walks the components of an operation, allowing retains and deletes to
+     * be consumed partially
+     */
+    private static final class Cursor {
+        private final List<Component> components;
+        private int index;
+        private int offset;
+        private Component current;
+
+        Cursor(List<Component> components) {
+            this.components = components;
+            this.current = components.isEmpty() ? null : components.get(0);
+        }
+
+        int remaining() {
+            return (current instanceof Retain retain ? retain.count() : ((Delete) current).count()) - offset;
+        }
+
+        void consume(int count) {
+            offset += count;
+            if (remaining() == 0) {
+                advance();
+            }
+        }
+
+        void advance() {
+            index++;
+            offset = 0;
+            current = index < components.size() ? components.get(index) : null;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.collaborativeeditor.persistence;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persisted state of one document as of a log position. Every record for
+ * the document up to and including {@code lsn} is reflected in it.
+ *
+ * @param content   body of a plain document; null for a CRDT document
+ * @param crdtState replica state of a CRDT document; null for a plain document
+ */
+public record DocumentSnapshot(String documentId, String documentType, String lastEditor, long lastEditTime,
+        long revision, long lsn, CharSequence content, List<Map<String, Object>> crdtState) {
+}
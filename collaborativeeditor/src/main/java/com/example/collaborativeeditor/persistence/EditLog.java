@@ -0,0 +1,84 @@
+package com.example.collaborativeeditor.persistence;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Append-only log of the edits applied to documents. Appending only buffers
+ * the record and assigns it a log sequence number (LSN); durability is
+ * awaited separately, so callers can append while holding a document lock
+ * and wait after releasing it.
+ */
+public interface EditLog extends AutoCloseable {
+
+    /**
+     * A log that keeps nothing, for tests and for running without persistence
+     */
+    EditLog NONE = new EditLog() {
+        @Override
+        public long append(EditRecord record) {
+            return 0;
+        }
+
+        @Override
+        public void awaitDurable(long lsn) {
+        }
+
+        @Override
+        public long replay(ObjLongConsumer<EditRecord> handler) {
+            return 0;
+        }
+
+        @Override
+        public long nextLsn() {
+            return 0;
+        }
+
+        @Override
+        public int truncateBefore(long lsn) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Queues a record for writing
+     *
+     * @return the record's LSN; LSNs increase by one per record
+     */
+    long append(EditRecord record);
+
+    /**
+     * Blocks until the record with the given LSN is as durable as the log's
+     * fsync policy promises; returns at once for policies that do not wait
+     *
+     * @throws java.io.UncheckedIOException if the log could not be written
+     */
+    void awaitDurable(long lsn);
+
+    /**
+     * Passes every intact record to the handler in log order, with its LSN
+     *
+     * @return the LSN of the last record replayed, or 0 if the log is empty
+     */
+    long replay(ObjLongConsumer<EditRecord> handler);
+
+    /**
+     * LSN the next appended record will get
+     */
+    long nextLsn();
+
+    /**
+     * Drops records before the given LSN that are no longer needed, e.g.
+     * because snapshots cover them. Implementations may keep more than
+     * asked, such as the rest of a partly covered segment.
+     *
+     * @return number of segments deleted
+     */
+    int truncateBefore(long lsn);
+
+    @Override
+    void close();
+}
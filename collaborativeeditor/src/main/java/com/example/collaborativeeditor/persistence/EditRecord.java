@@ -0,0 +1,64 @@
+package com.example.collaborativeeditor.persistence;
+
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.ot.TextOperation;
+
+/**
+ * One change to the document set, as written to the {@link EditLog}.
+ * Records describe what was applied, after any transformation, so replaying
+ * them in log order rebuilds the same documents and revisions.
+ */
+public sealed interface EditRecord {
+
+    String documentId();
+
+    /**
+     * A new document
+     */
+    record Create(String documentId, String documentType, long time) implements EditRecord {
+    }
+
+    /**
+     * A change of document type, e.g. the switch of a document to a CRDT replica
+     */
+    record SetType(String documentId, String documentType) implements EditRecord {
+    }
+
+    /**
+     * The whole body replaced by a full-content edit
+     */
+    record Replace(String documentId, String content, String editor, long time) implements EditRecord {
+    }
+
+    /**
+     * The whole body replaced by that of another cluster node's copy, and
+     * the revision counter moved to that copy's revision
+     */
+    record Rebase(String documentId, String content, long revision, String editor, long time) implements EditRecord {
+    }
+
+    /**
+     * Text inserted at a position
+     */
+    record Insert(String documentId, int position, String text, String editor, long time) implements EditRecord {
+    }
+
+    /**
+     * A range of text removed
+     */
+    record Delete(String documentId, int position, int length, String editor, long time) implements EditRecord {
+    }
+
+    /**
+     * A client operation, already transformed to apply to the revision before it
+     */
+    record Operation(String documentId, TextOperation operation, String editor, long time) implements EditRecord {
+    }
+
+    /**
+     * An operation from a CRDT client, logged whether or not it changed the replica
+     * right away, since it may be waiting for a dependency
+     */
+    record Crdt(String documentId, CrdtOperation operation, String editor, long time) implements EditRecord {
+    }
+}
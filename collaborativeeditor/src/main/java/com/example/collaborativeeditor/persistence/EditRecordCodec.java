@@ -0,0 +1,169 @@
+package com.example.collaborativeeditor.persistence;
+
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary form of an {@link EditRecord}: a kind byte followed by its fields.
+ * Strings are an int byte length (-1 for null) and UTF-8 bytes; operations
+ * are stored in their JSON wire form.
+ */
+final class EditRecordCodec {
+    private static final byte CREATE = 1;
+    private static final byte SET_TYPE = 2;
+    private static final byte REPLACE = 3;
+    private static final byte INSERT = 4;
+    private static final byte DELETE = 5;
+    private static final byte OPERATION = 6;
+    private static final byte CRDT = 7;
+    private static final byte REBASE = 8;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private EditRecordCodec() {
+    }
+
+    static byte[] encode(EditRecord record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            switch (record) {
+                case EditRecord.Create create -> {
+                    out.writeByte(CREATE);
+                    writeString(out, create.documentId());
+                    writeString(out, create.documentType());
+                    out.writeLong(create.time());
+                }
+                case EditRecord.SetType setType -> {
+                    out.writeByte(SET_TYPE);
+                    writeString(out, setType.documentId());
+                    writeString(out, setType.documentType());
+                }
+                case EditRecord.Replace replace -> {
+                    out.writeByte(REPLACE);
+                    writeString(out, replace.documentId());
+                    writeString(out, replace.content());
+                    writeString(out, replace.editor());
+                    out.writeLong(replace.time());
+                }
+                case EditRecord.Rebase rebase -> {
+                    out.writeByte(REBASE);
+                    writeString(out, rebase.documentId());
+                    writeString(out, rebase.content());
+                    out.writeLong(rebase.revision());
+                    writeString(out, rebase.editor());
+                    out.writeLong(rebase.time());
+                }
+                case EditRecord.Insert insert -> {
+                    out.writeByte(INSERT);
+                    writeString(out, insert.documentId());
+                    out.writeInt(insert.position());
+                    writeString(out, insert.text());
+                    writeString(out, insert.editor());
+                    out.writeLong(insert.time());
+                }
+                case EditRecord.Delete delete -> {
+                    out.writeByte(DELETE);
+                    writeString(out, delete.documentId());
+                    out.writeInt(delete.position());
+                    out.writeInt(delete.length());
+                    writeString(out, delete.editor());
+                    out.writeLong(delete.time());
+                }
+                case EditRecord.Operation operation -> {
+                    out.writeByte(OPERATION);
+                    writeString(out, operation.documentId());
+                    writeString(out, objectMapper.writeValueAsString(operation.operation().toJson()));
+                    writeString(out, operation.editor());
+                    out.writeLong(operation.time());
+                }
+                case EditRecord.Crdt crdt -> {
+                    out.writeByte(CRDT);
+                    writeString(out, crdt.documentId());
+                    writeString(out, objectMapper.writeValueAsString(crdt.operation().toJson()));
+                    writeString(out, crdt.editor());
+                    out.writeLong(crdt.time());
+                }
+            }
+        } catch (IOException e) {
+            // Only the JSON encoding can fail; the byte array stream never does
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes one record from the buffer's remaining bytes
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid record
+     */
+    static EditRecord decode(ByteBuffer buffer) {
+        try {
+            byte kind = buffer.get();
+            String documentId = readString(buffer);
+            return switch (kind) {
+                case CREATE -> new EditRecord.Create(documentId, readString(buffer), buffer.getLong());
+                case SET_TYPE -> new EditRecord.SetType(documentId, readString(buffer));
+                case REPLACE -> new EditRecord.Replace(documentId, readString(buffer), readString(buffer),
+                        buffer.getLong());
+                case REBASE -> new EditRecord.Rebase(documentId, readString(buffer), buffer.getLong(),
+                        readString(buffer), buffer.getLong());
+                case INSERT -> new EditRecord.Insert(documentId, buffer.getInt(), readString(buffer),
+                        readString(buffer), buffer.getLong());
+                case DELETE -> new EditRecord.Delete(documentId, buffer.getInt(), buffer.getInt(), readString(buffer),
+                        buffer.getLong());
+                case OPERATION -> new EditRecord.Operation(documentId,
+                        TextOperation.fromJson(objectMapper.readValue(readString(buffer), List.class)),
+                        readString(buffer), buffer.getLong());
+                case CRDT -> new EditRecord.Crdt(documentId,
+                        CrdtOperation.fromJson(objectMapper.readValue(readString(buffer), Map.class)),
+                        readString(buffer), buffer.getLong());
+                default -> throw new IllegalArgumentException("Unknown record kind " + kind);
+            };
+        } catch (BufferUnderflowException | JsonProcessingException e) {
+            throw new IllegalArgumentException("Malformed edit record", e);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String of " + length + " bytes exceeds record");
+        }
+        if (!buffer.hasArray()) {
+            // Mapped snapshot segments are read in place
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
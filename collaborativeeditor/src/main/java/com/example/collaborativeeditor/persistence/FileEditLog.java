@@ -0,0 +1,443 @@
+package com.example.collaborativeeditor.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * {@link EditLog} in segment files under {@code <directory>}, named after
+ * the LSN of their first record. Each record is
+ * {@code [length(4)][crc32c(4)][lsn(8)][body]}, where the length counts the
+ * LSN and body and the checksum covers both.
+ *
+ * Appending threads only queue the encoded record; a single writer thread
+ * writes whatever has queued up with a single write and, depending on
+ * the {@link FsyncPolicy}, one fsync for the whole batch (group commit).
+ * A torn or corrupt tail left by a crash is cut off when the log is opened.
+ *
+ * Once the current segment reaches the configured size the writer starts a
+ * new one, and {@link #truncateBefore} deletes whole segments that snapshots
+ * have made redundant.
+ */
+@Slf4j
+public class FileEditLog implements EditLog {
+    private static final int HEADER_LENGTH = 8;
+    // Records larger than this are taken for corruption during recovery
+    private static final int MAX_RECORD_LENGTH = 256 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * When the writer forces appended records to disk
+     */
+    public enum FsyncPolicy {
+        // Fsync every batch; appenders wait for it, and for the group commit window
+        ALWAYS,
+        // Fsync at most once per window in the background; a crash loses up to one window
+        INTERVAL,
+        // Leave flushing to the operating system
+        NONE
+    }
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final long windowNanos;
+    private final long segmentBytes;
+    // Segment being appended to; replaced by the writer thread when it rolls
+    private FileChannel channel;
+    private final Thread writer;
+    // Guards the queue and closed flag; a lock rather than a monitor so waiting virtual threads do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    // Guards durableLsn. Separate from lock: a waiter woken by the writer must
+    // not queue behind appenders, which may hold their carrier pinned while
+    // they append from inside a document's monitor
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durable = durableLock.newCondition();
+    // Encoded records waiting for the writer, starting at pendingFirstLsn
+    private List<byte[]> pending = new ArrayList<>();
+    private long pendingFirstLsn;
+    private long nextLsn;
+    // Highest LSN written, and synced if the policy is ALWAYS
+    private long durableLsn;
+    private volatile IOException failure;
+    private boolean closed;
+
+    /**
+     * Opens the log, recovering from a torn tail, and starts its writer
+     *
+     * @param directory   directory holding the segment files; created if missing
+     * @param policy      when to fsync
+     * @param window      group commit window: how long an ALWAYS batch stays
+     *                    open for more records, or the INTERVAL between fsyncs
+     * @throws UncheckedIOException if the log cannot be opened
+     */
+    public FileEditLog(Path directory, FsyncPolicy policy, Duration window) {
+        this(directory, policy, window, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log, recovering from a torn tail, and starts its writer
+     *
+     * @param directory    directory holding the segment files; created if missing
+     * @param policy       when to fsync
+     * @param window       group commit window: how long an ALWAYS batch stays
+     *                     open for more records, or the INTERVAL between fsyncs
+     * @param segmentBytes size at which a new segment is started
+     * @throws UncheckedIOException if the log cannot be opened
+     */
+    public FileEditLog(Path directory, FsyncPolicy policy, Duration window, long segmentBytes) {
+        this.directory = directory;
+        this.policy = policy;
+        this.windowNanos = window.toNanos();
+        this.segmentBytes = segmentBytes;
+        try {
+            Files.createDirectories(directory);
+            List<Path> segments = segments();
+            Path segment = segments.isEmpty() ? segmentPath(1) : segments.get(segments.size() - 1);
+            this.channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long firstLsn = firstLsn(segment);
+            long lastLsn = recover(segment, firstLsn);
+            this.nextLsn = lastLsn + 1;
+            this.pendingFirstLsn = nextLsn;
+            this.durableLsn = lastLsn;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open edit log in " + directory, e);
+        }
+        this.writer = new Thread(this::writeLoop, "edit-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public long append(EditRecord record) {
+        byte[] body = EditRecordCodec.encode(record);
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("Edit log failed", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("Edit log is closed");
+            }
+            pending.add(body);
+            appended.signal();
+            return nextLsn++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void awaitDurable(long lsn) {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        durableLock.lock();
+        try {
+            while (durableLsn < lsn && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+            if (durableLsn < lsn) {
+                throw new UncheckedIOException("Edit log failed", failure);
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * Replays every record; call before the first append
+     */
+    @Override
+    public long replay(ObjLongConsumer<EditRecord> handler) {
+        long lastLsn = 0;
+        try {
+            for (Path segment : segments()) {
+                long lsn = firstLsn(segment);
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+                    ByteBuffer body;
+                    while ((body = readRecord(in, lsn)) != null) {
+                        handler.accept(EditRecordCodec.decode(body), lsn);
+                        lastLsn = lsn++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot replay edit log in " + directory, e);
+        }
+        return lastLsn;
+    }
+
+    @Override
+    public long nextLsn() {
+        lock.lock();
+        try {
+            return nextLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes every segment whose records all precede the given LSN. The
+     * segment being written is always kept.
+     */
+    @Override
+    public int truncateBefore(long lsn) {
+        int deleted = 0;
+        try {
+            List<Path> segments = segments();
+            for (int i = 0; i + 1 < segments.size() && firstLsn(segments.get(i + 1)) <= lsn; i++) {
+                Files.delete(segments.get(i));
+                deleted++;
+            }
+        } catch (IOException e) {
+            log.error("Error truncating edit log in {}", directory, e);
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes what is queued, syncs, and stops the writer
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Error closing edit log", e);
+        }
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    private void writeLoop() {
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+        while (true) {
+            boolean stopping;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    if (!unsynced || policy != FsyncPolicy.INTERVAL) {
+                        appended.awaitUninterruptibly();
+                        continue;
+                    }
+                    // INTERVAL: sync what is written once the window is over, even if nothing follows
+                    long wait = windowNanos - (System.nanoTime() - lastSync);
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        appended.awaitNanos(wait);
+                    } catch (InterruptedException e) {
+                        // Only close stops the writer
+                    }
+                }
+                stopping = closed;
+            } finally {
+                lock.unlock();
+            }
+            if (policy == FsyncPolicy.ALWAYS && windowNanos > 0 && !stopping) {
+                // Keep the batch open so concurrent editors share its fsync
+                LockSupport.parkNanos(windowNanos);
+            }
+            List<byte[]> batch;
+            long firstLsn;
+            lock.lock();
+            try {
+                batch = pending;
+                firstLsn = pendingFirstLsn;
+                pending = new ArrayList<>();
+                pendingFirstLsn = nextLsn;
+            } finally {
+                lock.unlock();
+            }
+            long lastLsn = firstLsn + batch.size() - 1;
+            try {
+                if (!batch.isEmpty()) {
+                    write(batch, firstLsn);
+                    unsynced = true;
+                }
+                boolean sync = stopping || policy == FsyncPolicy.ALWAYS
+                        || (policy == FsyncPolicy.INTERVAL && System.nanoTime() - lastSync >= windowNanos);
+                if (sync && unsynced) {
+                    channel.force(false);
+                    lastSync = System.nanoTime();
+                    unsynced = false;
+                }
+                if (!batch.isEmpty() && !stopping && channel.position() >= segmentBytes) {
+                    roll(lastLsn + 1);
+                    unsynced = false;
+                }
+            } catch (IOException e) {
+                log.error("Edit log write failed; edits are no longer persisted", e);
+                durableLock.lock();
+                try {
+                    failure = e;
+                    durable.signalAll();
+                } finally {
+                    durableLock.unlock();
+                }
+                return;
+            }
+            if (!batch.isEmpty()) {
+                durableLock.lock();
+                try {
+                    durableLsn = lastLsn;
+                    durable.signalAll();
+                } finally {
+                    durableLock.unlock();
+                }
+            }
+            if (stopping) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finishes the current segment and starts the next one; writer thread only
+     */
+    private void roll(long firstLsn) throws IOException {
+        channel.force(false);
+        channel.close();
+        Path segment = segmentPath(firstLsn);
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Make the new segment's directory entry durable too
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        }
+        log.debug("Edit log rolled to {}", segment);
+    }
+
+    private void write(List<byte[]> batch, long firstLsn) throws IOException {
+        int size = 0;
+        for (byte[] body : batch) {
+            size += HEADER_LENGTH + 8 + body.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32C crc = new CRC32C();
+        long lsn = firstLsn;
+        for (byte[] body : batch) {
+            int start = buffer.position();
+            buffer.putInt(8 + body.length).putInt(0).putLong(lsn++).put(body);
+            crc.reset();
+            crc.update(buffer.array(), start + HEADER_LENGTH, 8 + body.length);
+            buffer.putInt(start + 4, (int) crc.getValue());
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Finds the end of the last intact record of a segment, cuts off
+     * anything after it and positions the channel there
+     *
+     * @return the LSN of the last intact record, or firstLsn - 1 if there is none
+     */
+    private long recover(Path segment, long firstLsn) throws IOException {
+        long lsn = firstLsn;
+        long validEnd = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+            ByteBuffer record;
+            while ((record = readRecord(in, lsn)) != null) {
+                validEnd += HEADER_LENGTH + record.limit();
+                lsn++;
+            }
+        }
+        long size = channel.size();
+        if (size > validEnd) {
+            log.warn("Edit log {} has {} bytes of torn or corrupt tail after LSN {}; truncating", segment,
+                    size - validEnd, lsn - 1);
+            channel.truncate(validEnd);
+            channel.force(true);
+        }
+        channel.position(validEnd);
+        return lsn - 1;
+    }
+
+    /**
+     * Reads the next record's body, checking that it is intact and carries the expected LSN
+     *
+     * @return the LSN and body, positioned at the body; null at the end of the
+     *         segment or of its intact part
+     */
+    private static ByteBuffer readRecord(DataInputStream in, long expectedLsn) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 8 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            return buffer.getLong() == expectedLsn ? buffer : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(long firstLsn) {
+        return directory.resolve(String.format("%020d", firstLsn) + SEGMENT_SUFFIX);
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.collaborativeeditor.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * {@link SnapshotStore} with one file per document. A snapshot is written to
+ * a temporary file, synced and renamed over the previous one, so a crash
+ * leaves either the old or the new snapshot, never a torn one. Listing the
+ * snapshots reads every file, so {@link MappedSnapshotStore} suits large
+ * document sets better.
+ */
+@Slf4j
+public class FileSnapshotStore implements SnapshotStore {
+    private static final String SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    /**
+     * @param directory directory holding the snapshot files; created if missing
+     * @throws UncheckedIOException if the directory cannot be created
+     */
+    public FileSnapshotStore(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create snapshot directory " + directory, e);
+        }
+    }
+
+    @Override
+    public void save(List<DocumentSnapshot> snapshots) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        try {
+            for (DocumentSnapshot snapshot : snapshots) {
+                Path target = directory.resolve(fileName(snapshot.documentId()));
+                Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(SnapshotCodec.encode(snapshot));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // One directory sync makes every rename of the batch durable
+            try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                directoryChannel.force(true);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write snapshots to " + directory, e);
+        }
+    }
+
+    @Override
+    public DocumentSnapshot load(String documentId) {
+        Path file = directory.resolve(fileName(documentId));
+        try {
+            return SnapshotCodec.decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Cannot read snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public int forEachEntry(ObjLongConsumer<String> handler) {
+        int loaded = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file); // Left by a crash before its rename
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+                    if (!SnapshotCodec.isIntact(buffer)) {
+                        throw new IllegalArgumentException("Checksum mismatch");
+                    }
+                    SnapshotCodec.Entry entry = SnapshotCodec.entry(buffer);
+                    handler.accept(entry.documentId(), entry.lsn());
+                    loaded++;
+                } catch (IllegalArgumentException e) {
+                    log.error("Skipping unreadable snapshot {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load snapshots from " + directory, e);
+        }
+        return loaded;
+    }
+
+    /**
+     * File name for a document id; ids are UUIDs in practice, but any id maps to a safe name
+     */
+    static String fileName(String documentId) {
+        return URLEncoder.encode(documentId, StandardCharsets.UTF_8).replace(".", "%2E") + SUFFIX;
+    }
+}
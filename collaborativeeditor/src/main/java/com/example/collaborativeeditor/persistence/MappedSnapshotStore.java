@@ -0,0 +1,317 @@
+package com.example.collaborativeeditor.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * {@link SnapshotStore} that appends snapshots to segment files and reads
+ * them in place through memory maps. An in-memory index maps each document
+ * to the offset of its latest snapshot. Opening the store rebuilds the index
+ * from the head of each snapshot only, so it costs little more than listing
+ * the documents, and a snapshot's body is not read until its document is
+ * loaded.
+ *
+ * Each entry is {@code [length(4)][snapshot]}. A newer snapshot of a
+ * document makes the older one garbage; a full segment whose live entries
+ * fall below half of it is compacted by copying them to the segment being
+ * written and deleting it.
+ */
+@Slf4j
+public class MappedSnapshotStore implements SnapshotStore {
+    public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+    private static final String SUFFIX = ".seg";
+    // Full segments whose live entries fall below this share of their size are compacted
+    private static final double MIN_LIVE_RATIO = 0.5;
+
+    private final Path directory;
+    private final long segmentBytes;
+    // Latest snapshot of each document
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    // Segments by sequence number; the last one is written to
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+
+    /**
+     * Opens the store, indexing the snapshots already in it
+     *
+     * @param directory    directory holding the segments; created if missing
+     * @param segmentBytes size at which a new segment is started; at most 2 GiB, the limit of one map
+     * @throws UncheckedIOException if the store cannot be opened
+     */
+    public MappedSnapshotStore(Path directory, long segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = Math.min(segmentBytes, Integer.MAX_VALUE);
+        try {
+            Files.createDirectories(directory);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(path -> path.getFileName().toString().endsWith(SUFFIX))
+                        .sorted()
+                        .toList();
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                String name = file.getFileName().toString();
+                Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+                        file);
+                segments.put(segment.sequence, segment);
+                index(segment, i == files.size() - 1);
+            }
+            active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open snapshot store in " + directory, e);
+        }
+    }
+
+    @Override
+    public synchronized void save(List<DocumentSnapshot> snapshots) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        try {
+            long firstSegment = active.sequence;
+            List<Location> written = new ArrayList<>(snapshots.size());
+            for (DocumentSnapshot snapshot : snapshots) {
+                written.add(append(ByteBuffer.wrap(SnapshotCodec.encode(snapshot)), snapshot.documentId(),
+                        snapshot.lsn()));
+            }
+            active.channel.force(false);
+            if (active.sequence != firstSegment) {
+                syncDirectory();
+            }
+            for (Location location : written) {
+                publish(location);
+            }
+            compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write snapshots to " + directory, e);
+        }
+    }
+
+    @Override
+    public DocumentSnapshot load(String documentId) {
+        while (true) {
+            Location location = index.get(documentId);
+            if (location == null) {
+                return null;
+            }
+            try {
+                return SnapshotCodec.decode(location.segment.slice(location.offset, location.length));
+            } catch (ClosedChannelException e) {
+                // The segment was compacted away meanwhile; the index now points at the copy
+            } catch (IOException | IllegalArgumentException e) {
+                log.error("Cannot read snapshot of document {} from {}", documentId, location.segment.path, e);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public int forEachEntry(ObjLongConsumer<String> handler) {
+        int count = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            handler.accept(entry.getKey(), entry.getValue().lsn);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot segment {}", segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * Number of segment files, for monitoring and tests
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Number of documents with a snapshot
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Adds the entries of a segment to the index. A crash can only tear the
+     * segment that was being written, so only the last one is checksummed
+     * and cut back to its last intact entry.
+     */
+    private void index(Segment segment, boolean last) throws IOException {
+        long fileSize = segment.channel.size();
+        MappedByteBuffer mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        int position = 0;
+        while (position + 4 <= fileSize) {
+            int length = mapped.getInt(position);
+            if (length <= 0 || position + 4L + length > fileSize) {
+                break;
+            }
+            ByteBuffer snapshot = mapped.slice(position + 4, length);
+            if (last && !SnapshotCodec.isIntact(snapshot)) {
+                break;
+            }
+            SnapshotCodec.Entry entry;
+            try {
+                entry = SnapshotCodec.entry(snapshot);
+            } catch (IllegalArgumentException e) {
+                break;
+            }
+            publish(new Location(entry.documentId(), segment, position + 4, length, entry.lsn()));
+            position += 4 + length;
+        }
+        if (position < fileSize) {
+            log.warn("Snapshot segment {} has {} unreadable bytes after offset {}; {}", segment.path,
+                    fileSize - position, position, last ? "cutting them off" : "ignoring them");
+            if (last) {
+                segment.channel.truncate(position);
+                mapped = null; // Reaches past the end of the file now
+            }
+        }
+        segment.size = position;
+        segment.mapped = mapped;
+    }
+
+    /**
+     * Writes an entry to the active segment, starting a new one if it is full
+     */
+    private Location append(ByteBuffer snapshot, String documentId, long lsn) throws IOException {
+        int length = snapshot.remaining();
+        if (active.size > 0 && active.size + 4 + length > segmentBytes) {
+            active.channel.force(false);
+            active = createSegment(active.sequence + 1);
+        }
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(0, length);
+        long position = active.size;
+        writeFully(active.channel, header, position);
+        writeFully(active.channel, snapshot, position + 4);
+        active.size = position + 4 + length;
+        return new Location(documentId, active, position + 4, length, lsn);
+    }
+
+    /**
+     * Points the index at a new entry and accounts for the one it replaces
+     */
+    private void publish(Location location) {
+        Location previous = index.put(location.documentId, location);
+        location.segment.liveBytes.addAndGet(4 + location.length);
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-(4 + previous.length));
+        }
+    }
+
+    /**
+     * Copies the live entries of sparse full segments to the active segment and deletes them
+     */
+    private void compact() throws IOException {
+        for (Segment segment : List.copyOf(segments.values())) {
+            if (segment == active || segment.liveBytes.get() >= segment.size * MIN_LIVE_RATIO) {
+                continue;
+            }
+            List<Location> copies = new ArrayList<>();
+            for (Location location : index.values()) {
+                if (location.segment == segment) {
+                    copies.add(append(segment.slice(location.offset, location.length), location.documentId,
+                            location.lsn));
+                }
+            }
+            active.channel.force(false);
+            for (Location copy : copies) {
+                publish(copy);
+            }
+            segments.remove(segment.sequence);
+            segment.channel.close();
+            Files.delete(segment.path);
+            syncDirectory();
+            log.debug("Compacted snapshot segment {}, moving {} snapshots", segment.path, copies.size());
+        }
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        Segment segment = new Segment(sequence, directory.resolve(String.format("%020d%s", sequence, SUFFIX)));
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Where a document's latest snapshot is; offset and length cover the snapshot without its length prefix
+     */
+    private record Location(String documentId, Segment segment, long offset, int length, long lsn) {
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final Path path;
+        final FileChannel channel;
+        // Bytes of the entries the index points to
+        final AtomicLong liveBytes = new AtomicLong();
+        // End of the last complete entry; written only by the thread holding the store's lock
+        volatile long size;
+        // Read-only map of the segment, replaced by a larger one when the segment has grown
+        volatile MappedByteBuffer mapped;
+
+        Segment(long sequence, Path path) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Returns a view of part of the segment, mapping it again if it has grown past the current map
+         *
+         * @throws ClosedChannelException if the segment has been compacted away and was never mapped that far
+         */
+        ByteBuffer slice(long offset, int length) throws IOException {
+            MappedByteBuffer view = mapped;
+            if (view == null || view.capacity() < offset + length) {
+                synchronized (this) {
+                    view = mapped;
+                    if (view == null || view.capacity() < offset + length) {
+                        view = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                        mapped = view;
+                    }
+                }
+            }
+            return view.slice((int) offset, length);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.collaborativeeditor.persistence;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary form of a {@link DocumentSnapshot}: {@code [magic(4)][crc32c(4)][body]}
+ * with the checksum covering the body. The body starts with the document id
+ * and the fields up to the LSN, so an index can be built by reading only
+ * the head of each snapshot.
+ */
+final class SnapshotCodec {
+    private static final int MAGIC = 0x45445301;
+    private static final byte PLAIN = 0;
+    private static final byte CRDT = 1;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Document id and covered LSN of an encoded snapshot
+     */
+    record Entry(String documentId, long lsn) {
+    }
+
+    private SnapshotCodec() {
+    }
+
+    static byte[] encode(DocumentSnapshot snapshot) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(0); // Checksum, filled in below
+            EditRecordCodec.writeString(out, snapshot.documentId());
+            EditRecordCodec.writeString(out, snapshot.documentType());
+            EditRecordCodec.writeString(out, snapshot.lastEditor());
+            out.writeLong(snapshot.lastEditTime());
+            out.writeLong(snapshot.revision());
+            out.writeLong(snapshot.lsn());
+            if (snapshot.crdtState() != null) {
+                out.writeByte(CRDT);
+                EditRecordCodec.writeString(out, objectMapper.writeValueAsString(snapshot.crdtState()));
+            } else {
+                out.writeByte(PLAIN);
+                EditRecordCodec.writeString(out, snapshot.content().toString());
+            }
+        } catch (IOException e) {
+            // Only the JSON encoding can fail; the byte array stream never does
+            throw new UncheckedIOException(e);
+        }
+        byte[] encoded = bytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(encoded, 8, encoded.length - 8);
+        ByteBuffer.wrap(encoded).putInt(4, (int) crc.getValue());
+        return encoded;
+    }
+
+    /**
+     * Decodes the snapshot held by the buffer's remaining bytes
+     *
+     * @throws IllegalArgumentException if the bytes are not an intact snapshot
+     */
+    static DocumentSnapshot decode(ByteBuffer buffer) {
+        if (!isIntact(buffer)) {
+            throw new IllegalArgumentException("Checksum mismatch");
+        }
+        try {
+            buffer.position(buffer.position() + 8);
+            String documentId = EditRecordCodec.readString(buffer);
+            String documentType = EditRecordCodec.readString(buffer);
+            String lastEditor = EditRecordCodec.readString(buffer);
+            long lastEditTime = buffer.getLong();
+            long revision = buffer.getLong();
+            long lsn = buffer.getLong();
+            byte kind = buffer.get();
+            String body = EditRecordCodec.readString(buffer);
+            if (kind == CRDT) {
+                List<Map<String, Object>> state = objectMapper.readValue(body, new TypeReference<>() {
+                });
+                return new DocumentSnapshot(documentId, documentType, lastEditor, lastEditTime, revision, lsn, null,
+                        state);
+            }
+            return new DocumentSnapshot(documentId, documentType, lastEditor, lastEditTime, revision, lsn, body,
+                    null);
+        } catch (BufferUnderflowException | IOException e) {
+            throw new IllegalArgumentException("Malformed snapshot", e);
+        }
+    }
+
+    /**
+     * Reads the document id and LSN without checking the rest of the snapshot
+     *
+     * @throws IllegalArgumentException if the head is malformed
+     */
+    static Entry entry(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a snapshot");
+            }
+            buffer.getInt();
+            String documentId = EditRecordCodec.readString(buffer);
+            skipString(buffer); // Type
+            skipString(buffer); // Last editor
+            buffer.position(buffer.position() + 16); // Last edit time and revision
+            return new Entry(documentId, buffer.getLong());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed snapshot", e);
+        }
+    }
+
+    /**
+     * Returns true if the buffer's remaining bytes are a snapshot whose checksum matches;
+     * the buffer's position is left unchanged
+     */
+    static boolean isIntact(ByteBuffer buffer) {
+        if (buffer.remaining() < 8 || buffer.getInt(buffer.position()) != MAGIC) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(buffer.position() + 8));
+        return (int) crc.getValue() == buffer.getInt(buffer.position() + 4);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String of " + length + " bytes exceeds snapshot");
+        }
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+    }
+}
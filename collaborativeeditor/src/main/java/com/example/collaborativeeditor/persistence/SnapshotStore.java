@@ -0,0 +1,58 @@
+package com.example.collaborativeeditor.persistence;
+
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Durable store of the latest snapshot of each document. Snapshots are
+ * indexed by document id, so a document can be loaded when it is opened
+ * instead of every document being loaded on startup.
+ */
+public interface SnapshotStore extends AutoCloseable {
+
+    /**
+     * A store that keeps nothing, for tests and for running without persistence
+     */
+    SnapshotStore NONE = new SnapshotStore() {
+        @Override
+        public void save(List<DocumentSnapshot> snapshots) {
+        }
+
+        @Override
+        public DocumentSnapshot load(String documentId) {
+            return null;
+        }
+
+        @Override
+        public int forEachEntry(ObjLongConsumer<String> handler) {
+            return 0;
+        }
+    };
+
+    /**
+     * Replaces the stored snapshots of the given documents; they are durable
+     * once this returns, so log records they cover may be dropped
+     *
+     * @throws java.io.UncheckedIOException if a snapshot could not be written
+     */
+    void save(List<DocumentSnapshot> snapshots);
+
+    /**
+     * Reads the stored snapshot of a document
+     *
+     * @return the snapshot, or null if the document has none or it is unreadable
+     */
+    DocumentSnapshot load(String documentId);
+
+    /**
+     * Passes the document id and covered LSN of every stored snapshot, in no
+     * particular order, without materialising the snapshots
+     *
+     * @return number of snapshots listed
+     */
+    int forEachEntry(ObjLongConsumer<String> handler);
+
+    @Override
+    default void close() {
+    }
+}
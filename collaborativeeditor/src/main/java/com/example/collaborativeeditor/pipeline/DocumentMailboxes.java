@@ -0,0 +1,156 @@
+package com.example.collaborativeeditor.pipeline;
+
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.config.ExecutionConfig;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-document mailboxes that run edit tasks one at a time and in submission
+ * order, actor style. Each document has at most one task running at any
+ * moment, so document state needs no locking on this path, while different
+ * documents are drained in parallel on a shared pool.
+ *
+ * A mailbox exists only while it has work; idle documents cost nothing.
+ */
+@Slf4j
+@Component
+public class DocumentMailboxes {
+    // Tasks run by one drain before the mailbox yields its thread to other documents
+    private static final int DRAIN_BATCH = 64;
+
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // Shared pool that drains all mailboxes
+    private final Executor executor;
+    // Tasks submitted and not yet finished, over all documents
+    private final LongAdder pending = new LongAdder();
+
+    /**
+     * @param editorExecutor shared executor, used in VIRTUAL execution mode
+     * @param properties     editor settings; PLATFORM mode drains on a pool sized to the CPU count
+     * @param meterRegistry  registry for the queue depth gauges
+     */
+    @Autowired
+    public DocumentMailboxes(@Qualifier(ExecutionConfig.EDITOR_EXECUTOR) ExecutorService editorExecutor,
+            EditorProperties properties, MeterRegistry meterRegistry) {
+        this(ExecutionConfig.select(properties, editorExecutor, () -> ExecutionConfig.monitor(
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        ExecutionConfig.namedDaemonThreads("document-mailbox-")),
+                "document-mailbox", meterRegistry)));
+        Gauge.builder("editor.mailboxes.pending", pending, LongAdder::sum)
+                .description("Document tasks queued or running, over all documents")
+                .register(meterRegistry);
+        // Registered on the map rather than on this, which is not fully constructed yet
+        Gauge.builder("editor.mailboxes.active", mailboxes, Map::size)
+                .description("Documents with queued or running tasks")
+                .register(meterRegistry);
+    }
+
+    public DocumentMailboxes(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a task behind every task already submitted for the document
+     *
+     * @param documentId document the task works on
+     * @param task       task to run; exceptions are logged and do not stop the mailbox
+     */
+    public void execute(String documentId, Runnable task) {
+        // Tasks are only added while the mailbox is mapped, and a mailbox is
+        // only unmapped under the same bin lock once it is empty and idle
+        Mailbox mailbox = mailboxes.compute(documentId, (key, existing) -> {
+            Mailbox target = existing != null ? existing : new Mailbox(key);
+            target.tasks.add(task);
+            return target;
+        });
+        pending.increment();
+        mailbox.schedule();
+    }
+
+    /**
+     * Like {@link #execute(String, Runnable)}, but lets the caller wait for the task
+     *
+     * @return future completed when the task has run
+     */
+    public CompletableFuture<Void> submit(String documentId, Runnable task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        execute(documentId, () -> {
+            try {
+                task.run();
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Number of documents that currently have queued or running tasks
+     */
+    public int getActiveMailboxCount() {
+        return mailboxes.size();
+    }
+
+    private final class Mailbox {
+        private final String documentId;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // True while a drain is queued or running; guarantees a single writer
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Mailbox(String documentId) {
+            this.documentId = documentId;
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        void drain() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error("Error processing task for document {}", documentId, e);
+                } finally {
+                    pending.decrement();
+                }
+            }
+            if (!tasks.isEmpty()) {
+                // Still scheduled; requeue behind other documents for fairness
+                executor.execute(this::drain);
+                return;
+            }
+            scheduled.set(false);
+            if (!tasks.isEmpty()) {
+                // A task arrived after the last poll; make sure someone drains it
+                schedule();
+                return;
+            }
+            mailboxes.computeIfPresent(documentId,
+                    (key, mailbox) -> mailbox == this && tasks.isEmpty() && !scheduled.get() ? null : mailbox);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.collaborativeeditor.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects edits per document and hands them over as one batch once a time
+ * window has passed or the batch is full. Nothing is dropped: every submitted
+ * edit ends up in exactly one batch, and the handler decides how to merge it.
+ *
+ * @param <T> type of the edits being collected
+ */
+public class EditCoalescer<T> {
+    // Open batches keyed by document id
+    private final ConcurrentHashMap<String, Batch<T>> batches = new ConcurrentHashMap<>();
+    // Fires the end of each batch window
+    private final ScheduledExecutorService scheduler;
+    // Runs the batch handler so the scheduler thread is never blocked
+    private final Executor flushExecutor;
+    private final BiConsumer<String, List<T>> handler;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+
+    /**
+     * @param window        how long edits to one document are collected
+     * @param maxBatchSize  batch size that triggers an early flush
+     * @param scheduler     scheduler used for the end-of-window timers
+     * @param flushExecutor executor the handler runs on
+     * @param handler       receives the document id and its edits, oldest first
+     */
+    public EditCoalescer(Duration window, int maxBatchSize, ScheduledExecutorService scheduler,
+            Executor flushExecutor, BiConsumer<String, List<T>> handler) {
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.scheduler = scheduler;
+        this.flushExecutor = flushExecutor;
+        this.handler = handler;
+    }
+
+    /**
+     * Adds an edit to the open batch of its document, opening one if needed
+     */
+    public void submit(String documentId, T edit) {
+        submitted.increment();
+        // Edits are only added while the batch is mapped, and removal happens
+        // under the same bin lock, so a removed batch never changes again
+        List<Batch<T>> full = new ArrayList<>(1);
+        batches.compute(documentId, (key, open) -> {
+            if (open == null) {
+                open = new Batch<>();
+                Batch<T> created = open;
+                open.timer = scheduler.schedule(() -> flush(key, created), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            open.edits.add(edit);
+            if (open.edits.size() >= maxBatchSize) {
+                full.add(open);
+                return null; // Closed here so no other submitter can overfill it
+            }
+            return open;
+        });
+        if (!full.isEmpty()) {
+            handOver(documentId, full.get(0));
+        }
+    }
+
+    /**
+     * Average number of edits merged into one batch
+     */
+    public double getCoalescingRatio() {
+        long batchCount = flushed.sum();
+        return batchCount == 0 ? 0 : (double) submitted.sum() / batchCount;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getBatchCount() {
+        return flushed.sum();
+    }
+
+    private void flush(String documentId, Batch<T> batch) {
+        if (!batches.remove(documentId, batch)) {
+            return; // Already flushed by the size limit
+        }
+        handOver(documentId, batch);
+    }
+
+    private void handOver(String documentId, Batch<T> batch) {
+        batch.timer.cancel(false);
+        flushed.increment();
+        flushExecutor.execute(() -> handler.accept(documentId, batch.edits));
+    }
+
+    private static final class Batch<T> {
+        private final List<T> edits = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+    }
+}
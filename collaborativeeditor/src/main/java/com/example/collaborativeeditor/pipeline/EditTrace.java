@@ -0,0 +1,162 @@
+package com.example.collaborativeeditor.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamps of one edit on its way through the server: received, taken
+ * out of its queue, applied, handed to every recipient, and written to each
+ * recipient's socket. Created by {@link EditTracer}. The stages up to
+ * fan-out are recorded when fan-out ends, the total once the last
+ * recipient's write completes.
+ * <p>
+ * The receive, dequeue, apply and fan-out stamps are taken by whichever
+ * thread handles the edit at that point, one after another. Writes complete
+ * on writer or reactor threads; each recipient the edit was queued for must
+ * report exactly once, by {@link #sent()} or {@link #abandoned()}.
+ */
+public final class EditTrace {
+
+    /**
+     * A trace that records nothing, for edits that are not traced
+     */
+    public static final EditTrace NONE = new EditTrace(null, null, null, null, 0, 0);
+
+    private final EditTracer tracer;
+    private final EditTracer.Stages stages;
+    private final String documentId;
+    private final String editor;
+    // Wall clock time the client stamped the edit with, 0 if none
+    private final long clientTimestamp;
+    private final long receivedNanos;
+    private long dequeuedNanos;
+    private long appliedNanos;
+    private long fannedOutNanos;
+    // Recipients still writing, plus one held until fan-out ends
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicInteger recipients = new AtomicInteger();
+    // Longest time from apply to a completed write
+    private final AtomicLong slowestSendNanos = new AtomicLong();
+
+    EditTrace(EditTracer tracer, EditTracer.Stages stages, String documentId, String editor, long clientTimestamp,
+            long receivedNanos) {
+        this.tracer = tracer;
+        this.stages = stages;
+        this.documentId = documentId;
+        this.editor = editor;
+        this.clientTimestamp = clientTimestamp;
+        this.receivedNanos = receivedNanos;
+        this.dequeuedNanos = receivedNanos;
+    }
+
+    /**
+     * The edit was taken from its queue, e.g. its document's mailbox, and is about to be applied
+     */
+    public void dequeued() {
+        if (tracer != null) {
+            dequeuedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The document has been changed
+     */
+    public void applied() {
+        if (tracer != null) {
+            appliedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The edit was queued for one more recipient; call before the write can complete
+     */
+    public void queued() {
+        if (tracer != null) {
+            pending.incrementAndGet();
+            recipients.incrementAndGet();
+        }
+    }
+
+    /**
+     * The edit has been queued for every recipient. An edit without
+     * recipients is complete at this point.
+     */
+    public void fannedOut() {
+        if (tracer != null) {
+            fannedOutNanos = System.nanoTime();
+            stages.queue().record(dequeuedNanos - receivedNanos, TimeUnit.NANOSECONDS);
+            stages.apply().record(appliedNanos - dequeuedNanos, TimeUnit.NANOSECONDS);
+            stages.fanOut().record(fannedOutNanos - appliedNanos, TimeUnit.NANOSECONDS);
+            release();
+        }
+    }
+
+    /**
+     * The edit was written to one recipient's socket
+     */
+    public void sent() {
+        if (tracer != null) {
+            long sendNanos = System.nanoTime() - appliedNanos;
+            stages.send().record(sendNanos, TimeUnit.NANOSECONDS);
+            slowestSendNanos.accumulateAndGet(sendNanos, Math::max);
+            release();
+        }
+    }
+
+    /**
+     * The edit will not be written to one recipient it was queued for, e.g.
+     * because the connection closed or a newer edit replaced it
+     */
+    public void abandoned() {
+        if (tracer != null) {
+            release();
+        }
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            tracer.finished(this, System.nanoTime());
+        }
+    }
+
+    EditTracer.Stages stages() {
+        return stages;
+    }
+
+    String documentId() {
+        return documentId;
+    }
+
+    String editor() {
+        return editor;
+    }
+
+    long clientTimestamp() {
+        return clientTimestamp;
+    }
+
+    long receivedNanos() {
+        return receivedNanos;
+    }
+
+    long dequeuedNanos() {
+        return dequeuedNanos;
+    }
+
+    long appliedNanos() {
+        return appliedNanos;
+    }
+
+    long fannedOutNanos() {
+        return fannedOutNanos;
+    }
+
+    int recipients() {
+        return recipients.get();
+    }
+
+    long slowestSendNanos() {
+        return slowestSendNanos.get();
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.collaborativeeditor.pipeline;
+
+import com.example.collaborativeeditor.config.EditorProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Starts an {@link EditTrace} for every incoming edit and aggregates the
+ * finished traces into the editor.edit.latency timers, tagged with the
+ * transport the edit arrived on and one of the stages:
+ * <ul>
+ * <li>queue: received until taken out of its queue, coalescing window included</li>
+ * <li>apply: changing the document, edit log append included</li>
+ * <li>fanout: queueing the frame for every recipient</li>
+ * <li>send: applied until written to one recipient's socket, once per recipient</li>
+ * <li>total: received until written to the last recipient</li>
+ * </ul>
+ * Edits slower in total than the configured threshold are logged with
+ * their stages, at most one per log interval, so a slow period shows up as
+ * a sample rather than a flood.
+ */
+@Slf4j
+@Component
+public class EditTracer {
+    private static final List<String> TRANSPORTS = List.of("websocket", "tcp", "json");
+
+    /**
+     * A tracer that hands out {@link EditTrace#NONE} only
+     */
+    public static final EditTracer NONE = new EditTracer();
+
+    private final boolean enabled;
+    private final long slowNanos;
+    private final long logIntervalNanos;
+    // Timers of each transport, looked up once
+    private final Map<String, Stages> stages;
+    // Earliest time the next slow edit may be logged
+    private final AtomicLong nextLogNanos = new AtomicLong(System.nanoTime());
+
+    @Autowired
+    public EditTracer(EditorProperties properties, MeterRegistry meterRegistry) {
+        EditorProperties.Tracing settings = properties.getTracing();
+        this.enabled = settings.isEnabled();
+        this.slowNanos = settings.getSlowThreshold().toNanos();
+        this.logIntervalNanos = settings.getSlowLogInterval().toNanos();
+        this.stages = TRANSPORTS.stream()
+                .collect(Collectors.toUnmodifiableMap(Function.identity(), t -> new Stages(meterRegistry, t)));
+    }
+
+    private EditTracer() {
+        this.enabled = false;
+        this.slowNanos = Long.MAX_VALUE;
+        this.logIntervalNanos = 0;
+        this.stages = Map.of();
+    }
+
+    /**
+     * Starts tracing an edit
+     *
+     * @param transport       "websocket", "tcp" or "json"
+     * @param receivedNanos   {@link System#nanoTime()} when the message arrived, before decoding
+     * @param clientTimestamp wall clock millis the client stamped the edit with, 0 if none
+     * @return the trace, or {@link EditTrace#NONE} if tracing is off
+     */
+    public EditTrace start(String transport, long receivedNanos, String documentId, String editor,
+            long clientTimestamp) {
+        if (!enabled) {
+            return EditTrace.NONE;
+        }
+        return new EditTrace(this, stages.get(transport), documentId, editor, clientTimestamp, receivedNanos);
+    }
+
+    void finished(EditTrace trace, long finishedNanos) {
+        long total = finishedNanos - trace.receivedNanos();
+        trace.stages().total().record(total, TimeUnit.NANOSECONDS);
+        if (total < slowNanos) {
+            return;
+        }
+        long next = nextLogNanos.get();
+        if (finishedNanos - next < 0 || !nextLogNanos.compareAndSet(next, finishedNanos + logIntervalNanos)) {
+            return;
+        }
+        // The client's clock may differ from ours; a large gap means a slow network or a skewed clock
+        String clientGap = "";
+        if (trace.clientTimestamp() > 0) {
+            long receivedMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(total);
+            clientGap = ", received " + (receivedMillis - trace.clientTimestamp()) + " ms after the client's timestamp";
+        }
+        log.warn("Slow edit on document {} by {} over {}: {} ms total; queue {} ms, apply {} ms, fanout {} ms, "
+                + "slowest of {} sends {} ms{}", trace.documentId(), trace.editor(), trace.stages().transport(),
+                millis(total), millis(trace.dequeuedNanos() - trace.receivedNanos()),
+                millis(trace.appliedNanos() - trace.dequeuedNanos()),
+                millis(trace.fannedOutNanos() - trace.appliedNanos()), trace.recipients(),
+                millis(trace.slowestSendNanos()), clientGap);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    /**
+     * Stage timers of one transport
+     */
+    record Stages(String transport, Timer queue, Timer apply, Timer fanOut, Timer send, Timer total) {
+
+        Stages(MeterRegistry registry, String transport) {
+            this(transport, timer(registry, transport, "queue"), timer(registry, transport, "apply"),
+                    timer(registry, transport, "fanout"), timer(registry, transport, "send"),
+                    timer(registry, transport, "total"));
+        }
+
+        private static Timer timer(MeterRegistry registry, String transport, String stage) {
+            return Timer.builder("editor.edit.latency")
+                    .description("Time an edit spent in one stage, from receipt to the sockets of its recipients")
+                    .tag("transport", transport)
+                    .tag("stage", stage)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.collaborativeeditor.service;
+
+import com.example.collaborativeeditor.model.Document;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Documents held in memory, bounded by count and by weight: the characters
+ * of their bodies plus a fixed overhead each. Documents with an open
+ * session are pinned and never picked for eviction; the others go least
+ * recently used first. The cache only picks victims; {@link DocumentService}
+ * writes them back and removes them, since only it knows when that is safe.
+ */
+public class DocumentCache {
+    // Weight of a document beyond its characters: the object graph, history and index entries
+    static final long ENTRY_OVERHEAD = 256;
+    // Eviction frees space down to this share of the limits, so it runs in bursts rather than on every load
+    private static final double LOW_WATERMARK = 0.9;
+
+    private final int maxDocuments;
+    private final long maxWeight;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Open sessions per document; present only while positive
+    private final Map<String, Integer> pins = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong writeBacks = new AtomicLong();
+
+    /**
+     * @param maxDocuments documents held in memory before eviction starts
+     * @param maxWeight    total weight held in memory before eviction starts
+     */
+    public DocumentCache(int maxDocuments, long maxWeight) {
+        this.maxDocuments = maxDocuments;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * A cache that never asks for eviction, for running without a snapshot store
+     */
+    public static DocumentCache unbounded() {
+        return new DocumentCache(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns a resident document and marks it as used
+     *
+     * @return the document, or null if it is not in memory
+     */
+    public Document get(String id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        entry.lastAccess = System.nanoTime();
+        return entry.document;
+    }
+
+    /**
+     * Returns a resident document without marking it as used
+     */
+    public Document peek(String id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.document : null;
+    }
+
+    /**
+     * Returns the resident document, loading it if it is not in memory.
+     * Concurrent callers for one document share a single load.
+     *
+     * @param loader returns the document, or null if it cannot be loaded
+     */
+    public Document computeIfAbsent(String id, Function<String, Document> loader) {
+        Entry entry = entries.computeIfAbsent(id, key -> {
+            misses.incrementAndGet();
+            Document document = loader.apply(key);
+            return document != null ? newEntry(document) : null;
+        });
+        if (entry == null) {
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        return entry.document;
+    }
+
+    /**
+     * Adds a document that was created in memory
+     */
+    public void put(Document document) {
+        Entry previous = entries.put(document.getId(), newEntry(document));
+        if (previous != null) {
+            weight.addAndGet(-previous.weight);
+        }
+    }
+
+    /**
+     * Updates a document's weight after an edit; the caller holds the document's lock
+     */
+    public void reweigh(Document document) {
+        Entry entry = entries.get(document.getId());
+        if (entry != null && entry.document == document) {
+            long updated = weigh(document);
+            weight.addAndGet(updated - entry.weight);
+            entry.weight = updated;
+        }
+    }
+
+    /**
+     * Removes a document if it is still the given instance
+     *
+     * @return true if it was removed
+     */
+    public boolean evict(String id, Document document) {
+        Entry entry = entries.get(id);
+        if (entry == null || entry.document != document || !entries.remove(id, entry)) {
+            return false;
+        }
+        weight.addAndGet(-entry.weight);
+        evictions.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Marks a document as having one more open session
+     */
+    public void pin(String id) {
+        pins.merge(id, 1, Integer::sum);
+    }
+
+    /**
+     * Releases one session's pin on a document
+     */
+    public void unpin(String id) {
+        pins.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public boolean isPinned(String id) {
+        return pins.containsKey(id);
+    }
+
+    public boolean isOverCapacity() {
+        return entries.size() > maxDocuments || weight.get() > maxWeight;
+    }
+
+    /**
+     * Picks unpinned documents, least recently used first, whose removal
+     * brings the cache under the low watermark of both limits
+     *
+     * @return the documents to evict; empty if the cache is within its limits
+     */
+    public List<Document> evictionCandidates() {
+        if (!isOverCapacity()) {
+            return List.of();
+        }
+        long documentsToFree = entries.size() - (long) (maxDocuments * LOW_WATERMARK);
+        long weightToFree = weight.get() - (long) (maxWeight * LOW_WATERMARK);
+        List<Entry> unpinned = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!pins.containsKey(entry.getKey())) {
+                unpinned.add(entry.getValue());
+            }
+        }
+        long now = System.nanoTime();
+        // Compared by age, since nanoTime values may wrap
+        unpinned.sort(Comparator.comparingLong(entry -> entry.lastAccess - now));
+        List<Document> candidates = new ArrayList<>();
+        for (Entry entry : unpinned) {
+            if (documentsToFree <= 0 && weightToFree <= 0) {
+                break;
+            }
+            candidates.add(entry.document);
+            documentsToFree--;
+            weightToFree -= entry.weight;
+        }
+        return candidates;
+    }
+
+    /**
+     * Picks unpinned documents not used for the given time
+     */
+    public List<Document> idleCandidates(long idleMillis) {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        List<Document> candidates = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().lastAccess - cutoff <= 0 && !pins.containsKey(entry.getKey())) {
+                candidates.add(entry.getValue().document);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Counts documents whose changes were written to the snapshot store so they could be evicted
+     */
+    void recordWriteBacks(int count) {
+        writeBacks.addAndGet(count);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getWriteBacks() {
+        return writeBacks.get();
+    }
+
+    private Entry newEntry(Document document) {
+        Entry entry = new Entry(document, weigh(document));
+        weight.addAndGet(entry.weight);
+        return entry;
+    }
+
+    private static long weigh(Document document) {
+        return ENTRY_OVERHEAD + document.length();
+    }
+
+    private static final class Entry {
+        final Document document;
+        volatile long weight;
+        // System.nanoTime() of the last use; fine-grained enough to order documents used in one millisecond
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(Document document, long weight) {
+            this.document = document;
+            this.weight = weight;
+        }
+    }
+}
@@ -1,37 +1,859 @@
 package com.example.collaborativeeditor.service;
 
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.crdt.CrdtSequence;
 import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.ot.AppliedOperation;
+import com.example.collaborativeeditor.ot.CatchUp;
+import com.example.collaborativeeditor.ot.StaleRevisionException;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.example.collaborativeeditor.persistence.DocumentSnapshot;
+import com.example.collaborativeeditor.persistence.EditLog;
+import com.example.collaborativeeditor.persistence.EditRecord;
+import com.example.collaborativeeditor.persistence.SnapshotStore;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
+/**
+ * Owns the documents. Every change is applied and appended to the
+ * {@link EditLog} under the document's lock, so the log holds each
+ * document's changes in the order they were applied; the caller then waits
+ * for durability without holding the lock.
+ *
+ * Changed documents are periodically written to the {@link SnapshotStore},
+ * after which the log only has to keep records newer than the oldest
+ * unsnapshotted change.
+ *
+ * Only documents in use are held in memory. On startup the service lists
+ * the stored snapshots without reading them and replays the log tail,
+ * loading just the documents the tail touches; any other document is loaded
+ * from its snapshot when it is first opened. The {@link DocumentCache} bounds
+ * what stays resident: when it is over its limits, or a document has been
+ * idle, documents without an open session are written back to the snapshot
+ * store and dropped.
+ */
+@Slf4j
 @Service
 public class DocumentService {
-    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+    // Snapshots written and saved together; bounds the memory a round holds at once
+    private static final int SNAPSHOT_BATCH_SIZE = 1024;
+    // Rough per-record overhead added to the text a record carries, for the byte threshold
+    private static final int RECORD_OVERHEAD_BYTES = 64;
+
+    // Documents held in memory
+    private final DocumentCache cache;
+    // Where each known document's changes are in the log, resident or not;
+    // updated under the document's lock
+    private final Map<String, LogPosition> positions = new ConcurrentHashMap<>();
+    private final EditLog editLog;
+    private final SnapshotStore snapshotStore;
+    // Serializes snapshot rounds and evictions; a lock rather than a monitor,
+    // so a virtual thread evicting inline does not pin its carrier during the write-back
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    // Set when snapshots were written outside a round, so the next round truncates the log
+    private volatile boolean truncationDue;
+    // Client id of the operations CRDT replicas here generate; includes the node id,
+    // so replicas of one document on different cluster nodes never share it
+    private final String crdtClient;
+
+    /**
+     * Creates a service that keeps documents in memory only
+     */
+    public DocumentService() {
+        this(EditLog.NONE, SnapshotStore.NONE);
+    }
+
+    /**
+     * Creates a service backed by an edit log and snapshots that keeps every
+     * loaded document in memory
+     */
+    public DocumentService(EditLog editLog, SnapshotStore snapshotStore) {
+        this(editLog, snapshotStore, DocumentCache.unbounded());
+    }
+
+    /**
+     * Creates a service with the document cache bounded as configured and
+     * its metrics registered
+     *
+     * @param editLog       log to replay and then append every change to
+     * @param snapshotStore store to load documents from and write snapshots to
+     * @param properties    editor settings; supplies the cache limits
+     * @param meterRegistry registry for the cache metrics
+     */
+    @Autowired
+    public DocumentService(EditLog editLog, SnapshotStore snapshotStore, EditorProperties properties,
+            MeterRegistry meterRegistry) {
+        this(editLog, snapshotStore, new DocumentCache(properties.getCache().getMaxDocuments(),
+                properties.getCache().getMaxWeight()), properties.resolveNodeId());
+        FunctionCounter.builder("editor.documents.cache.hits", cache, DocumentCache::getHits)
+                .description("Document lookups served from memory")
+                .register(meterRegistry);
+        FunctionCounter.builder("editor.documents.cache.misses", cache, DocumentCache::getMisses)
+                .description("Documents loaded from the snapshot store")
+                .register(meterRegistry);
+        FunctionCounter.builder("editor.documents.cache.evictions", cache, DocumentCache::getEvictions)
+                .description("Documents dropped from memory")
+                .register(meterRegistry);
+        FunctionCounter.builder("editor.documents.cache.writebacks", cache, DocumentCache::getWriteBacks)
+                .description("Changed documents snapshotted so they could be dropped")
+                .register(meterRegistry);
+        Gauge.builder("editor.documents.cache.size", cache, DocumentCache::size)
+                .description("Documents held in memory")
+                .register(meterRegistry);
+        Gauge.builder("editor.documents.cache.weight", cache, DocumentCache::getWeight)
+                .description("Characters held in memory, plus a fixed overhead per document")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Creates a service backed by an edit log and snapshots, indexing the
+     * snapshots and replaying the log records they do not cover first
+     *
+     * @param editLog       log to replay and then append every change to
+     * @param snapshotStore store to load documents from and write snapshots to
+     * @param cache         holds the documents in memory
+     */
+    public DocumentService(EditLog editLog, SnapshotStore snapshotStore, DocumentCache cache) {
+        this(editLog, snapshotStore, cache, "local");
+    }
+
+    /**
+     * Creates a service backed by an edit log and snapshots on a given node,
+     * indexing the snapshots and replaying the log records they do not cover first
+     *
+     * @param editLog       log to replay and then append every change to
+     * @param snapshotStore store to load documents from and write snapshots to
+     * @param cache         holds the documents in memory
+     * @param nodeId        this node's id, the same across restarts
+     */
+    public DocumentService(EditLog editLog, SnapshotStore snapshotStore, DocumentCache cache, String nodeId) {
+        this.editLog = editLog;
+        this.crdtClient = "server-" + nodeId;
+        this.snapshotStore = snapshotStore;
+        this.cache = cache;
+        long start = System.nanoTime();
+        int stored = snapshotStore.forEachEntry((id, lsn) -> positions.put(id, new LogPosition(lsn)));
+        if (stored > 0) {
+            log.info("Indexed {} document snapshots in {} ms", stored, (System.nanoTime() - start) / 1_000_000);
+        }
+        long lastLsn = editLog.replay((record, lsn) -> {
+            LogPosition position = positions.get(record.documentId());
+            if (position != null && lsn <= position.snapshotLsn) {
+                return; // Already in the snapshot
+            }
+            try {
+                replay(record);
+                if (cache.peek(record.documentId()) != null) {
+                    logged(record.documentId(), record, lsn);
+                }
+            } catch (RuntimeException e) {
+                log.error("Cannot replay edit log record {} for document {}", lsn, record.documentId(), e);
+            }
+        });
+        if (lastLsn > 0) {
+            log.info("Recovered {} documents, {} of them loaded, up to LSN {} in {} ms", positions.size(),
+                    cache.size(), lastLsn, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
 
     public Document createDocument() {
-        Document document = new Document();
-        documents.put(document.getId(), document);
+        return createDocument(null);
+    }
+
+    /**
+     * Creates a document of the given type, e.g. {@link Document#TYPE_CRDT}
+     */
+    public Document createDocument(String type) {
+        Document document = newDocument();
+        if (type != null) {
+            document.setDocumentType(type);
+        }
+        long lsn;
+        synchronized (document) {
+            cache.put(document);
+            lsn = log(document, new EditRecord.Create(document.getId(), document.getDocumentType(),
+                    document.getLastEditTime()));
+        }
+        editLog.awaitDurable(lsn);
+        evictIfOverCapacity();
         return document;
     }
 
+    /**
+     * Returns a document, creating it under the given id if there is none,
+     * e.g. when another cluster node refers to a document created there.
+     * Call from the document's mailbox, so two callers cannot both create it.
+     *
+     * @param type type of a new document, e.g. {@link Document#TYPE_CRDT}; null for the default
+     */
+    public Document openDocument(String id, String type) {
+        Document document = resident(id);
+        if (document != null) {
+            return document;
+        }
+        document = newDocument();
+        document.setId(id);
+        if (type != null) {
+            document.setDocumentType(type);
+        }
+        long lsn;
+        synchronized (document) {
+            cache.put(document);
+            lsn = log(document, new EditRecord.Create(id, document.getDocumentType(), document.getLastEditTime()));
+        }
+        editLog.awaitDurable(lsn);
+        evictIfOverCapacity();
+        return document;
+    }
+
+    /**
+     * Returns a document, loading it from its snapshot if it is not in memory
+     *
+     * @return the document, or null if there is no such document
+     */
     public Document getDocument(String id) {
-        return documents.get(id);
+        return resident(id);
     }
 
-    public void updateDocument(String id, String content, String editor) {
-        Document document = documents.get(id);
-        if (document != null) {
+    /**
+     * Replaces the whole body of a document
+     *
+     * @return the revision the edit produced, or -1 if the document does not exist
+     * @throws IllegalArgumentException if it is a CRDT document, which takes
+     *                                  {@link #applyCrdtOperation} only
+     */
+    public long updateDocument(String id, String content, String editor) {
+        Long revision = edit(id, document -> {
+            long time = System.currentTimeMillis();
             document.setContent(content);
-            document.setLastEditor(editor);
-            document.setLastEditTime(System.currentTimeMillis());
+            touch(document, editor, time);
+            log(document, new EditRecord.Replace(id, content, editor, time));
+            return document.getRevision();
+        });
+        return revision != null ? revision : -1;
+    }
+
+    /**
+     * Takes on a full-content edit from the cluster node that owns a
+     * document, at the revision it has there, so that clients can move
+     * between nodes with the revisions they know. The edit right after this
+     * node's revision is applied as usual; one this node already has is
+     * ignored; any other replaces the body and the revision counter, which
+     * leaves no history to catch clients up from.
+     *
+     * @param revision the revision the owner's edit produced
+     * @return the document's revision afterwards, or -1 if the document does not exist
+     * @throws IllegalArgumentException if it is a CRDT document
+     */
+    public long followDocument(String id, String content, String editor, long revision) {
+        Long current = edit(id, document -> {
+            if (revision == document.getRevision() && content.contentEquals(document.snapshot())) {
+                return revision;
+            }
+            long time = System.currentTimeMillis();
+            if (revision == document.getRevision() + 1) {
+                document.setContent(content);
+                log(document, new EditRecord.Replace(id, content, editor, time));
+            } else {
+                document.rebase(content, revision);
+                log(document, new EditRecord.Rebase(id, content, revision, editor, time));
+            }
+            touch(document, editor, time);
+            return document.getRevision();
+        });
+        return current != null ? current : -1;
+    }
+
+    /**
+     * Works out what a client that has seen the given revision needs to
+     * reach the current one. The operations it missed are sent while the
+     * history still holds them and they add up to less than the body;
+     * otherwise, or if the client knows no revision or one this document
+     * never had, it gets the whole body. The result is consistent with the
+     * revision it names, since it is taken under the document's lock; a
+     * snapshot holds the immutable body rather than a copy of it.
+     * CRDT documents do not count revisions and always get a snapshot of
+     * their text; their clients want the replica state instead.
+     *
+     * @param knownRevision the client's last revision, or a negative value if it has none
+     * @return the catch-up, or null if the document does not exist
+     */
+    public CatchUp catchUp(String id, long knownRevision) {
+        Document document = resident(id);
+        if (document == null) {
+            return null;
+        }
+        synchronized (document) {
+            long revision = document.getRevision();
+            if (knownRevision >= 0 && knownRevision <= revision && !document.usesCrdt()) {
+                List<TextOperation> missed = document.getHistory().since(knownRevision);
+                if (missed != null && (missed.isEmpty() || weight(missed) < document.length())) {
+                    return CatchUp.delta(revision, missed);
+                }
+            }
+            return CatchUp.snapshot(revision, document.snapshot());
+        }
+    }
+
+    private static long weight(List<TextOperation> operations) {
+        long weight = 0;
+        for (TextOperation operation : operations) {
+            weight += operation.getWeight();
         }
+        return weight;
+    }
+
+    /**
+     * Inserts text into a document; costs O(log n) plus the size of the text
+     *
+     * @param id       document to edit
+     * @param position character offset to insert at
+     * @param text     text to insert
+     * @param editor   user making the edit
+     * @throws IndexOutOfBoundsException if position is outside the document
+     * @throws IllegalArgumentException  if it is a CRDT document
+     */
+    public void insertText(String id, int position, String text, String editor) {
+        edit(id, document -> {
+            long time = System.currentTimeMillis();
+            document.insert(position, text);
+            touch(document, editor, time);
+            return log(document, new EditRecord.Insert(id, position, text, editor, time));
+        });
+    }
+
+    /**
+     * Deletes a range of text from a document; costs O(log n)
+     *
+     * @param id       document to edit
+     * @param position offset of the first character to delete
+     * @param length   number of characters to delete
+     * @param editor   user making the edit
+     * @throws IndexOutOfBoundsException if the range is outside the document
+     * @throws IllegalArgumentException  if it is a CRDT document
+     */
+    public void deleteText(String id, int position, int length, String editor) {
+        edit(id, document -> {
+            long time = System.currentTimeMillis();
+            document.delete(position, length);
+            touch(document, editor, time);
+            return log(document, new EditRecord.Delete(id, position, length, editor, time));
+        });
+    }
+
+    /**
+     * Applies a client operation made against an older revision.
+     * The operation is transformed against every operation applied since that
+     * revision, then applied and recorded under the next revision.
+     *
+     * @param id           document to edit
+     * @param baseRevision revision the client's operation was made against
+     * @param operation    the client's operation
+     * @param editor       user making the edit
+     * @return the transformed operation and its revision, or null if the
+     *         document does not exist
+     * @throws StaleRevisionException   if baseRevision is no longer in the history
+     * @throws IllegalArgumentException if the operation does not fit the document
+     */
+    public AppliedOperation applyOperation(String id, long baseRevision, TextOperation operation, String editor) {
+        return edit(id, document -> {
+            List<TextOperation> concurrent = document.getHistory().since(baseRevision);
+            if (concurrent == null) {
+                throw new StaleRevisionException(id, baseRevision, document.getRevision());
+            }
+            TextOperation transformed = operation;
+            for (TextOperation previous : concurrent) {
+                transformed = TextOperation.transform(transformed, previous)[0];
+            }
+            long time = System.currentTimeMillis();
+            long revision = document.apply(transformed);
+            touch(document, editor, time);
+            log(document, new EditRecord.Operation(id, transformed, editor, time));
+            return new AppliedOperation(transformed, revision);
+        });
+    }
+
+    /**
+     * Merges an operation from a CRDT client into the server replica.
+     * Like any edit, the operation is integrated and logged while the
+     * document's monitor is held, which costs O(log n) in the number of
+     * items, and the call then waits, without the monitor, until the record
+     * is durable. Callers relay the operation once this returns; they need
+     * no per-document ordering, since operations commute.
+     *
+     * @param id        document to edit; must use {@link Document#TYPE_CRDT}
+     * @param operation operation received from a client
+     * @param editor    user making the edit
+     * @return true if the operation changed the server replica
+     * @throws IllegalArgumentException if the document is not a CRDT document
+     */
+    public boolean applyCrdtOperation(String id, CrdtOperation operation, String editor) {
+        Boolean changed = edit(id, document -> {
+            CrdtSequence replica = document.getCrdt();
+            if (replica == null) {
+                throw new IllegalArgumentException("Document " + id + " is not a CRDT document");
+            }
+            long time = System.currentTimeMillis();
+            CrdtSequence.Outcome outcome = replica.merge(operation);
+            if (outcome == CrdtSequence.Outcome.IGNORED) {
+                return false; // A duplicate, already logged, or dropped; nothing to log
+            }
+            if (outcome == CrdtSequence.Outcome.APPLIED) {
+                touch(document, editor, time);
+            }
+            // Logged even if it is waiting for a dependency, which a later operation may bring
+            log(document, new EditRecord.Crdt(id, operation, editor, time));
+            return outcome == CrdtSequence.Outcome.APPLIED;
+        });
+        return changed != null && changed;
+    }
+
+    /**
+     * Replaces the replica of a CRDT document with the given state, e.g.
+     * that of the cluster node owning the document, first making it a CRDT
+     * document if it is not one. The state itself is not logged; a copy of
+     * another node's document is reset from it whenever this node starts
+     * following the document again.
+     *
+     * @param state replica state from {@link CrdtSequence#encodeState()}
+     * @throws IllegalArgumentException if the state is malformed
+     */
+    public void resetCrdt(String id, List<?> state) {
+        CrdtSequence replica = CrdtSequence.fromState(state, crdtClient);
+        edit(id, document -> {
+            if (!document.usesCrdt()) {
+                document.setDocumentType(Document.TYPE_CRDT);
+                log(document, new EditRecord.SetType(id, Document.TYPE_CRDT));
+            }
+            document.setCrdt(replica);
+            return null;
+        });
     }
 
     public void setDocumentType(String id, String type) {
-        Document document = documents.get(id);
-        if (document != null) {
+        edit(id, document -> {
             document.setDocumentType(type);
+            return log(document, new EditRecord.SetType(id, type));
+        });
+    }
+
+    /**
+     * Marks a document as having an open session, which keeps it in memory
+     */
+    public void pin(String id) {
+        cache.pin(id);
+    }
+
+    /**
+     * Releases a session's hold on a document; once none is left it may be evicted
+     */
+    public void unpin(String id) {
+        cache.unpin(id);
+    }
+
+    /**
+     * Drops documents from memory that have no open session and have not been
+     * opened or edited for the given time, writing back any unsnapshotted
+     * changes first; they are loaded again when next opened
+     *
+     * @return number of documents dropped
+     */
+    public int evictIdle(long idleMillis) {
+        if (snapshotStore == SnapshotStore.NONE) {
+            return 0; // Nowhere to load them back from
+        }
+        snapshotLock.lock();
+        try {
+            return evict(cache.idleCandidates(idleMillis));
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Number of documents, whether in memory or only in the snapshot store
+     */
+    public int getDocumentCount() {
+        return positions.size();
+    }
+
+    /**
+     * Number of documents held in memory
+     */
+    public int getResidentCount() {
+        return cache.size();
+    }
+
+    DocumentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Snapshots every changed document that has reached one of the
+     * thresholds, then drops the log segments that no document needs anymore.
+     * Each document is locked only while its state is captured; plain
+     * bodies are immutable, so the capture copies nothing, while a CRDT
+     * replica is encoded under the lock.
+     *
+     * @param editThreshold  logged edits since the last snapshot that make a document due
+     * @param byteThreshold  approximate logged bytes since the last snapshot that make it due
+     * @param maxAgeMillis   age of its oldest unsnapshotted edit that makes it due
+     * @return number of documents snapshotted
+     * @throws java.io.UncheckedIOException if the snapshots could not be written
+     */
+    public int writeSnapshots(int editThreshold, long byteThreshold, long maxAgeMillis) {
+        if (snapshotStore == SnapshotStore.NONE) {
+            return 0; // Nothing would keep the changes once the log is truncated
+        }
+        snapshotLock.lock();
+        try {
+            // Records appended from here on are newer than anything the scan below can miss
+            long truncateBound = editLog.nextLsn();
+            long now = System.currentTimeMillis();
+            List<Capture> batch = new ArrayList<>();
+            int written = 0;
+            for (Map.Entry<String, LogPosition> entry : positions.entrySet()) {
+                LogPosition position = entry.getValue();
+                if (position.firstUnsnapshotted == 0 || (position.edits < editThreshold
+                        && position.bytes < byteThreshold && now - position.dirtySince < maxAgeMillis)) {
+                    continue;
+                }
+                Document document = cache.peek(entry.getKey());
+                Capture capture = document != null ? capture(document, position) : null;
+                if (capture != null) {
+                    batch.add(capture);
+                }
+                if (batch.size() == SNAPSHOT_BATCH_SIZE) {
+                    written += save(batch);
+                    batch.clear();
+                }
+            }
+            written += save(batch);
+            if (written == 0 && !truncationDue) {
+                return 0; // No document's oldest needed record moved, so no segment was freed
+            }
+            truncationDue = false;
+            for (Map.Entry<String, LogPosition> entry : positions.entrySet()) {
+                Document document = cache.peek(entry.getKey());
+                if (document == null) {
+                    continue;
+                }
+                // Under the lock, so a record appended before the scan is seen with its position
+                synchronized (document) {
+                    long first = entry.getValue().firstUnsnapshotted;
+                    if (first != 0) {
+                        truncateBound = Math.min(truncateBound, first);
+                    }
+                }
+            }
+            int deleted = editLog.truncateBefore(truncateBound);
+            log.debug("Snapshotted {} documents; deleted {} log segments before LSN {}", written, deleted,
+                    truncateBound);
+            return written;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Snapshots every document changed since its last snapshot, e.g. on shutdown
+     */
+    public int writeAllSnapshots() {
+        return writeSnapshots(0, 0, 0);
+    }
+
+    /**
+     * Evicts documents if the cache is over its limits, unless another
+     * thread is already evicting or snapshotting
+     */
+    private void evictIfOverCapacity() {
+        if (!cache.isOverCapacity() || snapshotStore == SnapshotStore.NONE || !snapshotLock.tryLock()) {
+            return;
         }
+        try {
+            int evicted = evict(cache.evictionCandidates());
+            log.debug("Cache over its limits; evicted {} documents, {} remain", evicted, cache.size());
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Writes back the candidates' unsnapshotted changes and drops them from
+     * memory; the caller holds the snapshot lock
+     */
+    private int evict(List<Document> candidates) {
+        List<Capture> batch = new ArrayList<>();
+        for (Document document : candidates) {
+            LogPosition position = positions.get(document.getId());
+            if (position != null && position.firstUnsnapshotted != 0) {
+                Capture capture = capture(document, position);
+                if (capture != null) {
+                    batch.add(capture);
+                }
+            }
+        }
+        int writtenBack = save(batch);
+        if (writtenBack > 0) {
+            cache.recordWriteBacks(writtenBack);
+            truncationDue = true;
+        }
+        int evicted = 0;
+        for (Document document : candidates) {
+            String id = document.getId();
+            LogPosition position = positions.get(id);
+            synchronized (document) {
+                // Edits check residency under this lock, so none can land on the dropped instance
+                if (position != null && position.isClean() && !cache.isPinned(id) && cache.evict(id, document)) {
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    private Capture capture(Document document, LogPosition position) {
+        synchronized (document) {
+            CrdtSequence replica = document.getCrdt();
+            if (replica != null && replica.pendingCount() > 0) {
+                // Waiting operations are not part of the state; keep their records in the log
+                return null;
+            }
+            DocumentSnapshot snapshot = new DocumentSnapshot(document.getId(), document.getDocumentType(),
+                    document.getLastEditor(), document.getLastEditTime(), document.getRevision(), position.lastLsn,
+                    replica == null ? document.snapshot() : null, replica != null ? replica.encodeState() : null);
+            return new Capture(document, position, snapshot, position.edits, position.bytes);
+        }
+    }
+
+    private int save(List<Capture> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<DocumentSnapshot> snapshots = new ArrayList<>(batch.size());
+        long lastLsn = 0;
+        for (Capture capture : batch) {
+            snapshots.add(capture.snapshot());
+            lastLsn = Math.max(lastLsn, capture.snapshot().lsn());
+        }
+        // A snapshot must not get ahead of the log, or a crash could reuse the LSNs it covers
+        editLog.awaitDurable(lastLsn);
+        snapshotStore.save(snapshots);
+        for (Capture capture : batch) {
+            LogPosition position = capture.position();
+            synchronized (capture.document()) {
+                long lsn = capture.snapshot().lsn();
+                position.snapshotLsn = lsn;
+                if (position.lastLsn == lsn) {
+                    position.firstUnsnapshotted = 0;
+                    position.edits = 0;
+                    position.bytes = 0;
+                } else {
+                    // Edited while the snapshot was written; those records come after its LSN
+                    position.firstUnsnapshotted = lsn + 1;
+                    position.edits -= capture.edits();
+                    position.bytes -= capture.bytes();
+                }
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * Appends a change to the log and notes it in the document's position;
+     * the caller holds the document's lock
+     */
+    private long log(Document document, EditRecord record) {
+        long lsn = editLog.append(record);
+        logged(document.getId(), record, lsn);
+        return lsn;
+    }
+
+    private void logged(String documentId, EditRecord record, long lsn) {
+        LogPosition position = positions.computeIfAbsent(documentId, id -> new LogPosition(0));
+        position.lastLsn = lsn;
+        if (position.firstUnsnapshotted == 0) {
+            position.firstUnsnapshotted = lsn;
+            position.dirtySince = System.currentTimeMillis();
+        }
+        position.edits++;
+        position.bytes += approximateSize(record);
+    }
+
+    private static int approximateSize(EditRecord record) {
+        int text = switch (record) {
+            case EditRecord.Replace replace -> replace.content() != null ? replace.content().length() : 0;
+            case EditRecord.Rebase rebase -> rebase.content() != null ? rebase.content().length() : 0;
+            case EditRecord.Insert insert -> insert.text() != null ? insert.text().length() : 0;
+            case EditRecord.Operation operation -> operation.operation().getWeight();
+            case EditRecord.Crdt crdt -> crdt.operation() instanceof CrdtOperation.Insert insert
+                    ? insert.text().length() : 0;
+            case EditRecord.Create create -> 0;
+            case EditRecord.SetType setType -> 0;
+            case EditRecord.Delete delete -> 0;
+        };
+        return RECORD_OVERHEAD_BYTES + text;
+    }
+
+    /**
+     * Applies a change to a document under its lock, then waits for the
+     * change to be durable. The change must log itself.
+     *
+     * @return the change's result, or null if there is no such document
+     */
+    private <T> T edit(String id, Function<Document, T> change) {
+        while (true) {
+            Document document = resident(id);
+            if (document == null) {
+                return null;
+            }
+            T result;
+            long lsn;
+            synchronized (document) {
+                if (cache.peek(id) != document) {
+                    continue; // Evicted after it was looked up; edit the reloaded instance instead
+                }
+                result = change.apply(document);
+                cache.reweigh(document);
+                lsn = positions.get(id).lastLsn;
+            }
+            editLog.awaitDurable(lsn);
+            return result;
+        }
+    }
+
+    /**
+     * Returns the in-memory instance of a document, loading it from its snapshot if needed
+     */
+    private Document resident(String id) {
+        Document document = cache.get(id);
+        if (document != null) {
+            return document;
+        }
+        LogPosition position = positions.get(id);
+        if (position == null || position.snapshotLsn == 0) {
+            return null;
+        }
+        document = cache.computeIfAbsent(id, this::load);
+        evictIfOverCapacity();
+        return document;
+    }
+
+    private Document load(String id) {
+        DocumentSnapshot snapshot = snapshotStore.load(id);
+        if (snapshot == null) {
+            log.error("Snapshot of document {} is missing or unreadable", id);
+            return null;
+        }
+        Document document = Document.restore(snapshot.documentId(), snapshot.documentType(),
+                snapshot.content() != null ? snapshot.content().toString() : null, snapshot.crdtState(),
+                snapshot.revision(), crdtClient);
+        touch(document, snapshot.lastEditor(), snapshot.lastEditTime());
+        return document;
+    }
+
+    /**
+     * Applies a logged change during startup, without logging it again
+     */
+    private void replay(EditRecord record) {
+        if (record instanceof EditRecord.Create create) {
+            Document document = newDocument();
+            document.setId(create.documentId());
+            document.setLastEditTime(create.time());
+            if (create.documentType() != null) {
+                document.setDocumentType(create.documentType());
+            }
+            cache.put(document);
+            return;
+        }
+        Document document = resident(record.documentId());
+        if (document == null) {
+            log.warn("Edit log refers to unknown document {}; skipping record", record.documentId());
+            return;
+        }
+        switch (record) {
+            case EditRecord.SetType setType -> document.setDocumentType(setType.documentType());
+            case EditRecord.Replace replace -> {
+                document.setContent(replace.content());
+                touch(document, replace.editor(), replace.time());
+            }
+            case EditRecord.Rebase rebase -> {
+                document.rebase(rebase.content(), rebase.revision());
+                touch(document, rebase.editor(), rebase.time());
+            }
+            case EditRecord.Insert insert -> {
+                document.insert(insert.position(), insert.text());
+                touch(document, insert.editor(), insert.time());
+            }
+            case EditRecord.Delete delete -> {
+                document.delete(delete.position(), delete.length());
+                touch(document, delete.editor(), delete.time());
+            }
+            case EditRecord.Operation operation -> {
+                document.apply(operation.operation());
+                touch(document, operation.editor(), operation.time());
+            }
+            case EditRecord.Crdt crdt -> {
+                if (document.getCrdt().apply(crdt.operation())) {
+                    touch(document, crdt.editor(), crdt.time());
+                }
+            }
+            case EditRecord.Create create -> throw new IllegalStateException("Handled above");
+        }
+    }
+
+    private Document newDocument() {
+        Document document = new Document();
+        document.setCrdtClient(crdtClient);
+        return document;
+    }
+
+    private static void touch(Document document, String editor, long time) {
+        document.setLastEditor(editor);
+        document.setLastEditTime(time);
+    }
+
+    /**
+     * A document's place in the edit log. Written under the document's lock;
+     * volatile so snapshot rounds can skip clean documents without locking.
+     */
+    private static final class LogPosition {
+        // LSN of the document's latest record
+        volatile long lastLsn;
+        // LSN its stored snapshot covers, 0 if it has none
+        volatile long snapshotLsn;
+        // Lower bound of its oldest record not in the snapshot; 0 while the snapshot is current
+        volatile long firstUnsnapshotted;
+        // Edits and approximate bytes logged since the snapshot
+        volatile int edits;
+        volatile long bytes;
+        volatile long dirtySince;
+
+        LogPosition(long snapshotLsn) {
+            this.snapshotLsn = snapshotLsn;
+            this.lastLsn = snapshotLsn;
+        }
+
+        /**
+         * True if the document can be reloaded from its snapshot without losing anything
+         */
+        boolean isClean() {
+            return snapshotLsn != 0 && firstUnsnapshotted == 0;
+        }
+    }
+
+    private record Capture(Document document, LogPosition position, DocumentSnapshot snapshot, int edits,
+            long bytes) {
     }
-}
\ No newline at end of file
+}
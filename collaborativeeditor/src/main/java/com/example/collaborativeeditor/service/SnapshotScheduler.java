@@ -0,0 +1,97 @@
+package com.example.collaborativeeditor.service;
+
+import com.example.collaborativeeditor.config.EditorProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically snapshots documents whose logged changes have reached one of
+ * the configured thresholds, so that startup replays a short log tail and
+ * old log segments can be deleted, then drops idle documents from memory.
+ * Runs in phase 0, so it is stopped after the transports and can snapshot
+ * every remaining change on shutdown.
+ */
+@Slf4j
+@Component
+public class SnapshotScheduler implements SmartLifecycle {
+    private final DocumentService documentService;
+    private final EditorProperties.Persistence.Snapshot settings;
+    private final boolean enabled;
+    private ScheduledExecutorService timer;
+    private volatile boolean running;
+
+    public SnapshotScheduler(DocumentService documentService, EditorProperties properties) {
+        this.documentService = documentService;
+        this.settings = properties.getPersistence().getSnapshot();
+        this.enabled = properties.getPersistence().isEnabled();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        if (!enabled) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = settings.getCheckInterval().toMillis();
+        timer.scheduleWithFixedDelay(this::writeDue, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timer and snapshots every document changed since its last snapshot
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        if (timer == null) {
+            return;
+        }
+        timer.shutdown();
+        try {
+            timer.awaitTermination(1, TimeUnit.MINUTES);
+            int written = documentService.writeAllSnapshots();
+            log.info("Snapshotted {} documents on shutdown", written);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Final snapshot failed; changes remain in the edit log", e);
+        }
+        timer = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+
+    private void writeDue() {
+        try {
+            documentService.writeSnapshots(settings.getEditThreshold(), settings.getByteThreshold(),
+                    settings.getInterval().toMillis());
+            documentService.evictIdle(settings.getIdleEviction().toMillis());
+        } catch (RuntimeException e) {
+            // The edit log still holds every change, so the next round simply tries again
+            log.error("Snapshot round failed", e);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.collaborativeeditor.text;
+
+/**
+ * Persistent, height-balanced rope.
+ * Text is held in small leaves under an AVL-balanced tree of branches. An edit
+ * splits the tree at the edit position and joins the pieces back together,
+ * rebuilding only the O(log n) nodes on the path; every other leaf is shared
+ * with the previous version. Old versions therefore stay valid for free and
+ * can be handed out as snapshots.
+ */
+public final class Rope implements TextBuffer {
+    // Upper bound on the number of characters held by a single leaf
+    static final int MAX_LEAF = 512;
+
+    private static final Leaf EMPTY_LEAF = new Leaf("");
+    private static final Rope EMPTY = new Rope(EMPTY_LEAF);
+
+    // Root of the tree; never null, an empty rope has an empty leaf
+    private final Node root;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    public static Rope empty() {
+        return EMPTY;
+    }
+
+    public static Rope of(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return EMPTY;
+        }
+        if (text instanceof Rope rope) {
+            return rope;
+        }
+        return new Rope(build(text.toString(), 0, text.length()));
+    }
+
+    @Override
+    public int length() {
+        return root.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        Node node = root;
+        while (node instanceof Branch branch) {
+            int leftLength = branch.left.length();
+            if (index < leftLength) {
+                node = branch.left;
+            } else {
+                index -= leftLength;
+                node = branch.right;
+            }
+        }
+        return ((Leaf) node).text.charAt(index);
+    }
+
+    @Override
+    public Rope insert(int index, CharSequence text) {
+        checkPosition(index);
+        if (text == null || text.length() == 0) {
+            return this;
+        }
+        Node[] parts = split(root, index);
+        Node inserted = text instanceof Rope rope ? rope.root : build(text.toString(), 0, text.length());
+        return new Rope(join(join(parts[0], inserted), parts[1]));
+    }
+
+    @Override
+    public Rope delete(int index, int length) {
+        checkRange(index, index + length);
+        if (length == 0) {
+            return this;
+        }
+        Node[] head = split(root, index);
+        Node[] tail = split(head[1], length);
+        return new Rope(join(head[0], tail[1]));
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        checkRange(start, end);
+        if (start == 0 && end == length()) {
+            return this;
+        }
+        Node[] head = split(root, start);
+        return new Rope(split(head[1], end - start)[0]);
+    }
+
+    /**
+     * Appends a range of this rope to a builder without materialising the
+     * rest of the text
+     *
+     * @param target builder to append to
+     * @param start  first character to append
+     * @param end    end of the range (exclusive)
+     */
+    public void appendTo(StringBuilder target, int start, int end) {
+        checkRange(start, end);
+        appendTo(root, target, start, end);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length());
+        appendTo(root, builder, 0, length());
+        return builder.toString();
+    }
+
+    /**
+     * Height of the underlying tree; exposed for balance checks in tests
+     */
+    int height() {
+        return root.height();
+    }
+
+    private void checkPosition(int index) {
+        if (index < 0 || index > length()) {
+            throw new IndexOutOfBoundsException("position " + index + ", length " + length());
+        }
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end < start || end > length()) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length());
+        }
+    }
+
+    private static void appendTo(Node node, StringBuilder target, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        if (node instanceof Leaf leaf) {
+            target.append(leaf.text, start, end);
+            return;
+        }
+        Branch branch = (Branch) node;
+        int leftLength = branch.left.length();
+        if (start < leftLength) {
+            appendTo(branch.left, target, start, Math.min(end, leftLength));
+        }
+        if (end > leftLength) {
+            appendTo(branch.right, target, Math.max(0, start - leftLength), end - leftLength);
+        }
+    }
+
+    /**
+     * Builds a perfectly balanced tree over text[start, end)
+     */
+    private static Node build(String text, int start, int end) {
+        if (end - start <= MAX_LEAF) {
+            return new Leaf(text.substring(start, end));
+        }
+        int leaves = (end - start + MAX_LEAF - 1) / MAX_LEAF;
+        int mid = start + (leaves / 2) * MAX_LEAF;
+        return new Branch(build(text, start, mid), build(text, mid, end));
+    }
+
+    /**
+     * Splits a tree into [0, index) and [index, length)
+     */
+    private static Node[] split(Node node, int index) {
+        if (index == 0) {
+            return new Node[] { EMPTY_LEAF, node };
+        }
+        if (index == node.length()) {
+            return new Node[] { node, EMPTY_LEAF };
+        }
+        if (node instanceof Leaf leaf) {
+            return new Node[] { new Leaf(leaf.text.substring(0, index)), new Leaf(leaf.text.substring(index)) };
+        }
+        Branch branch = (Branch) node;
+        int leftLength = branch.left.length();
+        if (index < leftLength) {
+            Node[] parts = split(branch.left, index);
+            return new Node[] { parts[0], join(parts[1], branch.right) };
+        }
+        if (index > leftLength) {
+            Node[] parts = split(branch.right, index - leftLength);
+            return new Node[] { join(branch.left, parts[0]), parts[1] };
+        }
+        return new Node[] { branch.left, branch.right };
+    }
+
+    /**
+     * Concatenates two balanced trees into a balanced tree.
+     * Small leaves are folded into their neighbour so that keystroke-sized
+     * inserts do not degrade the tree into one leaf per character.
+     */
+    private static Node join(Node left, Node right) {
+        if (left.length() == 0) {
+            return right;
+        }
+        if (right.length() == 0) {
+            return left;
+        }
+        if (right instanceof Leaf rightLeaf && rightmostLength(left) + rightLeaf.length() <= MAX_LEAF) {
+            return appendToRightmost(left, rightLeaf.text);
+        }
+        if (left instanceof Leaf leftLeaf && leftmostLength(right) + leftLeaf.length() <= MAX_LEAF) {
+            return prependToLeftmost(right, leftLeaf.text);
+        }
+        if (left.height() > right.height() + 1) {
+            Branch branch = (Branch) left;
+            return balance(branch.left, join(branch.right, right));
+        }
+        if (right.height() > left.height() + 1) {
+            Branch branch = (Branch) right;
+            return balance(join(left, branch.left), branch.right);
+        }
+        return new Branch(left, right);
+    }
+
+    /**
+     * Creates a branch over two subtrees whose heights differ by at most two,
+     * rotating when needed to restore the AVL invariant
+     */
+    private static Node balance(Node left, Node right) {
+        if (left.height() > right.height() + 1) {
+            Branch heavy = (Branch) left;
+            if (heavy.left.height() >= heavy.right.height()) {
+                return new Branch(heavy.left, new Branch(heavy.right, right));
+            }
+            Branch inner = (Branch) heavy.right;
+            return new Branch(new Branch(heavy.left, inner.left), new Branch(inner.right, right));
+        }
+        if (right.height() > left.height() + 1) {
+            Branch heavy = (Branch) right;
+            if (heavy.right.height() >= heavy.left.height()) {
+                return new Branch(new Branch(left, heavy.left), heavy.right);
+            }
+            Branch inner = (Branch) heavy.left;
+            return new Branch(new Branch(left, inner.left), new Branch(inner.right, heavy.right));
+        }
+        return new Branch(left, right);
+    }
+
+    private static int rightmostLength(Node node) {
+        while (node instanceof Branch branch) {
+            node = branch.right;
+        }
+        return node.length();
+    }
+
+    private static int leftmostLength(Node node) {
+        while (node instanceof Branch branch) {
+            node = branch.left;
+        }
+        return node.length();
+    }
+
+    private static Node appendToRightmost(Node node, String text) {
+        if (node instanceof Leaf leaf) {
+            return new Leaf(leaf.text.concat(text));
+        }
+        Branch branch = (Branch) node;
+        return new Branch(branch.left, appendToRightmost(branch.right, text));
+    }
+
+    private static Node prependToLeftmost(Node node, String text) {
+        if (node instanceof Leaf leaf) {
+            return new Leaf(text.concat(leaf.text));
+        }
+        Branch branch = (Branch) node;
+        return new Branch(prependToLeftmost(branch.left, text), branch.right);
+    }
+
+    private sealed interface Node permits Leaf, Branch {
+        int length();
+
+        int height();
+    }
+
+    private record Leaf(String text) implements Node {
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public int height() {
+            return 0;
+        }
+    }
+
+    private static final class Branch implements Node {
+        private final Node left;
+        private final Node right;
+        // Cached so that walks and joins never recompute subtree sizes
+        private final int length;
+        private final int height;
+
+        Branch(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            this.length = left.length() + right.length();
+            this.height = Math.max(left.height(), right.height()) + 1;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.collaborativeeditor.text;
+
+/**
+ * Immutable text storage used as the body of a document.
+ * Every edit returns a new buffer and leaves the receiver untouched, so a
+ * reference to a buffer is also a consistent snapshot of the text at that time.
+ * Implementations are expected to make edits cost proportional to the size of
+ * the change rather than the size of the document.
+ */
+public interface TextBuffer extends CharSequence {
+
+    /**
+     * Returns a buffer with the given text inserted
+     *
+     * @param index position to insert at (0..length)
+     * @param text  text to insert
+     * @return the edited buffer
+     * @throws IndexOutOfBoundsException if index is outside the buffer
+     */
+    TextBuffer insert(int index, CharSequence text);
+
+    /**
+     * Returns a buffer with a range of characters removed
+     *
+     * @param index  position of the first character to remove
+     * @param length number of characters to remove
+     * @return the edited buffer
+     * @throws IndexOutOfBoundsException if the range is outside the buffer
+     */
+    TextBuffer delete(int index, int length);
+
+    @Override
+    TextBuffer subSequence(int start, int end);
+
+    /**
+     * Creates an empty buffer using the default implementation
+     */
+    static TextBuffer empty() {
+        return Rope.empty();
+    }
+
+    /**
+     * Creates a buffer holding the given text using the default implementation
+     */
+    static TextBuffer of(CharSequence text) {
+        return Rope.of(text);
+    }
+}
@@ -3,7 +3,7 @@ package com.example.collaborativeeditor;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+@SpringBootTest(properties = "editor.persistence.data-dir=target/test-data")
 class CollaborativeeditorApplicationTests {
 
 	@Test
@@ -0,0 +1,364 @@
+package com.example.collaborativeeditor.cluster;
+
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.network.FrameBroadcaster;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import com.example.collaborativeeditor.network.tcp.TcpServer;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTracer;
+import com.example.collaborativeeditor.service.DocumentService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs two cluster nodes in this JVM, on localhost ports of their own
+ */
+class ClusterRouterTest {
+	private final List<Node> nodes = new ArrayList<>();
+	private final List<Socket> sockets = new ArrayList<>();
+	private List<String> members;
+
+	@AfterEach
+	void stopNodes() throws IOException {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		nodes.forEach(Node::stop);
+	}
+
+	@Test
+	void editsOnAnotherNodeAreAppliedByTheOwnerAndReachEveryClient() throws Exception {
+		configure(2);
+		Node a = start(0);
+		Node b = start(1);
+		awaitMembers(a, b);
+		String id = documentOwnedBy(b);
+		b.documentService.openDocument(id, "text");
+
+		Socket bob = connect(b);
+		send(bob, NetworkMessage.createJoinMessage(id, "bob"));
+		send(bob, NetworkMessage.createEditMessage(id, "hello", "bob"));
+		await(() -> "hello".equals(content(b, id)));
+
+		// Node a starts following the document and passes the owner's body on
+		Socket carol = connect(a);
+		send(carol, NetworkMessage.createJoinMessage(id, "carol"));
+		assertEquals("hello", receive(carol).getContent());
+		Socket alice = connect(a);
+		send(alice, NetworkMessage.createJoinMessage(id, "alice"));
+		send(alice, NetworkMessage.createEditMessage(id, "hi", "alice"));
+
+		NetworkMessage atOwner = receive(bob);
+		assertEquals("hi", atOwner.getContent());
+		assertEquals("alice", atOwner.getUserId());
+		assertEquals("hi", receive(carol).getContent());
+		assertEquals("hi", content(b, id));
+		await(() -> "hi".equals(content(a, id)));
+
+		// Alice did not get her own edit back
+		send(bob, NetworkMessage.createEditMessage(id, "bye", "bob"));
+		assertEquals("bye", receive(alice).getContent());
+		assertFalse(a.router.owns(id));
+	}
+
+	@Test
+	void everyNodeCountsTheOwnersRevisions() throws Exception {
+		configure(2);
+		Node a = start(0);
+		Node b = start(1);
+		awaitMembers(a, b);
+		String id = documentOwnedBy(b);
+		b.documentService.openDocument(id, "text");
+		// Edits from before node a follows the document
+		b.documentService.updateDocument(id, "one", "bob");
+		b.documentService.updateDocument(id, "two", "bob");
+
+		Socket alice = connect(a);
+		send(alice, NetworkMessage.createJoinMessage(id, "alice"));
+		NetworkMessage body = receive(alice);
+		assertEquals("two", body.getContent());
+		assertEquals(2, body.getRevision());
+		send(alice, NetworkMessage.createEditMessage(id, "three", "alice"));
+		await(() -> "three".equals(content(a, id)));
+		assertEquals(3, a.documentService.getDocument(id).getRevision());
+		assertEquals(3, b.documentService.getDocument(id).getRevision());
+
+		// A client that saw revision 3 at the owner has missed nothing at node a
+		Socket carol = connect(a);
+		send(carol, NetworkMessage.createRejoinMessage(id, "carol", 3));
+		NetworkMessage catchUp = receive(carol);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_CATCH_UP, catchUp.getType());
+		assertEquals(3, catchUp.getRevision());
+		assertEquals("[]", catchUp.getContent());
+	}
+
+	@Test
+	void versionedOperationsAreTransformedByTheOwner() throws Exception {
+		configure(2);
+		Node a = start(0);
+		Node b = start(1);
+		awaitMembers(a, b);
+		String id = documentOwnedBy(b);
+		b.documentService.openDocument(id, "text");
+		b.documentService.updateDocument(id, "hello", "bob");
+		Socket carol = connect(a);
+		send(carol, NetworkMessage.createJoinMessage(id, "carol"));
+		assertEquals("hello", receive(carol).getContent());
+
+		// What node a's WebSocket handler forwards for a client of its own
+		BlockingQueue<Long> answers = new LinkedBlockingQueue<>();
+		ForwardListener listener = new ForwardListener() {
+			@Override
+			public void applied(long revision) {
+				answers.add(revision);
+			}
+
+			@Override
+			public void rejected() {
+				answers.add(-1L);
+			}
+		};
+		// Made at revision 1, while the owner has moved on to revision 2
+		b.documentService.insertText(id, 0, "> ", "bob");
+		assertTrue(a.router.forwardOperation(id, 1, "[5,\" world\"]", "alice", new Object(), listener));
+		assertEquals(3, answers.poll(10, TimeUnit.SECONDS));
+		assertEquals("> hello world", content(b, id));
+		// Node a never saw the owner's own insert, so it fetches the document again
+		await(() -> "> hello world".equals(content(a, id)));
+		assertEquals(3, a.documentService.getDocument(id).getRevision());
+
+		// A revision the owner never had
+		assertTrue(a.router.forwardOperation(id, 7, "[\"x\"]", "alice", new Object(), listener));
+		assertEquals(-1, answers.poll(10, TimeUnit.SECONDS));
+		assertEquals("> hello world", content(b, id));
+	}
+
+	@Test
+	void aNodeThatComesUpIsHandedItsDocuments() throws Exception {
+		configure(2);
+		Node a = start(0);
+		String id = documentOwnedBy(member(1));
+		// Alone, node a owns everything
+		assertTrue(a.router.owns(id));
+		a.documentService.openDocument(id, "text");
+		Socket alice = connect(a);
+		send(alice, NetworkMessage.createJoinMessage(id, "alice"));
+		send(alice, NetworkMessage.createEditMessage(id, "draft", "alice"));
+		await(() -> "draft".equals(content(a, id)));
+
+		Node b = start(1);
+		awaitMembers(a, b);
+		await(() -> "draft".equals(content(b, id)));
+		// The new owner carries on from the old owner's revision
+		assertEquals(1, b.documentService.getDocument(id).getRevision());
+
+		Socket bob = connect(b);
+		send(bob, NetworkMessage.createJoinMessage(id, "bob"));
+		send(bob, NetworkMessage.createEditMessage(id, "final", "bob"));
+		// The new owner's body may come first
+		NetworkMessage edit;
+		do {
+			edit = receive(alice);
+		} while (!"final".equals(edit.getContent()));
+		assertEquals("bob", edit.getUserId());
+	}
+
+	@Test
+	void documentsOfANodeThatGoesDownMoveToTheOthers() throws Exception {
+		configure(2);
+		Node a = start(0);
+		Node b = start(1);
+		awaitMembers(a, b);
+		String id = documentOwnedBy(b);
+		b.documentService.openDocument(id, "text");
+
+		Socket alice = connect(a);
+		send(alice, NetworkMessage.createJoinMessage(id, "alice"));
+		send(alice, NetworkMessage.createEditMessage(id, "kept", "alice"));
+		await(() -> "kept".equals(content(b, id)) && "kept".equals(content(a, id)));
+
+		b.stop();
+		await(() -> a.router.owns(id));
+		send(alice, NetworkMessage.createEditMessage(id, "after", "alice"));
+		await(() -> "after".equals(content(a, id)));
+	}
+
+	@Test
+	void editsTheOwnerNeverEchoedAreAppliedByTheNextOwner() throws Exception {
+		configure(2);
+		Node a = start(0);
+		Node b = start(1);
+		awaitMembers(a, b);
+		String id = documentOwnedBy(b);
+		b.documentService.openDocument(id, "text");
+
+		Socket alice = connect(a);
+		send(alice, NetworkMessage.createJoinMessage(id, "alice"));
+		Socket carol = connect(a);
+		send(carol, NetworkMessage.createJoinMessage(id, "carol"));
+		send(alice, NetworkMessage.createEditMessage(id, "first", "alice"));
+		assertEquals("first", receive(carol).getContent());
+
+		// The owner takes the next edit but goes down before applying it
+		CountDownLatch stuck = new CountDownLatch(1);
+		b.mailboxes.execute(id, () -> {
+			try {
+				stuck.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		try {
+			send(alice, NetworkMessage.createEditMessage(id, "second", "alice"));
+			await(() -> a.registry.get("editor.cluster.forwarded").counter().count() == 2);
+			b.stop();
+			await(() -> a.router.owns(id));
+			assertEquals("second", receive(carol).getContent());
+			assertEquals("second", content(a, id));
+		} finally {
+			stuck.countDown();
+		}
+	}
+
+	private void configure(int count) throws IOException {
+		members = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			try (ServerSocket probe = new ServerSocket(0)) {
+				members.add("localhost:" + probe.getLocalPort());
+			}
+		}
+	}
+
+	private String member(int index) {
+		return members.get(index);
+	}
+
+	private Node start(int index) {
+		Node node = new Node(members, members.get(index));
+		nodes.add(node);
+		return node;
+	}
+
+	/**
+	 * Returns a document id the full cluster assigns to the node
+	 */
+	private String documentOwnedBy(Node node) {
+		return documentOwnedBy(node.router.getNodeId());
+	}
+
+	private String documentOwnedBy(String node) {
+		HashRing ring = new HashRing(members, 128);
+		for (int i = 0; ; i++) {
+			if (ring.owner("doc-" + i).equals(node)) {
+				return "doc-" + i;
+			}
+		}
+	}
+
+	private void awaitMembers(Node... up) throws InterruptedException {
+		await(() -> {
+			for (Node node : up) {
+				if (node.registry.get("editor.cluster.members").gauge().value() != up.length) {
+					return false;
+				}
+			}
+			return true;
+		});
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < deadline, "Timed out");
+			Thread.sleep(10);
+		}
+	}
+
+	private static String content(Node node, String id) {
+		Document document = node.documentService.getDocument(id);
+		return document == null ? null : document.getContent();
+	}
+
+	private Socket connect(Node node) throws IOException {
+		Socket socket = new Socket("localhost", node.server.getPort());
+		socket.setSoTimeout(10_000);
+		sockets.add(socket);
+		return socket;
+	}
+
+	private static void send(Socket socket, NetworkMessage message) throws IOException {
+		socket.getOutputStream().write(message.serialize());
+		socket.getOutputStream().flush();
+	}
+
+	private static NetworkMessage receive(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		byte type = in.readByte();
+		int length = in.readInt();
+		byte[] frame = new byte[5 + length];
+		frame[0] = type;
+		frame[1] = (byte) (length >>> 24);
+		frame[2] = (byte) (length >>> 16);
+		frame[3] = (byte) (length >>> 8);
+		frame[4] = (byte) length;
+		in.readFully(frame, 5, length);
+		return NetworkMessage.deserialize(frame);
+	}
+
+	/**
+	 * One node: its documents, binary TCP server and router
+	 */
+	private static final class Node {
+		final DocumentService documentService = new DocumentService();
+		final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		final DocumentMailboxes mailboxes = new DocumentMailboxes(executor);
+		final ClusterRouter router;
+		final TcpServer server;
+
+		Node(List<String> members, String nodeId) {
+			EditorProperties properties = new EditorProperties();
+			properties.getTcp().setPort(Integer.parseInt(nodeId.substring(nodeId.indexOf(':') + 1)));
+			properties.getTcp().setReactorThreads(1);
+			EditorProperties.Cluster cluster = properties.getCluster();
+			cluster.setEnabled(true);
+			cluster.setNodeId(nodeId);
+			cluster.setNodes(members);
+			cluster.setReconnectInterval(Duration.ofMillis(100));
+			TcpServer[] self = new TcpServer[1];
+			FrameBroadcaster broadcaster = new FrameBroadcaster(() -> List.of(self[0]));
+			router = new ClusterRouter(properties, documentService, mailboxes, broadcaster, executor, registry);
+			server = new TcpServer(documentService, mailboxes, properties, executor, broadcaster, registry,
+					EditTracer.NONE, router);
+			self[0] = server;
+			server.start();
+			router.start();
+		}
+
+		void stop() {
+			router.stop();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.example.collaborativeeditor.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+	private static final List<String> NODES = List.of("node-a:9000", "node-b:9000", "node-c:9000");
+
+	@Test
+	void everyNodeComputesTheSameOwners() {
+		HashRing ring = new HashRing(NODES, 128);
+		HashRing shuffled = new HashRing(List.of("node-c:9000", "node-a:9000", "node-b:9000", "node-a:9000"), 128);
+		assertEquals(NODES, shuffled.nodes());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(ring.owner("doc-" + i), shuffled.owner("doc-" + i));
+		}
+	}
+
+	@Test
+	void documentsSpreadEvenlyAcrossNodes() {
+		HashRing ring = new HashRing(NODES, 128);
+		Map<String, Integer> counts = new HashMap<>();
+		int documents = 30_000;
+		for (int i = 0; i < documents; i++) {
+			counts.merge(ring.owner("doc-" + i), 1, Integer::sum);
+		}
+		for (String node : NODES) {
+			int count = counts.getOrDefault(node, 0);
+			// Within a quarter of an even share
+			assertTrue(Math.abs(count - documents / 3) < documents / 12, node + " owns " + count);
+		}
+	}
+
+	@Test
+	void aJoiningNodeTakesDocumentsOnlyFromTheOthers() {
+		HashRing before = new HashRing(NODES.subList(0, 2), 128);
+		HashRing after = new HashRing(NODES, 128);
+		int moved = 0;
+		for (int i = 0; i < 10_000; i++) {
+			String id = "doc-" + i;
+			if (!before.owner(id).equals(after.owner(id))) {
+				assertEquals("node-c:9000", after.owner(id));
+				moved++;
+			}
+		}
+		assertTrue(moved > 2000 && moved < 4700, moved + " documents moved");
+	}
+
+	@Test
+	void aLeavingNodeGivesUpOnlyItsOwnDocuments() {
+		HashRing before = new HashRing(NODES, 128);
+		HashRing after = new HashRing(List.of("node-a:9000", "node-c:9000"), 128);
+		for (int i = 0; i < 10_000; i++) {
+			String id = "doc-" + i;
+			if (!before.owner(id).equals("node-b:9000")) {
+				assertEquals(before.owner(id), after.owner(id));
+			}
+		}
+	}
+
+	@Test
+	void aRingNeedsNodesAndPoints() {
+		assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of(), 128));
+		assertThrows(IllegalArgumentException.class, () -> new HashRing(NODES, 0));
+	}
+}
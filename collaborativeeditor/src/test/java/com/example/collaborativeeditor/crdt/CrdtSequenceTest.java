@@ -0,0 +1,141 @@
+package com.example.collaborativeeditor.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrdtSequenceTest {
+
+	@Test
+	void replicasConvergeWhateverTheDeliveryOrder() {
+		Random random = new Random(5);
+		for (int round = 0; round < 200; round++) {
+			CrdtSequence origin = CrdtSequence.fromText("shared text");
+			List<CrdtSequence> replicas = new ArrayList<>();
+			List<CrdtOperation> operations = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				replicas.add(CrdtSequence.fromState(origin.encodeState()));
+			}
+			// Every replica edits concurrently without seeing the others
+			for (CrdtSequence replica : replicas) {
+				for (int i = 0; i < 5; i++) {
+					operations.addAll(randomEdit(random, replica));
+				}
+			}
+			List<String> results = new ArrayList<>();
+			for (CrdtSequence replica : replicas) {
+				List<CrdtOperation> shuffled = new ArrayList<>(operations);
+				Collections.shuffle(shuffled, random);
+				shuffled.forEach(replica::apply);
+				results.add(replica.text().toString());
+			}
+			assertEquals(results.get(0), results.get(1));
+			assertEquals(results.get(0), results.get(2));
+		}
+	}
+
+	@Test
+	void duplicateOperationsAreIgnored() {
+		CrdtSequence source = CrdtSequence.fromText("ab");
+		CrdtSequence target = CrdtSequence.fromState(source.encodeState());
+		CrdtOperation insert = source.insertLocal(1, "X");
+		CrdtOperation after = source.insertLocal(2, "Y");
+		// Refers to the insert, so it waits for it, once however often it arrives
+		assertEquals(CrdtSequence.Outcome.PENDING, target.merge(after));
+		assertEquals(CrdtSequence.Outcome.IGNORED, target.merge(after));
+		assertEquals(1, target.pendingCount());
+		assertEquals(CrdtSequence.Outcome.APPLIED, target.merge(insert));
+		assertEquals(CrdtSequence.Outcome.IGNORED, target.merge(insert));
+		assertEquals(CrdtSequence.Outcome.IGNORED, target.merge(after));
+		assertEquals(0, target.pendingCount());
+		assertEquals("aXYb", target.text().toString());
+	}
+
+	@Test
+	void insertsOverlappingKnownIdsAreIgnored() {
+		CrdtSequence sequence = CrdtSequence.fromText("");
+		assertEquals(CrdtSequence.Outcome.APPLIED,
+				sequence.merge(new CrdtOperation.Insert(new ItemId("c", 5), null, null, "abc")));
+		// Its first id is new, the last one is not
+		assertEquals(CrdtSequence.Outcome.IGNORED,
+				sequence.merge(new CrdtOperation.Insert(new ItemId("c", 3), null, null, "xyz")));
+		// Starts inside the known run
+		assertEquals(CrdtSequence.Outcome.IGNORED,
+				sequence.merge(new CrdtOperation.Insert(new ItemId("c", 7), null, null, "pq")));
+		assertEquals(CrdtSequence.Outcome.APPLIED,
+				sequence.merge(new CrdtOperation.Insert(new ItemId("c", 8), null, null, "d")));
+		assertEquals(CrdtSequence.Outcome.APPLIED,
+				sequence.merge(new CrdtOperation.Insert(new ItemId("c", 2), null, null, "xyz")));
+		assertEquals("xyzdabc", sequence.text().toString());
+	}
+
+	@Test
+	void compactionCollapsesRunsAndTombstones() {
+		CrdtSequence sequence = CrdtSequence.fromText("");
+		for (int i = 0; i < 500; i++) {
+			sequence.insertLocal(i, "x");
+		}
+		sequence.deleteLocal(100, 300);
+		sequence.compact();
+		assertEquals(200, sequence.text().length());
+		// One live run, one tombstone run, one live run
+		assertEquals(3, sequence.itemCount());
+	}
+
+	@Test
+	void positionsStayRightThroughSplitsDeletesAndCompaction() {
+		Random random = new Random(11);
+		CrdtSequence sequence = CrdtSequence.fromText("0123456789");
+		StringBuilder expected = new StringBuilder("0123456789");
+		for (int i = 0; i < 5000; i++) {
+			int length = expected.length();
+			if (length > 0 && random.nextInt(3) == 0) {
+				int position = random.nextInt(length);
+				int count = 1 + random.nextInt(Math.min(5, length - position));
+				sequence.deleteLocal(position, count);
+				expected.delete(position, position + count);
+			} else {
+				int position = random.nextInt(length + 1);
+				String text = "ab".repeat(1 + random.nextInt(3));
+				sequence.insertLocal(position, text);
+				expected.insert(position, text);
+			}
+			if (i % 700 == 0) {
+				sequence.compact();
+			}
+		}
+		assertEquals(expected.toString(), sequence.text().toString());
+		// A replica built from the state finds the same positions
+		CrdtSequence copy = CrdtSequence.fromState(sequence.encodeState());
+		assertTrue(sequence.apply(copy.insertLocal(expected.length() / 2, "!")));
+		expected.insert(expected.length() / 2, "!");
+		assertEquals(expected.toString(), sequence.text().toString());
+	}
+
+	@Test
+	void stateRoundTripKeepsIdsUsable() {
+		CrdtSequence source = CrdtSequence.fromText("hello");
+		source.deleteLocal(0, 1);
+		CrdtSequence copy = CrdtSequence.fromState(source.encodeState());
+		CrdtOperation insert = copy.insertLocal(0, "J");
+		assertTrue(source.apply(insert));
+		assertEquals("Jello", source.text().toString());
+		assertEquals("Jello", copy.text().toString());
+	}
+
+	private static List<CrdtOperation> randomEdit(Random random, CrdtSequence replica) {
+		int length = replica.text().length();
+		if (length > 0 && random.nextInt(3) == 0) {
+			int position = random.nextInt(length);
+			return new ArrayList<>(replica.deleteLocal(position, 1 + random.nextInt(Math.min(3, length - position))));
+		}
+		String text = String.valueOf((char) ('a' + random.nextInt(26))).repeat(1 + random.nextInt(3));
+		return List.of(replica.insertLocal(random.nextInt(length + 1), text));
+	}
+}
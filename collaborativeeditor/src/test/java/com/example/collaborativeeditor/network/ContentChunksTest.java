@@ -0,0 +1,31 @@
+package com.example.collaborativeeditor.network;
+
+import com.example.collaborativeeditor.text.TextBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentChunksTest {
+
+	@Test
+	void chunksAddUpToTheBodyAsItWasWithoutSplittingSurrogatePairs() {
+		String body = "ab😀".repeat(1000);
+		TextBuffer content = TextBuffer.of(body);
+		ContentChunks chunks = new ContentChunks(content, 7);
+		// Edits after the reader was created leave what it reads untouched
+		content.insert(0, "later");
+
+		StringBuilder joined = new StringBuilder();
+		while (chunks.hasNext()) {
+			assertEquals(joined.length(), chunks.offset());
+			String chunk = chunks.next();
+			assertTrue(chunk.length() <= 7);
+			assertFalse(Character.isHighSurrogate(chunk.charAt(chunk.length() - 1)));
+			joined.append(chunk);
+		}
+		assertEquals(body, joined.toString());
+		assertEquals(body.length(), chunks.length());
+	}
+}
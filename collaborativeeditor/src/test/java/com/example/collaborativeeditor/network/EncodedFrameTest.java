@@ -0,0 +1,75 @@
+package com.example.collaborativeeditor.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EncodedFrameTest {
+
+	@Test
+	void eachProtocolIsEncodedOnceAndShared() {
+		EncodedFrame frame = EncodedFrame.edit("doc", "hello", "alice", 42, 7);
+		assertSame(frame.textMessage(), frame.textMessage());
+
+		ByteBuffer first = frame.tcpBuffer();
+		ByteBuffer second = frame.tcpBuffer();
+		assertTrue(first.isReadOnly());
+		// Draining one recipient's view leaves the others untouched
+		first.position(first.limit());
+		assertEquals(0, second.position());
+
+		byte[] bytes = new byte[second.remaining()];
+		second.get(bytes);
+		NetworkMessage decoded = NetworkMessage.deserialize(bytes);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_EDIT, decoded.getType());
+		assertEquals("hello", decoded.getContent());
+		assertEquals("alice", decoded.getUserId());
+		assertEquals(42, decoded.getTimestamp());
+		assertEquals(7, decoded.getRevision());
+		assertEquals("{\"documentId\":\"doc\",\"content\":\"hello\",\"editor\":\"alice\",\"timestamp\":42,"
+				+ "\"revision\":7}",
+				frame.textMessage().getPayload());
+	}
+
+	@Test
+	void aRelayedCrdtOperationIsEncodedForTcpOnlyWhenNeeded() {
+		EncodedFrame frame = EncodedFrame.crdt("doc", Map.of("kind", "delete", "length", 2), null, "dave", null);
+		ByteBuffer buffer = frame.tcpBuffer();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		NetworkMessage decoded = NetworkMessage.deserialize(bytes);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_CRDT, decoded.getType());
+		assertTrue(decoded.getContent().contains("\"length\":2"));
+	}
+
+	@Test
+	void anOperationReachesClusterNodesWithItsRevisionAndNumber() throws Exception {
+		EncodedFrame frame = EncodedFrame.operation("doc", List.of(3, "x"), null, "erin", 8, 42);
+		assertTrue(frame.isForPeersOnly());
+		assertTrue(frame.textMessage().getPayload().contains("\"type\":\"operation\""));
+		ByteBuffer buffer = frame.tcpBuffer();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		NetworkMessage decoded = NetworkMessage.deserialize(bytes);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_OPERATION, decoded.getType());
+		assertEquals(8, decoded.getRevision());
+		OperationContent content = OperationContent.parse(decoded.getContent());
+		assertEquals(42, content.number());
+		assertEquals(List.of(3, "x"), content.ops());
+		// A rejection names the operation and carries nothing else
+		assertEquals(new OperationContent(42, null), OperationContent.parse(OperationContent.encode(42, null)));
+	}
+
+	@Test
+	void protocolSpecificFramesAreSkippedByTheOtherTransport() {
+		assertFalse(EncodedFrame.webSocket("doc", EncodedFrame.Kind.PRESENCE, Map.of()).hasTcpForm());
+		assertFalse(EncodedFrame.of(NetworkMessage.createJoinMessage("doc", "bob")).hasWebSocketForm());
+	}
+}
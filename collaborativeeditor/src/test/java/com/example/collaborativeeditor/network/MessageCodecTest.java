@@ -0,0 +1,170 @@
+package com.example.collaborativeeditor.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageCodecTest {
+
+	@Test
+	void separatorsAndUnicodeSurviveTheRoundTrip() {
+		NetworkMessage message = message("doc|1", "a|b||c\n😀 ünïcode", "user|x", 1_700_000_000_000L, 7);
+
+		NetworkMessage decoded = NetworkMessage.deserialize(message.serialize());
+
+		assertEquals(message, decoded);
+	}
+
+	@Test
+	void legacyPayloadsAreStillDecoded() {
+		NetworkMessage message = message("doc", "x|y", "alice", 42, 0);
+
+		byte[] legacy = message.serialize(MessageCodec.VERSION_LEGACY);
+		assertEquals("doc|x|y|alice|42",
+				new String(legacy, MessageCodec.HEADER_LENGTH, legacy.length - MessageCodec.HEADER_LENGTH,
+						StandardCharsets.UTF_8));
+		assertEquals(message, NetworkMessage.deserialize(legacy));
+
+		MessageView view = new MessageView();
+		byte[] payload = "doc|hello|bob".getBytes(StandardCharsets.UTF_8);
+		view.wrap(NetworkMessage.MESSAGE_TYPE_EDIT, ByteBuffer.wrap(payload), 0, payload.length);
+		assertEquals(MessageCodec.VERSION_LEGACY, view.version());
+		assertEquals("hello", view.content());
+		assertEquals("bob", view.userId());
+	}
+
+	@Test
+	void viewReadsRoutingFieldsInPlaceFromADirectBuffer() {
+		byte[] frame = message("doc-42", "body", "carol", 5, 3).serialize();
+		ByteBuffer direct = ByteBuffer.allocateDirect(frame.length + 10);
+		direct.position(10);
+		direct.put(frame);
+
+		MessageView view = new MessageView();
+		view.wrap(frame[0], direct, 10 + MessageCodec.HEADER_LENGTH, frame.length - MessageCodec.HEADER_LENGTH);
+
+		assertEquals(MessageCodec.VERSION_2, view.version());
+		assertTrue(view.documentIdEquals("doc-42"));
+		assertFalse(view.documentIdEquals("doc-4"));
+		assertFalse(view.documentIdEquals("doc-421"));
+		String known = new String("doc-42");
+		assertTrue(known == view.documentId(known));
+		assertEquals("body", view.content());
+		assertEquals(3, view.revision());
+	}
+
+	@Test
+	void randomMessagesRoundTrip() {
+		Random random = new Random(11);
+		for (int i = 0; i < 2000; i++) {
+			NetworkMessage message = message(randomText(random), randomText(random), randomText(random),
+					random.nextLong() & Long.MAX_VALUE, random.nextInt(1 << 20));
+
+			assertEquals(message, NetworkMessage.deserialize(message.serialize()));
+		}
+	}
+
+	@Test
+	void corruptedPayloadsFailOnlyWithIllegalArgument() {
+		Random random = new Random(23);
+		MessageView view = new MessageView();
+		for (int i = 0; i < 5000; i++) {
+			byte[] frame = message(randomText(random), randomText(random), randomText(random),
+					random.nextLong() & Long.MAX_VALUE, random.nextInt(100)).serialize();
+			byte[] payload = new byte[frame.length - MessageCodec.HEADER_LENGTH];
+			System.arraycopy(frame, MessageCodec.HEADER_LENGTH, payload, 0, payload.length);
+			for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+				payload[random.nextInt(payload.length)] = (byte) random.nextInt(256);
+			}
+			int length = random.nextBoolean() ? payload.length : random.nextInt(payload.length + 1);
+
+			try {
+				view.wrap(frame[0], ByteBuffer.wrap(payload), 0, length);
+				view.documentId();
+				view.userId();
+				view.content();
+			} catch (IllegalArgumentException expected) {
+				// Rejected cleanly
+			}
+		}
+		assertThrows(IllegalArgumentException.class,
+				() -> view.wrap((byte) 1, ByteBuffer.wrap(new byte[] { 2, (byte) 0xFF }), 0, 2));
+	}
+
+	@Test
+	void largePayloadsAreDeflatedAndSmallOrIncompressibleOnesAreNot() {
+		NetworkMessage large = message("doc", "{\"insert\":\"lorem ipsum \"},".repeat(500), "alice", 9, 4);
+		byte[] frame = large.serialize();
+		byte[] compressed = MessageCodec.compress(frame, 1024);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_EDIT | MessageCodec.FLAG_COMPRESSED, compressed[0]);
+		assertTrue(compressed.length < frame.length / 10);
+		assertEquals(large, NetworkMessage.deserialize(compressed));
+
+		byte[] small = message("doc", "hi", "alice", 9, 4).serialize();
+		assertTrue(small == MessageCodec.compress(small, 1024));
+		// Deflate cannot shrink a payload this short
+		assertTrue(small == MessageCodec.compress(small, 1));
+	}
+
+	@Test
+	void compressedPayloadsAreCheckedAgainstTheirStatedLength() {
+		byte[] compressed = MessageCodec.compress(message("doc", "x".repeat(100_000), "a", 1, 1).serialize(), 1);
+		ByteBuffer payload = ByteBuffer.wrap(compressed, MessageCodec.HEADER_LENGTH,
+				compressed.length - MessageCodec.HEADER_LENGTH);
+
+		assertEquals(compressed.length - MessageCodec.HEADER_LENGTH, payload.remaining());
+		assertThrows(IllegalArgumentException.class, () -> MessageCodec.inflate(payload, 50_000));
+		assertThrows(IllegalArgumentException.class, () -> MessageCodec.decode(compressed[0], payload, 50_000));
+		// Claims one byte less than the stream holds
+		byte[] lying = compressed.clone();
+		lying[MessageCodec.HEADER_LENGTH]--;
+		assertThrows(IllegalArgumentException.class, () -> MessageCodec.inflate(
+				ByteBuffer.wrap(lying, MessageCodec.HEADER_LENGTH, lying.length - MessageCodec.HEADER_LENGTH),
+				Integer.MAX_VALUE));
+		byte[] truncated = Arrays.copyOf(compressed, compressed.length - 4);
+		assertThrows(IllegalArgumentException.class, () -> MessageCodec.inflate(
+				ByteBuffer.wrap(truncated, MessageCodec.HEADER_LENGTH, truncated.length - MessageCodec.HEADER_LENGTH),
+				Integer.MAX_VALUE));
+	}
+
+	@Test
+	void utf8LengthMatchesEncodedLength() {
+		for (String text : new String[] { "", "plain", "caf\u00e9", "\u20ac\u4e2d", "\ud83d\ude00 ok", "lone \ud83d",
+				"\ude00 lone" }) {
+			assertEquals(text.getBytes(StandardCharsets.UTF_8).length, MessageCodec.utf8Length(text), text);
+		}
+	}
+
+	private static NetworkMessage message(String documentId, String content, String userId, long timestamp,
+			long revision) {
+		NetworkMessage message = new NetworkMessage();
+		message.setType(NetworkMessage.MESSAGE_TYPE_EDIT);
+		message.setDocumentId(documentId);
+		message.setContent(content);
+		message.setUserId(userId);
+		message.setTimestamp(timestamp);
+		message.setRevision(revision);
+		return message;
+	}
+
+	private static String randomText(Random random) {
+		StringBuilder text = new StringBuilder();
+		for (int length = random.nextInt(20); length > 0; length--) {
+			switch (random.nextInt(4)) {
+				case 0 -> text.append('|');
+				case 1 -> text.append((char) ('a' + random.nextInt(26)));
+				case 2 -> text.append((char) (0x80 + random.nextInt(0x700)));
+				default -> text.appendCodePoint(0x1F600 + random.nextInt(50));
+			}
+		}
+		return text.toString();
+	}
+}
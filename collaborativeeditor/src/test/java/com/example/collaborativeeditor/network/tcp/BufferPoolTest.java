@@ -0,0 +1,50 @@
+package com.example.collaborativeeditor.network.tcp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTest {
+
+	@Test
+	void releasedBuffersAreReusedBySizeClass() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+
+		ByteBuffer first = pool.acquire(5000);
+		assertEquals(8192, first.capacity());
+		assertTrue(first.isDirect());
+		first.put((byte) 1);
+		pool.release(first);
+
+		ByteBuffer second = pool.acquire(8000);
+		assertSame(first, second);
+		assertEquals(0, second.position());
+		assertEquals(4096, pool.acquire(10).capacity());
+		assertEquals(1, pool.getHits());
+		assertEquals(2, pool.getMisses());
+	}
+
+	@Test
+	void requestsAndRetentionAreBounded() {
+		BufferPool pool = new BufferPool(3 * 1024 * 1024);
+		assertEquals(4 * 1024 * 1024, pool.getMaxBufferSize());
+		assertThrows(IllegalArgumentException.class, () -> pool.acquire(Integer.MAX_VALUE));
+
+		List<ByteBuffer> buffers = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			buffers.add(pool.acquire(pool.getMaxBufferSize()));
+		}
+		buffers.forEach(pool::release);
+		// The largest class keeps a single buffer
+		assertEquals(pool.getMaxBufferSize(), pool.getRetainedBytes());
+		pool.release(ByteBuffer.allocate(4096));
+		assertEquals(pool.getMaxBufferSize(), pool.getRetainedBytes());
+	}
+}
@@ -0,0 +1,287 @@
+package com.example.collaborativeeditor.network.tcp;
+
+import com.example.collaborativeeditor.cluster.ClusterRouter;
+import com.example.collaborativeeditor.config.EditorProperties;
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.network.FrameBroadcaster;
+import com.example.collaborativeeditor.network.MessageCodec;
+import com.example.collaborativeeditor.network.NetworkMessage;
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import com.example.collaborativeeditor.persistence.MappedSnapshotStore;
+import com.example.collaborativeeditor.pipeline.DocumentMailboxes;
+import com.example.collaborativeeditor.pipeline.EditTracer;
+import com.example.collaborativeeditor.service.DocumentService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TcpServerTest {
+	@TempDir
+	Path directory;
+	private final List<Socket> sockets = new ArrayList<>();
+	// Let idle documents be evicted
+	private FileEditLog editLog;
+	private MappedSnapshotStore snapshots;
+	private DocumentService documentService;
+	private TcpServer server;
+
+	@BeforeEach
+	void startServer() {
+		editLog = new FileEditLog(directory.resolve("wal"), FileEditLog.FsyncPolicy.NONE, Duration.ZERO);
+		snapshots = new MappedSnapshotStore(directory.resolve("snapshots"), 1 << 20);
+		documentService = new DocumentService(editLog, snapshots);
+		EditorProperties properties = new EditorProperties();
+		properties.getTcp().setPort(0);
+		properties.getTcp().setReactorThreads(2);
+		ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		server = new TcpServer(documentService, new DocumentMailboxes(executor), properties, executor,
+				new FrameBroadcaster(() -> List.of(server)), new SimpleMeterRegistry(), EditTracer.NONE,
+				ClusterRouter.STANDALONE);
+		server.start();
+	}
+
+	@AfterEach
+	void stopServer() throws IOException {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.stop();
+		snapshots.close();
+		editLog.close();
+	}
+
+	@Test
+	void manyConnectionsShareAFewReactorThreads() throws IOException {
+		Document document = createDocument();
+		int clients = 300;
+		for (int i = 0; i < clients; i++) {
+			Socket socket = connect();
+			send(socket, rejoin(document, "user-" + i));
+		}
+		for (Socket socket : sockets) {
+			assertEquals(NetworkMessage.MESSAGE_TYPE_CATCH_UP, receive(socket).getType());
+		}
+
+		send(sockets.get(0), NetworkMessage.createEditMessage(document.getId(), "hello", "user-0").serialize());
+		for (Socket socket : sockets.subList(1, clients)) {
+			NetworkMessage edit = receive(socket);
+			assertEquals(NetworkMessage.MESSAGE_TYPE_EDIT, edit.getType());
+			assertEquals("hello", edit.getContent());
+		}
+		assertEquals("hello", document.getContent());
+	}
+
+	@Test
+	void framesSplitAcrossReadsAreReassembled() throws Exception {
+		Document document = createDocument();
+		Socket writer = connect();
+		Socket reader = connect();
+		join(reader, document, "reader");
+
+		// Join and two edits written in one stream, one byte at a time
+		OutputStream out = writer.getOutputStream();
+		byte[][] frames = {
+				NetworkMessage.createJoinMessage(document.getId(), "writer").serialize(),
+				NetworkMessage.createEditMessage(document.getId(), "first", "writer").serialize(),
+				NetworkMessage.createEditMessage(document.getId(), "second", "writer").serialize() };
+		for (byte[] frame : frames) {
+			for (byte b : frame) {
+				out.write(b);
+				out.flush();
+			}
+		}
+
+		assertEquals("first", receive(reader).getContent());
+		assertEquals("second", receive(reader).getContent());
+	}
+
+	@Test
+	void eachClientIsAnsweredInThePayloadVersionItSpeaks() throws IOException {
+		Document document = createDocument();
+		Socket legacy = connect();
+		Socket current = connect();
+		send(current, rejoin(document, "new"));
+		assertEquals(MessageCodec.VERSION_2, receiveFrame(current)[MessageCodec.HEADER_LENGTH]);
+
+		// Legacy frames carry no revision; the edit follows the join on the same connection
+		send(legacy, NetworkMessage.createJoinMessage(document.getId(), "old").serialize(MessageCodec.VERSION_LEGACY));
+		send(legacy, NetworkMessage.createEditMessage(document.getId(), "a|b", "old")
+				.serialize(MessageCodec.VERSION_LEGACY));
+		assertEquals("a|b", receive(current).getContent());
+
+		send(current, NetworkMessage.createEditMessage(document.getId(), "c|d", "new").serialize());
+		byte[] frame = receiveFrame(legacy);
+		assertTrue(frame[MessageCodec.HEADER_LENGTH] != MessageCodec.VERSION_2);
+		assertEquals("c|d", NetworkMessage.deserialize(frame).getContent());
+	}
+
+	@Test
+	void oversizedFrameClosesOnlyThatConnection() throws IOException {
+		Document document = createDocument();
+		Socket hostile = connect();
+		Socket reader = connect();
+		join(reader, document, "reader");
+
+		// Announces a 2 GB payload
+		send(hostile, new byte[] { NetworkMessage.MESSAGE_TYPE_EDIT, 0x7F, 0, 0, 0, 1, 2, 3 });
+		assertEquals(-1, hostile.getInputStream().read());
+
+		Socket writer = connect();
+		send(writer, NetworkMessage.createEditMessage(document.getId(), "still fine", "writer").serialize());
+		assertEquals("still fine", receive(reader).getContent());
+	}
+
+	@Test
+	void largeFramesAreCompressedOnlyForClientsThatAcceptThem() throws IOException {
+		Document document = createDocument();
+		Socket compressing = connect();
+		Socket plain = connect();
+		byte[] join = rejoin(document, "new");
+		join[0] |= MessageCodec.FLAG_ACCEPTS_COMPRESSED;
+		send(compressing, join);
+		receive(compressing);
+		join(plain, document, "old");
+
+		// Sent compressed, inflated by the server, relayed compressed to the client that accepts it
+		String body = "{\"insert\":\"a line of text\\n\"},".repeat(2000);
+		Socket writer = connect();
+		send(writer, MessageCodec.compress(
+				NetworkMessage.createEditMessage(document.getId(), body, "writer").serialize(), 1));
+		byte[] compressed = receiveFrame(compressing);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_EDIT | MessageCodec.FLAG_COMPRESSED, compressed[0]);
+		assertTrue(compressed.length < body.length() / 10);
+		assertEquals(body, NetworkMessage.deserialize(compressed).getContent());
+		byte[] uncompressed = receiveFrame(plain);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_EDIT, uncompressed[0]);
+		assertEquals(body, NetworkMessage.deserialize(uncompressed).getContent());
+	}
+
+	@Test
+	void rejoiningClientReceivesOnlyTheOperationsItMissed() throws IOException {
+		String id = documentService.createDocument("text").getId();
+		long known = documentService.updateDocument(id, "a body long enough to beat a delta", "alice");
+		documentService.insertText(id, 0, "!", "bob");
+
+		Socket client = connect();
+		send(client, NetworkMessage.createRejoinMessage(id, "carol", known).serialize());
+		NetworkMessage catchUp = receive(client);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_CATCH_UP, catchUp.getType());
+		assertEquals(known + 1, catchUp.getRevision());
+		assertEquals("[[\"!\",34]]", catchUp.getContent());
+
+		// Too far behind: the whole body, as an edit frame
+		Socket stale = connect();
+		send(stale, NetworkMessage.createRejoinMessage(id, "dave", known + 5).serialize());
+		NetworkMessage snapshot = receive(stale);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_EDIT, snapshot.getType());
+		assertEquals("!a body long enough to beat a delta", snapshot.getContent());
+	}
+
+	@Test
+	void longBodiesAreStreamedInChunks() throws IOException {
+		String id = documentService.createDocument("text").getId();
+		String body = "0123456789".repeat(4000);
+		long stale = documentService.updateDocument(id, body, "alice");
+		documentService.updateDocument(id, body + "!", "alice");
+
+		Socket client = connect();
+		send(client, NetworkMessage.createRejoinMessage(id, "bob", stale).serialize());
+		StringBuilder streamed = new StringBuilder();
+		NetworkMessage chunk;
+		int chunks = 0;
+		do {
+			chunk = receive(client);
+			assertEquals(stale + 1, chunk.getRevision());
+			streamed.append(chunk.getContent());
+			chunks++;
+		} while (chunk.getType() == NetworkMessage.MESSAGE_TYPE_CONTENT_CHUNK);
+		assertEquals(NetworkMessage.MESSAGE_TYPE_CONTENT_END, chunk.getType());
+		assertEquals(3, chunks);
+		assertEquals(body + "!", streamed.toString());
+	}
+
+	@Test
+	void joiningAnotherDocumentLetsTheFirstBeEvicted() throws Exception {
+		Document first = createDocument();
+		Document second = createDocument();
+		Socket client = connect();
+		join(client, first, "alice");
+		join(client, second, "alice");
+
+		// The first is left in its own mailbox, which may not have run yet
+		long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+		while (documentService.evictIdle(0) == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, documentService.getResidentCount());
+		// The one the client is on stays
+		assertEquals(0, documentService.evictIdle(0));
+	}
+
+	/**
+	 * Creates a document that has a revision, so joins can present it
+	 */
+	private Document createDocument() {
+		Document document = documentService.createDocument();
+		documentService.updateDocument(document.getId(), "initial", "setup");
+		return document;
+	}
+
+	/**
+	 * A join at the current revision, answered with an empty catch-up that confirms the registration
+	 */
+	private static byte[] rejoin(Document document, String userId) {
+		return NetworkMessage.createRejoinMessage(document.getId(), userId, document.getRevision()).serialize();
+	}
+
+	private void join(Socket socket, Document document, String userId) throws IOException {
+		send(socket, rejoin(document, userId));
+		assertEquals(NetworkMessage.MESSAGE_TYPE_CATCH_UP, receive(socket).getType());
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("localhost", server.getPort());
+		socket.setSoTimeout(10_000);
+		sockets.add(socket);
+		return socket;
+	}
+
+	private static void send(Socket socket, byte[] frame) throws IOException {
+		socket.getOutputStream().write(frame);
+		socket.getOutputStream().flush();
+	}
+
+	private static NetworkMessage receive(Socket socket) throws IOException {
+		return NetworkMessage.deserialize(receiveFrame(socket));
+	}
+
+	private static byte[] receiveFrame(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		byte type = in.readByte();
+		int length = in.readInt();
+		byte[] frame = new byte[5 + length];
+		frame[0] = type;
+		frame[1] = (byte) (length >>> 24);
+		frame[2] = (byte) (length >>> 16);
+		frame[3] = (byte) (length >>> 8);
+		frame[4] = (byte) length;
+		in.readFully(frame, 5, length);
+		return frame;
+	}
+}
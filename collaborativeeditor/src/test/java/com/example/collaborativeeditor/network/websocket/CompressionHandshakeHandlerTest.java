@@ -0,0 +1,21 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketExtension;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompressionHandshakeHandlerTest {
+	private final List<WebSocketExtension> offered = WebSocketExtension
+			.parseExtensions("permessage-deflate; client_max_window_bits, x-custom");
+
+	@Test
+	void deflateIsNegotiatedOnlyWhenCompressionIsOn() {
+		assertEquals(offered, new CompressionHandshakeHandler(true).filterRequestedExtensions(null, offered,
+				offered));
+		assertEquals(List.of(new WebSocketExtension("x-custom")),
+				new CompressionHandshakeHandler(false).filterRequestedExtensions(null, offered, offered));
+	}
+}
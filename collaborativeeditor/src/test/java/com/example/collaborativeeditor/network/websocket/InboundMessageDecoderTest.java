@@ -0,0 +1,42 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InboundMessageDecoderTest {
+	private final InboundMessageDecoder decoder = new InboundMessageDecoder(new ObjectMapper());
+
+	@Test
+	void decodesEveryMessageShape() throws Exception {
+		assertEquals(new InboundMessage.Edit("doc", "{\"ops\":[]}", "alice", 17),
+				decoder.decode("{\"documentId\":\"doc\",\"content\":\"{\\\"ops\\\":[]}\",\"editor\":\"alice\","
+						+ "\"timestamp\":17,\"extra\":{\"nested\":[1,2]}}"));
+		assertEquals(new InboundMessage.UserUpdate("doc", "bob", "join", -1),
+				decoder.decode("{\"type\":\"user_update\",\"documentId\":\"doc\",\"username\":\"bob\",\"action\":\"join\"}"));
+		assertEquals(new InboundMessage.UserUpdate("doc", "bob", "join", 12),
+				decoder.decode("{\"type\":\"user_update\",\"documentId\":\"doc\",\"username\":\"bob\",\"action\":\"join\","
+						+ "\"revision\":12}"));
+		assertEquals(new InboundMessage.Operation("doc", 3, TextOperation.fromJson(List.of(2, "x", -1)), "carol"),
+				decoder.decode("{\"type\":\"operation\",\"documentId\":\"doc\",\"revision\":3,"
+						+ "\"ops\":[2,\"x\",-1],\"editor\":\"carol\"}"));
+		assertEquals(new InboundMessage.Crdt("doc", Map.of("kind", "delete", "length", 2), "dave"),
+				decoder.decode("{\"type\":\"crdt\",\"documentId\":\"doc\",\"op\":{\"kind\":\"delete\",\"length\":2},"
+						+ "\"editor\":\"dave\"}"));
+	}
+
+	@Test
+	void rejectsIncompleteTypedMessages() {
+		assertThrows(IllegalArgumentException.class,
+				() -> decoder.decode("{\"type\":\"operation\",\"documentId\":\"doc\",\"ops\":[1]}"));
+		assertThrows(IllegalArgumentException.class,
+				() -> decoder.decode("{\"type\":\"operation\",\"documentId\":\"doc\",\"revision\":0,\"ops\":[true]}"));
+		assertThrows(IllegalArgumentException.class, () -> decoder.decode("[]"));
+	}
+}
@@ -0,0 +1,67 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PresenceIndexTest {
+	private final PresenceIndex presence = new PresenceIndex();
+
+	private WebSocketSession open(String id) {
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getId()).thenReturn(id);
+		presence.open(session);
+		return session;
+	}
+
+	@Test
+	void aUserStaysListedUntilTheirLastSessionLeaves() {
+		WebSocketSession firstTab = open("s1");
+		WebSocketSession secondTab = open("s2");
+		assertTrue(presence.join("doc", firstTab, "alice"));
+		assertTrue(presence.join("doc", secondTab, "alice"));
+		assertFalse(presence.join("doc", secondTab, "alice"));
+		assertEquals(List.of("alice"), presence.users("doc"));
+
+		assertTrue(presence.leave("doc", firstTab));
+		assertFalse(presence.leave("doc", firstTab));
+		assertEquals(List.of("alice"), presence.users("doc"));
+		assertEquals(Set.of(secondTab), Set.copyOf(presence.sessions("doc")));
+
+		// Renaming moves the session's count to the new name
+		presence.join("doc", secondTab, "alicia");
+		assertEquals(List.of("alicia"), presence.users("doc"));
+
+		assertTrue(presence.leave("doc", secondTab));
+		assertTrue(presence.users("doc").isEmpty());
+		assertTrue(presence.sessions("doc").isEmpty());
+		assertEquals(0, presence.documentCount());
+	}
+
+	@Test
+	void closingReturnsOnlyTheSessionsDocumentsAndReclaimsEmptyOnes() {
+		WebSocketSession alice = open("s1");
+		WebSocketSession bob = open("s2");
+		presence.join("a", alice, "alice");
+		presence.join("b", alice, "alice");
+		presence.join("b", bob, "bob");
+		presence.join("c", bob, "bob");
+
+		assertEquals(Set.of("a", "b"), Set.copyOf(presence.close(alice)));
+		assertEquals(2, presence.documentCount());
+		assertEquals(List.of("bob"), presence.users("b"));
+		assertTrue(presence.close(alice).isEmpty());
+
+		// A join that arrives after the close does not bring the session back
+		assertFalse(presence.join("a", alice, "alice"));
+		assertTrue(presence.sessions("a").isEmpty());
+	}
+}
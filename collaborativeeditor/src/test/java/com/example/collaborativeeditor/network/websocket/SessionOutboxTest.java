@@ -0,0 +1,145 @@
+package com.example.collaborativeeditor.network.websocket;
+
+import com.example.collaborativeeditor.network.EncodedFrame.Kind;
+import com.example.collaborativeeditor.network.TransportMetrics;
+import com.example.collaborativeeditor.network.websocket.SessionOutbox.OverflowPolicy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SessionOutboxTest {
+	private final ExecutorService writers = Executors.newCachedThreadPool();
+	// Holds the writer inside its first send, like a client on a stalled link
+	private final CountDownLatch linkStalled = new CountDownLatch(1);
+	private final CountDownLatch firstSendStarted = new CountDownLatch(1);
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+	private final WebSocketSession session = mock(WebSocketSession.class);
+
+	SessionOutboxTest() throws Exception {
+		when(session.isOpen()).thenReturn(true);
+		when(session.getId()).thenReturn("session");
+		doAnswer(invocation -> {
+			firstSendStarted.countDown();
+			linkStalled.await(5, TimeUnit.SECONDS);
+			sent.add(((WebSocketMessage<?>) invocation.getArgument(0)).getPayload().toString());
+			return null;
+		}).when(session).sendMessage(any());
+	}
+
+	@AfterEach
+	void shutdown() {
+		writers.shutdownNow();
+	}
+
+	@Test
+	void offeringNeverWaitsForTheSocket() throws Exception {
+		SessionOutbox outbox = new SessionOutbox(session, writers, 100, OverflowPolicy.DISCONNECT);
+		for (int i = 0; i < 50; i++) {
+			assertTrue(outbox.offer(new TextMessage("m" + i), Kind.OTHER, "doc"));
+		}
+		assertTrue(firstSendStarted.await(5, TimeUnit.SECONDS));
+		linkStalled.countDown();
+		verify(session, timeout(5000).times(50)).sendMessage(any());
+		for (int i = 0; i < 50; i++) {
+			assertEquals("m" + i, sent.get(i));
+		}
+	}
+
+	@Test
+	void coalescingReplacesSupersededEditsOfTheSameDocument() throws Exception {
+		SessionOutbox outbox = new SessionOutbox(session, writers, 2, OverflowPolicy.COALESCE_EDITS);
+		outbox.offer(new TextMessage("in flight"), Kind.OTHER, "doc");
+		assertTrue(firstSendStarted.await(5, TimeUnit.SECONDS));
+
+		outbox.offer(new TextMessage("op"), Kind.OTHER, "doc");
+		outbox.offer(new TextMessage("edit 1"), Kind.EDIT, "doc");
+		assertTrue(outbox.offer(new TextMessage("edit 2"), Kind.EDIT, "doc"));
+		assertEquals(2, outbox.size());
+
+		linkStalled.countDown();
+		verify(session, timeout(5000).times(3)).sendMessage(any());
+		assertEquals(List.of("in flight", "op", "edit 2"), sent);
+	}
+
+	@Test
+	void dropsAndWrittenBytesAreCounted() throws Exception {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		SessionOutbox outbox = new SessionOutbox(session, writers, 1, OverflowPolicy.COALESCE_EDITS,
+				new TransportMetrics(registry, "websocket"));
+		outbox.offer(new TextMessage("in flight"), Kind.OTHER, "doc");
+		assertTrue(firstSendStarted.await(5, TimeUnit.SECONDS));
+		outbox.offer(new TextMessage("edit 1"), Kind.EDIT, "doc");
+		outbox.offer(new TextMessage("\u00e9dit 2"), Kind.EDIT, "doc");
+
+		linkStalled.countDown();
+		verify(session, timeout(5000).times(2)).sendMessage(any());
+		assertEquals(1, registry.get("editor.transport.outbound.dropped").tag("reason", "superseded").counter()
+				.count());
+		assertEquals(0, registry.get("editor.transport.outbound.dropped").tag("reason", "presence").counter()
+				.count());
+		// The counter is updated right after the send returns
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (registry.get("editor.transport.bytes.out").counter().count() < 16 && System.nanoTime() < deadline) {
+			Thread.onSpinWait();
+		}
+		assertEquals("in flight".length() + "\u00e9dit 2".length() + 1,
+				registry.get("editor.transport.bytes.out").counter().count());
+	}
+
+	@Test
+	void streamedMessagesAreProducedOnlyAsFastAsTheyAreWritten() throws Exception {
+		SessionOutbox outbox = new SessionOutbox(session, writers, 100, OverflowPolicy.DISCONNECT);
+		Runnable[] next = new Runnable[1];
+		int[] produced = { 1 };
+		next[0] = () -> {
+			int chunk = produced[0]++;
+			outbox.offer(new TextMessage("chunk " + chunk), Kind.OTHER, "doc", chunk < 4 ? next[0] : null);
+		};
+		outbox.offer(new TextMessage("chunk 0"), Kind.OTHER, "doc", next[0]);
+		assertTrue(firstSendStarted.await(5, TimeUnit.SECONDS));
+		outbox.offer(new TextMessage("edit"), Kind.EDIT, "doc");
+		// Nothing more is produced while the first chunk is stuck on the link
+		assertEquals(1, produced[0]);
+		assertEquals(1, outbox.size());
+
+		linkStalled.countDown();
+		verify(session, timeout(5000).times(6)).sendMessage(any());
+		assertEquals(List.of("chunk 0", "edit", "chunk 1", "chunk 2", "chunk 3", "chunk 4"), sent);
+	}
+
+	@Test
+	void presenceIsDroppedBeforeOperations() throws Exception {
+		SessionOutbox outbox = new SessionOutbox(session, writers, 2, OverflowPolicy.DROP_OLDEST_PRESENCE);
+		outbox.offer(new TextMessage("in flight"), Kind.OTHER, "doc");
+		assertTrue(firstSendStarted.await(5, TimeUnit.SECONDS));
+
+		outbox.offer(new TextMessage("users 1"), Kind.PRESENCE, "doc");
+		outbox.offer(new TextMessage("op 1"), Kind.OTHER, "doc");
+		assertTrue(outbox.offer(new TextMessage("op 2"), Kind.OTHER, "doc"));
+		// Only operations left; the next overflow disconnects
+		assertFalse(outbox.offer(new TextMessage("op 3"), Kind.OTHER, "doc"));
+		verify(session, timeout(5000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+		linkStalled.countDown();
+	}
+}
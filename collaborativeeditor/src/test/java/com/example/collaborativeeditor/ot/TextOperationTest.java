@@ -0,0 +1,91 @@
+package com.example.collaborativeeditor.ot;
+
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.text.TextBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TextOperationTest {
+
+	@Test
+	void concurrentOperationsConverge() {
+		Random random = new Random(11);
+		for (int i = 0; i < 2_000; i++) {
+			TextBuffer doc = TextBuffer.of(randomText(random, random.nextInt(30)));
+			TextOperation a = randomOperation(random, doc.length());
+			TextOperation b = randomOperation(random, doc.length());
+			TextOperation[] primes = TextOperation.transform(a, b);
+			assertEquals(primes[1].apply(a.apply(doc)).toString(), primes[0].apply(b.apply(doc)).toString());
+		}
+	}
+
+	@Test
+	void wireFormatRoundTrips() {
+		TextOperation operation = new TextOperation().retain(5).insert("abc").delete(2).retain(10);
+		assertEquals(List.of(5, "abc", -2, 10), operation.toJson());
+		assertEquals(operation, TextOperation.fromJson(operation.toJson()));
+		assertEquals(17, operation.getBaseLength());
+		assertEquals(18, operation.getTargetLength());
+	}
+
+	@Test
+	void documentTransformsLateOperations() {
+		Document document = new Document();
+		document.setContent("hello");
+		long base = document.getRevision();
+		document.insert(5, " world");
+
+		// Made against "hello" without seeing " world"
+		TextOperation late = new TextOperation().insert("Oh, ").retain(5);
+		for (TextOperation applied : document.getHistory().since(base)) {
+			late = TextOperation.transform(late, applied)[0];
+		}
+		document.apply(late);
+		assertEquals("Oh, hello world", document.getContent());
+		assertEquals(base + 2, document.getRevision());
+	}
+
+	@Test
+	void historyForgetsBeyondItsBounds() {
+		OperationHistory history = new OperationHistory(2, Long.MAX_VALUE);
+		history.append(new TextOperation().insert("a"));
+		history.append(new TextOperation().retain(1).insert("b"));
+		history.append(new TextOperation().retain(2).insert("c"));
+		assertNull(history.since(0));
+		assertEquals(2, history.since(1).size());
+	}
+
+	private static TextOperation randomOperation(Random random, int length) {
+		TextOperation operation = new TextOperation();
+		int position = 0;
+		while (position < length) {
+			int count = 1 + random.nextInt(length - position);
+			switch (random.nextInt(3)) {
+				case 0 -> operation.retain(count);
+				case 1 -> operation.delete(count);
+				default -> {
+					operation.insert(randomText(random, 1 + random.nextInt(4)));
+					continue;
+				}
+			}
+			position += count;
+		}
+		if (random.nextBoolean()) {
+			operation.insert(randomText(random, 2));
+		}
+		return operation;
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + random.nextInt(26)));
+		}
+		return builder.toString();
+	}
+}
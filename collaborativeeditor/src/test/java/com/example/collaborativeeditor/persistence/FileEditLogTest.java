@@ -0,0 +1,178 @@
+package com.example.collaborativeeditor.persistence;
+
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.crdt.ItemId;
+import com.example.collaborativeeditor.ot.TextOperation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileEditLogTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	void everyRecordKindSurvivesAReopen() {
+		List<EditRecord> records = List.of(
+				new EditRecord.Create("doc", "rich-text", 1),
+				new EditRecord.Replace("doc", "hello | wörld", "alice", 2),
+				new EditRecord.Insert("doc", 5, "!", null, 3),
+				new EditRecord.Delete("doc", 0, 1, "bob", 4),
+				new EditRecord.Rebase("doc", "rebased", 42, "erin", 4),
+				new EditRecord.Operation("doc", new TextOperation().retain(3).insert("x").delete(2), "carol", 5),
+				new EditRecord.SetType("doc", "crdt"),
+				new EditRecord.Crdt("doc", new CrdtOperation.Insert(new ItemId("c", 0), new ItemId("initial", 2), null,
+						"y"), "dave", 6),
+				new EditRecord.Crdt("doc", new CrdtOperation.Delete(new ItemId("c", 0), 1), "dave", 7));
+		try (FileEditLog log = open(FileEditLog.FsyncPolicy.ALWAYS)) {
+			for (int i = 0; i < records.size(); i++) {
+				long lsn = log.append(records.get(i));
+				assertEquals(i + 1, lsn);
+				log.awaitDurable(lsn);
+			}
+		}
+
+		assertEquals(records, replay());
+	}
+
+	@Test
+	void tornTailIsCutOffAndAppendingContinuesAfterIt() throws IOException {
+		try (FileEditLog log = open(FileEditLog.FsyncPolicy.NONE)) {
+			for (int i = 0; i < 3; i++) {
+				log.append(new EditRecord.Replace("doc", "v" + i, "alice", i));
+			}
+		}
+		Path segment = segment();
+		byte[] intact = Files.readAllBytes(segment);
+		// A crash in the middle of writing the fourth record
+		byte[] torn = new byte[intact.length / 3 + 7];
+		System.arraycopy(intact, 0, torn, 0, torn.length);
+		Files.write(segment, torn, StandardOpenOption.APPEND);
+
+		try (FileEditLog log = open(FileEditLog.FsyncPolicy.ALWAYS)) {
+			assertEquals(3, log.replay((record, lsn) -> {
+			}));
+			assertEquals(4, log.append(new EditRecord.Replace("doc", "v3", "alice", 3)));
+		}
+
+		List<EditRecord> replayed = replay();
+		assertEquals(4, replayed.size());
+		assertEquals("v3", ((EditRecord.Replace) replayed.get(3)).content());
+	}
+
+	@Test
+	void corruptRecordEndsTheLog() throws IOException {
+		try (FileEditLog log = open(FileEditLog.FsyncPolicy.NONE)) {
+			log.append(new EditRecord.Replace("doc", "first", "alice", 1));
+			log.append(new EditRecord.Replace("doc", "second", "alice", 2));
+		}
+		Path segment = segment();
+		byte[] bytes = Files.readAllBytes(segment);
+		bytes[bytes.length - 3] ^= 0x55;
+		Files.write(segment, bytes);
+
+		List<EditRecord> replayed = replay();
+		assertEquals(1, replayed.size());
+		assertEquals("first", ((EditRecord.Replace) replayed.get(0)).content());
+	}
+
+	@Test
+	void concurrentAppendersShareFsyncsAndGetDistinctLsns() throws Exception {
+		int threads = 8;
+		int perThread = 200;
+		Set<Long> lsns = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (FileEditLog log = open(FileEditLog.FsyncPolicy.ALWAYS)) {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				String documentId = "doc-" + t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < perThread; i++) {
+						long lsn = log.append(new EditRecord.Replace(documentId, "v" + i, "user", i));
+						log.awaitDurable(lsn);
+						lsns.add(lsn);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(threads * perThread, lsns.size());
+		assertEquals(threads * perThread, replay().size());
+	}
+
+	@Test
+	void fullSegmentsRollAndCanBeTruncatedAway() throws IOException {
+		List<Long> lsns = new ArrayList<>();
+		try (FileEditLog log = new FileEditLog(directory, FileEditLog.FsyncPolicy.ALWAYS, Duration.ZERO, 1024)) {
+			for (int i = 0; i < 50; i++) {
+				long lsn = log.append(new EditRecord.Replace("doc", "x".repeat(100), "user", i));
+				log.awaitDurable(lsn);
+				lsns.add(lsn);
+			}
+			long segments = segmentCount();
+			assertTrue(segments > 2);
+
+			// Only segments whose every record precedes LSN 30 may go
+			int deleted = log.truncateBefore(30);
+			assertTrue(deleted > 0);
+			assertEquals(segments - deleted, segmentCount());
+			List<Long> remaining = new ArrayList<>();
+			log.replay((record, lsn) -> remaining.add(lsn));
+			assertTrue(remaining.get(0) <= 30 && remaining.get(0) > 1);
+			assertEquals(lsns.subList(lsns.indexOf(remaining.get(0)), lsns.size()), remaining);
+			assertEquals(51, log.nextLsn());
+		}
+
+		// Reopening continues after the surviving segments
+		try (FileEditLog log = new FileEditLog(directory, FileEditLog.FsyncPolicy.ALWAYS, Duration.ZERO, 1024)) {
+			assertEquals(51, log.nextLsn());
+			// The segment being written is kept however far the truncation reaches
+			log.truncateBefore(Long.MAX_VALUE);
+			assertEquals(1, segmentCount());
+		}
+	}
+
+	private FileEditLog open(FileEditLog.FsyncPolicy policy) {
+		return new FileEditLog(directory, policy, Duration.ofMillis(1));
+	}
+
+	private List<EditRecord> replay() {
+		List<EditRecord> records = new ArrayList<>();
+		try (FileEditLog log = open(FileEditLog.FsyncPolicy.NONE)) {
+			log.replay((record, lsn) -> records.add(record));
+		}
+		return records;
+	}
+
+	private long segmentCount() throws IOException {
+		try (var files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	private Path segment() throws IOException {
+		try (var files = Files.list(directory)) {
+			return files.findFirst().orElseThrow();
+		}
+	}
+}
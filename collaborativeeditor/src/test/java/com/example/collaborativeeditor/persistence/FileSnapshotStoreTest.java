@@ -0,0 +1,90 @@
+package com.example.collaborativeeditor.persistence;
+
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.crdt.CrdtSequence;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FileSnapshotStoreTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	void plainAndCrdtSnapshotsRoundTrip() {
+		CrdtSequence replica = CrdtSequence.fromText("hello", "server-b");
+		CrdtOperation.Insert earlier = replica.insertLocal(5, " world");
+		replica.deleteLocal(0, 1);
+		FileSnapshotStore store = new FileSnapshotStore(directory);
+		store.save(List.of(
+				new DocumentSnapshot("a/b?c", "rich-text", "alice", 42, 7, 100, "body ✓", null),
+				new DocumentSnapshot("b", "crdt", null, 43, 0, 101, null, replica.encodeState())));
+
+		Map<String, DocumentSnapshot> loaded = load(store);
+		assertEquals(2, loaded.size());
+		DocumentSnapshot plain = loaded.get("a/b?c");
+		assertEquals("body ✓", plain.content().toString());
+		assertEquals("alice", plain.lastEditor());
+		assertEquals(7, plain.revision());
+		assertEquals(100, plain.lsn());
+		assertNull(plain.crdtState());
+
+		DocumentSnapshot crdt = loaded.get("b");
+		CrdtSequence restored = CrdtSequence.fromState(crdt.crdtState(), "server-b");
+		assertEquals(replica.encodeState(), restored.encodeState());
+		assertEquals("ello world", restored.text().toString());
+		// The restored replica keeps numbering its own items after the ones in the state
+		CrdtOperation.Insert next = restored.insertLocal(0, "!");
+		assertEquals(earlier.id().clock() + " world".length(), next.id().clock());
+	}
+
+	@Test
+	void savingAgainReplacesTheSnapshot() {
+		FileSnapshotStore store = new FileSnapshotStore(directory);
+		store.save(List.of(new DocumentSnapshot("a", "rich-text", "alice", 1, 1, 1, "one", null)));
+		store.save(List.of(new DocumentSnapshot("a", "rich-text", "bob", 2, 2, 5, "two", null)));
+
+		DocumentSnapshot snapshot = load(store).get("a");
+		assertEquals("two", snapshot.content().toString());
+		assertEquals(5, snapshot.lsn());
+	}
+
+	@Test
+	void corruptAndLeftoverFilesAreSkipped() throws IOException {
+		FileSnapshotStore store = new FileSnapshotStore(directory);
+		store.save(List.of(new DocumentSnapshot("good", "rich-text", null, 1, 1, 1, "fine", null),
+				new DocumentSnapshot("bad", "rich-text", null, 1, 1, 2, "flipped", null)));
+		Path bad = directory.resolve(FileSnapshotStore.fileName("bad"));
+		byte[] bytes = Files.readAllBytes(bad);
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(bad, bytes);
+		Path temp = directory.resolve(FileSnapshotStore.fileName("good") + ".tmp");
+		Files.write(temp, new byte[] {1, 2, 3});
+
+		Map<String, DocumentSnapshot> loaded = load(store);
+		assertEquals(List.of("good"), new ArrayList<>(loaded.keySet()));
+		assertFalse(Files.exists(temp));
+	}
+
+	private static Map<String, DocumentSnapshot> load(SnapshotStore store) {
+		Map<String, DocumentSnapshot> loaded = new HashMap<>();
+		int count = store.forEachEntry((id, lsn) -> {
+			DocumentSnapshot snapshot = store.load(id);
+			assertEquals(lsn, snapshot.lsn());
+			loaded.put(id, snapshot);
+		});
+		assertEquals(loaded.size(), count);
+		return loaded;
+	}
+}
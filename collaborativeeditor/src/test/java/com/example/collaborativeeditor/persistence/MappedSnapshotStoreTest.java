@@ -0,0 +1,106 @@
+package com.example.collaborativeeditor.persistence;
+
+import com.example.collaborativeeditor.crdt.CrdtSequence;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedSnapshotStoreTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	void snapshotsAreIndexedAgainOnReopenAndLoadedInPlace() {
+		CrdtSequence replica = CrdtSequence.fromText("shared", "server-c");
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 4096)) {
+			store.save(List.of(plain("a", 1, "first"), plain("b", 2, "second")));
+			store.save(List.of(plain("a", 3, "first, edited"),
+					new DocumentSnapshot("c", "crdt", "carol", 4, 0, 4, null, replica.encodeState())));
+			assertEquals("first, edited", store.load("a").content().toString());
+		}
+
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 4096)) {
+			assertEquals(Map.of("a", 3L, "b", 2L, "c", 4L), entries(store));
+			assertEquals("first, edited", store.load("a").content().toString());
+			assertEquals("second", store.load("b").content().toString());
+			assertEquals("shared", CrdtSequence.fromState(store.load("c").crdtState()).text().toString());
+			assertNull(store.load("missing"));
+		}
+	}
+
+	@Test
+	void tornTailIsCutOffOnReopen() throws IOException {
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 1 << 20)) {
+			store.save(List.of(plain("a", 1, "kept")));
+			store.save(List.of(plain("b", 2, "torn by a crash")));
+		}
+		Path segment = segments().get(0);
+		long size = Files.size(segment);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(size - 3);
+		}
+
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 1 << 20)) {
+			assertEquals(Map.of("a", 1L), entries(store));
+			// Writing continues where the intact entries end
+			store.save(List.of(plain("b", 3, "rewritten")));
+		}
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 1 << 20)) {
+			assertEquals("rewritten", store.load("b").content().toString());
+		}
+	}
+
+	@Test
+	void sparseSegmentsAreCompactedAway() throws IOException {
+		String body = "x".repeat(200);
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 2048)) {
+			for (int round = 1; round <= 20; round++) {
+				List<DocumentSnapshot> batch = new ArrayList<>();
+				for (int doc = 0; doc < 4; doc++) {
+					batch.add(plain("doc-" + doc, round, body + round));
+				}
+				store.save(batch);
+			}
+			// 80 snapshots of ~250 bytes were written, but only the 4 latest are live
+			assertTrue(store.getSegmentCount() <= 3, "segments: " + store.getSegmentCount());
+			assertEquals(store.getSegmentCount(), segments().size());
+			for (int doc = 0; doc < 4; doc++) {
+				assertEquals(body + 20, store.load("doc-" + doc).content().toString());
+			}
+		}
+		try (MappedSnapshotStore store = new MappedSnapshotStore(directory, 2048)) {
+			assertEquals(4, store.size());
+			assertEquals(body + 20, store.load("doc-3").content().toString());
+		}
+	}
+
+	private static DocumentSnapshot plain(String id, long lsn, String content) {
+		return new DocumentSnapshot(id, "rich-text", "alice", lsn, lsn, lsn, content, null);
+	}
+
+	private static Map<String, Long> entries(SnapshotStore store) {
+		Map<String, Long> entries = new HashMap<>();
+		store.forEachEntry(entries::put);
+		return entries;
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.sorted().toList();
+		}
+	}
+}
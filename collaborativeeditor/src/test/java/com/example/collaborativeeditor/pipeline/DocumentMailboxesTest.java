@@ -0,0 +1,84 @@
+package com.example.collaborativeeditor.pipeline;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentMailboxesTest {
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+	private final ExecutorService senders = Executors.newFixedThreadPool(4);
+
+	@AfterEach
+	void shutdown() {
+		pool.shutdownNow();
+		senders.shutdownNow();
+	}
+
+	@Test
+	void tasksForOneDocumentRunSeriallyInSubmissionOrder() throws Exception {
+		DocumentMailboxes mailboxes = new DocumentMailboxes(pool);
+		int documents = 4;
+		int tasksPerSender = 5_000;
+		List<List<Integer>> applied = new ArrayList<>();
+		AtomicInteger[] running = new AtomicInteger[documents];
+		AtomicInteger overlaps = new AtomicInteger();
+		for (int d = 0; d < documents; d++) {
+			applied.add(new ArrayList<>()); // Deliberately unsynchronized
+			running[d] = new AtomicInteger();
+		}
+		CountDownLatch done = new CountDownLatch(documents * tasksPerSender);
+
+		// One sender per document, so submission order per document is well defined
+		for (int d = 0; d < documents; d++) {
+			int document = d;
+			senders.execute(() -> {
+				for (int i = 0; i < tasksPerSender; i++) {
+					int value = i;
+					mailboxes.execute("doc-" + document, () -> {
+						if (running[document].incrementAndGet() != 1) {
+							overlaps.incrementAndGet();
+						}
+						applied.get(document).add(value);
+						running[document].decrementAndGet();
+						done.countDown();
+					});
+				}
+			});
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+		for (List<Integer> values : applied) {
+			assertEquals(tasksPerSender, values.size());
+			for (int i = 0; i < tasksPerSender; i++) {
+				assertEquals(i, values.get(i));
+			}
+		}
+	}
+
+	@Test
+	void idleMailboxesAreReleasedAndFailuresDoNotStopTheQueue() throws Exception {
+		DocumentMailboxes mailboxes = new DocumentMailboxes(pool);
+		mailboxes.execute("doc", () -> {
+			throw new IllegalStateException("boom");
+		});
+		mailboxes.submit("doc", () -> {
+		}).get(5, TimeUnit.SECONDS);
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (mailboxes.getActiveMailboxCount() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(0, mailboxes.getActiveMailboxCount());
+	}
+}
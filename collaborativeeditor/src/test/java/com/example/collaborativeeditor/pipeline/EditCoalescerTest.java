@@ -0,0 +1,71 @@
+package com.example.collaborativeeditor.pipeline;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EditCoalescerTest {
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService senders = Executors.newFixedThreadPool(4);
+
+	@AfterEach
+	void shutdown() {
+		scheduler.shutdownNow();
+		senders.shutdownNow();
+	}
+
+	@Test
+	void everyEditLandsInExactlyOneBatch() throws Exception {
+		int editCount = 4_000;
+		CountDownLatch delivered = new CountDownLatch(editCount);
+		Queue<List<Integer>> batches = new ConcurrentLinkedQueue<>();
+		EditCoalescer<Integer> coalescer = new EditCoalescer<>(Duration.ofMillis(20), 50, scheduler, Runnable::run,
+				(documentId, batch) -> {
+					batches.add(batch);
+					batch.forEach(edit -> delivered.countDown());
+				});
+
+		AtomicInteger next = new AtomicInteger();
+		for (int i = 0; i < 4; i++) {
+			senders.execute(() -> {
+				int edit;
+				while ((edit = next.getAndIncrement()) < editCount) {
+					coalescer.submit("doc-" + (edit % 3), edit);
+				}
+			});
+		}
+
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+		assertEquals(editCount, batches.stream().mapToInt(List::size).sum());
+		assertEquals(editCount, batches.stream().flatMap(List::stream).distinct().count());
+		assertTrue(batches.stream().allMatch(batch -> batch.size() <= 50));
+		assertTrue(coalescer.getCoalescingRatio() > 1);
+	}
+
+	@Test
+	void windowFlushesPartialBatches() throws Exception {
+		CountDownLatch flushed = new CountDownLatch(1);
+		EditCoalescer<String> coalescer = new EditCoalescer<>(Duration.ofMillis(10), 100, scheduler, Runnable::run,
+				(documentId, batch) -> {
+					assertEquals(List.of("a", "b"), batch);
+					flushed.countDown();
+				});
+		coalescer.submit("doc", "a");
+		coalescer.submit("doc", "b");
+		assertTrue(flushed.await(5, TimeUnit.SECONDS));
+		assertEquals(1, coalescer.getBatchCount());
+	}
+}
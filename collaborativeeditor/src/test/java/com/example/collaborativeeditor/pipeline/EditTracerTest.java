@@ -0,0 +1,65 @@
+package com.example.collaborativeeditor.pipeline;
+
+import com.example.collaborativeeditor.config.EditorProperties;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EditTracerTest {
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	void totalIsRecordedOnceEveryRecipientHasReported() throws Exception {
+		EditTracer tracer = new EditTracer(new EditorProperties(), registry);
+		EditTrace trace = tracer.start("tcp", System.nanoTime(), "doc", "alice", 0);
+		Thread.sleep(5);
+		trace.dequeued();
+		trace.applied();
+		trace.queued();
+		trace.queued();
+		// One write completes before fan-out has ended
+		trace.sent();
+		trace.fannedOut();
+		assertEquals(1, timer("tcp", "queue").count());
+		assertTrue(timer("tcp", "queue").totalTime(TimeUnit.MILLISECONDS) >= 5);
+		assertEquals(0, timer("tcp", "total").count());
+
+		trace.abandoned();
+		assertEquals(1, timer("tcp", "send").count());
+		assertEquals(1, timer("tcp", "total").count());
+		assertTrue(timer("tcp", "total").totalTime(TimeUnit.MILLISECONDS) >= 5);
+	}
+
+	@Test
+	void editsWithoutRecipientsFinishAtFanOut() {
+		EditTracer tracer = new EditTracer(new EditorProperties(), registry);
+		EditTrace trace = tracer.start("json", System.nanoTime(), "doc", "alice", System.currentTimeMillis());
+		trace.dequeued();
+		trace.applied();
+		trace.fannedOut();
+		assertEquals(1, timer("json", "total").count());
+		assertEquals(0, timer("json", "send").count());
+	}
+
+	@Test
+	void disabledTracingHandsOutTheNoOpTrace() {
+		EditorProperties properties = new EditorProperties();
+		properties.getTracing().setEnabled(false);
+		assertSame(EditTrace.NONE, new EditTracer(properties, registry).start("tcp", 0, "doc", "alice", 0));
+		assertSame(EditTrace.NONE, EditTracer.NONE.start("tcp", 0, "doc", "alice", 0));
+		// Reports to the no-op trace are ignored
+		EditTrace.NONE.queued();
+		EditTrace.NONE.sent();
+		EditTrace.NONE.fannedOut();
+	}
+
+	private Timer timer(String transport, String stage) {
+		return registry.get("editor.edit.latency").tag("transport", transport).tag("stage", stage).timer();
+	}
+}
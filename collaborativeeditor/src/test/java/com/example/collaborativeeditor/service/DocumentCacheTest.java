@@ -0,0 +1,88 @@
+package com.example.collaborativeeditor.service;
+
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import com.example.collaborativeeditor.persistence.MappedSnapshotStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentCacheTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	void leastRecentlyUsedUnpinnedDocumentsGoFirst() {
+		DocumentCache cache = new DocumentCache(10, Long.MAX_VALUE);
+		List<Document> documents = new ArrayList<>();
+		for (int i = 0; i < 12; i++) {
+			Document document = new Document();
+			documents.add(document);
+			cache.put(document);
+		}
+		cache.pin(documents.get(0).getId());
+		for (int i = 2; i < 12; i++) {
+			cache.get(documents.get(i).getId());
+		}
+
+		// Down to 90% of 10: three must go, the pinned one is skipped
+		List<Document> candidates = cache.evictionCandidates();
+		assertEquals(3, candidates.size());
+		assertSame(documents.get(1), candidates.get(0));
+		assertTrue(!candidates.contains(documents.get(0)));
+
+		cache.unpin(documents.get(0).getId());
+		assertTrue(cache.evictionCandidates().contains(documents.get(0)));
+	}
+
+	@Test
+	void weightFollowsEdits() {
+		DocumentCache cache = new DocumentCache(10, 1000);
+		Document document = new Document();
+		cache.put(document);
+		assertEquals(DocumentCache.ENTRY_OVERHEAD, cache.getWeight());
+
+		document.setContent("x".repeat(1000));
+		cache.reweigh(document);
+		assertEquals(DocumentCache.ENTRY_OVERHEAD + 1000, cache.getWeight());
+		assertTrue(cache.isOverCapacity());
+
+		assertTrue(cache.evict(document.getId(), document));
+		assertEquals(0, cache.getWeight());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	void serviceWritesBackAndEvictsToStayWithinTheLimits() {
+		try (FileEditLog log = new FileEditLog(directory.resolve("wal"), FileEditLog.FsyncPolicy.NONE,
+				Duration.ZERO);
+				MappedSnapshotStore snapshots = new MappedSnapshotStore(directory.resolve("snapshots"), 1 << 20)) {
+			DocumentService service = new DocumentService(log, snapshots, new DocumentCache(20, Long.MAX_VALUE));
+			String pinned = service.createDocument().getId();
+			service.pin(pinned);
+			List<String> ids = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				String id = service.createDocument().getId();
+				service.updateDocument(id, "body " + i, "alice");
+				ids.add(id);
+			}
+
+			assertTrue(service.getResidentCount() <= 21, "resident: " + service.getResidentCount());
+			assertEquals(101, service.getDocumentCount());
+			assertTrue(service.getCache().getWriteBacks() >= 80);
+			assertSame(service.getCache().peek(pinned), service.getDocument(pinned));
+			// Evicted documents come back from their written-back snapshot
+			long misses = service.getCache().getMisses();
+			assertEquals("body 0", service.getDocument(ids.get(0)).getContent());
+			assertEquals(misses + 1, service.getCache().getMisses());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.example.collaborativeeditor.service;
+
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.ot.CatchUp;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.example.collaborativeeditor.text.TextBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentServiceCatchUpTest {
+	private final DocumentService service = new DocumentService();
+
+	@Test
+	void rejoiningClientGetsOnlyTheOperationsItMissed() {
+		String id = service.createDocument("text").getId();
+		long known = service.updateDocument(id, "a long enough body of text", "alice");
+		service.insertText(id, 0, ">", "bob");
+		service.deleteText(id, 1, 2, "bob");
+
+		CatchUp catchUp = service.catchUp(id, known);
+		assertFalse(catchUp.isSnapshot());
+		assertEquals(known + 2, catchUp.revision());
+		TextBuffer content = TextBuffer.of("a long enough body of text");
+		for (TextOperation operation : catchUp.operations()) {
+			content = operation.apply(content);
+		}
+		assertEquals(service.getDocument(id).getContent(), content.toString());
+
+		CatchUp upToDate = service.catchUp(id, catchUp.revision());
+		assertTrue(upToDate.operations().isEmpty());
+	}
+
+	@Test
+	void largeOrUnknownGapsFallBackToASnapshot() {
+		Document document = service.createDocument("text");
+		String id = document.getId();
+		service.updateDocument(id, "short", "alice");
+		long known = document.getRevision();
+		// Replacing the body costs as much as sending it
+		service.updateDocument(id, "replaced", "alice");
+
+		CatchUp replaced = service.catchUp(id, known);
+		assertTrue(replaced.isSnapshot());
+		assertEquals("replaced", replaced.content().toString());
+		assertTrue(service.catchUp(id, -1).isSnapshot());
+		assertTrue(service.catchUp(id, document.getRevision() + 5).isSnapshot());
+
+		for (int i = 0; i < 1500; i++) {
+			service.insertText(id, 0, "x", "bob");
+		}
+		assertTrue(service.catchUp(id, known).isSnapshot());
+		assertNull(service.catchUp("missing", 0));
+	}
+}
@@ -0,0 +1,190 @@
+package com.example.collaborativeeditor.service;
+
+import com.example.collaborativeeditor.crdt.CrdtOperation;
+import com.example.collaborativeeditor.crdt.ItemId;
+import com.example.collaborativeeditor.model.Document;
+import com.example.collaborativeeditor.ot.TextOperation;
+import com.example.collaborativeeditor.persistence.FileEditLog;
+import com.example.collaborativeeditor.persistence.FileSnapshotStore;
+import com.example.collaborativeeditor.persistence.MappedSnapshotStore;
+import com.example.collaborativeeditor.persistence.SnapshotStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocumentServiceRecoveryTest {
+	@TempDir
+	Path directory;
+
+	@Test
+	void replayingTheLogRebuildsDocumentsAndRevisions() {
+		String plainId;
+		String crdtId;
+		List<Map<String, Object>> crdtState;
+		try (FileEditLog log = open()) {
+			DocumentService service = new DocumentService(log, SnapshotStore.NONE);
+			Document plain = service.createDocument();
+			plainId = plain.getId();
+			service.updateDocument(plainId, "hello world", "alice");
+			service.insertText(plainId, 5, ",", "bob");
+			service.deleteText(plainId, 0, 1, "bob");
+			// Made against revision 1, so it is transformed past the insert and the delete
+			service.applyOperation(plainId, 1, new TextOperation().retain(11).insert("!"), "carol");
+
+			Document crdt = service.createDocument(Document.TYPE_CRDT);
+			crdtId = crdt.getId();
+			service.applyCrdtOperation(crdtId, new CrdtOperation.Insert(new ItemId("alice", 0), null, null, "abc"),
+					"alice");
+			// Splits the first client's item
+			service.applyCrdtOperation(crdtId, new CrdtOperation.Insert(new ItemId("dave", 0),
+					new ItemId("alice", 0), new ItemId("alice", 1), "x"), "dave");
+			// Would change the replica without an operation any client receives; not logged either
+			assertThrows(IllegalArgumentException.class, () -> service.updateDocument(crdt.getId(), "abc", "erin"));
+			crdtState = crdt.getCrdt().encodeState();
+
+			assertEquals("ello, world!", plain.getContent());
+			assertEquals("axbc", crdt.getContent());
+		}
+
+		try (FileEditLog log = open()) {
+			DocumentService recovered = new DocumentService(log, SnapshotStore.NONE);
+			Document plain = recovered.getDocument(plainId);
+			assertEquals("ello, world!", plain.getContent());
+			assertEquals(4, plain.getRevision());
+			assertEquals("carol", plain.getLastEditor());
+
+			Document crdt = recovered.getDocument(crdtId);
+			assertEquals("axbc", crdt.getContent());
+			assertEquals(crdtState, crdt.getCrdt().encodeState());
+
+			// The recovered documents keep taking edits, which are logged after the replayed ones
+			recovered.applyCrdtOperation(crdtId,
+					new CrdtOperation.Insert(new ItemId("alice", 3), new ItemId("alice", 2), null, "d"), "alice");
+		}
+
+		try (FileEditLog log = open()) {
+			assertEquals("axbcd", new DocumentService(log, SnapshotStore.NONE).getDocument(crdtId).getContent());
+		}
+	}
+
+	@Test
+	void snapshotsPlusTheLogTailRecoverEverythingAndOldSegmentsGo() throws IOException {
+		SnapshotStore snapshots = new FileSnapshotStore(directory.resolve("snapshots"));
+		String plainId;
+		String crdtId;
+		String untouchedId;
+		try (FileEditLog log = openSmallSegments()) {
+			DocumentService service = new DocumentService(log, snapshots);
+			plainId = service.createDocument().getId();
+			crdtId = service.createDocument(Document.TYPE_CRDT).getId();
+			for (int i = 0; i < 40; i++) {
+				service.insertText(plainId, i, "p", "alice");
+				if (i % 2 == 0) {
+					long clock = i / 2;
+					service.applyCrdtOperation(crdtId, new CrdtOperation.Insert(new ItemId("bob", clock),
+							clock > 0 ? new ItemId("bob", clock - 1) : null, null, "c"), "bob");
+				}
+			}
+			long segmentsBefore = walSegments();
+			// Only the plain document is due; the CRDT one has fewer edits than the threshold
+			assertEquals(1, service.writeSnapshots(40, Long.MAX_VALUE, Long.MAX_VALUE));
+			assertEquals(segmentsBefore, walSegments());
+
+			assertEquals(1, service.writeAllSnapshots());
+			assertTrue(walSegments() < segmentsBefore);
+			// Nothing changed since, so another round writes nothing
+			assertEquals(0, service.writeAllSnapshots());
+
+			service.insertText(plainId, 0, "<", "carol");
+			service.applyCrdtOperation(crdtId,
+					new CrdtOperation.Insert(new ItemId("carol", 0), null, new ItemId("bob", 0), "<"), "carol");
+			untouchedId = service.createDocument().getId();
+		}
+
+		try (FileEditLog log = openSmallSegments()) {
+			DocumentService recovered = new DocumentService(log, snapshots);
+			Document plain = recovered.getDocument(plainId);
+			assertEquals("<" + "p".repeat(40), plain.getContent());
+			assertEquals(41, plain.getRevision());
+			assertEquals("carol", plain.getLastEditor());
+			Document crdt = recovered.getDocument(crdtId);
+			assertEquals("<" + "c".repeat(20), crdt.getContent());
+			assertEquals("", recovered.getDocument(untouchedId).getContent());
+
+			// Edits after recovery survive another restart
+			recovered.applyCrdtOperation(crdtId,
+					new CrdtOperation.Insert(new ItemId("dave", 0), new ItemId("bob", 19), null, ">"), "dave");
+			recovered.writeAllSnapshots();
+		}
+
+		try (FileEditLog log = openSmallSegments()) {
+			DocumentService recovered = new DocumentService(log, snapshots);
+			assertEquals("<" + "c".repeat(20) + ">", recovered.getDocument(crdtId).getContent());
+		}
+	}
+
+	@Test
+	void coldDocumentsStayOnDiskUntilOpenedAndIdleOnesAreEvicted() {
+		String coldId;
+		String tailId;
+		try (FileEditLog log = openSmallSegments();
+				MappedSnapshotStore snapshots = new MappedSnapshotStore(directory.resolve("snapshots"), 1 << 20)) {
+			DocumentService service = new DocumentService(log, snapshots);
+			coldId = service.createDocument().getId();
+			service.updateDocument(coldId, "cold", "alice");
+			tailId = service.createDocument().getId();
+			service.updateDocument(tailId, "snapshotted", "alice");
+			service.writeAllSnapshots();
+			// Only in the log tail, so replaying it has to load this document
+			service.insertText(tailId, 0, "tail, ", "bob");
+		}
+
+		try (FileEditLog log = openSmallSegments();
+				MappedSnapshotStore snapshots = new MappedSnapshotStore(directory.resolve("snapshots"), 1 << 20)) {
+			DocumentService service = new DocumentService(log, snapshots);
+			assertEquals(2, service.getDocumentCount());
+			assertEquals(1, service.getResidentCount());
+			assertEquals("tail, snapshotted", service.getDocument(tailId).getContent());
+
+			Document cold = service.getDocument(coldId);
+			assertEquals("cold", cold.getContent());
+			assertEquals(2, service.getResidentCount());
+
+			// The document edited by the tail is written back before it goes
+			assertEquals(2, service.evictIdle(0));
+			assertEquals(0, service.getResidentCount());
+			assertEquals(1, service.getCache().getWriteBacks());
+
+			// A caller still holding the evicted instance does not bypass the reloaded one
+			service.insertText(coldId, 4, "er", "carol");
+			assertEquals("colder", service.getDocument(coldId).getContent());
+			assertEquals("cold", cold.getContent());
+			assertNull(service.getDocument("missing"));
+		}
+	}
+
+	private FileEditLog open() {
+		return new FileEditLog(directory, FileEditLog.FsyncPolicy.ALWAYS, Duration.ofMillis(1));
+	}
+
+	private FileEditLog openSmallSegments() {
+		return new FileEditLog(directory.resolve("wal"), FileEditLog.FsyncPolicy.ALWAYS, Duration.ZERO, 512);
+	}
+
+	private long walSegments() throws IOException {
+		try (var files = Files.list(directory.resolve("wal"))) {
+			return files.count();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.example.collaborativeeditor.text;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RopeTest {
+
+	@Test
+	void randomEditsMatchStringBuilder() {
+		Random random = new Random(42);
+		StringBuilder expected = new StringBuilder();
+		Rope rope = Rope.empty();
+		for (int i = 0; i < 20_000; i++) {
+			if (expected.length() > 0 && random.nextInt(3) == 0) {
+				int position = random.nextInt(expected.length());
+				int length = Math.min(expected.length() - position, random.nextInt(40));
+				expected.delete(position, position + length);
+				rope = rope.delete(position, length);
+			} else {
+				int position = random.nextInt(expected.length() + 1);
+				String text = randomText(random, random.nextInt(8) == 0 ? 2000 : 3);
+				expected.insert(position, text);
+				rope = rope.insert(position, text);
+			}
+		}
+		assertEquals(expected.toString(), rope.toString());
+		assertEquals(expected.length(), rope.length());
+		for (int i = 0; i < 500; i++) {
+			int index = random.nextInt(expected.length());
+			assertEquals(expected.charAt(index), rope.charAt(index));
+		}
+	}
+
+	@Test
+	void editsLeaveSnapshotsUntouched() {
+		Rope original = Rope.of("hello world");
+		Rope edited = original.insert(5, ",").delete(0, 1).insert(0, "H");
+		assertEquals("hello world", original.toString());
+		assertEquals("Hello, world", edited.toString());
+	}
+
+	@Test
+	void typingStaysBalancedAndChunked() {
+		Rope rope = Rope.of(randomText(new Random(7), 1_000_000));
+		int position = rope.length() / 2;
+		for (int i = 0; i < 100_000; i++) {
+			rope = rope.insert(position + i, "x");
+		}
+		// ~2200 leaves of up to 512 chars; an AVL tree over them stays shallow
+		assertTrue(rope.height() < 20, "height " + rope.height());
+	}
+
+	@Test
+	void subSequenceAndAppendToReturnRanges() {
+		Rope rope = Rope.of(randomText(new Random(3), 5000));
+		String text = rope.toString();
+		assertEquals(text.substring(1234, 4321), rope.subSequence(1234, 4321).toString());
+		StringBuilder builder = new StringBuilder();
+		rope.appendTo(builder, 511, 1025);
+		assertEquals(text.substring(511, 1025), builder.toString());
+	}
+
+	@Test
+	void rejectsOutOfRangeEdits() {
+		Rope rope = Rope.of("abc");
+		assertThrows(IndexOutOfBoundsException.class, () -> rope.insert(4, "x"));
+		assertThrows(IndexOutOfBoundsException.class, () -> rope.delete(2, 2));
+		assertThrows(IndexOutOfBoundsException.class, () -> rope.charAt(3));
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			builder.append((char) ('a' + random.nextInt(26)));
+		}
+		return builder.toString();
+	}
+}